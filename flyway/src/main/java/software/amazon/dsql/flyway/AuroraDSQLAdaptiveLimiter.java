@@ -0,0 +1,328 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Adaptive concurrency limit for work sent to an Aurora DSQL cluster.
+ *
+ * <p>The limit follows additive-increase/multiplicative-decrease: it grows by roughly
+ * one permit per round of successful work, and is cut back when the share of OCC
+ * conflicts in recent outcomes passes {@link #CONFLICT_RATE_THRESHOLD}, when the
+ * cluster throttles, or when the p90 latency drifts well above the best p50 seen so
+ * far. Decreases are applied at most once per round so a burst of failures from the
+ * same round only counts once.</p>
+ *
+ * <p>Limiters are shared per cluster endpoint via {@link #forEndpoint(String)}, so all
+ * Flyway instances in a JVM that target the same cluster are governed together. The
+ * bounds are read from the {@code concurrency.initial}, {@code concurrency.min} and
+ * {@code concurrency.max} settings.</p>
+ */
+public class AuroraDSQLAdaptiveLimiter {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLAdaptiveLimiter.class.getName());
+
+    static final double CONFLICT_RATE_THRESHOLD = 0.05;
+    static final double CONFLICT_BACKOFF = 0.7;
+    static final double THROTTLE_BACKOFF = 0.5;
+    static final double LATENCY_BACKOFF = 0.9;
+    static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final int SAMPLE_SIZE = 128;
+    private static final int MIN_ROUND = 8;
+    private static final Map<String, AuroraDSQLAdaptiveLimiter> ENDPOINTS = new ConcurrentHashMap<>();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    private final long[] latencies = new long[SAMPLE_SIZE];
+    private final boolean[] conflicts = new boolean[SAMPLE_SIZE];
+    private int samples;
+    private int outcomes;
+
+    private final Map<Thread, Integer> holders = new HashMap<>();
+
+    private double limit;
+    private int inFlight;
+    private int sinceLastDecrease;
+    private long bestP50 = Long.MAX_VALUE;
+
+    public AuroraDSQLAdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid concurrency bounds: min=" + minLimit + ", max=" + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Returns the shared limiter for the cluster behind the given JDBC URL.
+     */
+    public static AuroraDSQLAdaptiveLimiter forEndpoint(String jdbcUrl) {
+        return ENDPOINTS.computeIfAbsent(endpoint(jdbcUrl), key -> new AuroraDSQLAdaptiveLimiter(
+                AuroraDSQLSettings.getInt("concurrency.initial", 4),
+                AuroraDSQLSettings.getInt("concurrency.min", 1),
+                AuroraDSQLSettings.getInt("concurrency.max", 32)));
+    }
+
+    /**
+     * Handle for one unit of admitted work. Closing it releases the permit.
+     */
+    public final class Permit implements AutoCloseable {
+        private final long startNanos = System.nanoTime();
+        private final Thread owner = Thread.currentThread();
+        private boolean released;
+
+        /**
+         * Records a successful completion, using the time since admission as a latency sample.
+         */
+        public void success() {
+            complete(System.nanoTime() - startNanos, false, false);
+        }
+
+        /**
+         * Records a successful completion without a latency sample, for long work such as a
+         * whole migration whose duration says nothing about the cluster's load.
+         */
+        public void successWithoutLatency() {
+            complete(-1, false, false);
+        }
+
+        /**
+         * Records a failed completion. Errors other than conflicts and throttling are
+         * treated as neutral.
+         */
+        public void failure(Throwable error) {
+            boolean throttled = AuroraDSQLErrors.isThrottled(error);
+            boolean conflict = !throttled && AuroraDSQLErrors.isConflict(error);
+            if (throttled || conflict) {
+                complete(-1, conflict, throttled);
+            } else {
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(owner);
+            }
+        }
+
+        private void complete(long latencyNanos, boolean conflict, boolean throttled) {
+            if (!released) {
+                released = true;
+                onComplete(owner, latencyNanos, conflict, throttled);
+            }
+        }
+    }
+
+    /**
+     * Blocks until the current limit admits another unit of work.
+     */
+    public Permit acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                available.await();
+            }
+            return admit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a permit if the current limit admits another unit of work, without blocking.
+     *
+     * @return the permit, or null if the limit is reached
+     */
+    public Permit tryAcquire() {
+        lock.lock();
+        try {
+            return inFlight >= (int) limit ? null : admit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether the current thread holds a permit, such as the one Flyway's migration lock
+     * takes for the whole migration.
+     */
+    public boolean isHeldByCurrentThread() {
+        lock.lock();
+        try {
+            return holders.containsKey(Thread.currentThread());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the callable under a permit, recording its latency and outcome.
+     */
+    public <T> T execute(Callable<T> work) throws Exception {
+        return run(acquire(), work);
+    }
+
+    /**
+     * Runs the callable on behalf of work that already holds a permit, such as a step of a
+     * migration. It takes a permit when one is free, so its outcome still adjusts the
+     * limit, and otherwise runs without one: waiting could block forever on the permit
+     * its own caller holds.
+     */
+    public <T> T executeNested(Callable<T> work) throws Exception {
+        return run(tryAcquire(), work);
+    }
+
+    private static <T> T run(Permit permit, Callable<T> work) throws Exception {
+        if (permit == null) {
+            return work.call();
+        }
+        try {
+            T result = work.call();
+            permit.success();
+            return result;
+        } catch (Exception e) {
+            permit.failure(e);
+            throw e;
+        } finally {
+            permit.close();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Permit admit() {
+        inFlight++;
+        Permit permit = new Permit();
+        holders.merge(permit.owner, 1, Integer::sum);
+        return permit;
+    }
+
+    private void release(Thread owner) {
+        lock.lock();
+        try {
+            inFlight--;
+            holders.computeIfPresent(owner, (thread, count) -> count > 1 ? count - 1 : null);
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onComplete(Thread owner, long latencyNanos, boolean conflict, boolean throttled) {
+        lock.lock();
+        try {
+            inFlight--;
+            holders.computeIfPresent(owner, (thread, count) -> count > 1 ? count - 1 : null);
+            int slot = outcomes++ % SAMPLE_SIZE;
+            conflicts[slot] = conflict;
+            if (latencyNanos >= 0) {
+                latencies[samples++ % SAMPLE_SIZE] = latencyNanos;
+            }
+            sinceLastDecrease++;
+
+            double previous = limit;
+            boolean roundComplete = sinceLastDecrease >= Math.max(MIN_ROUND, (int) limit);
+            if (throttled && roundComplete) {
+                decrease(THROTTLE_BACKOFF);
+            } else if (conflict && roundComplete && conflictRate() > CONFLICT_RATE_THRESHOLD) {
+                decrease(CONFLICT_BACKOFF);
+            } else if (!conflict && !throttled) {
+                if (roundComplete && latencyDegraded()) {
+                    decrease(LATENCY_BACKOFF);
+                } else {
+                    limit = Math.min(maxLimit, limit + 1.0 / limit);
+                }
+            }
+            if ((int) previous != (int) limit) {
+                LOG.fine("Adjusted DSQL concurrency limit from " + (int) previous + " to " + (int) limit
+                        + " (conflict rate " + Math.round(conflictRate() * 100) + "%)");
+                available.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease(double factor) {
+        limit = Math.max(minLimit, limit * factor);
+        sinceLastDecrease = 0;
+    }
+
+    private double conflictRate() {
+        int window = Math.min(outcomes, SAMPLE_SIZE);
+        if (window == 0) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < window; i++) {
+            if (conflicts[i]) {
+                count++;
+            }
+        }
+        return (double) count / window;
+    }
+
+    private boolean latencyDegraded() {
+        int window = Math.min(samples, SAMPLE_SIZE);
+        if (window < MIN_ROUND) {
+            return false;
+        }
+        long[] sorted = Arrays.copyOf(latencies, window);
+        Arrays.sort(sorted);
+        long p50 = sorted[window / 2];
+        long p90 = sorted[(int) Math.min(window - 1, Math.ceil(window * 0.9) - 1)];
+        bestP50 = Math.min(bestP50, p50);
+        return p90 > bestP50 * LATENCY_TOLERANCE;
+    }
+
+    static String endpoint(String jdbcUrl) {
+        if (jdbcUrl == null) {
+            return "";
+        }
+        int start = jdbcUrl.indexOf("//");
+        if (start < 0) {
+            return jdbcUrl;
+        }
+        start += 2;
+        int end = start;
+        while (end < jdbcUrl.length() && jdbcUrl.charAt(end) != ':' && jdbcUrl.charAt(end) != '/'
+                && jdbcUrl.charAt(end) != '?') {
+            end++;
+        }
+        return jdbcUrl.substring(start, end);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.FlywayException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Squashes a migrated schema into a generated, DSQL-compatible baseline script.
+ *
+ * <p>The generator reads the schema with {@link AuroraDSQLCatalog} and writes one DDL
+ * statement per object: a {@code CREATE TABLE} for each table with its primary key, unique
+ * and check constraints inline, a {@code CREATE INDEX ASYNC} for each remaining index, and a
+ * {@code CREATE VIEW} for each view, ordered so that views are created after the views they
+ * read from. Flyway executes each statement of the script in its own transaction.</p>
+ *
+ * <p>To provision a new environment, apply the baseline to the empty cluster with
+ * {@link #apply(Connection)}, then run Flyway with {@code baselineOnMigrate=true} and
+ * {@code baselineVersion} set to the last squashed version. Flyway records the baseline
+ * and applies only the migrations after it.</p>
+ */
+public class AuroraDSQLBaselineGenerator {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLBaselineGenerator.class.getName());
+
+    static final String DEFAULT_HISTORY_TABLE = "flyway_schema_history";
+
+    private static final Pattern INDEX = Pattern.compile(
+            "CREATE (UNIQUE )?INDEX (?:ASYNC )?(\\S+) ON (?:ONLY )?(\\S+)(?: USING \\w+)? (\\(.*)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final CatalogReader reader;
+    private final String schema;
+    private final Set<String> excluded = new HashSet<>();
+    private String historyTable = DEFAULT_HISTORY_TABLE;
+
+    /**
+     * @param connection connection to a cluster that has all migrations to be squashed applied
+     * @param schema     schema to read
+     */
+    public AuroraDSQLBaselineGenerator(Connection connection, String schema) {
+        this.reader = () -> AuroraDSQLCatalog.read(connection, schema);
+        this.schema = schema;
+    }
+
+    /**
+     * @param schema schema of a Flyway-managed database that has all migrations to be squashed applied
+     */
+    public AuroraDSQLBaselineGenerator(AuroraDSQLSchema schema) {
+        this.reader = schema::getCatalog;
+        this.schema = schema.getName();
+        this.historyTable = schema.getHistoryTableName();
+    }
+
+    /**
+     * Names the schema history table, when it isn't Flyway's default. The history table,
+     * its shards and the plugin's side tables next to them are always left out.
+     */
+    public AuroraDSQLBaselineGenerator historyTable(String table) {
+        this.historyTable = table;
+        return this;
+    }
+
+    /**
+     * Leaves the given tables out of the baseline, in addition to the schema history.
+     */
+    public AuroraDSQLBaselineGenerator exclude(String... tables) {
+        excluded.addAll(Arrays.asList(tables));
+        return this;
+    }
+
+    /**
+     * Generates the baseline statements, one DDL statement each, without trailing semicolons.
+     */
+    public List<String> generate() throws SQLException {
+        return generate(reader.read());
+    }
+
+    /**
+     * Generates the baseline as a Flyway SQL script.
+     */
+    public String generateScript() throws SQLException {
+        List<String> statements = generate();
+        StringBuilder script = new StringBuilder();
+        script.append("-- Baseline generated from schema \"").append(schema).append("\"\n");
+        script.append("-- Each statement runs in its own transaction\n");
+        for (String statement : statements) {
+            script.append('\n').append(statement).append(";\n");
+        }
+        return script.toString();
+    }
+
+    /**
+     * Executes the baseline against an empty cluster, one statement per transaction.
+     *
+     * <p>Tables, then indexes, are created through an {@link AuroraDSQLPipeline}, since
+     * neither depends on others of its kind. Views run in order, as they may read from
+     * each other. Every statement goes through the endpoint's adaptive limiter and is
+     * retried on OCC conflicts, as the schema's own DDL is.</p>
+     *
+     * @return the number of statements executed
+     */
+    public int apply(Connection target) throws SQLException {
+        List<String> statements = generate();
+        List<String> tables = new ArrayList<>();
+        List<String> indexes = new ArrayList<>();
+        List<String> views = new ArrayList<>();
+        for (String statement : statements) {
+            if (statement.startsWith("CREATE TABLE ")) {
+                tables.add(statement);
+            } else if (statement.startsWith("CREATE VIEW ")) {
+                views.add(statement);
+            } else {
+                indexes.add(statement);
+            }
+        }
+        boolean originalAutoCommit = target.getAutoCommit();
+        try {
+            target.setAutoCommit(true);
+            AuroraDSQLAdaptiveLimiter limiter = AuroraDSQLAdaptiveLimiter.forEndpoint(target.getMetaData().getURL());
+            AuroraDSQLPipeline.Executor executor = (connection, statement) -> {
+                LOG.fine("Applying baseline statement: " + statement);
+                AuroraDSQLSchema.executeDdl(connection, limiter, statement);
+            };
+            AuroraDSQLPipeline pipeline = AuroraDSQLPipeline.of(target);
+            pipeline.execute(tables, executor);
+            pipeline.execute(indexes, executor);
+            for (String view : views) {
+                executor.execute(target, view);
+            }
+        } finally {
+            target.setAutoCommit(originalAutoCommit);
+        }
+        LOG.info("Applied baseline of schema " + schema + " (" + statements.size() + " statements)");
+        return statements.size();
+    }
+
+    List<String> generate(AuroraDSQLCatalog catalog) {
+        List<String> statements = new ArrayList<>();
+        Set<String> constraintIndexes = new HashSet<>();
+        for (AuroraDSQLCatalog.Definition constraint : catalog.constraints) {
+            constraintIndexes.add(constraint.table + "." + constraint.name);
+        }
+
+        for (String table : catalog.tables()) {
+            if (!isExcluded(table)) {
+                statements.add(createTable(catalog, table));
+            }
+        }
+        for (AuroraDSQLCatalog.Definition index : catalog.indexes) {
+            if (!isExcluded(index.table) && !constraintIndexes.contains(index.table + "." + index.name)) {
+                statements.add(createIndex(catalog, index));
+            }
+        }
+        for (Map.Entry<String, String> view : orderViews(catalog).entrySet()) {
+            if (isExcluded(view.getKey())) {
+                continue;
+            }
+            statements.add("CREATE VIEW " + quote(view.getKey()) + " AS " + stripSemicolon(view.getValue()));
+        }
+        return statements;
+    }
+
+    private boolean isExcluded(String table) {
+        return excluded.contains(table) || isHistoryObject(historyTable, table);
+    }
+
+    /**
+     * Whether a table or view is the schema history table, one of its shards, or one of
+     * the side tables the plugin keeps next to it.
+     */
+    static boolean isHistoryObject(String historyTable, String table) {
+        return table.equals(historyTable)
+                || table.equals(historyTable + AuroraDSQLHistoryCompactor.ARCHIVE_SUFFIX)
+                || table.equals(historyTable + AuroraDSQLCheckpoints.TABLE_SUFFIX)
+                || table.equals(historyTable + AuroraDSQLRepeatableGuard.TABLE_SUFFIX)
+                || table.equals(historyTable + AuroraDSQLShadowRewrite.TABLE_SUFFIX)
+                || AuroraDSQLHistoryShards.isShardObject(historyTable, table);
+    }
+
+    private static String createTable(AuroraDSQLCatalog catalog, String table) {
+        List<String> lines = new ArrayList<>();
+        for (AuroraDSQLCatalog.Column column : catalog.columns(table)) {
+            StringBuilder line = new StringBuilder();
+            line.append(quote(column.name)).append(' ').append(column.type());
+            if (column.defaultValue != null) {
+                line.append(" DEFAULT ").append(catalog.normalize(column.defaultValue));
+            }
+            if (!column.nullable) {
+                line.append(" NOT NULL");
+            }
+            lines.add(line.toString());
+        }
+        for (AuroraDSQLCatalog.Definition constraint : catalog.constraints(table)) {
+            String definition = catalog.normalize(constraint.definition);
+            String upper = definition.toUpperCase();
+            if (upper.startsWith("NOT NULL")) {
+                continue;
+            }
+            if (upper.startsWith("FOREIGN KEY")) {
+                LOG.warning("Skipping constraint " + constraint.name + " on " + table
+                        + ": Aurora DSQL does not support foreign keys");
+                continue;
+            }
+            lines.add("CONSTRAINT " + quote(constraint.name) + " " + definition);
+        }
+        return "CREATE TABLE " + quote(table) + " (\n    " + String.join(",\n    ", lines) + "\n)";
+    }
+
+    private static String createIndex(AuroraDSQLCatalog catalog, AuroraDSQLCatalog.Definition index) {
+        Matcher m = INDEX.matcher(catalog.normalize(index.definition));
+        if (!m.matches()) {
+            throw new FlywayException("Unable to convert index " + index.name + " on " + index.table
+                    + " to CREATE INDEX ASYNC: " + index.definition);
+        }
+        return "CREATE " + (m.group(1) == null ? "" : "UNIQUE ") + "INDEX ASYNC " + m.group(2)
+                + " ON " + m.group(3) + " " + m.group(4);
+    }
+
+    /**
+     * Orders views so that each view follows the views its definition refers to.
+     */
+    private static Map<String, String> orderViews(AuroraDSQLCatalog catalog) {
+        Map<String, String> pending = new LinkedHashMap<>();
+        for (Map.Entry<String, String> view : catalog.views.entrySet()) {
+            pending.put(view.getKey(), catalog.normalize(view.getValue()));
+        }
+        Map<String, String> ordered = new LinkedHashMap<>();
+        while (!pending.isEmpty()) {
+            int before = ordered.size();
+            for (Map.Entry<String, String> view : new ArrayList<>(pending.entrySet())) {
+                if (!dependsOnAny(view.getValue(), view.getKey(), pending.keySet())) {
+                    ordered.put(view.getKey(), view.getValue());
+                    pending.remove(view.getKey());
+                }
+            }
+            if (ordered.size() == before) {
+                throw new FlywayException("Unable to order views with circular references: " + pending.keySet());
+            }
+        }
+        return ordered;
+    }
+
+    private static boolean dependsOnAny(String definition, String self, Set<String> views) {
+        for (String view : views) {
+            if (!view.equals(self)
+                    && Pattern.compile("(?<![\\w\"])\"?" + Pattern.quote(view) + "\"?(?![\\w\"])").matcher(definition).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripSemicolon(String sql) {
+        return sql.endsWith(";") ? sql.substring(0, sql.length() - 1).trim() : sql;
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private interface CatalogReader {
+        AuroraDSQLCatalog read() throws SQLException;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Snapshot of the tables, indexes, constraints and views in one schema.
+ *
+ * <p>The catalog is read with one bulk query per kind of object instead of one query per
+ * table, so reading a schema with thousands of tables still takes four round trips.
+ * Rows are kept in catalog order, grouped by table.</p>
+ */
+final class AuroraDSQLCatalog {
+
+    static final String COLUMNS_SQL = "SELECT table_name, column_name, data_type, is_nullable, column_default, "
+            + "character_maximum_length, numeric_precision, numeric_scale "
+            + "FROM information_schema.columns WHERE table_schema = ? ORDER BY table_name, ordinal_position";
+
+    static final String INDEXES_SQL = "SELECT tablename, indexname, indexdef "
+            + "FROM pg_indexes WHERE schemaname = ? ORDER BY tablename, indexname";
+
+    static final String CONSTRAINTS_SQL = "SELECT rel.relname, con.conname, pg_get_constraintdef(con.oid) "
+            + "FROM pg_constraint con "
+            + "JOIN pg_class rel ON rel.oid = con.conrelid "
+            + "JOIN pg_namespace nsp ON nsp.oid = rel.relnamespace "
+            + "WHERE nsp.nspname = ? ORDER BY rel.relname, con.conname";
+
+    static final String VIEWS_SQL = "SELECT table_name, view_definition "
+            + "FROM information_schema.views WHERE table_schema = ? ORDER BY table_name";
+
+    static final String RELATIONS_SQL = "SELECT nsp.nspname, rel.relname "
+            + "FROM pg_namespace nsp "
+            + "LEFT JOIN pg_class rel ON rel.relnamespace = nsp.oid AND rel.relkind IN ('r', 'p', 'v', 'm', 'f') "
+            + "WHERE nsp.nspname NOT LIKE 'pg\\_%' AND nsp.nspname <> 'information_schema'";
+
+    /**
+     * One column of a table or view.
+     */
+    static final class Column {
+        final String table;
+        final String name;
+        final String dataType;
+        final boolean nullable;
+        final String defaultValue;
+        final String length;
+        final String precision;
+        final String scale;
+
+        Column(String table, String name, String dataType, boolean nullable, String defaultValue,
+               String length, String precision, String scale) {
+            this.table = table;
+            this.name = name;
+            this.dataType = dataType;
+            this.nullable = nullable;
+            this.defaultValue = defaultValue;
+            this.length = length;
+            this.precision = precision;
+            this.scale = scale;
+        }
+
+        /**
+         * The column type as it would be written in a CREATE TABLE statement.
+         */
+        String type() {
+            if (length != null && (dataType.equals("character varying") || dataType.equals("character")
+                    || dataType.equals("bit") || dataType.equals("bit varying"))) {
+                return dataType + "(" + length + ")";
+            }
+            if (precision != null && dataType.equals("numeric")) {
+                return "numeric(" + precision + (scale == null ? "" : ", " + scale) + ")";
+            }
+            return dataType;
+        }
+    }
+
+    /**
+     * A named index, constraint or view together with its definition.
+     */
+    static final class Definition {
+        final String table;
+        final String name;
+        final String definition;
+
+        Definition(String table, String name, String definition) {
+            this.table = table;
+            this.name = name;
+            this.definition = definition;
+        }
+    }
+
+    final String schema;
+    final List<Column> columns;
+    final List<Definition> indexes;
+    final List<Definition> constraints;
+    final Map<String, String> views;
+
+    private AuroraDSQLCatalog(String schema, List<Column> columns, List<Definition> indexes,
+                              List<Definition> constraints, Map<String, String> views) {
+        this.schema = schema;
+        this.columns = Collections.unmodifiableList(columns);
+        this.indexes = Collections.unmodifiableList(indexes);
+        this.constraints = Collections.unmodifiableList(constraints);
+        this.views = Collections.unmodifiableMap(views);
+    }
+
+    /**
+     * Reads the catalog of a schema.
+     */
+    static AuroraDSQLCatalog read(Connection connection, String schema) throws SQLException {
+        List<Column> columns = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(COLUMNS_SQL)) {
+            stmt.setString(1, schema);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    columns.add(new Column(rs.getString(1), rs.getString(2), rs.getString(3),
+                            "YES".equals(rs.getString(4)), rs.getString(5),
+                            rs.getString(6), rs.getString(7), rs.getString(8)));
+                }
+            }
+        }
+        List<Definition> indexes = readDefinitions(connection, INDEXES_SQL, schema);
+        List<Definition> constraints = readDefinitions(connection, CONSTRAINTS_SQL, schema);
+        Map<String, String> views = new LinkedHashMap<>();
+        try (PreparedStatement stmt = connection.prepareStatement(VIEWS_SQL)) {
+            stmt.setString(1, schema);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    views.put(rs.getString(1), rs.getString(2));
+                }
+            }
+        }
+        return new AuroraDSQLCatalog(schema, columns, indexes, constraints, views);
+    }
+
+    private static List<Definition> readDefinitions(Connection connection, String sql, String schema)
+            throws SQLException {
+        List<Definition> definitions = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, schema);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    definitions.add(new Definition(rs.getString(1), rs.getString(2), rs.getString(3)));
+                }
+            }
+        }
+        return definitions;
+    }
+
+    /**
+     * Names of the base tables in the schema, excluding views, in catalog order.
+     */
+    Set<String> tables() {
+        Set<String> tables = new LinkedHashSet<>();
+        for (Column column : columns) {
+            if (!views.containsKey(column.table)) {
+                tables.add(column.table);
+            }
+        }
+        return tables;
+    }
+
+    List<Column> columns(String table) {
+        List<Column> result = new ArrayList<>();
+        for (Column column : columns) {
+            if (column.table.equals(table)) {
+                result.add(column);
+            }
+        }
+        return result;
+    }
+
+    List<Definition> constraints(String table) {
+        List<Definition> result = new ArrayList<>();
+        for (Definition constraint : constraints) {
+            if (constraint.table.equals(table)) {
+                result.add(constraint);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes references to the schema itself and collapses whitespace, so definitions
+     * of the same objects in differently named schemas or clusters compare equal.
+     */
+    String normalize(String definition) {
+        return normalize(definition, schema);
+    }
+
+    static String normalize(String definition, String schema) {
+        if (definition == null) {
+            return "";
+        }
+        String qualifier = "(?<![\\w\"])(\"" + Pattern.quote(schema) + "\"|" + Pattern.quote(schema) + ")\\.";
+        return definition
+                .replaceAll(qualifier, "")
+                .replaceAll("\\s+", " ")
+                .trim();
+    }
+
+    /**
+     * Snapshot of which schemas exist in the database and which tables and views each holds.
+     *
+     * <p>Read with a single query, so commands that only check whether the schema history
+     * and schemas exist don't need a round trip for every check.</p>
+     */
+    static final class Relations {
+        private final Map<String, Set<String>> schemas;
+
+        Relations(Map<String, Set<String>> schemas) {
+            this.schemas = schemas;
+        }
+
+        static Relations read(Connection connection) throws SQLException {
+            Map<String, Set<String>> schemas = new LinkedHashMap<>();
+            try (PreparedStatement stmt = connection.prepareStatement(RELATIONS_SQL);
+                 ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Set<String> relations = schemas.computeIfAbsent(rs.getString(1), k -> new LinkedHashSet<>());
+                    if (rs.getString(2) != null) {
+                        relations.add(rs.getString(2));
+                    }
+                }
+            }
+            return new Relations(schemas);
+        }
+
+        boolean hasSchema(String schema) {
+            return schemas.containsKey(schema);
+        }
+
+        boolean hasRelation(String schema, String relation) {
+            Set<String> relations = schemas.get(schema);
+            return relations != null && relations.contains(relation);
+        }
+
+        boolean hasRelations(String schema) {
+            Set<String> relations = schemas.get(schema);
+            return relations != null && !relations.isEmpty();
+        }
+    }
+}
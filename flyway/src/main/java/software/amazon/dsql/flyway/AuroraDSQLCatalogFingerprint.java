@@ -0,0 +1,260 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.FlywayException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Hierarchical fingerprint of the objects in one schema, used to detect schema drift.
+ *
+ * <p>Each table and view gets one hash per component (columns, indexes, constraints, and
+ * the definition for views). The component hashes roll up into a hash per object, and the
+ * object hashes roll up into a digest for the whole schema. The catalog is read in bulk by
+ * {@link AuroraDSQLCatalog}. The schema history table, its shards and the plugin's side
+ * tables are left out, so turning on a plugin feature doesn't count as drift.</p>
+ *
+ * <p>If two fingerprints have the same digest, nothing needs to be compared. Otherwise
+ * {@link #diff(AuroraDSQLCatalogFingerprint)} walks the hierarchy and reports only the
+ * components that differ. A fingerprint can be stored with {@link #serialize()} and read
+ * back with {@link #parse(String)}.</p>
+ */
+public final class AuroraDSQLCatalogFingerprint {
+
+    static final String COLUMNS = "columns";
+    static final String INDEXES = "indexes";
+    static final String CONSTRAINTS = "constraints";
+    static final String DEFINITION = "definition";
+
+    /** Object name to component name to component hash, both sorted. */
+    private final Map<String, Map<String, String>> objects;
+    private final String digest;
+
+    AuroraDSQLCatalogFingerprint(Map<String, Map<String, String>> objects) {
+        this.objects = objects;
+        StringBuilder all = new StringBuilder();
+        for (String object : objects.keySet()) {
+            all.append(object).append('=').append(getObjectHash(object)).append('\n');
+        }
+        this.digest = sha256(all.toString());
+    }
+
+    /**
+     * Reads the fingerprint of a schema from the catalog, leaving out Flyway's default
+     * schema history table and the plugin's side tables next to it.
+     */
+    public static AuroraDSQLCatalogFingerprint read(Connection connection, String schema) throws SQLException {
+        return read(connection, schema, AuroraDSQLBaselineGenerator.DEFAULT_HISTORY_TABLE);
+    }
+
+    /**
+     * Reads the fingerprint of a schema from the catalog, leaving out the given schema
+     * history table, its shards and the plugin's side tables next to it.
+     */
+    public static AuroraDSQLCatalogFingerprint read(Connection connection, String schema, String historyTable)
+            throws SQLException {
+        return of(AuroraDSQLCatalog.read(connection, schema), historyTable);
+    }
+
+    static AuroraDSQLCatalogFingerprint of(AuroraDSQLCatalog catalog, String historyTable) {
+        Map<String, Map<String, StringBuilder>> canonical = new TreeMap<>();
+        for (AuroraDSQLCatalog.Column column : catalog.columns) {
+            if (AuroraDSQLBaselineGenerator.isHistoryObject(historyTable, column.table)) {
+                continue;
+            }
+            component(canonical, column.table, COLUMNS)
+                    .append(column.name).append(' ').append(column.dataType)
+                    .append(" nullable=").append(column.nullable ? "YES" : "NO")
+                    .append(" default=").append(column.defaultValue)
+                    .append(" length=").append(column.length)
+                    .append(" precision=").append(column.precision)
+                    .append(" scale=").append(column.scale)
+                    .append('\n');
+        }
+        for (AuroraDSQLCatalog.Definition index : catalog.indexes) {
+            if (AuroraDSQLBaselineGenerator.isHistoryObject(historyTable, index.table)) {
+                continue;
+            }
+            component(canonical, index.table, INDEXES)
+                    .append(index.name).append(' ').append(catalog.normalize(index.definition)).append('\n');
+        }
+        for (AuroraDSQLCatalog.Definition constraint : catalog.constraints) {
+            if (AuroraDSQLBaselineGenerator.isHistoryObject(historyTable, constraint.table)) {
+                continue;
+            }
+            component(canonical, constraint.table, CONSTRAINTS)
+                    .append(constraint.name).append(' ').append(catalog.normalize(constraint.definition)).append('\n');
+        }
+        for (Map.Entry<String, String> view : catalog.views.entrySet()) {
+            if (AuroraDSQLBaselineGenerator.isHistoryObject(historyTable, view.getKey())) {
+                continue;
+            }
+            component(canonical, view.getKey(), DEFINITION).append(catalog.normalize(view.getValue()));
+        }
+
+        Map<String, Map<String, String>> objects = new TreeMap<>();
+        for (Map.Entry<String, Map<String, StringBuilder>> object : canonical.entrySet()) {
+            Map<String, String> hashes = new TreeMap<>();
+            for (Map.Entry<String, StringBuilder> component : object.getValue().entrySet()) {
+                hashes.put(component.getKey(), sha256(component.getValue().toString()));
+            }
+            objects.put(object.getKey(), hashes);
+        }
+        return new AuroraDSQLCatalogFingerprint(objects);
+    }
+
+    /**
+     * Parses a fingerprint previously produced by {@link #serialize()}.
+     *
+     * @throws FlywayException if the text is not a fingerprint, or its digest does not match its contents
+     */
+    public static AuroraDSQLCatalogFingerprint parse(String text) {
+        Map<String, Map<String, String>> objects = new TreeMap<>();
+        String expectedDigest = null;
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t");
+            if (fields.length == 2 && fields[0].equals("digest")) {
+                expectedDigest = fields[1];
+            } else if (fields.length == 3) {
+                objects.computeIfAbsent(fields[0], k -> new TreeMap<>()).put(fields[1], fields[2]);
+            } else {
+                throw new FlywayException("Invalid catalog fingerprint line: " + line);
+            }
+        }
+        AuroraDSQLCatalogFingerprint fingerprint = new AuroraDSQLCatalogFingerprint(objects);
+        if (expectedDigest != null && !expectedDigest.equals(fingerprint.digest)) {
+            throw new FlywayException("Catalog fingerprint digest " + expectedDigest
+                    + " does not match its contents (" + fingerprint.digest + ")");
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Serializes the fingerprint as tab-separated text, one component hash per line.
+     * The output is sorted and stable, so it diffs cleanly under version control.
+     */
+    public String serialize() {
+        StringBuilder text = new StringBuilder();
+        text.append("digest\t").append(digest).append('\n');
+        for (Map.Entry<String, Map<String, String>> object : objects.entrySet()) {
+            for (Map.Entry<String, String> component : object.getValue().entrySet()) {
+                text.append(object.getKey()).append('\t').append(component.getKey()).append('\t')
+                        .append(component.getValue()).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Hex SHA-256 digest of the whole schema.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Names of the tables and views in the fingerprint, sorted.
+     */
+    public List<String> getObjects() {
+        return Collections.unmodifiableList(new ArrayList<>(objects.keySet()));
+    }
+
+    /**
+     * Hex SHA-256 hash of one table or view, or null if the schema does not contain it.
+     */
+    public String getObjectHash(String object) {
+        Map<String, String> components = objects.get(object);
+        if (components == null) {
+            return null;
+        }
+        StringBuilder all = new StringBuilder();
+        for (Map.Entry<String, String> component : components.entrySet()) {
+            all.append(component.getKey()).append('=').append(component.getValue()).append('\n');
+        }
+        return sha256(all.toString());
+    }
+
+    /**
+     * Lists how this (live) fingerprint differs from an expected one.
+     *
+     * @return one message per drifted component, or an empty list if the schemas match
+     */
+    public List<String> diff(AuroraDSQLCatalogFingerprint expected) {
+        List<String> drift = new ArrayList<>();
+        if (digest.equals(expected.digest)) {
+            return drift;
+        }
+        TreeSet<String> names = new TreeSet<>(objects.keySet());
+        names.addAll(expected.objects.keySet());
+        for (String name : names) {
+            Map<String, String> actual = objects.get(name);
+            Map<String, String> wanted = expected.objects.get(name);
+            if (actual == null) {
+                drift.add(name + ": missing");
+            } else if (wanted == null) {
+                drift.add(name + ": unexpected");
+            } else if (!actual.equals(wanted)) {
+                TreeSet<String> components = new TreeSet<>(actual.keySet());
+                components.addAll(wanted.keySet());
+                for (String component : components) {
+                    if (!Objects.equals(actual.get(component), wanted.get(component))) {
+                        drift.add(name + ": " + component + " differ");
+                    }
+                }
+            }
+        }
+        return drift;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof AuroraDSQLCatalogFingerprint && digest.equals(((AuroraDSQLCatalogFingerprint) o).digest);
+    }
+
+    @Override
+    public int hashCode() {
+        return digest.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "CatalogFingerprint[" + objects.size() + " objects, sha256:" + digest + "]";
+    }
+
+    private static StringBuilder component(Map<String, Map<String, StringBuilder>> canonical,
+                                           String object, String component) {
+        return canonical.computeIfAbsent(object, k -> new TreeMap<>())
+                .computeIfAbsent(component, k -> new StringBuilder());
+    }
+
+    static String sha256(String text) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
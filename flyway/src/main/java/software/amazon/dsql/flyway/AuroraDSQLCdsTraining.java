@@ -0,0 +1,74 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.configuration.FluentConfiguration;
+import org.flywaydb.core.extensibility.Plugin;
+
+import java.util.Arrays;
+import java.util.ServiceLoader;
+import java.util.logging.Logger;
+
+/**
+ * Training run used to build a class-data-sharing (AppCDS) archive for fast JVM startup.
+ *
+ * <p>The {@code cdsArchive} Gradle task runs this class with
+ * {@code -XX:ArchiveClassesAtExit}. It loads the classes a Flyway run needs before it
+ * touches the network: SPI plugin discovery, the JDBC drivers, Flyway's configuration
+ * and this plugin's database type.</p>
+ *
+ * <p>If a JDBC URL is passed as the first argument, the run also calls {@code info()}
+ * against that cluster. Any further arguments are used as migration locations. This
+ * archives the connection, parser and schema history classes as well, so a no-op
+ * {@code migrate} starts almost entirely from the archive.</p>
+ */
+public final class AuroraDSQLCdsTraining {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLCdsTraining.class.getName());
+
+    private static final String OFFLINE_URL = "jdbc:aws-dsql:postgresql://training.dsql.us-east-1.on.aws:5432/postgres";
+
+    private AuroraDSQLCdsTraining() {
+    }
+
+    public static void main(String[] args) {
+        ClassLoader classLoader = AuroraDSQLCdsTraining.class.getClassLoader();
+
+        // The same lookup Flyway's plugin register performs at startup
+        int plugins = 0;
+        for (Plugin plugin : ServiceLoader.load(Plugin.class, classLoader)) {
+            plugins++;
+        }
+
+        boolean online = args.length > 0 && !args[0].isEmpty();
+        String url = online ? args[0] : OFFLINE_URL;
+        AuroraDSQLDatabaseType databaseType = new AuroraDSQLDatabaseType();
+        databaseType.handlesJDBCUrl(url);
+        loadClass(databaseType.getDriverClass(url, classLoader), classLoader);
+        loadClass("org.postgresql.Driver", classLoader);
+
+        FluentConfiguration configuration = Flyway.configure(classLoader).dataSource(url, "admin", null);
+        if (args.length > 1) {
+            configuration.locations(Arrays.copyOfRange(args, 1, args.length));
+        }
+        Flyway flyway = configuration.load();
+
+        AuroraDSQLStatement.parse("CREATE TABLE t (id UUID PRIMARY KEY); INSERT INTO t VALUES (gen_random_uuid());");
+
+        if (online) {
+            flyway.info();
+        }
+        LOG.info("CDS training run complete (" + plugins + " Flyway plugins discovered)");
+    }
+
+    private static void loadClass(String name, ClassLoader classLoader) {
+        try {
+            Class.forName(name, true, classLoader);
+        } catch (ClassNotFoundException | LinkageError e) {
+            LOG.warning("Not archiving " + name + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.callback.Callback;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.flywaydb.core.api.configuration.Configuration;
+import org.flywaydb.core.internal.exception.FlywaySqlException;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Flyway callback that checkpoints each committed statement of a migration, so a failed
+ * migration can resume where it stopped.
+ *
+ * <p>Aurora DSQL can't run DDL in a transaction with other statements, so Flyway commits
+ * the statements of a migration one at a time. If a migration fails half-way, the
+ * statements before the failure stay committed. While a migration runs, this callback
+ * records the ordinal and CRC32 checksum of each committed statement in a side table
+ * named {@code <history table>_checkpoints}. When the same, unchanged migration runs
+ * again, statements that are already checkpointed are skipped and execution resumes at
+ * the first statement that didn't commit. Checkpoints are removed once the migration
+ * succeeds.</p>
+ *
+ * <p>A statement that runs in autocommit mode is checkpointed in its own transaction
+ * right after it commits. Statements in an explicit transaction are checkpointed inside
+ * that transaction when it only contains DML, and right after it commits otherwise.
+ * Queries are never skipped. Checkpointing needs the plugin's session wrapper, so it is
+ * unavailable when {@code reconnect.enabled} is false.</p>
+ *
+ * <p>Register it with {@code Flyway.configure().callbacks(new AuroraDSQLCheckpoints())}
+ * or {@code flyway.callbacks=software.amazon.dsql.flyway.AuroraDSQLCheckpoints}.</p>
+ */
+public class AuroraDSQLCheckpoints implements Callback {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLCheckpoints.class.getName());
+
+    static final String TABLE_SUFFIX = "_checkpoints";
+    static final int CHUNK_SIZE = 1000;
+
+    private String checkpointTable;
+    private AuroraDSQLSession session;
+    private Tracker tracker;
+
+    @Override
+    public boolean supports(Event event, Context context) {
+        return event == Event.BEFORE_EACH_MIGRATE
+                || event == Event.AFTER_EACH_MIGRATE
+                || event == Event.AFTER_EACH_MIGRATE_ERROR;
+    }
+
+    @Override
+    public boolean canHandleInTransaction(Event event, Context context) {
+        // Creating the checkpoint table is DDL, and deleting checkpoints commits in chunks
+        return event == Event.AFTER_EACH_MIGRATE_ERROR;
+    }
+
+    @Override
+    public void handle(Event event, Context context) {
+        try {
+            switch (event) {
+                case BEFORE_EACH_MIGRATE:
+                    start(context);
+                    break;
+                case AFTER_EACH_MIGRATE:
+                    finish(context, true);
+                    break;
+                case AFTER_EACH_MIGRATE_ERROR:
+                    finish(context, false);
+                    break;
+                default:
+                    break;
+            }
+        } catch (SQLException e) {
+            throw new FlywaySqlException("Unable to update migration checkpoints", e);
+        }
+    }
+
+    @Override
+    public String getCallbackName() {
+        return "Aurora DSQL statement checkpoints";
+    }
+
+    private void start(Context context) throws SQLException {
+        session = AuroraDSQLSession.of(context.getConnection());
+        if (session == null) {
+            LOG.warning("Statement checkpoints need the Aurora DSQL session wrapper (flyway.dsql.reconnect.enabled)");
+            return;
+        }
+        Connection connection = context.getConnection();
+        if (checkpointTable == null) {
+            checkpointTable = tableName(context.getConfiguration());
+            createTable(connection, checkpointTable);
+        }
+        MigrationInfo migration = context.getMigrationInfo();
+        int checksum = migration.getChecksum() == null ? 0 : migration.getChecksum();
+        List<Integer> committed = load(connection, checkpointTable, migration.getScript(), checksum);
+        if (!committed.isEmpty()) {
+            LOG.info("Resuming " + migration.getScript() + " after " + committed.size()
+                    + " checkpointed statements");
+        }
+        tracker = new Tracker(checkpointTable, migration.getScript(), checksum, committed);
+        session.addListener(tracker);
+    }
+
+    private void finish(Context context, boolean success) throws SQLException {
+        if (tracker == null) {
+            return;
+        }
+        session.removeListener(tracker);
+        Tracker finished = tracker;
+        tracker = null;
+        if (success) {
+            delete(context.getConnection(), checkpointTable, finished.script);
+        } else {
+            LOG.info(finished.script + " failed after " + finished.getCheckpointed() + " checkpointed statements."
+                    + " Run repair and migrate again to resume at statement " + (finished.getCheckpointed() + 1) + ".");
+        }
+    }
+
+    static String tableName(Configuration configuration) {
+        return tableName(configuration, TABLE_SUFFIX);
+    }
+
+    /**
+     * Returns the quoted name of a side table next to the schema history table.
+     */
+    static String tableName(Configuration configuration, String suffix) {
+        String schema = historySchema(configuration);
+        String table = quote(AuroraDSQLHistoryShards.historyTable(configuration.getTable()) + suffix);
+        return schema == null ? table : quote(schema) + "." + table;
+    }
+
+    /**
+     * Returns the schema of the schema history table, or null if Flyway uses the current schema.
+     */
+    static String historySchema(Configuration configuration) {
+        String schema = configuration.getDefaultSchema();
+        if (schema == null && configuration.getSchemas() != null && configuration.getSchemas().length > 0) {
+            schema = configuration.getSchemas()[0];
+        }
+        return schema;
+    }
+
+    static void createTable(Connection connection, String table) throws SQLException {
+        boolean originalAutoCommit = connection.getAutoCommit();
+        try (Statement stmt = connection.createStatement()) {
+            connection.setAutoCommit(true);
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + table + " (\n"
+                    + "    \"script\" VARCHAR(1000) NOT NULL,\n"
+                    + "    \"checksum\" INT NOT NULL,\n"
+                    + "    \"ordinal\" INT NOT NULL,\n"
+                    + "    \"statement_checksum\" INT NOT NULL,\n"
+                    + "    \"installed_on\" TIMESTAMP NOT NULL DEFAULT now(),\n"
+                    + "    PRIMARY KEY (\"script\", \"checksum\", \"ordinal\")\n"
+                    + ")");
+        } finally {
+            connection.setAutoCommit(originalAutoCommit);
+        }
+    }
+
+    /**
+     * Reads the checksums of the consecutive committed statements of a migration, from the first.
+     */
+    static List<Integer> load(Connection connection, String table, String script, int checksum)
+            throws SQLException {
+        List<Integer> committed = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT \"ordinal\", \"statement_checksum\" FROM "
+                + table + " WHERE \"script\" = ? AND \"checksum\" = ? ORDER BY \"ordinal\"")) {
+            stmt.setString(1, script);
+            stmt.setInt(2, checksum);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next() && rs.getInt(1) == committed.size() + 1) {
+                    committed.add(rs.getInt(2));
+                }
+            }
+        }
+        return committed;
+    }
+
+    static void delete(Connection connection, String table, String script) throws SQLException {
+        int highest;
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT max(\"ordinal\") FROM " + table + " WHERE \"script\" = ?")) {
+            stmt.setString(1, script);
+            try (ResultSet rs = stmt.executeQuery()) {
+                highest = rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+        boolean originalAutoCommit = connection.getAutoCommit();
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "DELETE FROM " + table + " WHERE \"script\" = ? AND \"ordinal\" > ? AND \"ordinal\" <= ?")) {
+            connection.setAutoCommit(true);
+            // Chunked to stay within DSQL's per-transaction row limit
+            for (int from = 0; from < highest; from += CHUNK_SIZE) {
+                stmt.setString(1, script);
+                stmt.setInt(2, from);
+                stmt.setInt(3, from + CHUNK_SIZE);
+                stmt.executeUpdate();
+            }
+        } finally {
+            connection.setAutoCommit(originalAutoCommit);
+        }
+    }
+
+    static int checksum(String sql) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(sql == null ? new byte[0] : sql.getBytes(StandardCharsets.UTF_8));
+        return (int) crc32.getValue();
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Follows the statements of one running migration.
+     */
+    static final class Tracker implements AuroraDSQLSession.Listener {
+        private final String table;
+        private final String script;
+        private final int checksum;
+        private final List<Integer> committed;
+        private final List<int[]> pending = new ArrayList<>();
+        private boolean pendingDdl;
+        private int ordinal;
+        private int checkpointed;
+        private boolean resuming;
+
+        Tracker(String table, String script, int checksum, List<Integer> committed) {
+            this.table = table;
+            this.script = script;
+            this.checksum = checksum;
+            this.committed = committed;
+            this.checkpointed = committed.size();
+            this.resuming = !committed.isEmpty();
+        }
+
+        int getCheckpointed() {
+            return checkpointed;
+        }
+
+        @Override
+        public boolean beforeExecute(Connection connection, String sql) {
+            ordinal++;
+            if (!resuming) {
+                return true;
+            }
+            if (ordinal > committed.size()) {
+                resuming = false;
+                return true;
+            }
+            if (committed.get(ordinal - 1) != checksum(sql)) {
+                LOG.warning("Statement " + ordinal + " of " + script + " no longer matches its checkpoint;"
+                        + " running the remaining statements");
+                resuming = false;
+                checkpointed = ordinal - 1;
+                return true;
+            }
+            if (sql != null && AuroraDSQLStatement.of(sql).getKind() == AuroraDSQLStatement.Kind.QUERY) {
+                return true;
+            }
+            LOG.fine("Skipping statement " + ordinal + " of " + script + ": already committed");
+            return false;
+        }
+
+        @Override
+        public void afterExecute(Connection connection, String sql, long elapsedNanos, long rows)
+                throws SQLException {
+            if (ordinal <= checkpointed) {
+                // A query replayed while resuming
+                return;
+            }
+            pending.add(new int[]{ordinal, checksum(sql)});
+            pendingDdl |= sql == null || (!AuroraDSQLStatement.of(sql).isDml()
+                    && AuroraDSQLStatement.of(sql).getKind() != AuroraDSQLStatement.Kind.QUERY);
+            if (connection.getAutoCommit()) {
+                write(connection);
+            }
+        }
+
+        @Override
+        public void beforeCommit(Connection connection) throws SQLException {
+            // DSQL can't mix DDL and DML, so only DML transactions carry their own checkpoints
+            if (!pendingDdl) {
+                write(connection);
+            }
+        }
+
+        @Override
+        public void afterCommit(Connection connection) throws SQLException {
+            if (!pending.isEmpty()) {
+                write(connection);
+                connection.commit();
+            }
+        }
+
+        @Override
+        public void afterRollback() {
+            pending.clear();
+            pendingDdl = false;
+            ordinal = checkpointed;
+        }
+
+        private void write(Connection connection) throws SQLException {
+            if (pending.isEmpty()) {
+                return;
+            }
+            try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO " + table
+                    + " (\"script\", \"checksum\", \"ordinal\", \"statement_checksum\") VALUES (?, ?, ?, ?)")) {
+                for (int[] entry : pending) {
+                    stmt.setString(1, script);
+                    stmt.setInt(2, checksum);
+                    stmt.setInt(3, entry[0]);
+                    stmt.setInt(4, entry[1]);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            checkpointed = pending.get(pending.size() - 1)[0];
+            pending.clear();
+            pendingDdl = false;
+        }
+    }
+}
@@ -4,6 +4,8 @@
  */
 package software.amazon.dsql.flyway;
 
+import org.flywaydb.core.api.FlywayException;
+import org.flywaydb.core.api.configuration.Configuration;
 import org.flywaydb.core.internal.database.base.Schema;
 import org.flywaydb.core.internal.database.base.Table;
 import org.flywaydb.core.internal.exception.FlywaySqlException;
@@ -19,6 +21,15 @@ import java.util.logging.Logger;
  *
  * <p>Overrides PostgreSQL connection behavior: skips SET ROLE (DSQL uses IAM auth),
  * bypasses advisory locks (DSQL uses OCC), and returns DSQL-compatible schemas.</p>
+ *
+ * <p>With {@code read-only} set, for {@code info}, {@code validate} and similar checks, the
+ * connection only runs read-only transactions, which DSQL never aborts on conflicts.
+ * Statements that would write are rejected before they reach the cluster, and
+ * {@link #lock(Table, Callable)} runs its callable without waiting for admission.</p>
+ *
+ * <p>The underlying JDBC connection is normally an {@link AuroraDSQLSession}. It reconnects
+ * at transaction boundaries before DSQL's connection lifetime runs out. When tracing is
+ * enabled, each transaction and statement on the connection is recorded as a span.</p>
  */
 public class AuroraDSQLConnection extends PostgreSQLConnection {
 
@@ -26,6 +37,31 @@ public class AuroraDSQLConnection extends PostgreSQLConnection {
 
     public AuroraDSQLConnection(AuroraDSQLDatabase database, Connection connection) {
         super(database, connection);
+        AuroraDSQLTracer tracer = AuroraDSQLTracer.get();
+        AuroraDSQLSession session = AuroraDSQLSession.of(connection);
+        if (database.isReadOnly()) {
+            try {
+                connection.setReadOnly(true);
+            } catch (SQLException e) {
+                throw new FlywaySqlException("Unable to make connection read-only", e);
+            }
+            if (session != null) {
+                session.addListener(new ReadOnlyGuard());
+            }
+        }
+        AuroraDSQLDeferredMigrate.Throttle throttle = AuroraDSQLDeferredMigrate.currentThrottle();
+        if (throttle != null && session != null) {
+            session.addListener(throttle);
+        }
+        if (tracer.isEnabled() && session != null) {
+            session.addListener(new AuroraDSQLTracer.StatementSpans(tracer, session));
+        }
+        Configuration configuration = database.getConfiguration();
+        if (AuroraDSQLHistoryShards.shard() != null && session != null && configuration != null) {
+            String schema = AuroraDSQLCheckpoints.historySchema(configuration);
+            session.addListener(new AuroraDSQLHistoryShards.ViewRefresher(schema == null ? "public" : schema,
+                    configuration.getTable(), AuroraDSQLHistoryShards.historyTable(configuration.getTable())));
+        }
     }
 
     /**
@@ -36,6 +72,14 @@ public class AuroraDSQLConnection extends PostgreSQLConnection {
         LOG.fine("Skipping SET ROLE restoration (not supported by Aurora DSQL)");
     }
 
+    /**
+     * Returns the number of times the underlying connection has been transparently replaced.
+     */
+    public int getReconnectCount() {
+        AuroraDSQLSession session = AuroraDSQLSession.of(getJdbcConnection());
+        return session == null ? 0 : session.getReconnects();
+    }
+
     @Override
     public Schema getSchema(String name) {
         return new AuroraDSQLSchema(jdbcTemplate, (AuroraDSQLDatabase) database, name);
@@ -43,19 +87,74 @@ public class AuroraDSQLConnection extends PostgreSQLConnection {
 
     /**
      * Executes the callable without advisory locks (not supported by DSQL).
-     * DSQL's optimistic concurrency control handles conflicts.
+     * DSQL's optimistic concurrency control handles conflicts, and the cluster's
+     * {@link AuroraDSQLAdaptiveLimiter} bounds how many callables run at once. A callable
+     * that completes raises the limit like any other success, without a latency sample.
+     * Read-only sessions skip admission, since their reads can't conflict.
      */
     @Override
     public <T> T lock(Table table, Callable<T> callable) {
         LOG.fine("Executing without advisory lock (not supported by Aurora DSQL)");
+        AuroraDSQLTracer.Span span = AuroraDSQLTracer.get().start("flyway.lock")
+                .attribute("db.sql.table", String.valueOf(table));
+        AuroraDSQLAdaptiveLimiter.Permit permit = null;
+        if (!((AuroraDSQLDatabase) database).isReadOnly()) {
+            long waitStart = System.nanoTime();
+            try {
+                permit = ((AuroraDSQLDatabase) database).getLimiter().acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                span.error(e).close();
+                throw new FlywayException("Interrupted while waiting to execute migration", e);
+            }
+            if (span.isRecording()) {
+                span.attribute("dsql.admission_wait_ms", (System.nanoTime() - waitStart) / 1_000_000);
+            }
+        }
         try {
-            return callable.call();
+            T result = callable.call();
+            if (permit != null) {
+                permit.successWithoutLatency();
+            }
+            return result;
         } catch (SQLException e) {
+            failure(permit, span, e);
             throw new FlywaySqlException("Unable to execute migration", e);
         } catch (RuntimeException e) {
+            failure(permit, span, e);
             throw e;
         } catch (Exception e) {
+            failure(permit, span, e);
             throw new RuntimeException("Unable to execute migration", e);
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+            span.close();
+        }
+    }
+
+    private static void failure(AuroraDSQLAdaptiveLimiter.Permit permit, AuroraDSQLTracer.Span span, Exception e) {
+        if (permit != null) {
+            permit.failure(e);
+        }
+        span.error(e);
+    }
+
+    /**
+     * Rejects statements that would write while the session is read-only.
+     */
+    static final class ReadOnlyGuard implements AuroraDSQLSession.Listener {
+        @Override
+        public boolean beforeExecute(Connection connection, String sql) throws SQLException {
+            if (sql != null) {
+                AuroraDSQLStatement.Kind kind = AuroraDSQLStatement.of(sql).getKind();
+                if (kind == AuroraDSQLStatement.Kind.DDL || kind == AuroraDSQLStatement.Kind.DML) {
+                    throw new SQLException("Aurora DSQL Flyway session is read-only (flyway.dsql.read-only): "
+                            + sql, "25006");
+                }
+            }
+            return true;
         }
     }
 }
@@ -11,6 +11,7 @@ import org.flywaydb.core.internal.jdbc.StatementInterceptor;
 import org.flywaydb.database.postgresql.PostgreSQLDatabase;
 
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.logging.Logger;
 
 /**
@@ -24,6 +25,27 @@ public class AuroraDSQLDatabase extends PostgreSQLDatabase {
     private static final Logger LOG = Logger.getLogger(AuroraDSQLDatabase.class.getName());
     private static final String PLUGIN_VERSION = "1.0.0";
 
+    /**
+     * Column definitions of the schema history table, shared with the compaction archive
+     * so both tables always have the same shape.
+     */
+    static final String HISTORY_COLUMNS =
+            "    \"installed_rank\" INT NOT NULL PRIMARY KEY,\n" +
+            "    \"version\" VARCHAR(50),\n" +
+            "    \"description\" VARCHAR(200) NOT NULL,\n" +
+            "    \"type\" VARCHAR(20) NOT NULL,\n" +
+            "    \"script\" VARCHAR(1000) NOT NULL,\n" +
+            "    \"checksum\" INT,\n" +
+            "    \"installed_by\" VARCHAR(100) NOT NULL,\n" +
+            "    \"installed_on\" TIMESTAMP NOT NULL DEFAULT now(),\n" +
+            "    \"execution_time\" INT NOT NULL,\n" +
+            "    \"success\" BOOLEAN NOT NULL\n";
+
+    private volatile AuroraDSQLAdaptiveLimiter limiter;
+    private final AuroraDSQLSessionFacts facts = new AuroraDSQLSessionFacts();
+    private final boolean readOnly = AuroraDSQLSettings.getBoolean("read-only", false);
+    private AuroraDSQLCatalog.Relations relations;
+
     public AuroraDSQLDatabase(Configuration configuration,
                               JdbcConnectionFactory jdbcConnectionFactory,
                               StatementInterceptor statementInterceptor) {
@@ -33,7 +55,57 @@ public class AuroraDSQLDatabase extends PostgreSQLDatabase {
 
     @Override
     protected AuroraDSQLConnection doGetConnection(Connection connection) {
-        return new AuroraDSQLConnection(this, connection);
+        if (limiter == null) {
+            limiter = AuroraDSQLAdaptiveLimiter.forEndpoint(getUrl(connection));
+        }
+        // Long migrations outlive DSQL's connection lifetime, so the session can swap in
+        // a fresh connection from Flyway's factory at the next transaction boundary
+        Connection session = AuroraDSQLSettings.getBoolean("reconnect.enabled", true)
+                ? AuroraDSQLSession.wrap(connection, jdbcConnectionFactory::openConnection)
+                : connection;
+        // The current user and search path are the same on every connection, so they
+        // are fetched once for the whole Flyway session
+        AuroraDSQLSession wrapper = AuroraDSQLSession.of(session);
+        if (wrapper != null) {
+            wrapper.useFacts(facts);
+        }
+        return new AuroraDSQLConnection(this, session);
+    }
+
+    /**
+     * Returns the concurrency limiter shared by all work sent to this database's cluster.
+     */
+    AuroraDSQLAdaptiveLimiter getLimiter() {
+        AuroraDSQLAdaptiveLimiter current = limiter;
+        return current != null ? current : AuroraDSQLAdaptiveLimiter.forEndpoint(null);
+    }
+
+    /**
+     * Whether this Flyway session only reads, for commands such as {@code info} and
+     * {@code validate}, as set by {@code read-only}.
+     */
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Returns the schemas and relations of the database, read once per Flyway session.
+     * Only used in read-only mode, where nothing can change them.
+     */
+    synchronized AuroraDSQLCatalog.Relations getRelations(Connection connection) throws SQLException {
+        if (relations == null) {
+            relations = AuroraDSQLCatalog.Relations.read(connection);
+        }
+        return relations;
+    }
+
+    private static String getUrl(Connection connection) {
+        try {
+            return connection.getMetaData().getURL();
+        } catch (SQLException e) {
+            LOG.fine("Unable to read connection URL: " + e.getMessage());
+            return null;
+        }
     }
 
     @Override
@@ -59,18 +131,7 @@ public class AuroraDSQLDatabase extends PostgreSQLDatabase {
         // include the baseline INSERT statement with the CREATE TABLE.
         // Flyway will handle the baseline INSERT in a separate transaction.
         
-        return "CREATE TABLE " + table + " (\n" +
-               "    \"installed_rank\" INT NOT NULL PRIMARY KEY,\n" +
-               "    \"version\" VARCHAR(50),\n" +
-               "    \"description\" VARCHAR(200) NOT NULL,\n" +
-               "    \"type\" VARCHAR(20) NOT NULL,\n" +
-               "    \"script\" VARCHAR(1000) NOT NULL,\n" +
-               "    \"checksum\" INT,\n" +
-               "    \"installed_by\" VARCHAR(100) NOT NULL,\n" +
-               "    \"installed_on\" TIMESTAMP NOT NULL DEFAULT now(),\n" +
-               "    \"execution_time\" INT NOT NULL,\n" +
-               "    \"success\" BOOLEAN NOT NULL\n" +
-               ")";
+        return "CREATE TABLE " + table + " (\n" + HISTORY_COLUMNS + ")";
     }
 
     @Override
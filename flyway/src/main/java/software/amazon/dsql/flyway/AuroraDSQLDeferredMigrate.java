@@ -0,0 +1,321 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.callback.Callback;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.flywaydb.core.api.configuration.FluentConfiguration;
+import org.flywaydb.core.api.output.MigrateResult;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking migrate that lets deferrable migrations finish after startup.
+ *
+ * <p>Migrations in the configured locations are critical: the application needs them,
+ * such as new tables, before it can serve. Migrations in the deferred locations are not,
+ * such as large backfills, seed loads and index builds. {@link #start} returns at once
+ * and runs the critical migrations first, then the deferred ones, on a background
+ * thread with its own connections. The application waits for {@link #getCritical()}
+ * only, so startup takes as long as the critical migrations.</p>
+ *
+ * <p>Deferred migrations are versioned on their own, with their own schema history
+ * table, the {@value #SHARD} shard of the configured one (see
+ * {@link AuroraDSQLHistoryShards}). They may therefore run after critical migrations
+ * with higher versions, but must not be needed by them. An existing schema is baselined
+ * at version 0 for them, so their versions can start at 1.</p>
+ *
+ * <p>Deferred migrations are throttled to leave the cluster to the application: after
+ * each transaction they pause so that they are busy for at most
+ * {@code deferred.busy-percent} of the time. Progress of both phases is published
+ * to subscribers of {@link #getProgress()}.</p>
+ *
+ * <pre>
+ * AuroraDSQLDeferredMigrate migrate = AuroraDSQLDeferredMigrate.start(
+ *     Flyway.configure().dataSource(dataSource).locations("db/migration"), "db/deferred");
+ * migrate.getCritical().join();
+ * </pre>
+ */
+public final class AuroraDSQLDeferredMigrate {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLDeferredMigrate.class.getName());
+
+    static final String SHARD = "deferred";
+    static final int DEFAULT_BUSY_PERCENT = 50;
+
+    /**
+     * Throttle for the connections the deferred phase opens, set on its thread only.
+     */
+    private static final ThreadLocal<Throttle> THROTTLE = new ThreadLocal<>();
+
+    private final Throttle throttle;
+    private final CompletableFuture<MigrateResult> criticalResult = new CompletableFuture<>();
+    private final CompletableFuture<MigrateResult> deferredResult = new CompletableFuture<>();
+    private final SubmissionPublisher<Progress> progress = new SubmissionPublisher<>();
+
+    AuroraDSQLDeferredMigrate(int busyPercent) {
+        this.throttle = new Throttle(busyPercent);
+    }
+
+    /**
+     * Starts migrating in the background and returns at once.
+     *
+     * @param configuration     configuration of the critical migrations
+     * @param deferredLocations locations of the deferrable migrations
+     */
+    public static AuroraDSQLDeferredMigrate start(FluentConfiguration configuration, String... deferredLocations) {
+        Callback[] callbacks = configuration.getCallbacks();
+        FluentConfiguration deferred = Flyway.configure(configuration.getClassLoader())
+                .configuration(configuration)
+                .locations(deferredLocations)
+                .table(AuroraDSQLHistoryShards.shardTable(configuration.getTable(), SHARD))
+                .baselineOnMigrate(true)
+                .baselineVersion("0");
+        AuroraDSQLDeferredMigrate migrate = new AuroraDSQLDeferredMigrate(
+                AuroraDSQLSettings.getInt("deferred.busy-percent", DEFAULT_BUSY_PERCENT));
+        // Copied, so the caller's configuration doesn't keep a callback into this run
+        Flyway criticalFlyway = Flyway.configure(configuration.getClassLoader())
+                .configuration(configuration)
+                .callbacks(withProgress(callbacks, new ProgressCallback("critical", migrate::publish)))
+                .load();
+        Flyway deferredFlyway = deferred
+                .callbacks(withProgress(callbacks, new ProgressCallback(SHARD, migrate::publish)))
+                .load();
+        migrate.start(criticalFlyway::migrate, deferredFlyway::migrate);
+        return migrate;
+    }
+
+    private static Callback[] withProgress(Callback[] callbacks, Callback progress) {
+        Callback[] all = Arrays.copyOf(callbacks == null ? new Callback[0] : callbacks,
+                callbacks == null ? 1 : callbacks.length + 1);
+        all[all.length - 1] = progress;
+        return all;
+    }
+
+    void start(Callable<MigrateResult> critical, Callable<MigrateResult> deferred) {
+        Thread thread = new Thread(() -> run(critical, deferred), "dsql-deferred-migrate");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void run(Callable<MigrateResult> critical, Callable<MigrateResult> deferred) {
+        try {
+            criticalResult.complete(critical.call());
+        } catch (Exception e) {
+            criticalResult.completeExceptionally(e);
+            deferredResult.completeExceptionally(e);
+            progress.closeExceptionally(e);
+            return;
+        }
+        LOG.info("Critical migrations complete, continuing with deferred migrations in the background");
+        THROTTLE.set(throttle);
+        try {
+            deferredResult.complete(deferred.call());
+            progress.close();
+        } catch (Exception e) {
+            LOG.warning("Deferred migrations failed: " + e.getMessage());
+            deferredResult.completeExceptionally(e);
+            progress.closeExceptionally(e);
+        } finally {
+            THROTTLE.remove();
+        }
+    }
+
+    void publish(Progress next) {
+        // Never wait for a slow subscriber; the migrations don't stop for it
+        progress.offer(next, (subscriber, item) -> false);
+    }
+
+    /**
+     * Completes when the critical migrations have been applied; the application can
+     * serve from then on.
+     */
+    public CompletableFuture<MigrateResult> getCritical() {
+        return criticalResult;
+    }
+
+    /**
+     * Completes when the deferred migrations have been applied too.
+     */
+    public CompletableFuture<MigrateResult> getDeferred() {
+        return deferredResult;
+    }
+
+    /**
+     * Publishes an update as each migration starts and ends. The stream completes after
+     * the deferred migrations, or with the error that stopped them. Updates for a
+     * subscriber that has fallen {@link Flow#defaultBufferSize()} behind are dropped.
+     */
+    public Flow.Publisher<Progress> getProgress() {
+        return progress;
+    }
+
+    /**
+     * Returns the throttle for connections opened on the current thread, or null outside
+     * the deferred phase.
+     */
+    static Throttle currentThrottle() {
+        return THROTTLE.get();
+    }
+
+    /**
+     * One step of a migrate run.
+     */
+    public static final class Progress {
+        private final String phase;
+        private final String script;
+        private final boolean done;
+        private final boolean failed;
+
+        Progress(String phase, String script, boolean done, boolean failed) {
+            this.phase = phase;
+            this.script = script;
+            this.done = done;
+            this.failed = failed;
+        }
+
+        /**
+         * Either {@code critical} or {@code deferred}.
+         */
+        public String getPhase() {
+            return phase;
+        }
+
+        public String getScript() {
+            return script;
+        }
+
+        /**
+         * Whether the migration has ended, rather than started.
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return phase + " " + script + (failed ? " failed" : done ? " applied" : " started");
+        }
+    }
+
+    /**
+     * Turns Flyway's per-migration events into progress updates.
+     */
+    static final class ProgressCallback implements Callback {
+        private final String phase;
+        private final Consumer<Progress> sink;
+
+        ProgressCallback(String phase, Consumer<Progress> sink) {
+            this.phase = phase;
+            this.sink = sink;
+        }
+
+        @Override
+        public boolean supports(Event event, Context context) {
+            return event == Event.BEFORE_EACH_MIGRATE || event == Event.AFTER_EACH_MIGRATE
+                    || event == Event.AFTER_EACH_MIGRATE_ERROR;
+        }
+
+        @Override
+        public boolean canHandleInTransaction(Event event, Context context) {
+            return true;
+        }
+
+        @Override
+        public void handle(Event event, Context context) {
+            MigrationInfo info = context.getMigrationInfo();
+            sink.accept(new Progress(phase, info == null ? null : info.getScript(),
+                    event != Event.BEFORE_EACH_MIGRATE, event == Event.AFTER_EACH_MIGRATE_ERROR));
+        }
+
+        @Override
+        public String getCallbackName() {
+            return "Aurora DSQL deferred migrate progress";
+        }
+    }
+
+    /**
+     * Pauses after each transaction, so deferred work keeps a connection busy for at most
+     * the given share of the time.
+     */
+    static final class Throttle implements AuroraDSQLSession.Listener {
+        private final int busyPercent;
+        private long startNanos;
+
+        Throttle(int busyPercent) {
+            this.busyPercent = Math.max(1, Math.min(100, busyPercent));
+        }
+
+        @Override
+        public boolean beforeExecute(Connection connection, String sql) {
+            if (startNanos == 0) {
+                startNanos = System.nanoTime();
+            }
+            return true;
+        }
+
+        @Override
+        public void afterExecute(Connection connection, String sql, long elapsedNanos, long rows)
+                throws SQLException {
+            if (connection.getAutoCommit()) {
+                pause();
+            }
+        }
+
+        @Override
+        public void afterFailure(Connection connection, String sql, SQLException error) {
+            pause();
+        }
+
+        @Override
+        public void afterCommit(Connection connection) {
+            pause();
+        }
+
+        @Override
+        public void afterRollback() {
+            pause();
+        }
+
+        /**
+         * Returns how long to pause after work that took the given time.
+         */
+        long pauseNanos(long busyNanos) {
+            return busyNanos / busyPercent * (100 - busyPercent);
+        }
+
+        private void pause() {
+            if (startNanos == 0) {
+                return;
+            }
+            long pause = pauseNanos(System.nanoTime() - startNanos);
+            startNanos = 0;
+            if (pause <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
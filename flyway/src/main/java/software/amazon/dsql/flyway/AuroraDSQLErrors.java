@@ -0,0 +1,68 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import java.sql.SQLException;
+import java.util.Locale;
+
+/**
+ * Classifies Aurora DSQL errors by what the caller can do about them.
+ *
+ * <p>DSQL reports optimistic concurrency conflicts as SQLSTATE {@code 40001} with
+ * an {@code OC000} (data) or {@code OC001} (schema) code in the message, and quota
+ * or rate limits in the {@code 53} class.</p>
+ */
+final class AuroraDSQLErrors {
+
+    private AuroraDSQLErrors() {
+    }
+
+    /**
+     * Returns true if the transaction was aborted by an OCC conflict and can be retried.
+     */
+    static boolean isConflict(Throwable error) {
+        SQLException e = find(error);
+        if (e == null) {
+            return false;
+        }
+        String message = e.getMessage() == null ? "" : e.getMessage();
+        return "40001".equals(e.getSQLState()) || message.contains("OC000") || message.contains("OC001");
+    }
+
+    /**
+     * Returns true if the cluster rejected the request because of a rate or resource limit.
+     */
+    static boolean isThrottled(Throwable error) {
+        SQLException e = find(error);
+        if (e == null) {
+            return false;
+        }
+        String state = e.getSQLState();
+        String message = e.getMessage() == null ? "" : e.getMessage().toLowerCase(Locale.ROOT);
+        return (state != null && state.startsWith("53"))
+                || message.contains("rate exceeded") || message.contains("throttl");
+    }
+
+    /**
+     * Returns true if the connection itself failed or was closed by the server.
+     */
+    static boolean isConnectionFailure(Throwable error) {
+        SQLException e = find(error);
+        if (e == null) {
+            return false;
+        }
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("08") || "57P01".equals(state));
+    }
+
+    private static SQLException find(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                return (SQLException) t;
+            }
+        }
+        return null;
+    }
+}
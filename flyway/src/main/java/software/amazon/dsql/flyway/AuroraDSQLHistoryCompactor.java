@@ -0,0 +1,409 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.FlywayException;
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.MigrationVersion;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+/**
+ * Compacts a long schema history table into a single checksummed summary row.
+ *
+ * <p>Applied versioned migrations up to a cutoff version are copied into an archive table
+ * named {@code <table>_archive}, which has the same columns as the history table created
+ * by {@link AuroraDSQLDatabase#getRawCreateScript}. They are then replaced in the history
+ * table by one {@code BASELINE} row. Flyway treats the compacted versions as below baseline,
+ * so {@code info}, {@code validate} and {@code migrate} only read the summary row and
+ * later history.</p>
+ *
+ * <p>The summary row's description carries a SHA-256 digest of the whole archive table.
+ * {@link #verify()} recomputes it to prove the archive is intact, and
+ * {@link #verifyChecksums(MigrationInfo...)} compares the archived checksums with the
+ * migrations Flyway resolves today. Repeatable migrations stay in the history table,
+ * because Flyway needs their latest checksums to decide whether to reapply them.</p>
+ *
+ * <p>Every step respects DSQL's transaction rules. The archive table is created in its own
+ * transaction, and rows are copied and deleted in chunks well below the 3,000-row limit.
+ * The summary row replaces the newest compacted row in one transaction, so Flyway never
+ * sees a history with neither. A failed run can simply be repeated.</p>
+ */
+public class AuroraDSQLHistoryCompactor {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLHistoryCompactor.class.getName());
+
+    static final String SUMMARY_PREFIX = "<< Compacted ";
+    static final String SUMMARY_SCRIPT = "<< Compacted History >>";
+    static final String ARCHIVE_SUFFIX = "_archive";
+    static final int CHUNK_SIZE = 500;
+
+    private static final String COLUMNS = "\"installed_rank\", \"version\", \"description\", \"type\", \"script\", "
+            + "\"checksum\", \"installed_by\", \"installed_on\", \"execution_time\", \"success\"";
+
+    private final Connection connection;
+    private final String historyTable;
+    private final String archiveTable;
+
+    /**
+     * @param connection connection to the cluster; autocommit is restored after each call
+     * @param schema     schema containing the history table
+     * @param table      history table name, usually {@code flyway_schema_history}
+     */
+    public AuroraDSQLHistoryCompactor(Connection connection, String schema, String table) {
+        this.connection = connection;
+        this.historyTable = quote(schema) + "." + quote(table);
+        this.archiveTable = quote(schema) + "." + quote(table + ARCHIVE_SUFFIX);
+    }
+
+    /**
+     * Outcome of a compaction run.
+     */
+    public static final class Result {
+        private final int compactedRows;
+        private final int archivedRows;
+        private final String digest;
+
+        Result(int compactedRows, int archivedRows, String digest) {
+            this.compactedRows = compactedRows;
+            this.archivedRows = archivedRows;
+            this.digest = digest;
+        }
+
+        /**
+         * Number of history rows replaced by the summary row in this run.
+         */
+        public int getCompactedRows() {
+            return compactedRows;
+        }
+
+        /**
+         * Total number of rows in the archive table.
+         */
+        public int getArchivedRows() {
+            return archivedRows;
+        }
+
+        /**
+         * Hex SHA-256 digest of the archive, or null if nothing has been compacted.
+         */
+        public String getDigest() {
+            return digest;
+        }
+    }
+
+    /**
+     * Compacts all successfully applied versioned migrations up to and including the given version.
+     *
+     * @throws FlywayException if a failed migration falls within the range
+     */
+    public Result compact(String throughVersion) throws SQLException {
+        MigrationVersion cutoff = MigrationVersion.fromVersion(throughVersion);
+        List<HistoryRow> candidates = new ArrayList<>();
+        List<HistoryRow> previousSummaries = new ArrayList<>();
+        for (HistoryRow row : readRows(historyTable)) {
+            if (row.version == null || MigrationVersion.fromVersion(row.version).compareTo(cutoff) > 0) {
+                continue;
+            }
+            if (row.isSummary()) {
+                previousSummaries.add(row);
+            } else if (!row.success) {
+                throw new FlywayException("Unable to compact schema history: migration " + row.version
+                        + " failed. Repair it before compacting.");
+            } else {
+                candidates.add(row);
+            }
+        }
+        if (candidates.isEmpty()) {
+            LOG.info("Schema history " + historyTable + " has nothing to compact up to version " + throughVersion);
+            return new Result(0, countRows(archiveTable), currentDigest(previousSummaries));
+        }
+
+        boolean originalAutoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(true);
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS " + archiveTable + " (\n"
+                        + AuroraDSQLDatabase.HISTORY_COLUMNS + ")");
+            }
+
+            connection.setAutoCommit(false);
+            for (List<HistoryRow> chunk : chunks(candidates)) {
+                archive(chunk);
+                connection.commit();
+            }
+
+            List<HistoryRow> archived = readRows(archiveTable);
+            String digest = digest(archived);
+            HistoryRow newest = candidates.get(candidates.size() - 1);
+            MigrationVersion highest = MigrationVersion.fromVersion(newest.version);
+            for (HistoryRow row : candidates) {
+                highest = max(highest, row.version);
+            }
+            for (HistoryRow row : previousSummaries) {
+                highest = max(highest, row.version);
+            }
+
+            // Swap the newest compacted row for the summary in one transaction
+            List<HistoryRow> swapped = new ArrayList<>(previousSummaries);
+            swapped.add(newest);
+            delete(swapped);
+            insertSummary(newest.installedRank, highest.getVersion(), archived.size(), digest);
+            connection.commit();
+
+            for (List<HistoryRow> chunk : chunks(candidates.subList(0, candidates.size() - 1))) {
+                delete(chunk);
+                connection.commit();
+            }
+
+            LOG.info("Compacted " + candidates.size() + " rows of " + historyTable + " through version "
+                    + highest.getVersion() + " (sha256:" + digest + ")");
+            return new Result(candidates.size(), archived.size(), digest);
+        } catch (SQLException | RuntimeException e) {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+            }
+            throw e;
+        } finally {
+            connection.setAutoCommit(originalAutoCommit);
+        }
+    }
+
+    /**
+     * Recomputes the archive digest and checks it against the summary row.
+     *
+     * @throws FlywayException if the archive no longer matches the summary
+     */
+    public void verify() throws SQLException {
+        List<HistoryRow> summaries = new ArrayList<>();
+        for (HistoryRow row : readRows(historyTable)) {
+            if (row.isSummary()) {
+                summaries.add(row);
+            }
+        }
+        String expected = currentDigest(summaries);
+        if (expected == null) {
+            LOG.fine("Schema history " + historyTable + " has not been compacted");
+            return;
+        }
+        String actual = digest(readRows(archiveTable));
+        if (!expected.equals(actual)) {
+            throw new FlywayException("Schema history archive " + archiveTable + " does not match its summary digest:"
+                    + " expected sha256:" + expected + " but found sha256:" + actual);
+        }
+    }
+
+    /**
+     * Compares archived checksums with the migrations Flyway currently resolves,
+     * e.g. from {@code flyway.info().all()}.
+     *
+     * @return a description of every mismatch; empty if all archived migrations match
+     */
+    public List<String> verifyChecksums(MigrationInfo... resolved) throws SQLException {
+        verify();
+        Map<String, Integer> resolvedChecksums = new HashMap<>();
+        for (MigrationInfo info : resolved) {
+            if (info.getVersion() != null && info.getScript() != null
+                    && !SUMMARY_SCRIPT.equals(info.getScript())) {
+                resolvedChecksums.put(info.getVersion().getVersion(), info.getChecksum());
+            }
+        }
+        List<String> mismatches = new ArrayList<>();
+        for (HistoryRow row : readRows(archiveTable)) {
+            if (!resolvedChecksums.containsKey(row.version)) {
+                mismatches.add("Archived migration " + row.version + " (" + row.script + ") is no longer resolved");
+            } else if (!Objects.equals(resolvedChecksums.get(row.version), row.checksum)) {
+                mismatches.add("Checksum mismatch for archived migration " + row.version + ": applied "
+                        + row.checksum + ", resolved " + resolvedChecksums.get(row.version));
+            }
+        }
+        return mismatches;
+    }
+
+    private void archive(List<HistoryRow> chunk) throws SQLException {
+        String sql = "INSERT INTO " + archiveTable + " (" + COLUMNS + ") SELECT " + COLUMNS + " FROM " + historyTable
+                + " h WHERE \"installed_rank\" IN (" + placeholders(chunk.size()) + ")"
+                + " AND NOT EXISTS (SELECT 1 FROM " + archiveTable + " a WHERE a.\"installed_rank\" = h.\"installed_rank\")";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            bindRanks(stmt, chunk);
+            stmt.executeUpdate();
+        }
+    }
+
+    private void delete(List<HistoryRow> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        String sql = "DELETE FROM " + historyTable + " WHERE \"installed_rank\" IN (" + placeholders(rows.size()) + ")";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            bindRanks(stmt, rows);
+            stmt.executeUpdate();
+        }
+    }
+
+    private void insertSummary(int installedRank, String version, int rows, String digest) throws SQLException {
+        String sql = "INSERT INTO " + historyTable + " (\"installed_rank\", \"version\", \"description\", \"type\", "
+                + "\"script\", \"checksum\", \"installed_by\", \"execution_time\", \"success\")"
+                + " VALUES (?, ?, ?, 'BASELINE', ?, ?, current_user, 0, true)";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setInt(1, installedRank);
+            stmt.setString(2, version);
+            stmt.setString(3, summaryDescription(rows, digest));
+            stmt.setString(4, SUMMARY_SCRIPT);
+            stmt.setInt(5, ByteBuffer.wrap(hexToBytes(digest)).getInt());
+            stmt.executeUpdate();
+        }
+    }
+
+    private List<HistoryRow> readRows(String table) throws SQLException {
+        List<HistoryRow> rows = new ArrayList<>();
+        String sql = "SELECT \"installed_rank\", \"version\", \"description\", \"type\", \"script\", \"checksum\", "
+                + "\"installed_by\", \"execution_time\", \"success\" FROM " + table + " ORDER BY \"installed_rank\"";
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                int checksumValue = rs.getInt(6);
+                Integer checksum = rs.wasNull() ? null : checksumValue;
+                rows.add(new HistoryRow(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                        rs.getString(5), checksum, rs.getString(7), rs.getInt(8), rs.getBoolean(9)));
+            }
+        } catch (SQLException e) {
+            if (table.equals(archiveTable) && "42P01".equals(e.getSQLState())) {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+                return rows;
+            }
+            throw e;
+        }
+        return rows;
+    }
+
+    private int countRows(String table) throws SQLException {
+        return readRows(table).size();
+    }
+
+    static String summaryDescription(int rows, String digest) {
+        return SUMMARY_PREFIX + rows + " migrations sha256:" + digest + " >>";
+    }
+
+    static String currentDigest(List<HistoryRow> summaries) {
+        if (summaries.isEmpty()) {
+            return null;
+        }
+        String description = summaries.get(summaries.size() - 1).description;
+        int start = description.indexOf("sha256:");
+        int end = description.indexOf(' ', start);
+        return start < 0 ? null : description.substring(start + 7, end < 0 ? description.length() : end);
+    }
+
+    static String digest(List<HistoryRow> rows) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        for (HistoryRow row : rows) {
+            sha.update(row.canonical().getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static MigrationVersion max(MigrationVersion current, String version) {
+        MigrationVersion candidate = MigrationVersion.fromVersion(version);
+        return candidate.compareTo(current) > 0 ? candidate : current;
+    }
+
+    private static List<List<HistoryRow>> chunks(List<HistoryRow> rows) {
+        List<List<HistoryRow>> chunks = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i += CHUNK_SIZE) {
+            chunks.add(rows.subList(i, Math.min(rows.size(), i + CHUNK_SIZE)));
+        }
+        return chunks;
+    }
+
+    private static void bindRanks(PreparedStatement stmt, List<HistoryRow> rows) throws SQLException {
+        for (int i = 0; i < rows.size(); i++) {
+            stmt.setInt(i + 1, rows.get(i).installedRank);
+        }
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.toString();
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * One row of a schema history or archive table.
+     */
+    static final class HistoryRow {
+        final int installedRank;
+        final String version;
+        final String description;
+        final String type;
+        final String script;
+        final Integer checksum;
+        final String installedBy;
+        final int executionTime;
+        final boolean success;
+
+        HistoryRow(int installedRank, String version, String description, String type, String script,
+                   Integer checksum, String installedBy, int executionTime, boolean success) {
+            this.installedRank = installedRank;
+            this.version = version;
+            this.description = description;
+            this.type = type;
+            this.script = script;
+            this.checksum = checksum;
+            this.installedBy = installedBy;
+            this.executionTime = executionTime;
+            this.success = success;
+        }
+
+        boolean isSummary() {
+            return "BASELINE".equals(type) && SUMMARY_SCRIPT.equals(script);
+        }
+
+        String canonical() {
+            // installed_on is left out so the digest doesn't depend on session time zones
+            return installedRank + "|" + version + "|" + description + "|" + type + "|" + script + "|"
+                    + checksum + "|" + installedBy + "|" + executionTime + "|" + success + "\n";
+        }
+    }
+}
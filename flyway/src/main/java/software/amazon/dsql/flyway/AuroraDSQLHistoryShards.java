@@ -0,0 +1,258 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Sharded schema history, so services that share a cluster don't contend on one table.
+ *
+ * <p>Every Flyway history insert takes the next {@code installed_rank}, which is the
+ * primary key of the history table. When several services migrate the same cluster at
+ * the same time against one history table, these inserts conflict under optimistic
+ * concurrency control and abort each other's deploys. With {@code history.shard} set,
+ * for example to the service name, the plugin gives that service its own history table
+ * named {@code <table>__<shard>}, along with its own checkpoint and guard side tables.
+ * Services with different shards then never write the same rows.</p>
+ *
+ * <p>A view named {@code <table>_all} unions all shard tables of a schema with a
+ * {@code shard} column, for a cross-service view of what has been applied. It is
+ * refreshed whenever a shard's history table is created, or with
+ * {@link #refreshView(Connection, String, String)}. An unsharded history table in the
+ * same schema is included as shard {@code ""}.</p>
+ */
+public final class AuroraDSQLHistoryShards {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLHistoryShards.class.getName());
+
+    static final String SHARD_SEPARATOR = "__";
+    static final String VIEW_SUFFIX = "_all";
+
+    static final String[] HISTORY_COLUMN_NAMES = {
+            "installed_rank", "version", "description", "type", "script", "checksum",
+            "installed_by", "installed_on", "execution_time", "success"
+    };
+
+    private AuroraDSQLHistoryShards() {
+    }
+
+    /**
+     * Returns the configured shard, or null if the schema history isn't sharded.
+     */
+    static String shard() {
+        String shard = AuroraDSQLSettings.get("history.shard", null);
+        return shard == null || shard.trim().isEmpty() ? null : shard.trim();
+    }
+
+    /**
+     * Returns the history table name to use for the configured table name, which is the
+     * shard's table when {@code history.shard} is set.
+     */
+    static String historyTable(String table) {
+        String shard = shard();
+        return shard == null ? table : shardTable(table, shard);
+    }
+
+    /**
+     * Returns the name of a shard's history table, with the shard reduced to characters
+     * that don't need quoting.
+     */
+    static String shardTable(String table, String shard) {
+        String name = shard.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9_]+", "_");
+        return table + SHARD_SEPARATOR + name;
+    }
+
+    /**
+     * Whether a table or view is part of the sharded history of the given history table.
+     */
+    static boolean isShardObject(String table, String name) {
+        return name.startsWith(table + SHARD_SEPARATOR) || name.equals(table + VIEW_SUFFIX);
+    }
+
+    /**
+     * Lists the history tables of a schema that belong to the given table, keyed by shard.
+     */
+    public static Map<String, String> shardTables(Connection connection, String schema, String table)
+            throws SQLException {
+        Map<String, String> shards = new LinkedHashMap<>();
+        // Side tables such as <table>__orders_archive share the prefix, so require the history columns
+        String sql = "SELECT t.table_name FROM information_schema.tables t"
+                + " WHERE t.table_schema = ? AND t.table_type = 'BASE TABLE'"
+                + " AND (t.table_name = ? OR t.table_name LIKE ? ESCAPE '\\')"
+                + " AND (SELECT count(*) FROM information_schema.columns c"
+                + " WHERE c.table_schema = t.table_schema AND c.table_name = t.table_name"
+                + " AND c.column_name IN ('installed_rank', 'checksum', 'success')) = 3"
+                + " ORDER BY t.table_name";
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, schema);
+            stmt.setString(2, table);
+            stmt.setString(3, escapeLike(table + SHARD_SEPARATOR) + "%");
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String name = rs.getString(1);
+                    if (name.endsWith(AuroraDSQLHistoryCompactor.ARCHIVE_SUFFIX)) {
+                        continue;
+                    }
+                    shards.put(name.equals(table) ? "" : name.substring(table.length() + SHARD_SEPARATOR.length()),
+                            name);
+                }
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Recreates the combined view over all shard tables of a history table.
+     *
+     * <p>Services creating their shards at the same time may conflict on the view, so
+     * conflicts are retried with a fresh list of shards.</p>
+     *
+     * @return the number of shard tables in the view
+     */
+    public static int refreshView(Connection connection, String schema, String table) throws SQLException {
+        boolean originalAutoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(true);
+            for (int attempt = 1; ; attempt++) {
+                Map<String, String> shards = shardTables(connection, schema, table);
+                if (shards.isEmpty()) {
+                    return 0;
+                }
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute(viewSql(schema, table, shards));
+                    LOG.info("Refreshed " + table + VIEW_SUFFIX + " over " + shards.size() + " history shards");
+                    return shards.size();
+                } catch (SQLException e) {
+                    if (!AuroraDSQLErrors.isConflict(e) || attempt >= AuroraDSQLSchema.MAX_DDL_ATTEMPTS) {
+                        throw e;
+                    }
+                    LOG.fine("Retrying history view refresh after OCC conflict (attempt " + attempt + ")");
+                }
+            }
+        } finally {
+            connection.setAutoCommit(originalAutoCommit);
+        }
+    }
+
+    static String viewSql(String schema, String table, Map<String, String> shards) {
+        StringBuilder columns = new StringBuilder();
+        for (String column : HISTORY_COLUMN_NAMES) {
+            columns.append(", ").append(quote(column));
+        }
+        List<String> selects = new ArrayList<>();
+        for (Map.Entry<String, String> shard : shards.entrySet()) {
+            selects.add("SELECT '" + shard.getKey().replace("'", "''") + "'::VARCHAR(128) AS \"shard\"" + columns
+                    + " FROM " + quote(schema) + "." + quote(shard.getValue()));
+        }
+        return "CREATE OR REPLACE VIEW " + quote(schema) + "." + quote(table + VIEW_SUFFIX) + " AS\n"
+                + String.join("\nUNION ALL\n", selects);
+    }
+
+    /**
+     * Returns the latest successfully applied version of each shard, from the combined view.
+     */
+    public static Map<String, String> currentVersions(Connection connection, String schema, String table)
+            throws SQLException {
+        Map<String, String> versions = new LinkedHashMap<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT \"shard\", \"version\" FROM " + quote(schema) + "."
+                     + quote(table + VIEW_SUFFIX) + " WHERE \"success\" AND \"version\" IS NOT NULL"
+                     + " ORDER BY \"shard\", \"installed_rank\"")) {
+            while (rs.next()) {
+                versions.put(rs.getString(1), rs.getString(2));
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Summarizes a schema history table, or returns {@code none} if it doesn't exist.
+     */
+    static String fingerprint(Connection connection, String historyTable) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT count(*), coalesce(max(\"installed_rank\"), 0),"
+                     + " coalesce(sum(\"checksum\"), 0), coalesce(sum(CASE WHEN \"success\" THEN 1 ELSE 0 END), 0)"
+                     + " FROM " + historyTable)) {
+            rs.next();
+            return rs.getLong(1) + ":" + rs.getLong(2) + ":" + rs.getLong(3) + ":" + rs.getLong(4);
+        } catch (SQLException e) {
+            if ("42P01".equals(e.getSQLState())) {
+                return "none";
+            }
+            throw e;
+        }
+    }
+
+    private static String escapeLike(String text) {
+        return text.replace("\\", "\\\\").replace("_", "\\_").replace("%", "\\%");
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Refreshes the combined view once the shard's history table has been created.
+     */
+    static final class ViewRefresher implements AuroraDSQLSession.Listener {
+        private final String schema;
+        private final String table;
+        private final String shardTable;
+        private boolean pending;
+
+        ViewRefresher(String schema, String table, String shardTable) {
+            this.schema = schema;
+            this.table = table;
+            this.shardTable = shardTable;
+        }
+
+        @Override
+        public void afterExecute(Connection connection, String sql, long elapsedNanos, long rows) throws SQLException {
+            if (sql == null || !AuroraDSQLStatement.of(sql).getKeyword().equals("CREATE")) {
+                return;
+            }
+            String target = AuroraDSQLStatement.of(sql).getTargetTable();
+            if (target == null || !AuroraDSQLRepeatableGuard.viewName(target)[1].equals(shardTable)) {
+                return;
+            }
+            pending = true;
+            if (connection.getAutoCommit()) {
+                refresh(connection);
+            }
+        }
+
+        @Override
+        public void afterCommit(Connection connection) {
+            if (pending) {
+                refresh(connection);
+            }
+        }
+
+        @Override
+        public void afterRollback() {
+            pending = false;
+        }
+
+        private void refresh(Connection connection) {
+            pending = false;
+            try {
+                refreshView(connection, schema, table);
+            } catch (SQLException e) {
+                // The view is informational, so it shouldn't fail the migration
+                LOG.warning("Unable to refresh " + table + VIEW_SUFFIX + ": " + e.getMessage());
+            }
+        }
+    }
+}
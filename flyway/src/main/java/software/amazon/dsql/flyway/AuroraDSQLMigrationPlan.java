@@ -0,0 +1,196 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Dry-run execution plan for pending migrations, produced by {@link AuroraDSQLMigrationPlanner}.
+ *
+ * <p>Each {@link Step} lists the DSQL transactions a pending script needs and a wall-time
+ * forecast, taken from historical execution times where the script has already been
+ * applied elsewhere, or from its statement shapes otherwise.</p>
+ */
+public final class AuroraDSQLMigrationPlan {
+
+    /**
+     * Steps taking at least this share of the total forecast are reported as long poles.
+     */
+    static final double LONG_POLE_SHARE = 0.10;
+
+    /**
+     * Where a step's forecast came from.
+     */
+    public enum Source {
+        /** Median of recorded {@code execution_time} values for the same script. */
+        HISTORY,
+        /** Statement-shape estimate, calibrated against scripts that have history. */
+        SHAPE
+    }
+
+    /**
+     * One pending migration in the plan.
+     */
+    public static final class Step {
+        private final String script;
+        private final int statements;
+        private final int ddlStatements;
+        private final int dmlStatements;
+        private final int transactions;
+        private final long forecastMillis;
+        private final Source source;
+        private final int observations;
+        private final List<String> warnings;
+
+        Step(String script, int statements, int ddlStatements, int dmlStatements, int transactions,
+             long forecastMillis, Source source, int observations, List<String> warnings) {
+            this.script = script;
+            this.statements = statements;
+            this.ddlStatements = ddlStatements;
+            this.dmlStatements = dmlStatements;
+            this.transactions = transactions;
+            this.forecastMillis = forecastMillis;
+            this.source = source;
+            this.observations = observations;
+            this.warnings = Collections.unmodifiableList(new ArrayList<>(warnings));
+        }
+
+        public String getScript() {
+            return script;
+        }
+
+        public int getStatements() {
+            return statements;
+        }
+
+        public int getDdlStatements() {
+            return ddlStatements;
+        }
+
+        public int getDmlStatements() {
+            return dmlStatements;
+        }
+
+        /**
+         * Number of DSQL transactions, including the schema history insert.
+         */
+        public int getTransactions() {
+            return transactions;
+        }
+
+        public long getForecastMillis() {
+            return forecastMillis;
+        }
+
+        public Source getSource() {
+            return source;
+        }
+
+        /**
+         * Number of historical executions the forecast is based on (zero for {@link Source#SHAPE}).
+         */
+        public int getObservations() {
+            return observations;
+        }
+
+        public List<String> getWarnings() {
+            return warnings;
+        }
+    }
+
+    private final List<Step> steps;
+
+    AuroraDSQLMigrationPlan(List<Step> steps) {
+        this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+    }
+
+    /**
+     * Returns the steps in execution order.
+     */
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    public int getTotalTransactions() {
+        int total = 0;
+        for (Step step : steps) {
+            total += step.getTransactions();
+        }
+        return total;
+    }
+
+    public long getTotalForecastMillis() {
+        long total = 0;
+        for (Step step : steps) {
+            total += step.getForecastMillis();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the steps that dominate the forecast, longest first.
+     */
+    public List<Step> getLongPoles() {
+        long total = getTotalForecastMillis();
+        List<Step> poles = new ArrayList<>();
+        for (Step step : steps) {
+            if (total > 0 && step.getForecastMillis() >= total * LONG_POLE_SHARE) {
+                poles.add(step);
+            }
+        }
+        poles.sort(Comparator.comparingLong(Step::getForecastMillis).reversed());
+        return poles;
+    }
+
+    /**
+     * Renders the plan as a plain-text table suitable for logs and release notes.
+     */
+    public String describe() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-50s %6s %5s %5s %12s %s%n",
+                "Script", "Stmts", "DDL", "Txns", "Forecast", "Source"));
+        for (Step step : steps) {
+            out.append(String.format("%-50s %6d %5d %5d %12s %s%n",
+                    step.getScript(), step.getStatements(), step.getDdlStatements(), step.getTransactions(),
+                    formatMillis(step.getForecastMillis()),
+                    step.getSource() == Source.HISTORY
+                            ? "history (n=" + step.getObservations() + ")"
+                            : "shape"));
+            for (String warning : step.getWarnings()) {
+                out.append("    ! ").append(warning).append(System.lineSeparator());
+            }
+        }
+        out.append(String.format("Total: %d migrations, %d transactions, forecast %s%n",
+                steps.size(), getTotalTransactions(), formatMillis(getTotalForecastMillis())));
+        List<Step> poles = getLongPoles();
+        if (!poles.isEmpty()) {
+            out.append("Long poles:").append(System.lineSeparator());
+            for (Step step : poles) {
+                out.append(String.format("    %s (%s, %.0f%%)%n", step.getScript(),
+                        formatMillis(step.getForecastMillis()),
+                        100.0 * step.getForecastMillis() / getTotalForecastMillis()));
+            }
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return describe();
+    }
+
+    static String formatMillis(long millis) {
+        if (millis < 1000) {
+            return millis + " ms";
+        }
+        if (millis < 60_000) {
+            return String.format("%.1f s", millis / 1000.0);
+        }
+        return String.format("%d min %d s", millis / 60_000, (millis % 60_000) / 1000);
+    }
+}
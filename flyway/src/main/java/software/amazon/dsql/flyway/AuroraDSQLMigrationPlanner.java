@@ -0,0 +1,263 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.FlywayException;
+import org.flywaydb.core.api.Location;
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.configuration.Configuration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Builds a dry-run {@link AuroraDSQLMigrationPlan} for pending migrations.
+ *
+ * <p>Historical {@code execution_time} values can be loaded from any number of
+ * environments, either from Flyway's {@link MigrationInfo} or directly from a schema
+ * history table. A pending script that has already run elsewhere is forecast from the
+ * median of those times. Other scripts are forecast from their statement shapes, scaled
+ * by how far the shape estimate was off for scripts that do have history.</p>
+ *
+ * <pre>{@code
+ * AuroraDSQLMigrationPlan plan = new AuroraDSQLMigrationPlanner()
+ *     .addHistory(stagingFlyway.info().applied())
+ *     .plan(productionFlyway);
+ * System.out.println(plan.describe());
+ * }</pre>
+ */
+public class AuroraDSQLMigrationPlanner {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLMigrationPlanner.class.getName());
+
+    // Shape cost model in milliseconds. DDL commits wait for the schema change to be
+    // visible cluster-wide; CREATE INDEX ASYNC returns once the build job is queued.
+    static final long DDL_MILLIS = 1500;
+    static final long ASYNC_INDEX_MILLIS = 300;
+    static final long DML_MILLIS = 40;
+    static final long QUERY_MILLIS = 10;
+    static final long COMMIT_MILLIS = 20;
+
+    private final Map<String, List<Integer>> executionTimes = new HashMap<>();
+
+    /**
+     * Records execution times of applied migrations, e.g. from {@code flyway.info().applied()}.
+     */
+    public AuroraDSQLMigrationPlanner addHistory(MigrationInfo... applied) {
+        for (MigrationInfo info : applied) {
+            if (info.getScript() != null && info.getExecutionTime() != null
+                    && info.getState() != null && !info.getState().isFailed()) {
+                record(info.getScript(), info.getExecutionTime());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Reads execution times of successful migrations from a schema history table.
+     *
+     * @param connection   connection to the environment to learn from
+     * @param historyTable quoted, schema-qualified history table name
+     */
+    public AuroraDSQLMigrationPlanner loadHistory(Connection connection, String historyTable) throws SQLException {
+        String sql = "SELECT \"script\", \"execution_time\" FROM " + historyTable + " WHERE \"success\"";
+        int rows = 0;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                record(rs.getString(1), rs.getInt(2));
+                rows++;
+            }
+        }
+        LOG.fine("Loaded " + rows + " execution times from " + historyTable);
+        return this;
+    }
+
+    /**
+     * Plans the pending migrations of a configured Flyway instance, reading each
+     * script from the configured locations.
+     */
+    public AuroraDSQLMigrationPlan plan(Flyway flyway) {
+        Configuration configuration = flyway.getConfiguration();
+        Map<String, String> scripts = new LinkedHashMap<>();
+        for (MigrationInfo pending : flyway.info().pending()) {
+            if (pending.getScript() != null) {
+                scripts.put(pending.getScript(), readScript(configuration, pending.getScript()));
+            }
+        }
+        return plan(scripts);
+    }
+
+    /**
+     * Plans the given scripts.
+     *
+     * @param pendingScripts script name to SQL text, in execution order
+     */
+    public AuroraDSQLMigrationPlan plan(Map<String, String> pendingScripts) {
+        Map<String, Long> shapeEstimates = new LinkedHashMap<>();
+        long shapeWithHistory = 0;
+        long observedWithHistory = 0;
+        for (Map.Entry<String, String> entry : pendingScripts.entrySet()) {
+            long shape = shapeMillis(AuroraDSQLStatement.parse(entry.getValue()));
+            shapeEstimates.put(entry.getKey(), shape);
+            List<Integer> times = executionTimes.get(entry.getKey());
+            if (times != null) {
+                shapeWithHistory += shape;
+                observedWithHistory += median(times);
+            }
+        }
+        double calibration = shapeWithHistory > 0 && observedWithHistory > 0
+                ? (double) observedWithHistory / shapeWithHistory
+                : 1.0;
+
+        List<AuroraDSQLMigrationPlan.Step> steps = new ArrayList<>();
+        for (Map.Entry<String, String> entry : pendingScripts.entrySet()) {
+            String script = entry.getKey();
+            List<AuroraDSQLStatement> statements = AuroraDSQLStatement.parse(entry.getValue());
+            List<Integer> times = executionTimes.get(script);
+            long forecast;
+            AuroraDSQLMigrationPlan.Source source;
+            if (times != null) {
+                forecast = median(times);
+                source = AuroraDSQLMigrationPlan.Source.HISTORY;
+            } else {
+                forecast = Math.round(shapeEstimates.get(script) * calibration);
+                source = AuroraDSQLMigrationPlan.Source.SHAPE;
+            }
+            steps.add(new AuroraDSQLMigrationPlan.Step(script, statements.size(),
+                    count(statements, AuroraDSQLStatement.Kind.DDL), count(statements, AuroraDSQLStatement.Kind.DML),
+                    transactions(statements), forecast, source, times == null ? 0 : times.size(),
+                    warnings(statements)));
+        }
+        return new AuroraDSQLMigrationPlan(steps);
+    }
+
+    /**
+     * Counts the DSQL transactions a script needs, including the schema history insert.
+     *
+     * <p>Every DDL statement runs in its own transaction. Consecutive DML and query
+     * statements share one.</p>
+     */
+    static int transactions(List<AuroraDSQLStatement> statements) {
+        int transactions = 1;
+        boolean dataTransactionOpen = false;
+        for (AuroraDSQLStatement statement : statements) {
+            switch (statement.getKind()) {
+                case DDL:
+                    transactions++;
+                    dataTransactionOpen = false;
+                    break;
+                case DML:
+                case QUERY:
+                    if (!dataTransactionOpen) {
+                        transactions++;
+                        dataTransactionOpen = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return transactions;
+    }
+
+    static long shapeMillis(List<AuroraDSQLStatement> statements) {
+        long millis = 0;
+        for (AuroraDSQLStatement statement : statements) {
+            switch (statement.getKind()) {
+                case DDL:
+                    millis += statement.isAsyncIndex() ? ASYNC_INDEX_MILLIS : DDL_MILLIS;
+                    break;
+                case DML:
+                    millis += DML_MILLIS;
+                    break;
+                case QUERY:
+                    millis += QUERY_MILLIS;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return millis + transactions(statements) * COMMIT_MILLIS;
+    }
+
+    private static List<String> warnings(List<AuroraDSQLStatement> statements) {
+        List<String> warnings = new ArrayList<>();
+        int ddl = count(statements, AuroraDSQLStatement.Kind.DDL);
+        int dml = count(statements, AuroraDSQLStatement.Kind.DML);
+        for (AuroraDSQLStatement statement : statements) {
+            if (statement.isSyncIndex()) {
+                warnings.add("CREATE INDEX without ASYNC is rejected by Aurora DSQL");
+            }
+        }
+        if (ddl > 0 && dml > 0) {
+            warnings.add("Mixes DDL and DML; a failure part-way leaves earlier transactions committed");
+        }
+        return warnings;
+    }
+
+    private static int count(List<AuroraDSQLStatement> statements, AuroraDSQLStatement.Kind kind) {
+        int count = 0;
+        for (AuroraDSQLStatement statement : statements) {
+            if (statement.getKind() == kind) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    void record(String script, int executionTime) {
+        executionTimes.computeIfAbsent(script, key -> new ArrayList<>()).add(executionTime);
+    }
+
+    private static long median(List<Integer> values) {
+        List<Integer> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int middle = sorted.size() / 2;
+        return sorted.size() % 2 == 1
+                ? sorted.get(middle)
+                : Math.round((sorted.get(middle - 1) + sorted.get(middle)) / 2.0);
+    }
+
+    static String readScript(Configuration configuration, String script) {
+        Charset encoding = configuration.getEncoding();
+        for (Location location : configuration.getLocations()) {
+            try {
+                if (location.isClassPath()) {
+                    String resource = location.getPath().isEmpty() ? script : location.getPath() + "/" + script;
+                    try (InputStream in = configuration.getClassLoader().getResourceAsStream(resource)) {
+                        if (in != null) {
+                            return new String(in.readAllBytes(), encoding);
+                        }
+                    }
+                } else if (location.isFileSystem()) {
+                    Path path = Paths.get(location.getPath(), script);
+                    if (Files.isRegularFile(path)) {
+                        return new String(Files.readAllBytes(path), encoding);
+                    }
+                }
+            } catch (IOException e) {
+                throw new FlywayException("Unable to read migration script " + script, e);
+            }
+        }
+        throw new FlywayException("Unable to find migration script " + script + " in configured locations");
+    }
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.FlywayException;
+import org.flywaydb.core.api.Location;
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.MigrationInfoService;
+import org.flywaydb.core.api.configuration.Configuration;
+import org.flywaydb.core.api.configuration.FluentConfiguration;
+import org.flywaydb.core.api.output.MigrateResult;
+
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Long-lived migration server, for sidecars and node daemons that answer for many pods.
+ *
+ * <p>A pod that runs Flyway itself pays for JVM startup, classpath scanning, connecting
+ * to the cluster and reading the schema history, usually only to learn that nothing
+ * needs migrating. The server does that work once and keeps it: its connections stay
+ * open between requests, and it remembers the outcome of the last command together with
+ * a fingerprint of the schema history table and a listing of the migration directories.
+ * A request for which neither has changed is answered from that memory after one query
+ * on a warm connection, without running Flyway. The listing covers file-system
+ * locations and classpath locations that resolve to directories, by file name, size and
+ * modification time; migrations packaged in jars can't change while the server runs.</p>
+ *
+ * <p>Clients connect to {@code server.port} on the loopback interface, send one command
+ * per line and receive one JSON object per line. The commands are {@code migrate},
+ * {@code validate}, {@code info}, {@code reload}, which forgets the remembered state,
+ * and {@code ping}. Commands run one at a time,
+ * so pods that ask to migrate at the same moment wait for the first migrate and are
+ * then answered from its result.</p>
+ *
+ * <pre>
+ * java -cp ... software.amazon.dsql.flyway.AuroraDSQLMigrationServer \
+ *     jdbc:aws-dsql:postgresql://cluster.dsql.us-east-1.on.aws:5432/postgres filesystem:/migrations
+ * echo migrate | nc localhost 5480
+ * </pre>
+ */
+public final class AuroraDSQLMigrationServer implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLMigrationServer.class.getName());
+
+    static final int DEFAULT_PORT = 5480;
+    static final int DEFAULT_IDLE_CONNECTIONS = 2;
+
+    private final Flyway flyway;
+    private final KeepAliveDataSource dataSource;
+    private final String historyTable;
+    private final List<Path> scriptDirectories;
+    private final Object lock = new Object();
+    private ServerSocket serverSocket;
+    private ExecutorService clients;
+
+    /**
+     * What the last command learned, and the history and scripts it is valid for.
+     */
+    State state;
+
+    AuroraDSQLMigrationServer(Flyway flyway, KeepAliveDataSource dataSource, String historyTable,
+                              List<Path> scriptDirectories) {
+        this.flyway = flyway;
+        this.dataSource = dataSource;
+        this.historyTable = historyTable;
+        this.scriptDirectories = new ArrayList<>(scriptDirectories);
+    }
+
+    /**
+     * Creates a server that runs Flyway with the given configuration, keeping the
+     * connections it opens from the data source alive between commands.
+     */
+    public static AuroraDSQLMigrationServer create(FluentConfiguration configuration, DataSource dataSource) {
+        KeepAliveDataSource keepAlive = new KeepAliveDataSource(dataSource,
+                AuroraDSQLSettings.getInt("server.idle-connections", DEFAULT_IDLE_CONNECTIONS));
+        Flyway flyway = configuration.dataSource(keepAlive).load();
+        return new AuroraDSQLMigrationServer(flyway, keepAlive,
+                AuroraDSQLCheckpoints.tableName(flyway.getConfiguration(), ""),
+                directories(flyway.getConfiguration()));
+    }
+
+    /**
+     * Returns the directories the configured locations resolve to.
+     */
+    static List<Path> directories(Configuration configuration) {
+        List<Path> directories = new ArrayList<>();
+        for (Location location : configuration.getLocations()) {
+            if (location.isFileSystem()) {
+                directories.add(Paths.get(location.getPath()));
+            } else if (location.isClassPath()) {
+                try {
+                    Enumeration<URL> urls = configuration.getClassLoader().getResources(location.getPath());
+                    while (urls.hasMoreElements()) {
+                        URL url = urls.nextElement();
+                        if ("file".equals(url.getProtocol())) {
+                            directories.add(Paths.get(url.toURI()));
+                        }
+                    }
+                } catch (IOException | URISyntaxException e) {
+                    LOG.warning("Unable to resolve " + location.getDescriptor() + ", changes to it won't be noticed: "
+                            + e.getMessage());
+                }
+            }
+        }
+        return directories;
+    }
+
+    /**
+     * Starts a server for the JDBC URL in the first argument and the migration locations
+     * in the remaining ones, listening on {@code server.port} until the process ends.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            System.err.println("Usage: AuroraDSQLMigrationServer <jdbc-url> [location...]");
+            System.exit(2);
+        }
+        FluentConfiguration configuration = Flyway.configure();
+        if (args.length > 1) {
+            configuration.locations(Arrays.copyOfRange(args, 1, args.length));
+        }
+        AuroraDSQLMigrationServer server = create(configuration,
+                AuroraDSQLWarmDataSource.warm(args[0], AuroraDSQLSettings.get("server.user", "admin"), null));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close, "dsql-server-shutdown"));
+        server.start(AuroraDSQLSettings.getInt("server.port", DEFAULT_PORT));
+        // Warm the state, so the first pod to ask doesn't pay for it
+        server.handle("info");
+        // Client threads are daemons, so serve until the process is stopped
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Starts listening on the loopback interface.
+     *
+     * @param port the port, or 0 for any free port
+     * @return the port the server listens on
+     */
+    public int start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        clients = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "dsql-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        clients.execute(this::accept);
+        LOG.info("Aurora DSQL migration server listening on " + serverSocket.getLocalPort());
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                clients.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOG.warning("Unable to accept client: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket client = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(),
+                     StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                out.write(AuroraDSQLJson.write(handle(line)) + "\n");
+                out.flush();
+            }
+        } catch (SocketException e) {
+            LOG.fine("Client disconnected: " + e.getMessage());
+        } catch (IOException e) {
+            LOG.warning("Unable to serve client: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs one command and returns its response.
+     */
+    Map<String, Object> handle(String line) {
+        String command = line.trim().toLowerCase(Locale.ROOT);
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("command", command);
+        long start = System.nanoTime();
+        synchronized (lock) {
+            try {
+                switch (command) {
+                    case "ping":
+                        break;
+                    case "reload":
+                        state = null;
+                        break;
+                    case "migrate":
+                        migrate(response);
+                        break;
+                    case "validate":
+                        validate(response);
+                        break;
+                    case "info":
+                        info(response);
+                        break;
+                    default:
+                        response.put("success", false);
+                        response.put("error", "Unknown command: " + command);
+                        return response;
+                }
+                response.put("success", true);
+            } catch (FlywayException | SQLException e) {
+                // Failures aren't remembered, so the next request tries again
+                state = null;
+                response.put("success", false);
+                response.put("error", e.getMessage());
+            }
+        }
+        response.put("elapsedMs", (System.nanoTime() - start) / 1_000_000);
+        return response;
+    }
+
+    private void migrate(Map<String, Object> response) throws SQLException {
+        if (remembered() && state.pending == 0) {
+            state.describe(response, true);
+            response.put("migrationsExecuted", 0);
+            return;
+        }
+        MigrateResult result = flyway.migrate();
+        remember();
+        state.describe(response, false);
+        response.put("migrationsExecuted", result == null ? 0 : result.migrationsExecuted);
+    }
+
+    private void validate(Map<String, Object> response) throws SQLException {
+        if (remembered() && state.valid) {
+            state.describe(response, true);
+            return;
+        }
+        flyway.validate();
+        remember();
+        state.valid = true;
+        state.describe(response, false);
+    }
+
+    private void info(Map<String, Object> response) throws SQLException {
+        if (remembered()) {
+            state.describe(response, true);
+            return;
+        }
+        remember();
+        state.describe(response, false);
+    }
+
+    private void remember() throws SQLException {
+        MigrationInfoService info = flyway.info();
+        MigrationInfo current = info.current();
+        state = new State(fingerprint(), scripts(),
+                current == null || current.getVersion() == null ? null : current.getVersion().toString(),
+                info.pending().length);
+    }
+
+    /**
+     * Returns whether the remembered state is still valid for the schema history and the
+     * migration scripts.
+     */
+    boolean remembered() throws SQLException {
+        return state != null && state.fingerprint.equals(fingerprint()) && state.scripts.equals(scripts());
+    }
+
+    /**
+     * Summarizes the files in the migration directories, so deployed scripts are noticed.
+     */
+    String scripts() {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        for (Path directory : scriptDirectories) {
+            if (!Files.isDirectory(directory)) {
+                continue;
+            }
+            try (Stream<Path> tree = Files.walk(directory)) {
+                for (Path file : tree.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                    sha.update((directory.relativize(file) + ":" + Files.size(file) + ":"
+                            + Files.getLastModifiedTime(file).toMillis() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                throw new FlywayException("Unable to list migration directory " + directory, e);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Summarizes the schema history table, so a change made by anyone is noticed.
+     */
+    String fingerprint() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            return AuroraDSQLHistoryShards.fingerprint(connection, historyTable);
+        }
+    }
+
+    /**
+     * Sends one command to a server on this host and returns its JSON response.
+     */
+    public static String request(int port, String command) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),
+                     StandardCharsets.UTF_8), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                     StandardCharsets.UTF_8))) {
+            out.println(command);
+            return in.readLine();
+        }
+    }
+
+    /**
+     * Stops listening and closes the connections kept alive.
+     */
+    @Override
+    public void close() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                LOG.fine("Unable to close server socket: " + e.getMessage());
+            }
+            clients.shutdownNow();
+        }
+        dataSource.close();
+    }
+
+    /**
+     * The remembered outcome of the last command.
+     */
+    static final class State {
+        final String fingerprint;
+        final String scripts;
+        final String currentVersion;
+        final int pending;
+        boolean valid;
+
+        State(String fingerprint, String scripts, String currentVersion, int pending) {
+            this.fingerprint = fingerprint;
+            this.scripts = scripts;
+            this.currentVersion = currentVersion;
+            this.pending = pending;
+        }
+
+        void describe(Map<String, Object> response, boolean cached) {
+            response.put("cached", cached);
+            response.put("currentVersion", currentVersion);
+            response.put("pending", pending);
+        }
+    }
+
+    /**
+     * Data source that keeps returned connections open for the next Flyway command.
+     *
+     * <p>Connections are retired before DSQL's connection lifetime runs out, using the
+     * {@code reconnect.max-age-seconds} setting, and checked with {@code isValid} when
+     * they have been idle for longer than {@code reconnect.idle-validation-seconds}.
+     * Connections that are closed or no longer valid when returned are not kept.</p>
+     */
+    static final class KeepAliveDataSource implements DataSource, AutoCloseable {
+        private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+        private final DataSource delegate;
+        private final int maxIdle;
+        private final long maxAgeNanos;
+        private final long idleValidationNanos;
+        private final Deque<Idle> idle = new ArrayDeque<>();
+
+        KeepAliveDataSource(DataSource delegate, int maxIdle) {
+            this(delegate, maxIdle,
+                    TimeUnit.SECONDS.toNanos(AuroraDSQLSettings.getLong("reconnect.max-age-seconds",
+                            AuroraDSQLSession.DEFAULT_MAX_AGE_SECONDS)),
+                    TimeUnit.SECONDS.toNanos(AuroraDSQLSettings.getLong("reconnect.idle-validation-seconds",
+                            AuroraDSQLSession.DEFAULT_IDLE_VALIDATION_SECONDS)));
+        }
+
+        KeepAliveDataSource(DataSource delegate, int maxIdle, long maxAgeNanos, long idleValidationNanos) {
+            this.delegate = delegate;
+            this.maxIdle = maxIdle;
+            this.maxAgeNanos = maxAgeNanos;
+            this.idleValidationNanos = idleValidationNanos;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            long now = System.nanoTime();
+            while (true) {
+                Idle next;
+                synchronized (idle) {
+                    next = idle.pollFirst();
+                }
+                if (next == null) {
+                    return lease(delegate.getConnection(), now);
+                }
+                if (now - next.openedAt < maxAgeNanos && (now - next.returnedAt < idleValidationNanos
+                        || next.connection.isValid(VALIDATION_TIMEOUT_SECONDS))) {
+                    return lease(next.connection, next.openedAt);
+                }
+                closeQuietly(next.connection);
+            }
+        }
+
+        private Connection lease(Connection connection, long openedAt) {
+            boolean[] closed = {false};
+            return (Connection) Proxy.newProxyInstance(AuroraDSQLMigrationServer.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (target, method, args) -> {
+                        switch (method.getName()) {
+                            case "close":
+                                if (!closed[0]) {
+                                    closed[0] = true;
+                                    giveBack(connection, openedAt);
+                                }
+                                return null;
+                            case "isClosed":
+                                return closed[0] || connection.isClosed();
+                            case "hashCode":
+                                return System.identityHashCode(target);
+                            case "equals":
+                                return target == args[0];
+                            default:
+                                if (closed[0]) {
+                                    throw new SQLException("Connection is closed", "08003");
+                                }
+                                return call(connection, method, args);
+                        }
+                    });
+        }
+
+        private void giveBack(Connection connection, long openedAt) {
+            try {
+                // The session may have given up on this connection after it failed
+                if (connection.isClosed() || !connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                    closeQuietly(connection);
+                    return;
+                }
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                if (connection.isReadOnly()) {
+                    connection.setReadOnly(false);
+                }
+            } catch (SQLException e) {
+                closeQuietly(connection);
+                return;
+            }
+            synchronized (idle) {
+                if (idle.size() < maxIdle && System.nanoTime() - openedAt < maxAgeNanos) {
+                    idle.addFirst(new Idle(connection, openedAt, System.nanoTime()));
+                    return;
+                }
+            }
+            closeQuietly(connection);
+        }
+
+        /**
+         * Closes the idle connections.
+         */
+        @Override
+        public void close() {
+            synchronized (idle) {
+                for (Idle next : idle) {
+                    closeQuietly(next.connection);
+                }
+                idle.clear();
+            }
+        }
+
+        int idleCount() {
+            synchronized (idle) {
+                return idle.size();
+            }
+        }
+
+        private static Object call(Connection connection, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private static void closeQuietly(Connection connection) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.fine("Unable to close connection: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return delegate.getConnection(username, password);
+        }
+
+        @Override
+        public PrintWriter getLogWriter() throws SQLException {
+            return delegate.getLogWriter();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) throws SQLException {
+            delegate.setLogWriter(out);
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) throws SQLException {
+            delegate.setLoginTimeout(seconds);
+        }
+
+        @Override
+        public int getLoginTimeout() throws SQLException {
+            return delegate.getLoginTimeout();
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            return delegate.getParentLogger();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            return iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface);
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) throws SQLException {
+            return iface.isInstance(this) || delegate.isWrapperFor(iface);
+        }
+
+        private static final class Idle {
+            final Connection connection;
+            final long openedAt;
+            final long returnedAt;
+
+            Idle(Connection connection, long openedAt, long returnedAt) {
+                this.connection = connection;
+                this.openedAt = openedAt;
+                this.returnedAt = returnedAt;
+            }
+        }
+    }
+}
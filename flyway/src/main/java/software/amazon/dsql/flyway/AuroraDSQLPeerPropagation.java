@@ -0,0 +1,261 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.FlywayException;
+import org.flywaydb.core.api.configuration.Configuration;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Waits until a schema migrated through one endpoint of a multi-region cluster is visible
+ * on its peer endpoints.
+ *
+ * <p>Peered DSQL clusters are migrated through one regional endpoint. Before traffic
+ * moves to a peer, the new schema has to be visible there, and a fixed sleep either
+ * wastes time or is too short. {@link #await} reads the schema history summary and the
+ * {@link AuroraDSQLCatalogFingerprint} digest on the endpoint that was migrated, then
+ * polls every peer at once until it reports the same. The history is compared first,
+ * with one query; the catalog is only read once the history matches. Each poll runs in
+ * autocommit mode, so it sees the peer's latest committed state.</p>
+ *
+ * <p>It returns as soon as the last peer has converged, with the time each took, and
+ * fails with the peers still lagging after {@code propagation.timeout-seconds}. Peers
+ * are polled every {@code propagation.poll-millis}. Connection errors count as not yet
+ * converged, and the next poll reconnects.</p>
+ *
+ * <p>Closing it closes the data sources that {@link #forEndpoints} opened; data sources
+ * passed to {@link #forPeers} are left to the caller.</p>
+ *
+ * <pre>
+ * flyway.migrate();
+ * try (AuroraDSQLPeerPropagation propagation = AuroraDSQLPeerPropagation.forEndpoints(
+ *         flyway.getConfiguration(), "admin", "jdbc:aws-dsql:postgresql://peer.dsql.us-west-2.on.aws:5432/postgres")) {
+ *     propagation.await(flyway);
+ * }
+ * </pre>
+ */
+public final class AuroraDSQLPeerPropagation implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLPeerPropagation.class.getName());
+
+    static final int DEFAULT_TIMEOUT_SECONDS = 300;
+    static final int DEFAULT_POLL_MILLIS = 250;
+
+    private final Map<String, DataSource> peers;
+    private final String schema;
+    private final String historyTable;
+    private final long pollMillis;
+    private final List<AuroraDSQLWarmDataSource> owned = new ArrayList<>();
+
+    /**
+     * @param peers        peer name, such as its endpoint, to a data source for that peer
+     * @param schema       schema whose catalog is compared
+     * @param historyTable quoted, schema-qualified schema history table name
+     * @param pollMillis   time between polls of one peer
+     */
+    AuroraDSQLPeerPropagation(Map<String, DataSource> peers, String schema, String historyTable, long pollMillis) {
+        this.peers = new LinkedHashMap<>(peers);
+        this.schema = schema;
+        this.historyTable = historyTable;
+        this.pollMillis = Math.max(1, pollMillis);
+    }
+
+    /**
+     * Creates a check for the schema and history table a Flyway configuration migrates.
+     *
+     * @param peers peer name, such as its endpoint, to a data source for that peer
+     */
+    public static AuroraDSQLPeerPropagation forPeers(Configuration configuration, Map<String, DataSource> peers) {
+        String schema = AuroraDSQLCheckpoints.historySchema(configuration);
+        return new AuroraDSQLPeerPropagation(peers, schema == null ? "public" : schema,
+                AuroraDSQLCheckpoints.tableName(configuration, ""),
+                AuroraDSQLSettings.getLong("propagation.poll-millis", DEFAULT_POLL_MILLIS));
+    }
+
+    /**
+     * Creates a check for peer JDBC URLs, such as {@code jdbc:aws-dsql:postgresql://...},
+     * connecting as the given user.
+     */
+    public static AuroraDSQLPeerPropagation forEndpoints(Configuration configuration, String user, String... urls) {
+        Map<String, AuroraDSQLWarmDataSource> peers = new LinkedHashMap<>();
+        for (String url : urls) {
+            peers.put(url, AuroraDSQLWarmDataSource.warm(url, user, null));
+        }
+        AuroraDSQLPeerPropagation propagation = forPeers(configuration, new LinkedHashMap<>(peers));
+        propagation.owned.addAll(peers.values());
+        return propagation;
+    }
+
+    /**
+     * Closes the data sources opened by {@link #forEndpoints}, along with their idle
+     * connections.
+     */
+    @Override
+    public void close() {
+        for (AuroraDSQLWarmDataSource dataSource : owned) {
+            dataSource.close();
+        }
+        owned.clear();
+    }
+
+    /**
+     * Waits, for up to {@code propagation.timeout-seconds}, until every peer has the schema
+     * that the Flyway instance's data source has.
+     *
+     * @return milliseconds each peer took to converge, by peer name
+     * @throws FlywayException if a peer hasn't converged in time
+     */
+    public Map<String, Long> await(Flyway flyway) throws SQLException {
+        try (Connection writer = flyway.getConfiguration().getDataSource().getConnection()) {
+            return await(writer, Duration.ofSeconds(
+                    AuroraDSQLSettings.getLong("propagation.timeout-seconds", DEFAULT_TIMEOUT_SECONDS)));
+        }
+    }
+
+    /**
+     * Waits until every peer has the schema that the writer connection sees.
+     *
+     * @return milliseconds each peer took to converge, by peer name
+     * @throws FlywayException if a peer hasn't converged in time
+     */
+    public Map<String, Long> await(Connection writer, Duration timeout) throws SQLException {
+        String history;
+        String digest;
+        boolean originalAutoCommit = writer.getAutoCommit();
+        try {
+            writer.setAutoCommit(true);
+            history = AuroraDSQLHistoryShards.fingerprint(writer, historyTable);
+            digest = AuroraDSQLCatalogFingerprint.read(writer, schema).getDigest();
+        } finally {
+            writer.setAutoCommit(originalAutoCommit);
+        }
+        if (peers.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        LOG.info("Waiting for schema history " + history + " and catalog " + abbreviate(digest) + " on "
+                + peers.size() + " peers");
+
+        long start = System.nanoTime();
+        long deadline = start + timeout.toNanos();
+        Map<String, String> lagging = new ConcurrentHashMap<>();
+        Map<String, Future<Long>> futures = new LinkedHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(peers.size(), runnable -> {
+            Thread thread = new Thread(runnable, "dsql-propagation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, Long> converged = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, DataSource> peer : peers.entrySet()) {
+                futures.put(peer.getKey(), executor.submit(() ->
+                        poll(peer.getKey(), peer.getValue(), history, digest, start, deadline, lagging)));
+            }
+            for (Map.Entry<String, Future<Long>> future : futures.entrySet()) {
+                Long millis = future.getValue().get();
+                if (millis != null) {
+                    converged.put(future.getKey(), millis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for peer endpoints", e);
+        } catch (ExecutionException e) {
+            throw new FlywayException("Unable to check peer endpoints", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!lagging.isEmpty()) {
+            List<String> details = new ArrayList<>();
+            for (String peer : peers.keySet()) {
+                if (lagging.containsKey(peer)) {
+                    details.add(peer + " (" + lagging.get(peer) + ")");
+                }
+            }
+            throw new FlywayException("Schema changes did not reach " + lagging.size() + " of " + peers.size()
+                    + " peer endpoints within " + timeout.getSeconds() + " s: " + String.join(", ", details));
+        }
+        LOG.info("Schema is visible on all " + peers.size() + " peers after "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return converged;
+    }
+
+    /**
+     * Polls one peer until it matches or the deadline passes.
+     *
+     * @return milliseconds until the peer matched, or null if it didn't in time
+     */
+    private Long poll(String peer, DataSource dataSource, String history, String digest, long start, long deadline,
+                      Map<String, String> lagging) throws InterruptedException {
+        Connection connection = null;
+        try {
+            while (true) {
+                String observed;
+                try {
+                    if (connection == null) {
+                        connection = dataSource.getConnection();
+                        connection.setAutoCommit(true);
+                    }
+                    String peerHistory = AuroraDSQLHistoryShards.fingerprint(connection, historyTable);
+                    if (!peerHistory.equals(history)) {
+                        observed = "schema history " + peerHistory + ", expected " + history;
+                    } else {
+                        String peerDigest = AuroraDSQLCatalogFingerprint.read(connection, schema).getDigest();
+                        if (peerDigest.equals(digest)) {
+                            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                            LOG.info("Schema is visible on " + peer + " after " + millis + " ms");
+                            return millis;
+                        }
+                        observed = "catalog " + abbreviate(peerDigest) + ", expected " + abbreviate(digest);
+                    }
+                } catch (SQLException e) {
+                    observed = e.getMessage();
+                    close(connection);
+                    connection = null;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    lagging.put(peer, observed);
+                    return null;
+                }
+                LOG.fine("Waiting for " + peer + ": " + observed);
+                Thread.sleep(Math.min(pollMillis, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+            }
+        } finally {
+            close(connection);
+        }
+    }
+
+    private static void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.fine("Unable to close peer connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private static String abbreviate(String digest) {
+        return digest.length() > 12 ? digest.substring(0, 12) : digest;
+    }
+}
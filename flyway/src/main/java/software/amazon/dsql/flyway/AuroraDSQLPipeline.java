@@ -0,0 +1,188 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Submits a list of independent autocommit statements without waiting a round trip for each.
+ *
+ * <p>Every DDL statement on DSQL is a transaction of its own, so a clean or a baseline
+ * runs its statements one after another, each waiting for the previous one's response.
+ * PgJDBC has no public way to pipeline statements on one connection, and a JDBC batch
+ * runs as one implicit transaction, which DSQL rejects for more than one DDL statement.
+ * Instead, the pipeline keeps a window of statements in flight on separate connections
+ * opened with the session's credentials. Statements are handed out in order, and the
+ * outcome of each is recorded against its position in the list.</p>
+ *
+ * <p>The first error stops the pipeline: statements already in flight finish, and the
+ * ones that failed or never started run serially on the caller's connection, in order,
+ * so errors surface exactly as they would without pipelining. The window is set with
+ * {@code pipeline.window}; {@code 1} turns pipelining off. Short lists, and connections
+ * without the session wrapper, run serially.</p>
+ *
+ * <p>Each lane thread starts with the caller's current span, so spans the executor starts
+ * on a lane nest under the caller's trace instead of becoming traces of their own.</p>
+ */
+final class AuroraDSQLPipeline {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLPipeline.class.getName());
+
+    static final int DEFAULT_WINDOW = 8;
+    static final int MIN_STATEMENTS_PER_CONNECTION = 4;
+
+    private final Connection connection;
+    private final AuroraDSQLSession session;
+    private final int window;
+    private final AuroraDSQLTracer tracer;
+
+    AuroraDSQLPipeline(Connection connection, int window) {
+        this(connection, window, AuroraDSQLTracer.get());
+    }
+
+    AuroraDSQLPipeline(Connection connection, int window, AuroraDSQLTracer tracer) {
+        this.connection = connection;
+        this.session = AuroraDSQLSession.of(connection);
+        this.window = window;
+        this.tracer = tracer;
+    }
+
+    /**
+     * Creates a pipeline over a connection, with the configured window.
+     */
+    static AuroraDSQLPipeline of(Connection connection) {
+        return new AuroraDSQLPipeline(connection, AuroraDSQLSettings.getInt("pipeline.window", DEFAULT_WINDOW));
+    }
+
+    /**
+     * Runs each statement once, in autocommit mode.
+     *
+     * @param statements statements that don't depend on each other
+     * @param executor   runs one statement on a connection, including any retries
+     * @return the number of statements that completed in the pipeline rather than serially
+     */
+    int execute(List<String> statements, Executor executor) throws SQLException {
+        int lanes = Math.min(window, statements.size() / MIN_STATEMENTS_PER_CONNECTION);
+        if (lanes < 2 || session == null) {
+            for (String sql : statements) {
+                executor.execute(connection, sql);
+            }
+            return 0;
+        }
+
+        String searchPath = currentSchema();
+        AuroraDSQLTracer.Span parent = tracer.current();
+        boolean[] done = new boolean[statements.size()];
+        AtomicInteger next = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(lanes, runnable -> {
+            Thread thread = new Thread(runnable, "dsql-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < lanes; i++) {
+                futures.add(pool.submit(() -> {
+                    tracer.attach(parent);
+                    try {
+                        drain(statements, executor, searchPath, done, next, failed);
+                    } finally {
+                        tracer.attach(null);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // Lanes record their own failures; wait for the others before falling back
+                    failed.set(true);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while executing statements", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        int pipelined = 0;
+        for (boolean completed : done) {
+            pipelined += completed ? 1 : 0;
+        }
+        LOG.fine("Pipelined " + pipelined + " of " + statements.size() + " statements on " + lanes
+                + " connections in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        if (failed.get()) {
+            LOG.info("Pipelined statement failed, running the remaining " + (statements.size() - pipelined)
+                    + " statements serially");
+            for (int i = 0; i < statements.size(); i++) {
+                if (!done[i]) {
+                    executor.execute(connection, statements.get(i));
+                }
+            }
+        }
+        return pipelined;
+    }
+
+    private void drain(List<String> statements, Executor executor, String searchPath, boolean[] done,
+                       AtomicInteger next, AtomicBoolean failed) {
+        try (Connection lane = session.openConnection()) {
+            lane.setAutoCommit(true);
+            if (searchPath != null) {
+                try (Statement stmt = lane.createStatement()) {
+                    stmt.execute("SET search_path = \"" + searchPath.replace("\"", "\"\"") + "\"");
+                }
+            }
+            while (!failed.get()) {
+                int index = next.getAndIncrement();
+                if (index >= statements.size()) {
+                    return;
+                }
+                try {
+                    executor.execute(lane, statements.get(index));
+                } catch (SQLException | RuntimeException e) {
+                    LOG.fine("Pipelined statement failed: " + statements.get(index) + ": " + e.getMessage());
+                    failed.set(true);
+                    return;
+                }
+                done[index] = true;
+            }
+        } catch (SQLException e) {
+            // The lane couldn't connect; the serial fallback picks up what it would have run
+            LOG.fine("Unable to open pipeline connection: " + e.getMessage());
+            failed.set(true);
+        }
+    }
+
+    private String currentSchema() throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT current_schema()")) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    /**
+     * Runs one statement on a connection.
+     */
+    interface Executor {
+        void execute(Connection connection, String sql) throws SQLException;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.FlywayException;
+import org.flywaydb.core.api.callback.Callback;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Flyway callback that catches query plan regressions caused by migrations.
+ *
+ * <p>Before pending migrations run, the guard explains a registered set of representative
+ * application queries and keeps their plans in normalized form: one line per plan node,
+ * without costs, row estimates or timings. After migrate it explains them again and
+ * compares. A relation that was read through an index and is now read with a full scan,
+ * or a query that can no longer be planned at all, is a regression. Other plan changes
+ * are only logged.</p>
+ *
+ * <p>By default a regression fails the migrate, so it is caught when migrating a staging
+ * environment. The migrations themselves have already been applied at that point. With
+ * {@code plan-guard.fail-on-regression=false} regressions are logged as warnings
+ * instead. Queries are read from the SQL file named by {@code plan-guard.queries}, or
+ * registered with {@link #addQuery(String, String)}. Queries may use {@code ?} or
+ * {@code $1} parameters, which are explained as a generic plan.</p>
+ *
+ * <p>Register it with {@code Flyway.configure().callbacks(new AuroraDSQLPlanGuard())}.</p>
+ */
+public class AuroraDSQLPlanGuard implements Callback {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLPlanGuard.class.getName());
+
+    private static final Pattern ESTIMATES = Pattern.compile("\\s*\\((?:cost|actual|rows)=[^)]*\\)");
+    private static final Pattern SCAN = Pattern.compile("^(.*?Scan)\\b.*?\\bon (\\S+)");
+
+    private final Map<String, String> queries = new LinkedHashMap<>();
+    private final boolean failOnRegression;
+    private final List<String> regressions = new ArrayList<>();
+    private final List<String> changes = new ArrayList<>();
+    private Map<String, List<String>> before = Collections.emptyMap();
+
+    /**
+     * Creates the guard from the {@code plan-guard.*} settings.
+     */
+    public AuroraDSQLPlanGuard() {
+        this(AuroraDSQLSettings.getBoolean("plan-guard.fail-on-regression", true));
+        String file = AuroraDSQLSettings.get("plan-guard.queries", null);
+        if (file != null) {
+            addQueries(file);
+        }
+    }
+
+    /**
+     * @param failOnRegression whether a regression fails the migrate, rather than being logged
+     */
+    public AuroraDSQLPlanGuard(boolean failOnRegression) {
+        this.failOnRegression = failOnRegression;
+    }
+
+    /**
+     * Registers a query whose plan is checked.
+     */
+    public AuroraDSQLPlanGuard addQuery(String name, String sql) {
+        queries.put(name, sql);
+        return this;
+    }
+
+    /**
+     * Registers each statement of a SQL file, named after the file and its position in it.
+     */
+    public AuroraDSQLPlanGuard addQueries(String file) {
+        String script;
+        try {
+            script = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new FlywayException("Unable to read plan guard queries from " + file, e);
+        }
+        int ordinal = 0;
+        for (AuroraDSQLStatement statement : AuroraDSQLStatement.parse(script)) {
+            addQuery(Paths.get(file).getFileName() + "#" + (++ordinal), statement.getSql());
+        }
+        return this;
+    }
+
+    @Override
+    public boolean supports(Event event, Context context) {
+        return !queries.isEmpty() && (event == Event.BEFORE_MIGRATE || event == Event.AFTER_MIGRATE);
+    }
+
+    @Override
+    public boolean canHandleInTransaction(Event event, Context context) {
+        // A query that fails to plan would abort the surrounding transaction
+        return false;
+    }
+
+    @Override
+    public void handle(Event event, Context context) {
+        if (event == Event.BEFORE_MIGRATE) {
+            before = capture(context.getConnection());
+            regressions.clear();
+            changes.clear();
+        } else if (event == Event.AFTER_MIGRATE) {
+            compare(context.getConnection());
+        }
+    }
+
+    @Override
+    public String getCallbackName() {
+        return "Aurora DSQL plan guard";
+    }
+
+    /**
+     * Regressions found by the last migrate.
+     */
+    public List<String> getRegressions() {
+        return new ArrayList<>(regressions);
+    }
+
+    /**
+     * Plan changes found by the last migrate that aren't regressions.
+     */
+    public List<String> getChanges() {
+        return new ArrayList<>(changes);
+    }
+
+    private Map<String, List<String>> capture(Connection connection) {
+        Map<String, List<String>> plans = new LinkedHashMap<>();
+        for (Map.Entry<String, String> query : queries.entrySet()) {
+            try {
+                plans.put(query.getKey(), normalize(AuroraDSQLSlowStatementLog.explain(connection, query.getValue(), false)));
+            } catch (SQLException e) {
+                LOG.fine("Unable to explain " + query.getKey() + ": " + e.getMessage());
+                plans.put(query.getKey(), null);
+            }
+        }
+        return plans;
+    }
+
+    private void compare(Connection connection) {
+        Map<String, List<String>> after = capture(connection);
+        for (Map.Entry<String, List<String>> entry : after.entrySet()) {
+            String name = entry.getKey();
+            List<String> old = before.get(name);
+            List<String> current = entry.getValue();
+            if (old == null || old.equals(current)) {
+                continue;
+            }
+            if (current == null) {
+                regressions.add(name + ": can no longer be planned");
+                continue;
+            }
+            List<String> worse = regressions(old, current);
+            String description = "\n  before:\n    " + String.join("\n    ", old)
+                    + "\n  after:\n    " + String.join("\n    ", current);
+            if (worse.isEmpty()) {
+                changes.add(name + ": plan changed" + description);
+            } else {
+                regressions.add(name + ": " + String.join(", ", worse) + description);
+            }
+        }
+        for (String change : changes) {
+            LOG.info("Query plan changed for " + change);
+        }
+        if (regressions.isEmpty()) {
+            return;
+        }
+        String message = "Query plans regressed after migrate:\n" + String.join("\n", regressions);
+        if (failOnRegression) {
+            throw new FlywayException(message);
+        }
+        LOG.warning(message);
+    }
+
+    /**
+     * Reduces {@code EXPLAIN} output to its plan nodes, indented by depth, without estimates.
+     */
+    static List<String> normalize(String plan) {
+        List<String> nodes = new ArrayList<>();
+        for (String line : plan.split("\n")) {
+            int arrow = line.indexOf("->");
+            String node;
+            int depth;
+            if (arrow >= 0) {
+                node = line.substring(arrow + 2).trim();
+                // Each level of the plan tree is indented by six more characters
+                depth = (arrow + 4) / 6;
+            } else if (nodes.isEmpty() && !line.trim().isEmpty()) {
+                node = line.trim();
+                depth = 0;
+            } else {
+                // Filter, Index Cond and similar detail lines
+                continue;
+            }
+            StringBuilder indent = new StringBuilder();
+            for (int i = 0; i < depth; i++) {
+                indent.append("  ");
+            }
+            nodes.add(indent + ESTIMATES.matcher(node).replaceAll(""));
+        }
+        return nodes;
+    }
+
+    /**
+     * Lists the relations that are read in a more expensive way in the new plan.
+     */
+    static List<String> regressions(List<String> before, List<String> after) {
+        Map<String, String> oldScans = scans(before);
+        Map<String, String> newScans = scans(after);
+        List<String> worse = new ArrayList<>();
+        for (Map.Entry<String, String> scan : newScans.entrySet()) {
+            String old = oldScans.get(scan.getKey());
+            if (old != null && rank(scan.getValue()) > rank(old)) {
+                worse.add(scan.getKey() + " changed from " + old + " to " + scan.getValue());
+            }
+        }
+        return worse;
+    }
+
+    private static Map<String, String> scans(List<String> nodes) {
+        Map<String, String> scans = new LinkedHashMap<>();
+        for (String node : nodes) {
+            Matcher m = SCAN.matcher(node.trim());
+            if (m.find()) {
+                String relation = m.group(2);
+                String old = scans.get(relation);
+                // A relation read twice is judged by its most expensive scan
+                if (old == null || rank(m.group(1)) > rank(old)) {
+                    scans.put(relation, m.group(1));
+                }
+            }
+        }
+        return scans;
+    }
+
+    private static int rank(String scan) {
+        if (scan.contains("Index Only")) {
+            return 0;
+        }
+        if (scan.contains("Index") || scan.contains("Bitmap")) {
+            return 1;
+        }
+        return 2;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.callback.Callback;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.flywaydb.core.internal.exception.FlywaySqlException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Flyway callback that refreshes planner statistics on the tables a migrate run changed.
+ *
+ * <p>While migrations run, the callback records each table that a statement wrote rows
+ * to, truncated, altered or indexed. A table created empty is not recorded, but one
+ * created from a query is, and a dropped table is forgotten. At the end of migrate it
+ * runs {@code ANALYZE} on exactly those tables, so application queries right after a
+ * deploy are planned with current statistics.</p>
+ *
+ * <p>Tables are analyzed in parallel on up to {@code analyze.parallelism} extra
+ * connections, within the concurrency limit shared with the rest of the plugin. A failed
+ * {@code ANALYZE} is logged and does not fail the migrate. Tables changed by migrations
+ * that succeeded are analyzed even when a later migration fails.</p>
+ *
+ * <p>Register it with {@code Flyway.configure().callbacks(new AuroraDSQLPostMigrateAnalyze())}.</p>
+ */
+public class AuroraDSQLPostMigrateAnalyze implements Callback {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLPostMigrateAnalyze.class.getName());
+
+    static final int DEFAULT_PARALLELISM = 4;
+
+    private static final Pattern CREATE_TABLE = Pattern.compile("^\\s*CREATE\\s+TABLE\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern NAME_PART = Pattern.compile("\"((?:[^\"]|\"\")+)\"|([^.\"]+)");
+
+    private final int parallelism;
+    private final Set<String> tables = Collections.synchronizedSet(new LinkedHashSet<>());
+    private final Map<String, Long> durations = Collections.synchronizedMap(new LinkedHashMap<>());
+    private AuroraDSQLSession session;
+    private Tracker tracker;
+
+    /**
+     * Creates the callback from the {@code analyze.parallelism} setting.
+     */
+    public AuroraDSQLPostMigrateAnalyze() {
+        this(AuroraDSQLSettings.getInt("analyze.parallelism", DEFAULT_PARALLELISM));
+    }
+
+    /**
+     * @param parallelism maximum number of tables analyzed at once
+     */
+    public AuroraDSQLPostMigrateAnalyze(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    @Override
+    public boolean supports(Event event, Context context) {
+        return event == Event.BEFORE_EACH_MIGRATE
+                || event == Event.AFTER_EACH_MIGRATE
+                || event == Event.AFTER_EACH_MIGRATE_ERROR
+                || event == Event.AFTER_MIGRATE
+                || event == Event.AFTER_MIGRATE_ERROR;
+    }
+
+    @Override
+    public boolean canHandleInTransaction(Event event, Context context) {
+        return true;
+    }
+
+    @Override
+    public void handle(Event event, Context context) {
+        try {
+            switch (event) {
+                case BEFORE_EACH_MIGRATE:
+                    start(context);
+                    break;
+                case AFTER_EACH_MIGRATE:
+                case AFTER_EACH_MIGRATE_ERROR:
+                    finish();
+                    break;
+                case AFTER_MIGRATE:
+                case AFTER_MIGRATE_ERROR:
+                    analyze(context.getConnection());
+                    break;
+                default:
+                    break;
+            }
+        } catch (SQLException e) {
+            throw new FlywaySqlException("Unable to analyze migrated tables", e);
+        }
+    }
+
+    @Override
+    public String getCallbackName() {
+        return "Aurora DSQL post-migrate ANALYZE";
+    }
+
+    /**
+     * Time taken to analyze each table in the last run, in milliseconds, keyed by qualified table name.
+     */
+    public Map<String, Long> getDurations() {
+        synchronized (durations) {
+            return new LinkedHashMap<>(durations);
+        }
+    }
+
+    private void start(Context context) throws SQLException {
+        session = AuroraDSQLSession.of(context.getConnection());
+        if (session == null) {
+            LOG.warning("Post-migrate ANALYZE needs the Aurora DSQL session wrapper"
+                    + " (flyway.dsql.reconnect.enabled)");
+            return;
+        }
+        tracker = new Tracker(context.getConnection().getSchema());
+        session.addListener(tracker);
+    }
+
+    private void finish() {
+        if (tracker == null) {
+            return;
+        }
+        // A failed migration still keeps the statements DSQL already committed
+        session.removeListener(tracker);
+        tables.removeAll(tracker.dropped);
+        tables.addAll(tracker.changed);
+        tracker = null;
+    }
+
+    private void analyze(Connection connection) throws SQLException {
+        durations.clear();
+        if (tables.isEmpty() || session == null) {
+            return;
+        }
+        Queue<String> queue = new ConcurrentLinkedQueue<>(tables);
+        tables.clear();
+        int workers = Math.min(parallelism, queue.size());
+        LOG.info("Analyzing " + queue.size() + " tables changed by migrations (parallelism " + workers + ")");
+        AuroraDSQLAdaptiveLimiter limiter = AuroraDSQLAdaptiveLimiter.forEndpoint(connection.getMetaData().getURL());
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "dsql-analyze");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(() -> {
+                    analyzeAll(queue, limiter);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while analyzing migrated tables", e);
+        } catch (ExecutionException e) {
+            // Statistics catch up eventually, so this shouldn't fail a migrate that succeeded
+            LOG.warning("Unable to analyze migrated tables: " + e.getCause().getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+        LOG.info("Analyzed " + durations.size() + " tables in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private void analyzeAll(Queue<String> queue, AuroraDSQLAdaptiveLimiter limiter) throws Exception {
+        try (Connection connection = session.openConnection()) {
+            connection.setAutoCommit(true);
+            String table;
+            while ((table = queue.poll()) != null) {
+                String sql = "ANALYZE " + table;
+                long start = System.nanoTime();
+                try {
+                    limiter.execute(() -> {
+                        try (Statement stmt = connection.createStatement()) {
+                            stmt.execute(sql);
+                        }
+                        return null;
+                    });
+                } catch (SQLException e) {
+                    LOG.warning("Unable to analyze " + table + ": " + e.getMessage());
+                    continue;
+                }
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                durations.put(table, millis);
+                LOG.info("Analyzed " + table + " in " + millis + " ms");
+            }
+        }
+    }
+
+    /**
+     * Qualifies a table name as written in SQL with a schema and quotes both parts, so the
+     * same table is recognized however it was written.
+     */
+    static String qualify(String table, String schema) {
+        List<String> parts = new ArrayList<>();
+        Matcher m = NAME_PART.matcher(table);
+        while (m.find()) {
+            parts.add(m.group(1) != null ? m.group(1).replace("\"\"", "\"") : m.group(2).toLowerCase(Locale.ROOT));
+        }
+        if (parts.size() == 1 && schema != null) {
+            parts.add(0, schema);
+        }
+        StringBuilder qualified = new StringBuilder();
+        for (String part : parts) {
+            if (qualified.length() > 0) {
+                qualified.append('.');
+            }
+            qualified.append('"').append(part.replace("\"", "\"\"")).append('"');
+        }
+        return qualified.toString();
+    }
+
+    /**
+     * Collects the tables changed by one running migration.
+     */
+    static final class Tracker implements AuroraDSQLSession.Listener {
+        private final String schema;
+        final Set<String> changed = new LinkedHashSet<>();
+        final Set<String> dropped = new LinkedHashSet<>();
+
+        Tracker(String schema) {
+            this.schema = schema;
+        }
+
+        @Override
+        public void afterExecute(Connection connection, String sql, long elapsedNanos, long rows) {
+            if (sql == null) {
+                return;
+            }
+            AuroraDSQLStatement statement = AuroraDSQLStatement.of(sql);
+            String target = statement.getTargetTable();
+            if (target == null) {
+                return;
+            }
+            String table = qualify(target, schema);
+            String keyword = statement.getKeyword();
+            if (keyword.equals("DROP")) {
+                changed.remove(table);
+                dropped.add(table);
+                return;
+            }
+            if (keyword.equals("CREATE")
+                    && !CREATE_TABLE.matcher(AuroraDSQLStatement.stripLeadingComments(sql)).find()) {
+                keyword = "CREATE INDEX";
+            }
+            switch (keyword) {
+                case "CREATE":
+                case "INSERT":
+                case "UPDATE":
+                case "DELETE":
+                case "MERGE":
+                case "COPY":
+                    // A plain CREATE TABLE, or DML that matched nothing, leaves no statistics to refresh
+                    if (rows == 0) {
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            dropped.remove(table);
+            changed.add(table);
+        }
+    }
+}
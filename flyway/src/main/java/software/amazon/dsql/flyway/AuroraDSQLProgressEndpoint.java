@@ -0,0 +1,372 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.callback.Callback;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.flywaydb.core.api.configuration.Configuration;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Flyway callback that serves the progress of a running migrate over HTTP on localhost.
+ *
+ * <p>During long releases the log says little about what is running. While migrate runs,
+ * this callback listens on {@code 127.0.0.1:<progress.port>} and answers every
+ * {@code GET} with one JSON object: the current migration and statement and how long
+ * each has been running, how many of the migration's statements are done, and counts of
+ * transactions, rows changed, OCC conflict retries and reconnects. The estimated
+ * completion time comes from an {@link AuroraDSQLMigrationPlan} of the pending
+ * migrations, forecast from this cluster's history, and from the pace of the statements
+ * of the current migration, so a chunked backfill's estimate improves as it runs.</p>
+ *
+ * <p>Statements only update a few counters; the response is assembled when someone asks
+ * for it. The plan is only built once the endpoint is first asked, on a background thread
+ * and without the configured callbacks, and the estimate stays empty until it is ready.
+ * Following statements needs the plugin's session wrapper. If the port is
+ * taken, migrate runs without the endpoint.</p>
+ *
+ * <p>Register it with {@code Flyway.configure().callbacks(new AuroraDSQLProgressEndpoint())}.</p>
+ */
+public class AuroraDSQLProgressEndpoint implements Callback {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLProgressEndpoint.class.getName());
+
+    static final int DEFAULT_PORT = 5481;
+    static final int MAX_STATEMENT_LENGTH = 500;
+
+    private final int port;
+    private final Tracker tracker = new Tracker();
+    private final AtomicBoolean planning = new AtomicBoolean();
+    private volatile Configuration configuration;
+    private HttpServer server;
+    private AuroraDSQLSession session;
+
+    /**
+     * Creates the callback from the {@code progress.port} setting.
+     */
+    public AuroraDSQLProgressEndpoint() {
+        this(AuroraDSQLSettings.getInt("progress.port", DEFAULT_PORT));
+    }
+
+    /**
+     * @param port loopback port to listen on, or 0 for any free port
+     */
+    public AuroraDSQLProgressEndpoint(int port) {
+        this.port = port;
+    }
+
+    @Override
+    public boolean supports(Event event, Context context) {
+        return event == Event.BEFORE_MIGRATE
+                || event == Event.BEFORE_EACH_MIGRATE
+                || event == Event.AFTER_EACH_MIGRATE
+                || event == Event.AFTER_EACH_MIGRATE_ERROR
+                || event == Event.AFTER_MIGRATE
+                || event == Event.AFTER_MIGRATE_ERROR;
+    }
+
+    @Override
+    public boolean canHandleInTransaction(Event event, Context context) {
+        return true;
+    }
+
+    @Override
+    public void handle(Event event, Context context) {
+        switch (event) {
+            case BEFORE_MIGRATE:
+                tracker.reset();
+                planning.set(false);
+                configuration = context.getConfiguration();
+                start(port);
+                break;
+            case BEFORE_EACH_MIGRATE:
+                tracker.startMigration(context.getMigrationInfo().getScript());
+                session = AuroraDSQLSession.of(context.getConnection());
+                if (session != null) {
+                    tracker.reconnectsAtStart = session.getReconnects();
+                    session.addListener(tracker);
+                }
+                break;
+            case AFTER_EACH_MIGRATE:
+            case AFTER_EACH_MIGRATE_ERROR:
+                if (session != null) {
+                    tracker.reconnects.addAndGet(session.getReconnects() - tracker.reconnectsAtStart);
+                    session.removeListener(tracker);
+                    session = null;
+                }
+                tracker.finishMigration(event == Event.AFTER_EACH_MIGRATE);
+                break;
+            case AFTER_MIGRATE:
+            case AFTER_MIGRATE_ERROR:
+                tracker.finish(event == Event.AFTER_MIGRATE);
+                configuration = null;
+                stop();
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public String getCallbackName() {
+        return "Aurora DSQL progress endpoint";
+    }
+
+    /**
+     * Starts listening on the loopback interface.
+     *
+     * @return the port the endpoint listens on, or -1 if it couldn't start
+     */
+    int start(int port) {
+        stop();
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            LOG.warning("Unable to serve migration progress on port " + port + ": " + e.getMessage());
+            return -1;
+        }
+        server.createContext("/", this::respond);
+        server.start();
+        int actual = server.getAddress().getPort();
+        LOG.info("Serving migration progress on http://127.0.0.1:" + actual + "/");
+        return actual;
+    }
+
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    Tracker getTracker() {
+        return tracker;
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            plan();
+            byte[] body = (AuroraDSQLJson.write(tracker.snapshot()) + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Starts planning the pending migrations of the current run, unless already started.
+     * The copied configuration has no callbacks, so the user's callbacks don't fire again
+     * on this thread.
+     */
+    private void plan() {
+        Configuration current = configuration;
+        if (current == null || !planning.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                Flyway flyway = Flyway.configure(current.getClassLoader()).configuration(current).callbacks().load();
+                AuroraDSQLMigrationPlan plan = new AuroraDSQLMigrationPlanner()
+                        .addHistory(flyway.info().applied())
+                        .plan(flyway);
+                if (configuration == current) {
+                    tracker.plan = plan;
+                }
+            } catch (RuntimeException e) {
+                LOG.warning("Unable to forecast pending migrations, progress has no estimate: " + e.getMessage());
+            }
+        }, "dsql-progress-plan");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Follows the statements of each migration and reports progress on request.
+     */
+    static final class Tracker implements AuroraDSQLSession.Listener {
+        volatile AuroraDSQLMigrationPlan plan;
+        private final Set<String> finished = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger applied = new AtomicInteger();
+        private final AtomicLong transactions = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong reconnects = new AtomicLong();
+        private final AtomicInteger statements = new AtomicInteger();
+        private volatile String state = "idle";
+        private volatile long start = System.nanoTime();
+        private volatile String migration;
+        private volatile long migrationStart;
+        private volatile String statement;
+        private volatile long statementStart;
+        private volatile int reconnectsAtStart;
+
+        void reset() {
+            plan = null;
+            finished.clear();
+            applied.set(0);
+            transactions.set(0);
+            rows.set(0);
+            retries.set(0);
+            reconnects.set(0);
+            statements.set(0);
+            migration = null;
+            statement = null;
+            start = System.nanoTime();
+            state = "running";
+        }
+
+        void startMigration(String script) {
+            statements.set(0);
+            statement = null;
+            migrationStart = System.nanoTime();
+            migration = script;
+        }
+
+        void finishMigration(boolean success) {
+            String script = migration;
+            if (script != null) {
+                finished.add(script);
+            }
+            if (success) {
+                applied.incrementAndGet();
+            }
+            migration = null;
+            statement = null;
+        }
+
+        void finish(boolean success) {
+            state = success ? "succeeded" : "failed";
+        }
+
+        @Override
+        public boolean beforeExecute(Connection connection, String sql) {
+            statementStart = System.nanoTime();
+            statement = sql;
+            return true;
+        }
+
+        @Override
+        public void afterExecute(Connection connection, String sql, long elapsedNanos, long rows)
+                throws SQLException {
+            statement = null;
+            statements.incrementAndGet();
+            if (rows > 0) {
+                this.rows.addAndGet(rows);
+            }
+            if (connection.getAutoCommit()) {
+                transactions.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void afterFailure(Connection connection, String sql, SQLException error) {
+            statement = null;
+            if (AuroraDSQLErrors.isConflict(error)) {
+                retries.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void afterCommit(Connection connection) {
+            transactions.incrementAndGet();
+        }
+
+        /**
+         * Returns the progress of the current run, as reported by the endpoint.
+         */
+        Map<String, Object> snapshot() {
+            long now = System.nanoTime();
+            String currentMigration = migration;
+            String currentStatement = statement;
+            AuroraDSQLMigrationPlan currentPlan = plan;
+            int done = statements.get();
+
+            Map<String, Object> progress = new LinkedHashMap<>();
+            progress.put("state", state);
+            progress.put("elapsedMs", millis(now - start));
+            progress.put("migrationsApplied", applied.get());
+            progress.put("migration", currentMigration);
+            progress.put("migrationElapsedMs", currentMigration == null ? null : millis(now - migrationStart));
+            progress.put("statementsDone", currentMigration == null ? null : done);
+            progress.put("statement", currentStatement == null || currentStatement.length() <= MAX_STATEMENT_LENGTH
+                    ? currentStatement : currentStatement.substring(0, MAX_STATEMENT_LENGTH) + "...");
+            progress.put("statementElapsedMs", currentStatement == null ? null : millis(now - statementStart));
+            progress.put("transactions", transactions.get());
+            progress.put("rows", rows.get());
+            progress.put("retries", retries.get());
+            progress.put("reconnects", reconnects.get());
+
+            Long remaining = null;
+            if (currentPlan != null && "running".equals(state)) {
+                long total = 0;
+                int pending = 0;
+                for (AuroraDSQLMigrationPlan.Step step : currentPlan.getSteps()) {
+                    if (finished.contains(step.getScript())) {
+                        continue;
+                    }
+                    pending++;
+                    if (step.getScript().equals(currentMigration)) {
+                        progress.put("statementsPlanned", step.getStatements());
+                        total += remainingMillis(step, millis(now - migrationStart), done);
+                    } else {
+                        total += step.getForecastMillis();
+                    }
+                }
+                progress.put("migrationsPending", pending);
+                remaining = total;
+            }
+            progress.put("remainingMs", remaining);
+            progress.put("estimatedCompletion", remaining == null ? null
+                    : Instant.now().plusMillis(remaining).toString());
+            return progress;
+        }
+
+        /**
+         * Extrapolates from the statements done so far, or falls back to the forecast.
+         */
+        static long remainingMillis(AuroraDSQLMigrationPlan.Step step, long elapsedMillis, int done) {
+            if (done > 0 && step.getStatements() > done) {
+                return elapsedMillis * (step.getStatements() - done) / done;
+            }
+            if (done > 0 && step.getStatements() <= done) {
+                return 0;
+            }
+            return Math.max(0, step.getForecastMillis() - elapsedMillis);
+        }
+
+        private static long millis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+}
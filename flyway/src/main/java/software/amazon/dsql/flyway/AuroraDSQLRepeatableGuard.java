@@ -0,0 +1,354 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.callback.Callback;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.flywaydb.core.api.configuration.Configuration;
+import org.flywaydb.core.internal.exception.FlywaySqlException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Flyway callback that skips re-creating views whose definition has not really changed.
+ *
+ * <p>Flyway re-applies a repeatable migration whenever its checksum changes, including for
+ * whitespace, comment or placeholder changes that leave the view itself the same. On
+ * Aurora DSQL each {@code DROP VIEW} and {@code CREATE VIEW} is a separate DDL transaction.
+ * While a repeatable migration runs, this callback compares each incoming view definition
+ * with what is in the catalog, and skips the DDL when nothing would change. Flyway still
+ * records the migration with its new checksum.</p>
+ *
+ * <p>Aurora DSQL stores view definitions in a deparsed form that can't be compared with
+ * the source text directly. When a view is created, the callback therefore records a hash
+ * of its normalized source alongside a hash of the resulting catalog definition, in a side
+ * table named {@code <history table>_definitions}. A later {@code CREATE [OR REPLACE] VIEW}
+ * is skipped when its normalized source hash matches and the catalog definition still
+ * hashes to the recorded value, so a view changed or dropped outside Flyway is always
+ * re-created. A {@code DROP VIEW} of a recorded view is held back until the next statement
+ * shows whether the view is re-created unchanged.</p>
+ *
+ * <p>Register it with {@code Flyway.configure().callbacks(new AuroraDSQLRepeatableGuard())}.
+ * Like {@link AuroraDSQLCheckpoints}, it needs the plugin's session wrapper.</p>
+ */
+public class AuroraDSQLRepeatableGuard implements Callback {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLRepeatableGuard.class.getName());
+
+    static final String TABLE_SUFFIX = "_definitions";
+
+    private static final Pattern CREATE_VIEW = Pattern.compile(
+            "create (?:or replace )?(?:temp |temporary )?view (\\S+?)( \\(.*?\\))? as (.*)", Pattern.DOTALL);
+    private static final Pattern DROP_VIEW = Pattern.compile(
+            "drop view (?:if exists )?([^ ,]+)(?: cascade| restrict)?");
+
+    private String definitionTable;
+    private String currentSchema;
+    private Map<String, String[]> records;
+    private AuroraDSQLSession session;
+    private Guard guard;
+    private int skipped;
+
+    @Override
+    public boolean supports(Event event, Context context) {
+        return event == Event.BEFORE_EACH_MIGRATE
+                || event == Event.AFTER_EACH_MIGRATE
+                || event == Event.AFTER_EACH_MIGRATE_ERROR
+                || event == Event.AFTER_MIGRATE;
+    }
+
+    @Override
+    public boolean canHandleInTransaction(Event event, Context context) {
+        // Creating the definition table and releasing a held-back DROP VIEW are DDL
+        return false;
+    }
+
+    @Override
+    public void handle(Event event, Context context) {
+        try {
+            switch (event) {
+                case BEFORE_EACH_MIGRATE:
+                    start(context);
+                    break;
+                case AFTER_EACH_MIGRATE:
+                    finish(context, true);
+                    break;
+                case AFTER_EACH_MIGRATE_ERROR:
+                    finish(context, false);
+                    break;
+                case AFTER_MIGRATE:
+                    if (skipped > 0) {
+                        LOG.info("Skipped " + skipped + " DDL statements for unchanged views");
+                        skipped = 0;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (SQLException e) {
+            throw new FlywaySqlException("Unable to compare repeatable migration with the catalog", e);
+        }
+    }
+
+    @Override
+    public String getCallbackName() {
+        return "Aurora DSQL repeatable migration guard";
+    }
+
+    /**
+     * Number of view DDL statements skipped since the last migrate.
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    private void start(Context context) throws SQLException {
+        MigrationInfo migration = context.getMigrationInfo();
+        if (migration == null || migration.getVersion() != null) {
+            return;
+        }
+        session = AuroraDSQLSession.of(context.getConnection());
+        if (session == null) {
+            LOG.warning("The repeatable migration guard needs the Aurora DSQL session wrapper"
+                    + " (flyway.dsql.reconnect.enabled)");
+            return;
+        }
+        Connection connection = context.getConnection();
+        if (records == null) {
+            definitionTable = tableName(context.getConfiguration());
+            createTable(connection, definitionTable);
+            records = load(connection, definitionTable);
+            currentSchema = currentSchema(connection);
+        }
+        guard = new Guard();
+        session.addListener(guard);
+    }
+
+    private void finish(Context context, boolean success) throws SQLException {
+        if (guard == null) {
+            return;
+        }
+        session.removeListener(guard);
+        Guard finished = guard;
+        guard = null;
+        if (success) {
+            // A DROP VIEW at the end of the script was never followed by a CREATE
+            finished.release(context.getConnection());
+        }
+    }
+
+    static String tableName(Configuration configuration) {
+        return AuroraDSQLCheckpoints.tableName(configuration, TABLE_SUFFIX);
+    }
+
+    static void createTable(Connection connection, String table) throws SQLException {
+        boolean originalAutoCommit = connection.getAutoCommit();
+        try (Statement stmt = connection.createStatement()) {
+            connection.setAutoCommit(true);
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + table + " (\n"
+                    + "    \"view_schema\" VARCHAR(128) NOT NULL,\n"
+                    + "    \"view_name\" VARCHAR(128) NOT NULL,\n"
+                    + "    \"source_hash\" VARCHAR(64) NOT NULL,\n"
+                    + "    \"catalog_hash\" VARCHAR(64) NOT NULL,\n"
+                    + "    \"updated_on\" TIMESTAMP NOT NULL DEFAULT now(),\n"
+                    + "    PRIMARY KEY (\"view_schema\", \"view_name\")\n"
+                    + ")");
+        } finally {
+            connection.setAutoCommit(originalAutoCommit);
+        }
+    }
+
+    static Map<String, String[]> load(Connection connection, String table) throws SQLException {
+        Map<String, String[]> records = new HashMap<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT \"view_schema\", \"view_name\", \"source_hash\", \"catalog_hash\" FROM "
+                     + table)) {
+            while (rs.next()) {
+                records.put(rs.getString(1) + "." + rs.getString(2), new String[]{rs.getString(3), rs.getString(4)});
+            }
+        }
+        return records;
+    }
+
+    private static String currentSchema(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT current_schema()")) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    /**
+     * Hash of a view's normalized catalog definition, or an empty string if the view does not exist.
+     */
+    static String catalogHash(Connection connection, String schema, String view) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT view_definition FROM information_schema.views WHERE table_schema = ? AND table_name = ?")) {
+            stmt.setString(1, schema);
+            stmt.setString(2, view);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next()
+                        ? AuroraDSQLCatalogFingerprint.sha256(AuroraDSQLCatalog.normalize(rs.getString(1), schema))
+                        : "";
+            }
+        }
+    }
+
+    /**
+     * Splits a possibly schema-qualified, possibly quoted view name from normalized SQL.
+     *
+     * @return schema and name as stored in the catalog; the schema is null if unqualified
+     */
+    static String[] viewName(String name) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < name.length() && name.charAt(i + 1) == '"') {
+                    part.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == '.' && !quoted) {
+                parts.add(part.toString());
+                part.setLength(0);
+            } else {
+                part.append(c);
+            }
+        }
+        parts.add(part.toString());
+        return parts.size() > 1
+                ? new String[]{parts.get(parts.size() - 2), parts.get(parts.size() - 1)}
+                : new String[]{null, parts.get(0)};
+    }
+
+    /**
+     * Follows the statements of one repeatable migration.
+     */
+    final class Guard implements AuroraDSQLSession.Listener {
+        private String heldDrop;
+        private String heldKey;
+        private String[] pending;
+
+        @Override
+        public boolean beforeExecute(Connection connection, String sql) throws SQLException {
+            if (sql == null) {
+                release(connection);
+                return true;
+            }
+            String normalized = AuroraDSQLStatement.normalize(sql);
+            Matcher drop = DROP_VIEW.matcher(normalized);
+            if (drop.matches()) {
+                release(connection);
+                String key = key(drop.group(1));
+                if (records.containsKey(key)) {
+                    heldDrop = sql;
+                    heldKey = key;
+                    return false;
+                }
+                return true;
+            }
+            Matcher create = CREATE_VIEW.matcher(normalized);
+            if (!create.matches()) {
+                release(connection);
+                return true;
+            }
+            String[] name = viewName(create.group(1));
+            String schema = name[0] == null ? currentSchema : name[0];
+            String key = schema + "." + name[1];
+            String sourceHash = AuroraDSQLCatalogFingerprint.sha256(normalized.replaceFirst("^create (or replace )?", ""));
+            String[] record = records.get(key);
+            if (record != null && record[0].equals(sourceHash)
+                    && record[1].equals(catalogHash(connection, schema, name[1]))) {
+                if (key.equals(heldKey)) {
+                    skipped++;
+                    heldDrop = null;
+                    heldKey = null;
+                }
+                LOG.fine("Skipping unchanged view " + key);
+                skipped++;
+                return false;
+            }
+            release(connection);
+            pending = new String[]{schema, name[1], sourceHash};
+            return true;
+        }
+
+        @Override
+        public void afterExecute(Connection connection, String sql, long elapsedNanos, long rows)
+                throws SQLException {
+            if (pending != null && connection.getAutoCommit()) {
+                write(connection);
+            }
+        }
+
+        @Override
+        public void afterCommit(Connection connection) throws SQLException {
+            if (pending != null) {
+                write(connection);
+                connection.commit();
+            }
+        }
+
+        @Override
+        public void afterRollback() {
+            pending = null;
+        }
+
+        /**
+         * Executes a held-back DROP VIEW, now that the view is not re-created unchanged.
+         */
+        void release(Connection connection) throws SQLException {
+            if (heldDrop == null) {
+                return;
+            }
+            String sql = heldDrop;
+            heldDrop = null;
+            records.remove(heldKey);
+            heldKey = null;
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute(sql);
+            }
+        }
+
+        private String key(String name) {
+            String[] parts = viewName(name);
+            return (parts[0] == null ? currentSchema : parts[0]) + "." + parts[1];
+        }
+
+        private void write(Connection connection) throws SQLException {
+            String[] view = pending;
+            pending = null;
+            String catalogHash = catalogHash(connection, view[0], view[1]);
+            try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO " + definitionTable
+                    + " (\"view_schema\", \"view_name\", \"source_hash\", \"catalog_hash\") VALUES (?, ?, ?, ?)"
+                    + " ON CONFLICT (\"view_schema\", \"view_name\") DO UPDATE SET"
+                    + " \"source_hash\" = excluded.\"source_hash\", \"catalog_hash\" = excluded.\"catalog_hash\","
+                    + " \"updated_on\" = now()")) {
+                stmt.setString(1, view[0]);
+                stmt.setString(2, view[1]);
+                stmt.setString(3, view[2]);
+                stmt.setString(4, catalogHash);
+                stmt.executeUpdate();
+            }
+            records.put(view[0] + "." + view[1], new String[]{view[2], catalogHash});
+        }
+    }
+}
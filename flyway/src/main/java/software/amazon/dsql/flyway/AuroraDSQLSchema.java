@@ -4,6 +4,7 @@
  */
 package software.amazon.dsql.flyway;
 
+import org.flywaydb.core.api.configuration.Configuration;
 import org.flywaydb.core.internal.database.base.Table;
 import org.flywaydb.core.internal.jdbc.JdbcTemplate;
 import org.flywaydb.database.postgresql.PostgreSQLSchema;
@@ -21,59 +22,177 @@ import java.util.logging.Logger;
  *
  * <p>Handles DSQL-specific behavior:</p>
  * <ul>
- *   <li>{@link #getTable(String)} - Returns DSQL-compatible tables</li>
- *   <li>{@link #doClean()} - Drops views then tables, one DDL per transaction</li>
+ *   <li>{@link #getTable(String)} - Returns DSQL-compatible tables, and the shard's history table</li>
+ *   <li>{@link #doClean()} - Drops views then tables, one DDL per transaction, tables pipelined</li>
+ *   <li>{@link #getFingerprint()} - Fingerprints the catalog for drift detection</li>
  * </ul>
  */
 public class AuroraDSQLSchema extends PostgreSQLSchema {
 
     private static final Logger LOG = Logger.getLogger(AuroraDSQLSchema.class.getName());
 
+    static final int MAX_DDL_ATTEMPTS = 5;
+
     public AuroraDSQLSchema(JdbcTemplate jdbcTemplate, AuroraDSQLDatabase database, String name) {
         super(jdbcTemplate, database, name);
     }
 
+    /**
+     * Returns a DSQL table. With {@code history.shard} set, the schema history table is
+     * replaced by the shard's own history table.
+     */
     @Override
     public Table getTable(String tableName) {
+        Configuration configuration = database.getConfiguration();
+        if (configuration != null && tableName.equals(configuration.getTable())) {
+            tableName = AuroraDSQLHistoryShards.historyTable(tableName);
+        }
         return new AuroraDSQLTable(jdbcTemplate, (AuroraDSQLDatabase) database, this, tableName);
     }
 
+    /**
+     * Returns the configured schema history table name, before any shard is applied.
+     */
+    String getHistoryTableName() {
+        Configuration configuration = database.getConfiguration();
+        return configuration == null || configuration.getTable() == null
+                ? AuroraDSQLBaselineGenerator.DEFAULT_HISTORY_TABLE : configuration.getTable();
+    }
+
+    /**
+     * In read-only mode, answered from the relations read once per Flyway session.
+     */
+    @Override
+    protected boolean doExists() throws SQLException {
+        AuroraDSQLDatabase dsql = (AuroraDSQLDatabase) database;
+        if (dsql.isReadOnly()) {
+            return dsql.getRelations(jdbcTemplate.getConnection()).hasSchema(name);
+        }
+        return super.doExists();
+    }
+
+    /**
+     * In read-only mode, a schema with tables or views is known not to be empty without a query.
+     */
+    @Override
+    protected boolean doEmpty() throws SQLException {
+        AuroraDSQLDatabase dsql = (AuroraDSQLDatabase) database;
+        if (dsql.isReadOnly() && dsql.getRelations(jdbcTemplate.getConnection()).hasRelations(name)) {
+            return false;
+        }
+        return super.doEmpty();
+    }
+
+    /**
+     * Reads a hierarchical fingerprint of the tables and views in this schema.
+     *
+     * <p>Compare it with a stored fingerprint using
+     * {@link AuroraDSQLCatalogFingerprint#diff(AuroraDSQLCatalogFingerprint)} to find drift.</p>
+     */
+    public AuroraDSQLCatalogFingerprint getFingerprint() throws SQLException {
+        return AuroraDSQLCatalogFingerprint.of(getCatalog(), getHistoryTableName());
+    }
+
+    /**
+     * Reads the columns, indexes, constraints and views of this schema in bulk.
+     */
+    AuroraDSQLCatalog getCatalog() throws SQLException {
+        try (AuroraDSQLTracer.Span span = AuroraDSQLTracer.get().start("dsql.read-catalog")
+                .attribute("db.schema", name)) {
+            try {
+                return AuroraDSQLCatalog.read(jdbcTemplate.getConnection(), name);
+            } catch (SQLException e) {
+                span.error(e);
+                throw e;
+            }
+        }
+    }
+
     /**
      * Cleans the schema by dropping all objects one at a time.
      *
      * <p>Aurora DSQL only allows one DDL statement per transaction. This method
      * drops views first (they depend on tables), then tables, with autocommit
-     * enabled so each DROP is its own transaction.</p>
+     * enabled so each DROP is its own transaction. Each DROP is admitted by the
+     * cluster's {@link AuroraDSQLAdaptiveLimiter} and retried on OCC conflicts.</p>
      */
     @Override
     protected void doClean() throws SQLException {
         Connection conn = jdbcTemplate.getConnection();
         boolean originalAutoCommit = conn.getAutoCommit();
+        AuroraDSQLTracer.Span span = AuroraDSQLTracer.get().start("flyway.clean-schema")
+                .attribute("db.schema", name);
 
         try {
             conn.setAutoCommit(true);
 
             // Drop views first (they depend on tables)
             List<String> views = getViews(conn);
+            span.attribute("dsql.views", views.size());
             for (String view : views) {
                 String dropSql = "DROP VIEW IF EXISTS " + database.quote(name, view);
                 LOG.fine("Dropping view: " + dropSql);
-                try (Statement stmt = conn.createStatement()) {
-                    stmt.execute(dropSql);
-                }
+                executeDdl(conn, dropSql);
             }
 
-            // Drop tables
+            // Drop tables; DSQL has no foreign keys, so they don't depend on each other
             Table[] tables = allTables();
+            span.attribute("dsql.tables", tables.length);
+            List<String> drops = new ArrayList<>();
             for (Table table : tables) {
-                String dropSql = "DROP TABLE IF EXISTS " + database.quote(name, table.getName());
-                LOG.fine("Dropping table: " + dropSql);
-                try (Statement stmt = conn.createStatement()) {
-                    stmt.execute(dropSql);
-                }
+                drops.add("DROP TABLE IF EXISTS " + database.quote(name, table.getName()));
             }
+            int pipelined = AuroraDSQLPipeline.of(conn).execute(drops, (connection, dropSql) -> {
+                LOG.fine("Dropping table: " + dropSql);
+                executeDdl(connection, dropSql);
+            });
+            span.attribute("dsql.pipelined", pipelined);
+        } catch (SQLException | RuntimeException e) {
+            span.error(e);
+            throw e;
         } finally {
             conn.setAutoCommit(originalAutoCommit);
+            span.close();
+        }
+    }
+
+    private void executeDdl(Connection conn, String sql) throws SQLException {
+        executeDdl(conn, ((AuroraDSQLDatabase) database).getLimiter(), sql);
+    }
+
+    /**
+     * Executes an idempotent DDL statement in its own transaction, retrying OCC conflicts.
+     */
+    static void executeDdl(Connection conn, AuroraDSQLAdaptiveLimiter limiter, String sql) throws SQLException {
+        try (AuroraDSQLTracer.Span span = AuroraDSQLTracer.get().start("dsql.ddl")) {
+            for (int attempt = 1; ; attempt++) {
+                span.attribute("dsql.retry_count", attempt - 1);
+                try {
+                    limiter.execute(() -> {
+                        try (Statement stmt = conn.createStatement()) {
+                            stmt.execute(sql);
+                        }
+                        return null;
+                    });
+                    return;
+                } catch (SQLException e) {
+                    if (!AuroraDSQLErrors.isConflict(e) || attempt >= MAX_DDL_ATTEMPTS) {
+                        span.error(e);
+                        throw e;
+                    }
+                    LOG.fine("Retrying after OCC conflict (attempt " + attempt + "): " + sql);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    span.error(e);
+                    throw new SQLException("Interrupted while executing: " + sql, e);
+                } catch (RuntimeException e) {
+                    span.error(e);
+                    throw e;
+                } catch (Exception e) {
+                    span.error(e);
+                    throw new SQLException("Unable to execute: " + sql, e);
+                }
+            }
         }
     }
 
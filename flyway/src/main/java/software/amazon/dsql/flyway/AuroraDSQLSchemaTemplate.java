@@ -0,0 +1,429 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.FlywayException;
+import org.flywaydb.core.api.configuration.Configuration;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Migrated schema captured once and cloned into new schemas, for fast test setup.
+ *
+ * <p>Test suites that give each test a fresh schema replay the whole migration set for
+ * every test, so setup time grows with the number of migrations. A template is a schema
+ * migrated once. {@link #capture} reads its tables, indexes and views the way
+ * {@link AuroraDSQLBaselineGenerator} does, along with the rows of its tables and its
+ * schema history. {@link #cloneInto} then recreates it in a new schema. Tables are
+ * created in parallel, since they don't depend on each other; seed rows follow in
+ * parallel, then indexes, then views in dependency order. {@code CREATE INDEX ASYNC}
+ * only starts a build job, so the clone waits for every job to finish before copying the
+ * schema history. The history is copied last, so the clone is only marked as migrated
+ * once it is complete, with its unique indexes enforced, and Flyway finds nothing
+ * pending in it. Each statement or batch of rows is retried on OCC conflicts
+ * with the others, and a clone that fails anyway is dropped.</p>
+ *
+ * <p>Cloning runs on {@code template.parallelism} connections of the given data source,
+ * admitted through the cluster's {@link AuroraDSQLAdaptiveLimiter}.</p>
+ *
+ * <pre>
+ * AuroraDSQLSchemaTemplate template = AuroraDSQLSchemaTemplate.migrate(
+ *     Flyway.configure().dataSource(dataSource).schemas("template").load());
+ * template.cloneInto(dataSource, "test_42");
+ * </pre>
+ */
+public final class AuroraDSQLSchemaTemplate {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLSchemaTemplate.class.getName());
+
+    static final int DEFAULT_PARALLELISM = 4;
+    static final int ROWS_PER_TRANSACTION = 500;
+
+    private final List<String> tables = new ArrayList<>();
+    private final List<String> indexes = new ArrayList<>();
+    private final List<String> views = new ArrayList<>();
+    private final Map<String, Rows> seed = new LinkedHashMap<>();
+    private final String historyTable;
+    private Rows history;
+
+    private AuroraDSQLSchemaTemplate(String historyTable) {
+        this.historyTable = historyTable;
+    }
+
+    /**
+     * Migrates the schema a Flyway instance manages and captures it as a template.
+     */
+    public static AuroraDSQLSchemaTemplate migrate(Flyway flyway) throws SQLException {
+        flyway.migrate();
+        Configuration configuration = flyway.getConfiguration();
+        String schema = AuroraDSQLCheckpoints.historySchema(configuration);
+        try (Connection connection = configuration.getDataSource().getConnection()) {
+            return capture(connection, schema == null ? "public" : schema,
+                    AuroraDSQLHistoryShards.historyTable(configuration.getTable()), configuration.getTable());
+        }
+    }
+
+    /**
+     * Captures a migrated schema.
+     *
+     * @param historyTable name of the schema history table in that schema
+     */
+    public static AuroraDSQLSchemaTemplate capture(Connection connection, String schema, String historyTable)
+            throws SQLException {
+        return capture(connection, schema, historyTable, historyTable);
+    }
+
+    /**
+     * @param configuredTable configured history table name, whose shards and side tables are left out
+     */
+    private static AuroraDSQLSchemaTemplate capture(Connection connection, String schema, String historyTable,
+                                                    String configuredTable) throws SQLException {
+        AuroraDSQLSchemaTemplate template = new AuroraDSQLSchemaTemplate(historyTable);
+        AuroraDSQLCatalog catalog = AuroraDSQLCatalog.read(connection, schema);
+        List<String> statements = new AuroraDSQLBaselineGenerator(connection, schema)
+                .historyTable(configuredTable)
+                .exclude(historyTable)
+                .generate(catalog);
+        for (String statement : statements) {
+            if (statement.startsWith("CREATE TABLE ")) {
+                template.tables.add(statement);
+            } else if (statement.startsWith("CREATE VIEW ")) {
+                template.views.add(statement);
+            } else {
+                template.indexes.add(statement);
+            }
+        }
+        for (String table : catalog.tables()) {
+            String create = "CREATE TABLE " + quote(table) + " (";
+            if (template.tables.stream().anyMatch(statement -> statement.startsWith(create))) {
+                Rows rows = Rows.read(connection, "SELECT * FROM " + quote(schema) + "." + quote(table));
+                if (!rows.values.isEmpty()) {
+                    template.seed.put(table, rows);
+                }
+            }
+        }
+        template.history = Rows.read(connection, "SELECT "
+                + String.join(", ", quoted(AuroraDSQLHistoryShards.HISTORY_COLUMN_NAMES))
+                + " FROM " + quote(schema) + "." + quote(historyTable) + " ORDER BY \"installed_rank\"");
+        LOG.info("Captured template schema " + schema + ": " + template.tables.size() + " tables, "
+                + template.indexes.size() + " indexes, " + template.views.size() + " views, "
+                + template.history.values.size() + " applied migrations");
+        return template;
+    }
+
+    /**
+     * Creates the schema and recreates the template in it, marked in its schema history as
+     * migrated.
+     */
+    public void cloneInto(DataSource dataSource, String schema) throws SQLException {
+        long start = System.nanoTime();
+        AuroraDSQLAdaptiveLimiter limiter;
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(true);
+            limiter = AuroraDSQLAdaptiveLimiter.forEndpoint(connection.getMetaData().getURL());
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("CREATE SCHEMA " + quote(schema));
+            }
+        }
+        int parallelism = AuroraDSQLSettings.getInt("template.parallelism", DEFAULT_PARALLELISM);
+
+        try {
+            runAll(dataSource, schema, limiter, parallelism, statements(tables));
+            // Rows go in before indexes, so no insert competes with an index build on its table
+            List<Work> rows = new ArrayList<>();
+            for (Map.Entry<String, Rows> table : seed.entrySet()) {
+                rows.addAll(table.getValue().inserts(quote(table.getKey())));
+            }
+            runAll(dataSource, schema, limiter, parallelism, rows);
+            List<String> jobs = Collections.synchronizedList(new ArrayList<>());
+            runAll(dataSource, schema, limiter, parallelism, indexes(indexes, jobs));
+            runAll(dataSource, schema, limiter, 1, waitFor(jobs));
+            // Views may read from each other, so they keep their order on one connection
+            List<Work> last = new ArrayList<>(statements(views));
+            last.addAll(statements(Collections.singletonList("CREATE TABLE " + quote(historyTable) + " (\n"
+                    + AuroraDSQLDatabase.HISTORY_COLUMNS + ")")));
+            last.addAll(history.inserts(quote(historyTable)));
+            runAll(dataSource, schema, limiter, 1, last);
+        } catch (SQLException | RuntimeException e) {
+            LOG.warning("Unable to clone template into schema " + schema + ", dropping it: " + e.getMessage());
+            try {
+                drop(dataSource, schema);
+            } catch (SQLException dropFailure) {
+                e.addSuppressed(dropFailure);
+            }
+            throw e;
+        }
+
+        LOG.info("Cloned template into schema " + schema + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private static List<Work> statements(List<String> statements) {
+        List<Work> work = new ArrayList<>();
+        for (String sql : statements) {
+            work.add(connection -> {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute(sql);
+                }
+            });
+        }
+        return work;
+    }
+
+    /**
+     * Creates the indexes, collecting the ids of the build jobs they start.
+     */
+    private static List<Work> indexes(List<String> statements, List<String> jobs) {
+        List<Work> work = new ArrayList<>();
+        for (String sql : statements) {
+            work.add(connection -> {
+                try (Statement stmt = connection.createStatement()) {
+                    if (stmt.execute(sql)) {
+                        try (ResultSet rs = stmt.getResultSet()) {
+                            if (rs.next()) {
+                                jobs.add(rs.getString(1));
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        return work;
+    }
+
+    /**
+     * Waits for index build jobs, failing if one of them didn't complete.
+     */
+    private static List<Work> waitFor(List<String> jobs) {
+        List<Work> work = new ArrayList<>();
+        for (String job : jobs) {
+            work.add(connection -> {
+                try (PreparedStatement stmt = connection.prepareStatement("SELECT sys.wait_for_job(?)")) {
+                    stmt.setString(1, job);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next() || !rs.getBoolean(1)) {
+                            throw new SQLException("Index build job " + job + " did not complete");
+                        }
+                    }
+                }
+            });
+        }
+        return work;
+    }
+
+    private static void runAll(DataSource dataSource, String schema, AuroraDSQLAdaptiveLimiter limiter,
+                               int parallelism, List<Work> work) throws SQLException {
+        if (work.isEmpty()) {
+            return;
+        }
+        Queue<Work> queue = new ConcurrentLinkedQueue<>(work);
+        int workers = Math.max(1, Math.min(parallelism, work.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "dsql-template");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(() -> {
+                    try (Connection connection = dataSource.getConnection()) {
+                        connection.setAutoCommit(true);
+                        try (Statement stmt = connection.createStatement()) {
+                            stmt.execute("SET search_path = " + quote(schema));
+                        }
+                        for (Work next = queue.poll(); next != null; next = queue.poll()) {
+                            run(connection, limiter, next);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while cloning template into " + schema, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new FlywayException("Unable to clone template into " + schema, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs one unit of work, retrying the OCC conflicts that concurrent units in a new
+     * schema can cause.
+     */
+    private static void run(Connection connection, AuroraDSQLAdaptiveLimiter limiter, Work work) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                limiter.execute(() -> {
+                    work.run(connection);
+                    return null;
+                });
+                return;
+            } catch (SQLException e) {
+                if (!AuroraDSQLErrors.isConflict(e) || attempt >= AuroraDSQLSchema.MAX_DDL_ATTEMPTS) {
+                    throw e;
+                }
+                LOG.fine("Retrying after OCC conflict (attempt " + attempt + "): " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drops a partly cloned schema: views in reverse creation order, then tables, then the
+     * schema, one DDL statement per transaction.
+     */
+    private void drop(DataSource dataSource, String schema) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(true);
+            List<String> created = new ArrayList<>();
+            List<String> createdViews = new ArrayList<>();
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT table_name, table_type FROM information_schema.tables WHERE table_schema = ?")) {
+                stmt.setString(1, schema);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        ("VIEW".equals(rs.getString(2)) ? createdViews : created).add(rs.getString(1));
+                    }
+                }
+            }
+            createdViews.sort((a, b) -> Integer.compare(viewIndex(b), viewIndex(a)));
+            try (Statement stmt = connection.createStatement()) {
+                for (String view : createdViews) {
+                    stmt.execute("DROP VIEW IF EXISTS " + quote(schema) + "." + quote(view));
+                }
+                for (String table : created) {
+                    stmt.execute("DROP TABLE IF EXISTS " + quote(schema) + "." + quote(table));
+                }
+                stmt.execute("DROP SCHEMA IF EXISTS " + quote(schema));
+            }
+        }
+    }
+
+    private int viewIndex(String view) {
+        for (int i = 0; i < views.size(); i++) {
+            if (views.get(i).startsWith("CREATE VIEW " + quote(view) + " ")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    List<String> getTables() {
+        return Collections.unmodifiableList(tables);
+    }
+
+    List<String> getIndexes() {
+        return Collections.unmodifiableList(indexes);
+    }
+
+    List<String> getViews() {
+        return Collections.unmodifiableList(views);
+    }
+
+    private static List<String> quoted(String[] columns) {
+        List<String> quoted = new ArrayList<>();
+        for (String column : columns) {
+            quoted.add(quote(column));
+        }
+        return quoted;
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private interface Work {
+        void run(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Rows of one table, with their column names.
+     */
+    static final class Rows {
+        final List<String> columns = new ArrayList<>();
+        final List<Object[]> values = new ArrayList<>();
+
+        static Rows read(Connection connection, String sql) throws SQLException {
+            Rows rows = new Rows();
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery(sql)) {
+                ResultSetMetaData metaData = rs.getMetaData();
+                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                    rows.columns.add(metaData.getColumnLabel(i));
+                }
+                while (rs.next()) {
+                    Object[] row = new Object[rows.columns.size()];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = rs.getObject(i + 1);
+                    }
+                    rows.values.add(row);
+                }
+            }
+            return rows;
+        }
+
+        /**
+         * Returns the inserts of the rows, one transaction per batch, so a conflict only
+         * repeats its own batch.
+         */
+        List<Work> inserts(String table) {
+            List<Work> work = new ArrayList<>();
+            for (int from = 0; from < values.size(); from += ROWS_PER_TRANSACTION) {
+                List<Object[]> batch = values.subList(from, Math.min(values.size(), from + ROWS_PER_TRANSACTION));
+                work.add(connection -> insert(connection, table, batch));
+            }
+            return work;
+        }
+
+        private void insert(Connection connection, String table, List<Object[]> batch) throws SQLException {
+            String sql = "INSERT INTO " + table + " (" + String.join(", ", quoted(columns.toArray(new String[0])))
+                    + ") VALUES (" + String.join(", ", Collections.nCopies(columns.size(), "?")) + ")";
+            connection.setAutoCommit(false);
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                for (Object[] row : batch) {
+                    for (int i = 0; i < row.length; i++) {
+                        stmt.setObject(i + 1, row[i]);
+                    }
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,719 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * JDBC connection wrapper that keeps a long migration session alive across DSQL
+ * connection limits.
+ *
+ * <p>Aurora DSQL closes connections after one hour, and IAM auth tokens are only valid
+ * for a limited time when connecting. Before each new transaction, the session replaces
+ * the underlying connection if it is older than {@code reconnect.max-age-seconds}, has
+ * been idle long enough to fail validation, or failed earlier. The new connection gets
+ * the same autocommit mode, read-only flag, isolation level, schema and {@code SET}
+ * parameters, so Flyway and the plugin never see the swap.</p>
+ *
+ * <p>If the connection is lost part-way through a transaction, the session reconnects
+ * and replays the statements of that transaction. This only happens when it is safe:
+ * commit had not been attempted, so the server has discarded the transaction, and no
+ * statement in it has returned rows that the caller may have acted on. In
+ * autocommit mode only read-only statements are retried, since a lost write may
+ * already have committed.</p>
+ */
+final class AuroraDSQLSession implements InvocationHandler {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLSession.class.getName());
+
+    static final long DEFAULT_MAX_AGE_SECONDS = 50 * 60;
+    static final long DEFAULT_IDLE_VALIDATION_SECONDS = 5 * 60;
+    static final int MAX_REPLAY_STATEMENTS = 10_000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    private final Supplier<Connection> opener;
+    private final long maxAgeNanos;
+    private final long idleValidationNanos;
+    private final Connection proxy;
+
+    private Connection delegate;
+    private long openedAt;
+    private long lastUsed;
+    private int generation;
+    private boolean closed;
+    private boolean broken;
+
+    private boolean autoCommit;
+    private Boolean readOnly;
+    private Integer isolation;
+    private String schema;
+    private final Map<String, String> parameters = new LinkedHashMap<>();
+
+    private AuroraDSQLSessionFacts facts;
+    private boolean searchPathChanged;
+
+    private boolean inTransaction;
+    private boolean replayable = true;
+    private final List<Execution> transactionLog = new ArrayList<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private AuroraDSQLSession(Connection delegate, Supplier<Connection> opener, long maxAgeNanos,
+                              long idleValidationNanos) throws SQLException {
+        this.delegate = delegate;
+        this.opener = opener;
+        this.maxAgeNanos = maxAgeNanos;
+        this.idleValidationNanos = idleValidationNanos;
+        this.openedAt = System.nanoTime();
+        this.lastUsed = openedAt;
+        this.autoCommit = delegate.getAutoCommit();
+        this.proxy = (Connection) Proxy.newProxyInstance(AuroraDSQLSession.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, this);
+    }
+
+    /**
+     * Wraps a connection using the {@code reconnect.*} settings.
+     *
+     * @param opener opens a new connection with the same credentials, e.g. Flyway's connection factory
+     */
+    static Connection wrap(Connection connection, Supplier<Connection> opener) {
+        return wrap(connection, opener,
+                TimeUnit.SECONDS.toNanos(AuroraDSQLSettings.getLong("reconnect.max-age-seconds", DEFAULT_MAX_AGE_SECONDS)),
+                TimeUnit.SECONDS.toNanos(AuroraDSQLSettings.getLong("reconnect.idle-validation-seconds",
+                        DEFAULT_IDLE_VALIDATION_SECONDS)));
+    }
+
+    static Connection wrap(Connection connection, Supplier<Connection> opener, long maxAgeNanos,
+                           long idleValidationNanos) {
+        try {
+            return new AuroraDSQLSession(connection, opener, maxAgeNanos, idleValidationNanos).proxy;
+        } catch (SQLException e) {
+            LOG.warning("Unable to track session state, reconnection disabled: " + e.getMessage());
+            return connection;
+        }
+    }
+
+    /**
+     * Returns the session behind a wrapped connection, or null if the connection isn't wrapped.
+     */
+    static AuroraDSQLSession of(Connection connection) {
+        if (connection != null && Proxy.isProxyClass(connection.getClass())
+                && Proxy.getInvocationHandler(connection) instanceof AuroraDSQLSession) {
+            return (AuroraDSQLSession) Proxy.getInvocationHandler(connection);
+        }
+        return null;
+    }
+
+    /**
+     * Number of times the underlying connection has been replaced.
+     */
+    int getReconnects() {
+        return generation;
+    }
+
+    /**
+     * Answers the session lookups Flyway repeats on every connection from a cache shared
+     * by the connections of one Flyway session.
+     */
+    void useFacts(AuroraDSQLSessionFacts facts) {
+        this.facts = facts;
+    }
+
+    boolean isInTransaction() {
+        return inTransaction;
+    }
+
+    /**
+     * Opens an additional, unwrapped connection with the session's credentials. The caller closes it.
+     */
+    Connection openConnection() throws SQLException {
+        try {
+            return opener.get();
+        } catch (RuntimeException e) {
+            throw new SQLException("Unable to connect to Aurora DSQL", "08001", e);
+        }
+    }
+
+    /**
+     * Observes the statements run through a session.
+     *
+     * <p>Plugin features use listeners to follow Flyway's statements without depending on
+     * Flyway internals. Listeners receive the underlying connection, so statements they
+     * run themselves are not observed.</p>
+     */
+    interface Listener {
+
+        /**
+         * Called before a statement runs. Returning false skips the statement, which then
+         * reports no results and no updated rows.
+         */
+        default boolean beforeExecute(Connection connection, String sql) throws SQLException {
+            return true;
+        }
+
+        /**
+         * Called after a statement ran successfully.
+         *
+         * @param rows number of rows the statement changed, or -1 if unknown or a query
+         */
+        default void afterExecute(Connection connection, String sql, long elapsedNanos, long rows)
+                throws SQLException {
+        }
+
+        /**
+         * Called after a statement failed, or with a null statement after a commit failed.
+         */
+        default void afterFailure(Connection connection, String sql, SQLException error) {
+        }
+
+        /**
+         * Called before the current transaction commits, inside that transaction.
+         */
+        default void beforeCommit(Connection connection) throws SQLException {
+        }
+
+        /**
+         * Called after the current transaction committed.
+         */
+        default void afterCommit(Connection connection) throws SQLException {
+        }
+
+        /**
+         * Called after the current transaction rolled back or was lost with its connection.
+         */
+        default void afterRollback() {
+        }
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "createStatement":
+            case "prepareStatement":
+            case "prepareCall":
+                return new StatementHandle(method, args).open();
+            case "setAutoCommit":
+                if (!inTransaction) {
+                    ensureFresh();
+                }
+                call(delegate, method, args);
+                // Setting the current mode again is a no-op and leaves an open transaction alone
+                if (autoCommit != (Boolean) args[0]) {
+                    autoCommit = (Boolean) args[0];
+                    endTransaction();
+                }
+                return null;
+            case "commit":
+                try {
+                    for (Listener listener : listeners) {
+                        listener.beforeCommit(delegate);
+                    }
+                    call(delegate, method, args);
+                } catch (SQLException e) {
+                    broken |= AuroraDSQLErrors.isConnectionFailure(e);
+                    failed(null, e);
+                    notifyRollback();
+                    throw e;
+                } finally {
+                    endTransaction();
+                }
+                for (Listener listener : listeners) {
+                    listener.afterCommit(delegate);
+                }
+                return null;
+            case "rollback":
+                if (args == null) {
+                    try {
+                        return call(delegate, method, null);
+                    } catch (SQLException e) {
+                        if (!AuroraDSQLErrors.isConnectionFailure(e)) {
+                            throw e;
+                        }
+                        // The server discards the transaction when the connection drops
+                        broken = true;
+                        return null;
+                    } finally {
+                        endTransaction();
+                        notifyRollback();
+                    }
+                }
+                return call(delegate, method, args);
+            case "setReadOnly":
+                call(delegate, method, args);
+                readOnly = (Boolean) args[0];
+                return null;
+            case "setTransactionIsolation":
+                call(delegate, method, args);
+                isolation = (Integer) args[0];
+                return null;
+            case "setSchema":
+                call(delegate, method, args);
+                schema = (String) args[0];
+                searchPathChanged = true;
+                return null;
+            case "isClosed":
+                return closed;
+            case "close":
+                closed = true;
+                return call(delegate, method, args);
+            case "equals":
+                return target == args[0];
+            case "hashCode":
+                return System.identityHashCode(target);
+            case "toString":
+                return "AuroraDSQLSession[" + delegate + "]";
+            default:
+                return call(delegate, method, args);
+        }
+    }
+
+    /**
+     * Runs a statement execution, reconnecting first at a transaction boundary and
+     * retrying once after a connection failure when that is safe.
+     */
+    private Object execute(StatementHandle handle, Method method, Object[] args) throws Throwable {
+        String sql = handle.sql(args);
+        if (!inTransaction) {
+            ensureFresh();
+        }
+        if (facts != null && sql != null && method.getReturnType() == ResultSet.class) {
+            ResultSet cached = facts.answer(delegate, sql, searchPathChanged);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        for (Listener listener : listeners) {
+            if (!listener.beforeExecute(delegate, sql)) {
+                handle.batch.clear();
+                return skipped(method);
+            }
+        }
+        handle.refresh();
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = call(handle.delegate, method, args);
+        } catch (SQLException e) {
+            if (!AuroraDSQLErrors.isConnectionFailure(e) || closed) {
+                throw failed(sql, e);
+            }
+            broken = true;
+            if (!canRetry(handle, sql)) {
+                LOG.warning("Lost Aurora DSQL connection during a statement that is not safe to retry: "
+                        + e.getMessage());
+                throw failed(sql, e);
+            }
+            LOG.warning("Lost Aurora DSQL connection (" + e.getMessage() + "), reconnecting and replaying "
+                    + transactionLog.size() + " statements of the current transaction");
+            try {
+                reconnect();
+                for (Execution execution : transactionLog) {
+                    execution.replay(delegate);
+                }
+                handle.refresh();
+                result = call(handle.delegate, method, args);
+            } catch (SQLException retryFailure) {
+                e.addSuppressed(retryFailure);
+                throw failed(sql, e);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        afterExecute(handle, method, args, sql, result);
+        if (!listeners.isEmpty()) {
+            long rows = rows(handle.delegate, result);
+            for (Listener listener : listeners) {
+                listener.afterExecute(delegate, sql, elapsed, rows);
+            }
+        }
+        return result;
+    }
+
+    private SQLException failed(String sql, SQLException error) {
+        for (Listener listener : listeners) {
+            listener.afterFailure(delegate, sql, error);
+        }
+        return error;
+    }
+
+    private static long rows(Statement statement, Object result) {
+        if (result instanceof Integer || result instanceof Long) {
+            return ((Number) result).longValue();
+        }
+        if (result instanceof int[] || result instanceof long[]) {
+            long total = 0;
+            int length = Array.getLength(result);
+            for (int i = 0; i < length; i++) {
+                total += Math.max(0, ((Number) Array.get(result, i)).longValue());
+            }
+            return total;
+        }
+        if (Boolean.FALSE.equals(result)) {
+            try {
+                return statement.getUpdateCount();
+            } catch (SQLException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The result of a statement a listener skipped: nothing returned, nothing updated.
+     */
+    private static Object skipped(Method method) throws SQLException {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == int[].class) {
+            return new int[0];
+        }
+        if (type == long[].class) {
+            return new long[0];
+        }
+        throw new SQLException("Unable to skip " + method.getName() + ": the statement returns results");
+    }
+
+    private void notifyRollback() {
+        for (Listener listener : listeners) {
+            listener.afterRollback();
+        }
+    }
+
+    private boolean canRetry(StatementHandle handle, String sql) {
+        if (handle.callable) {
+            return false;
+        }
+        if (autoCommit) {
+            return sql != null && AuroraDSQLStatement.of(sql).getKind() == AuroraDSQLStatement.Kind.QUERY;
+        }
+        return replayable;
+    }
+
+    private void afterExecute(StatementHandle handle, Method method, Object[] args, String sql, Object result) {
+        lastUsed = System.nanoTime();
+        if (sql != null) {
+            trackParameter(sql);
+            if (facts != null && !searchPathChanged) {
+                searchPathChanged = AuroraDSQLSessionFacts.changesSearchPath(sql);
+            }
+        }
+        if (!autoCommit) {
+            inTransaction = true;
+            // the caller may act on rows read from this connection, which a replay can't reproduce
+            boolean returnedRows = result instanceof ResultSet || Boolean.TRUE.equals(result);
+            if (replayable && transactionLog.size() < MAX_REPLAY_STATEMENTS && !handle.callable && !returnedRows) {
+                transactionLog.add(new Execution(handle, method, args));
+            } else {
+                replayable = false;
+            }
+        }
+        handle.batch.clear();
+    }
+
+    private void endTransaction() {
+        inTransaction = false;
+        replayable = true;
+        transactionLog.clear();
+    }
+
+    private void ensureFresh() throws SQLException {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        String reason = null;
+        if (broken) {
+            reason = "previous connection failure";
+        } else if (now - openedAt > maxAgeNanos) {
+            reason = "connection age limit";
+        } else if (now - lastUsed > idleValidationNanos && !isValid()) {
+            reason = "failed validation after idle period";
+        }
+        if (reason != null) {
+            LOG.info("Reconnecting to Aurora DSQL at transaction boundary (" + reason + ")");
+            reconnect();
+        }
+    }
+
+    private boolean isValid() {
+        try {
+            return delegate.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void reconnect() throws SQLException {
+        Connection fresh;
+        try {
+            fresh = opener.get();
+        } catch (RuntimeException e) {
+            throw new SQLException("Unable to reconnect to Aurora DSQL", "08001", e);
+        }
+        try {
+            restore(fresh);
+        } catch (SQLException | RuntimeException e) {
+            closeQuietly(fresh);
+            throw e;
+        }
+        Connection old = delegate;
+        delegate = fresh;
+        generation++;
+        openedAt = System.nanoTime();
+        lastUsed = openedAt;
+        broken = false;
+        closeQuietly(old);
+    }
+
+    private void restore(Connection connection) throws SQLException {
+        if (readOnly != null) {
+            connection.setReadOnly(readOnly);
+        }
+        if (isolation != null) {
+            connection.setTransactionIsolation(isolation);
+        }
+        if (schema != null) {
+            connection.setSchema(schema);
+        }
+        if (!parameters.isEmpty()) {
+            connection.setAutoCommit(true);
+            try (Statement stmt = connection.createStatement()) {
+                for (String set : parameters.values()) {
+                    stmt.execute(set);
+                }
+            }
+        }
+        connection.setAutoCommit(autoCommit);
+    }
+
+    /**
+     * Remembers session-level {@code SET} statements, such as Flyway's {@code SET search_path},
+     * so they can be applied to a replacement connection.
+     */
+    private void trackParameter(String sql) {
+        String statement = AuroraDSQLStatement.stripLeadingComments(sql).trim();
+        String[] words = statement.split("\\s+", 4);
+        String first = words[0].toUpperCase(Locale.ROOT);
+        if ("RESET".equals(first) && words.length > 1) {
+            if ("ALL".equalsIgnoreCase(words[1])) {
+                parameters.clear();
+            } else {
+                parameters.remove(words[1].toLowerCase(Locale.ROOT));
+            }
+        } else if ("SET".equals(first) && words.length > 1) {
+            int name = "SESSION".equalsIgnoreCase(words[1]) ? 2 : 1;
+            if (name >= words.length || "LOCAL".equalsIgnoreCase(words[1])
+                    || "TRANSACTION".equalsIgnoreCase(words[name])
+                    || "CHARACTERISTICS".equalsIgnoreCase(words[name])) {
+                return;
+            }
+            String parameter = words[name].split("[=\\s]", 2)[0].toLowerCase(Locale.ROOT);
+            parameters.put(parameter, statement);
+        }
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            LOG.fine("Ignoring error while closing " + closeable + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Statement wrapper that remembers how it was created and configured, so it can be
+     * recreated on a replacement connection.
+     */
+    private final class StatementHandle implements InvocationHandler {
+        private final Method factory;
+        private final Object[] factoryArgs;
+        private final boolean callable;
+        private final Map<String, Invocation> settings = new LinkedHashMap<>();
+        private final List<List<Invocation>> batch = new ArrayList<>();
+        private Statement delegate;
+        private int statementGeneration;
+        private boolean statementClosed;
+
+        StatementHandle(Method factory, Object[] factoryArgs) {
+            this.factory = factory;
+            this.factoryArgs = factoryArgs;
+            this.callable = "prepareCall".equals(factory.getName());
+        }
+
+        Object open() throws Throwable {
+            statementGeneration = generation;
+            delegate = (Statement) call(AuroraDSQLSession.this.delegate, factory, factoryArgs);
+            Class<?> type = callable ? CallableStatement.class
+                    : factory.getName().equals("prepareStatement") ? PreparedStatement.class : Statement.class;
+            return Proxy.newProxyInstance(AuroraDSQLSession.class.getClassLoader(), new Class<?>[]{type}, this);
+        }
+
+        /**
+         * Recreates the statement on the current connection if it was replaced.
+         */
+        void refresh() throws Throwable {
+            if (statementGeneration != generation) {
+                Statement stale = delegate;
+                delegate = create(AuroraDSQLSession.this.delegate, settings, batch);
+                statementGeneration = generation;
+                closeQuietly(stale);
+            }
+        }
+
+        Statement create(Connection connection, Map<String, Invocation> withSettings,
+                         List<List<Invocation>> withBatch) throws Throwable {
+            Statement statement = (Statement) call(connection, factory, factoryArgs);
+            for (Invocation setting : withSettings.values()) {
+                setting.apply(statement);
+            }
+            for (List<Invocation> entry : withBatch) {
+                for (Invocation setting : entry) {
+                    setting.apply(statement);
+                }
+            }
+            return statement;
+        }
+
+        String sql(Object[] args) {
+            if (args != null && args.length > 0 && args[0] instanceof String) {
+                return (String) args[0];
+            }
+            return factoryArgs != null && factoryArgs.length > 0 && factoryArgs[0] instanceof String
+                    ? (String) factoryArgs[0]
+                    : null;
+        }
+
+        @Override
+        public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("execute")) {
+                return execute(this, method, args);
+            }
+            switch (name) {
+                case "getConnection":
+                    return proxy;
+                case "close":
+                    statementClosed = true;
+                    return call(delegate, method, args);
+                case "isClosed":
+                    return statementClosed;
+                case "clearParameters":
+                    settings.keySet().removeIf(key -> key.startsWith("#"));
+                    return call(delegate, method, args);
+                case "addBatch":
+                    List<Invocation> entry = new ArrayList<>();
+                    for (Map.Entry<String, Invocation> setting : settings.entrySet()) {
+                        if (setting.getKey().startsWith("#")) {
+                            entry.add(setting.getValue());
+                        }
+                    }
+                    entry.add(new Invocation(method, args));
+                    batch.add(entry);
+                    return call(delegate, method, args);
+                case "clearBatch":
+                    batch.clear();
+                    return call(delegate, method, args);
+                case "equals":
+                    return target == args[0];
+                case "hashCode":
+                    return System.identityHashCode(target);
+                default:
+                    if (name.startsWith("set") && args != null) {
+                        // Parameter setters are keyed by index, statement options by name
+                        boolean parameter = args.length > 1 && args[0] instanceof Integer
+                                && delegate instanceof PreparedStatement;
+                        settings.put(parameter ? "#" + args[0] : name, new Invocation(method, args));
+                    }
+                    return call(delegate, method, args);
+            }
+        }
+    }
+
+    /**
+     * A recorded JDBC method call.
+     */
+    private static final class Invocation {
+        private final Method method;
+        private final Object[] args;
+
+        Invocation(Method method, Object[] args) {
+            this.method = method;
+            this.args = args == null ? null : args.clone();
+        }
+
+        Object apply(Object target) throws Throwable {
+            return call(target, method, args);
+        }
+    }
+
+    /**
+     * A statement execution inside the current transaction, replayable on a new connection.
+     */
+    private static final class Execution {
+        private final StatementHandle handle;
+        private final Map<String, Invocation> settings;
+        private final List<List<Invocation>> batch;
+        private final Invocation execution;
+
+        Execution(StatementHandle handle, Method method, Object[] args) {
+            this.handle = handle;
+            this.settings = new LinkedHashMap<>(handle.settings);
+            this.batch = new ArrayList<>(handle.batch);
+            this.execution = new Invocation(method, args);
+        }
+
+        void replay(Connection connection) throws SQLException {
+            try (Statement statement = handle.create(connection, settings, batch)) {
+                execution.apply(statement);
+            } catch (SQLException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new SQLException("Unable to replay statement after reconnecting", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Session facts that Flyway looks up on every connection, fetched once per Flyway session.
+ *
+ * <p>Flyway's PostgreSQL support asks each new connection for the current user, and later
+ * for the search path and current schema, each in its own round trip. On Aurora DSQL
+ * every connection of a Flyway session authenticates as the same IAM user and starts
+ * with the same search path, so the first of these lookups runs a single combined query
+ * and the answers are reused by all connections of the {@link AuroraDSQLDatabase}.
+ * Role state needs no lookup at all, since {@link AuroraDSQLConnection} never restores
+ * it.</p>
+ *
+ * <p>The search path and current schema are only answered from the cache while a
+ * connection still has its initial search path. Once it changes them, with {@code SET},
+ * {@code set_config} or {@link Connection#setSchema(String)}, its lookups go to the
+ * server again.</p>
+ */
+final class AuroraDSQLSessionFacts {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLSessionFacts.class.getName());
+
+    static final String QUERY =
+            "SELECT current_user, current_setting('search_path'), current_schema(), version()";
+
+    private static final int USER = 0;
+    private static final int SEARCH_PATH = 1;
+    private static final int CURRENT_SCHEMA = 2;
+    private static final int VERSION = 3;
+
+    /**
+     * Lookups answered from the cache, in {@link AuroraDSQLStatement#normalize normalized} form.
+     */
+    private static final Map<String, Integer> LOOKUPS = new HashMap<>();
+
+    static {
+        LOOKUPS.put("select current_user", USER);
+        LOOKUPS.put("select session_user", USER);
+        LOOKUPS.put("show search_path", SEARCH_PATH);
+        LOOKUPS.put("select current_setting('search_path')", SEARCH_PATH);
+        LOOKUPS.put("select current_schema", CURRENT_SCHEMA);
+        LOOKUPS.put("select current_schema()", CURRENT_SCHEMA);
+        LOOKUPS.put("select version()", VERSION);
+    }
+
+    private volatile String[] values;
+
+    /**
+     * Answers a session lookup from the cache, fetching all facts on first use.
+     *
+     * @param connection        connection to fetch the facts on, if they aren't cached yet
+     * @param searchPathChanged whether the connection no longer has its initial search path
+     * @return a one-row result, or null if the statement must run on the server
+     */
+    ResultSet answer(Connection connection, String sql, boolean searchPathChanged) throws SQLException {
+        Integer fact = LOOKUPS.get(AuroraDSQLStatement.normalize(sql).trim());
+        if (fact == null) {
+            return null;
+        }
+        String[] cached = values;
+        if (searchPathChanged && (cached == null || fact == SEARCH_PATH || fact == CURRENT_SCHEMA)) {
+            return null;
+        }
+        if (cached == null) {
+            cached = load(connection);
+        }
+        return resultSet(cached[fact]);
+    }
+
+    private synchronized String[] load(Connection connection) throws SQLException {
+        if (values == null) {
+            long start = System.nanoTime();
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery(QUERY)) {
+                if (!rs.next()) {
+                    throw new SQLException("No result for session facts query");
+                }
+                values = new String[]{rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)};
+            }
+            LOG.fine("Fetched session facts in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        return values;
+    }
+
+    /**
+     * Whether a statement may change the search path or current schema of its connection.
+     */
+    static boolean changesSearchPath(String sql) {
+        String normalized = AuroraDSQLStatement.normalize(sql).trim();
+        if (normalized.startsWith("reset all") || normalized.startsWith("discard ")) {
+            return true;
+        }
+        return normalized.contains("search_path")
+                && (normalized.startsWith("set ") || normalized.startsWith("reset ")
+                || normalized.contains("set_config("));
+    }
+
+    /**
+     * A read-only result holding one row with a single text column.
+     */
+    private static ResultSet resultSet(String value) {
+        boolean[] state = new boolean[3]; // before first row, on the row, closed
+        state[0] = true;
+        return (ResultSet) Proxy.newProxyInstance(AuroraDSQLSessionFacts.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, (target, method, args) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            state[1] = state[0];
+                            state[0] = false;
+                            return state[1];
+                        case "getString":
+                        case "getObject":
+                            if (!state[1]) {
+                                throw new SQLException("No current row");
+                            }
+                            return value;
+                        case "wasNull":
+                            return value == null;
+                        case "getMetaData":
+                            return metaData();
+                        case "close":
+                            state[2] = true;
+                            return null;
+                        case "isClosed":
+                            return state[2];
+                        case "getStatement":
+                            return null;
+                        case "getWarnings":
+                            return null;
+                        case "clearWarnings":
+                            return null;
+                        case "equals":
+                            return target == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(target);
+                        case "toString":
+                            return "AuroraDSQLSessionFacts result";
+                        default:
+                            throw new SQLException("Unsupported on a cached session fact: " + method.getName());
+                    }
+                });
+    }
+
+    private static ResultSetMetaData metaData() {
+        return (ResultSetMetaData) Proxy.newProxyInstance(AuroraDSQLSessionFacts.class.getClassLoader(),
+                new Class<?>[]{ResultSetMetaData.class}, (target, method, args) -> {
+                    switch (method.getName()) {
+                        case "getColumnCount":
+                            return 1;
+                        case "getColumnLabel":
+                        case "getColumnName":
+                            return "value";
+                        case "getColumnType":
+                            return Types.VARCHAR;
+                        case "getColumnClassName":
+                            return String.class.getName();
+                        default:
+                            throw new SQLException("Unsupported on a cached session fact: " + method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Plugin settings read from JVM system properties or environment variables.
+ *
+ * <p>Flyway constructs the plugin classes itself, so settings can't be passed in
+ * programmatically. A setting named {@code concurrency.max} is read from the system
+ * property {@code flyway.dsql.concurrency.max} or, if that is unset, the environment
+ * variable {@code FLYWAY_DSQL_CONCURRENCY_MAX}.</p>
+ */
+final class AuroraDSQLSettings {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLSettings.class.getName());
+
+    static final String PREFIX = "flyway.dsql.";
+
+    private AuroraDSQLSettings() {
+    }
+
+    static String get(String name, String defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null) {
+            value = System.getenv(toEnvironmentVariable(name));
+        }
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    static boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    static long getLong(String name, long defaultValue) {
+        String value = get(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOG.warning("Ignoring invalid value '" + value + "' for " + PREFIX + name);
+            return defaultValue;
+        }
+    }
+
+    static String toEnvironmentVariable(String name) {
+        return (PREFIX + name).replace('.', '_').replace('-', '_').toUpperCase(Locale.ROOT);
+    }
+}
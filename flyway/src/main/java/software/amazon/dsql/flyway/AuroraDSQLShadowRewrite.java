@@ -0,0 +1,586 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.configuration.Configuration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Rewrites a table into a new shape by copying it into a shadow table, for changes that
+ * Aurora DSQL can't make with {@code ALTER TABLE}, such as changing a column type or the
+ * primary key.
+ *
+ * <p>The rewrite runs in steps, each recorded in a checkpoint table so that a failed or
+ * interrupted rewrite resumes where it stopped:</p>
+ * <ol>
+ *   <li>Create {@code <table>_shadow} with the new definition, including its inline
+ *   primary key.</li>
+ *   <li>Copy the rows in ranges of the key column, each range in its own transaction
+ *   that also records the range as done. Ranges are copied in parallel on separate
+ *   connections when the connection comes from the plugin. Copies use
+ *   {@code ON CONFLICT DO NOTHING}, so a range that is copied twice is harmless.</li>
+ *   <li>Catch up on rows that changed during the copy. With
+ *   {@link #changedSince(String)}, only rows whose change column is at or after the
+ *   start of the copy are copied again, and rows deleted from the table are removed
+ *   from the shadow. Without it, every range of the shadow is replaced.</li>
+ *   <li>Switch over. By default the table is renamed to {@code <table>_old}, a final
+ *   catch-up copies the writes made since the previous one, and the shadow is renamed
+ *   to the table. The table is unavailable only for the final catch-up. With
+ *   {@link #switchoverView(String)}, readers instead use a view that is dropped and
+ *   created again to read from the shadow, since PostgreSQL can't replace a view whose
+ *   column types change. The view is unavailable between the two, and the original
+ *   table is left in place.</li>
+ * </ol>
+ *
+ * <p>The key column must exist in both tables. A range holds at most
+ * {@link #chunkSize(int) chunkSize} rows, so that replacing it stays within DSQL's
+ * per-transaction row limit. The old table is kept, and can be dropped in a later
+ * migration; a rewrite whose {@code <table>_old} still exists fails before it starts.
+ * Checkpoints are kept per {@link #id(String) id}, so a later rewrite of the same table
+ * doesn't find the steps of an earlier one. Use {@link AuroraDSQLShadowRewriteMigration} to run a rewrite as a Flyway
+ * Java migration.</p>
+ *
+ * <p>Range transactions are admitted through the cluster's
+ * {@link AuroraDSQLAdaptiveLimiter}. Inside a migration, which already holds one of its
+ * permits, they take a permit only when one is free instead of waiting for it.</p>
+ */
+public class AuroraDSQLShadowRewrite {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLShadowRewrite.class.getName());
+
+    static final String TABLE_SUFFIX = "_rewrites";
+    static final String SHADOW_SUFFIX = "_shadow";
+    static final String OLD_SUFFIX = "_old";
+    static final int DEFAULT_CHUNK_SIZE = 1000;
+    static final int DEFAULT_PARALLELISM = 4;
+    /** Replacing a range deletes and inserts up to this many rows each, within DSQL's 3,000-row limit. */
+    static final int MAX_CHUNK_SIZE = 1500;
+    static final int MAX_ATTEMPTS = 5;
+
+    static final String CREATED = "created";
+    static final String COPY_STARTED = "copy-started";
+    static final String RANGE = "range";
+    static final String COPIED = "copied";
+    static final String SWITCHED_SOURCE = "source-renamed";
+    static final String VIEW_DROPPED = "view-dropped";
+    static final String DONE = "done";
+
+    private static final String RANGE_PLACEHOLDER = "${range}";
+
+    private final String table;
+    private final String key;
+    private final String definition;
+    private String rewrite;
+    private final Map<String, String> expressions = new HashMap<>();
+    private String changeColumn;
+    private String view;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private String checkpointTable = quote(AuroraDSQLHistoryShards.historyTable(
+            AuroraDSQLBaselineGenerator.DEFAULT_HISTORY_TABLE) + TABLE_SUFFIX);
+
+    /**
+     * @param table      table to rewrite, in the connection's current schema
+     * @param key        column present in both tables, used to split the copy into ranges
+     * @param definition column and constraint list of the new table, including an inline primary key
+     */
+    public AuroraDSQLShadowRewrite(String table, String key, String definition) {
+        this.table = table;
+        this.key = key;
+        this.definition = definition;
+        this.rewrite = table;
+    }
+
+    /**
+     * Tells this rewrite apart from other rewrites of the same table, for example by the
+     * version of the migration that runs it. Without an id, checkpoints are kept by table.
+     */
+    public AuroraDSQLShadowRewrite id(String id) {
+        this.rewrite = id + ":" + table;
+        return this;
+    }
+
+    /**
+     * Fills a column of the new table with an expression over the old table's columns,
+     * such as {@code amount::numeric(12,2)}. Other columns are copied by name.
+     */
+    public AuroraDSQLShadowRewrite map(String column, String expression) {
+        expressions.put(column, expression);
+        return this;
+    }
+
+    /**
+     * Names a timestamp column of the old table that is set whenever a row is written, so
+     * the catch-up only copies rows that changed during the copy.
+     */
+    public AuroraDSQLShadowRewrite changedSince(String column) {
+        this.changeColumn = column;
+        return this;
+    }
+
+    /**
+     * Switches readers over by redefining this view to read from the shadow table, rather
+     * than by renaming the tables.
+     */
+    public AuroraDSQLShadowRewrite switchoverView(String view) {
+        this.view = view;
+        return this;
+    }
+
+    public AuroraDSQLShadowRewrite chunkSize(int chunkSize) {
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE + ": " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public AuroraDSQLShadowRewrite parallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * Sets the quoted, possibly schema-qualified name of the checkpoint table. By default it
+     * sits next to Flyway's default schema history table in the current schema.
+     */
+    public AuroraDSQLShadowRewrite checkpointTable(String checkpointTable) {
+        this.checkpointTable = checkpointTable;
+        return this;
+    }
+
+    /**
+     * Keeps the checkpoint table next to the schema history table of a Flyway configuration.
+     */
+    public AuroraDSQLShadowRewrite checkpointTable(Configuration configuration) {
+        return checkpointTable(AuroraDSQLCheckpoints.tableName(configuration, TABLE_SUFFIX));
+    }
+
+    /**
+     * Runs the rewrite, or resumes it from its last checkpoint.
+     */
+    public void run(Connection connection) throws SQLException {
+        boolean originalAutoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(true);
+            run(connection, AuroraDSQLAdaptiveLimiter.forEndpoint(connection.getMetaData().getURL()));
+        } finally {
+            connection.setAutoCommit(originalAutoCommit);
+        }
+    }
+
+    void run(Connection connection, AuroraDSQLAdaptiveLimiter limiter) throws SQLException {
+        createTable(connection, checkpointTable);
+        Map<String, String> state = load(connection);
+        if (state.containsKey(DONE)) {
+            LOG.info("Shadow rewrite " + rewrite + " already completed");
+            return;
+        }
+        String shadow = table + SHADOW_SUFFIX;
+        String old = table + OLD_SUFFIX;
+        if (state.containsKey(SWITCHED_SOURCE) && !exists(connection, shadow)) {
+            // Stopped after the shadow was renamed, before recording it
+            record(connection, DONE, "", "");
+            return;
+        }
+        if (!state.containsKey(CREATED)) {
+            if (view == null && exists(connection, old)) {
+                throw new SQLException("Unable to rewrite " + table + ": " + old
+                        + " is left from an earlier rewrite; drop it before rewriting the table again");
+            }
+            execute(connection, "CREATE TABLE IF NOT EXISTS " + quote(shadow) + " (" + definition + ")");
+            record(connection, CREATED, "", "");
+        }
+        List<String> columns = columns(connection, shadow);
+        if (columns.isEmpty()) {
+            throw new SQLException("Unable to read the columns of shadow table " + shadow);
+        }
+        String since = state.get(COPY_STARTED);
+        if (since == null) {
+            since = now(connection);
+            record(connection, COPY_STARTED, "", since);
+        }
+
+        if (!state.containsKey(COPIED)) {
+            String copy = copySql(table, shadow, columns, null) + " ON CONFLICT DO NOTHING";
+            List<Object[]> ranges = ranges(connection, table);
+            List<Object[]> pending = new ArrayList<>();
+            for (Object[] range : ranges) {
+                if (!state.containsKey(RANGE + "|" + rangeId(range))) {
+                    pending.add(range);
+                }
+            }
+            LOG.info("Copying " + table + " into " + shadow + ": " + pending.size() + " of " + ranges.size()
+                    + " key ranges left");
+            forEachRange(connection, limiter, pending, (c, range) -> {
+                update(c, copy.replace(RANGE_PLACEHOLDER, rangePredicate(range, "")), range);
+                record(c, RANGE, rangeId(range), "");
+            });
+            record(connection, COPIED, "", "");
+        }
+
+        if (view != null) {
+            if (!state.containsKey(VIEW_DROPPED)) {
+                catchUp(connection, limiter, table, shadow, columns, since);
+                execute(connection, "DROP VIEW IF EXISTS " + quote(view));
+                record(connection, VIEW_DROPPED, "", "");
+            }
+            // Readers get no view until it is created again
+            if (!exists(connection, view)) {
+                execute(connection, "CREATE VIEW " + quote(view) + " AS SELECT "
+                        + String.join(", ", quoteAll(columns)) + " FROM " + quote(shadow));
+            }
+            catchUp(connection, limiter, table, shadow, columns, since);
+            record(connection, DONE, "", "");
+            LOG.info("Switched view " + view + " from " + table + " to " + shadow);
+            return;
+        }
+
+        if (!state.containsKey(SWITCHED_SOURCE)) {
+            boolean renamed = exists(connection, old);
+            if (renamed && !exists(connection, table)) {
+                // Stopped after the table was renamed, before recording it
+                LOG.info("Resuming the switchover of " + table + " after its rename to " + old);
+            } else if (renamed) {
+                throw new SQLException("Unable to switch " + table + " over: " + old + " already exists");
+            } else {
+                catchUp(connection, limiter, table, shadow, columns, since);
+                execute(connection, "ALTER TABLE " + quote(table) + " RENAME TO " + quote(old));
+            }
+            record(connection, SWITCHED_SOURCE, "", "");
+        }
+        // The table is unavailable from the first rename until the second
+        catchUp(connection, limiter, old, shadow, columns, since);
+        execute(connection, "ALTER TABLE " + quote(shadow) + " RENAME TO " + quote(table));
+        record(connection, DONE, "", "");
+        LOG.info("Rewrote " + table + "; the previous table is kept as " + old);
+    }
+
+    /**
+     * Copies again the rows that changed since the copy started, and removes deleted rows.
+     */
+    private void catchUp(Connection connection, AuroraDSQLAdaptiveLimiter limiter, String source, String shadow,
+                         List<String> columns, String since) throws SQLException {
+        List<Object[]> ranges = ranges(connection, source);
+        if (changeColumn == null) {
+            String delete = "DELETE FROM " + quote(shadow) + " WHERE " + RANGE_PLACEHOLDER;
+            String copy = copySql(source, shadow, columns, null);
+            forEachRange(connection, limiter, ranges, (c, range) -> {
+                update(c, delete.replace(RANGE_PLACEHOLDER, rangePredicate(range, "")), range);
+                update(c, copy.replace(RANGE_PLACEHOLDER, rangePredicate(range, "")), range);
+            });
+        } else {
+            String changed = quote(changeColumn) + " >= CAST('" + since.replace("'", "''") + "' AS TIMESTAMPTZ)";
+            String delete = "DELETE FROM " + quote(shadow) + " WHERE " + quote(key) + " IN (SELECT " + quote(key)
+                    + " FROM " + quote(source) + " WHERE " + RANGE_PLACEHOLDER + " AND " + changed + ")";
+            String copy = copySql(source, shadow, columns, changed);
+            String vanished = "DELETE FROM " + quote(shadow) + " s WHERE " + RANGE_PLACEHOLDER
+                    + " AND NOT EXISTS (SELECT 1 FROM " + quote(source) + " o WHERE o." + quote(key)
+                    + " = s." + quote(key) + ")";
+            forEachRange(connection, limiter, ranges, (c, range) -> {
+                update(c, delete.replace(RANGE_PLACEHOLDER, rangePredicate(range, "")), range);
+                update(c, copy.replace(RANGE_PLACEHOLDER, rangePredicate(range, "")), range);
+            });
+            forEachRange(connection, limiter, ranges,
+                    (c, range) -> update(c, vanished.replace(RANGE_PLACEHOLDER, rangePredicate(range, "s.")), range));
+        }
+        LOG.info("Caught up " + shadow + " with " + source + " (" + ranges.size() + " key ranges)");
+    }
+
+    String copySql(String source, String shadow, List<String> columns, String condition) {
+        List<String> values = new ArrayList<>();
+        for (String column : columns) {
+            values.add(expressions.getOrDefault(column, quote(column)));
+        }
+        return "INSERT INTO " + quote(shadow) + " (" + String.join(", ", quoteAll(columns)) + ") SELECT "
+                + String.join(", ", values) + " FROM " + quote(source) + " WHERE " + RANGE_PLACEHOLDER
+                + (condition == null ? "" : " AND " + condition);
+    }
+
+    /**
+     * Splits the key space of a table into ranges of at most {@code chunkSize} rows. The
+     * first range has no lower bound and the last no upper bound.
+     */
+    List<Object[]> ranges(Connection connection, String source) throws SQLException {
+        List<Object[]> ranges = new ArrayList<>();
+        Object lower = null;
+        while (true) {
+            Object upper;
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT " + quote(key) + " FROM " + quote(source)
+                    + (lower == null ? "" : " WHERE " + quote(key) + " > ?") + " ORDER BY " + quote(key)
+                    + " LIMIT 1 OFFSET " + (chunkSize - 1))) {
+                if (lower != null) {
+                    stmt.setObject(1, lower);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    upper = rs.next() ? rs.getObject(1) : null;
+                }
+            }
+            ranges.add(new Object[]{lower, upper});
+            if (upper == null) {
+                return ranges;
+            }
+            lower = upper;
+        }
+    }
+
+    private String rangePredicate(Object[] range, String alias) {
+        String column = alias + quote(key);
+        if (range[0] == null && range[1] == null) {
+            return "TRUE";
+        }
+        if (range[0] == null) {
+            return column + " <= ?";
+        }
+        return range[1] == null ? column + " > ?" : column + " > ? AND " + column + " <= ?";
+    }
+
+    private static String rangeId(Object[] range) {
+        return (range[0] == null ? "" : range[0].toString()) + ".." + (range[1] == null ? "" : range[1].toString());
+    }
+
+    private static void update(Connection connection, String sql, Object[] range) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            int index = 1;
+            for (Object bound : range) {
+                if (bound != null) {
+                    stmt.setObject(index++, bound);
+                }
+            }
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Runs work for each range in its own transaction, on up to {@code parallelism}
+     * connections when more connections can be opened. Those connections use the
+     * migration connection's schema, since the table names aren't qualified.
+     */
+    private void forEachRange(Connection connection, AuroraDSQLAdaptiveLimiter limiter, List<Object[]> ranges,
+                              RangeWork work) throws SQLException {
+        AuroraDSQLSession session = AuroraDSQLSession.of(connection);
+        int workers = session == null ? 1 : Math.min(parallelism, ranges.size());
+        Queue<Object[]> queue = new ConcurrentLinkedQueue<>(ranges);
+        // Under Flyway's migration lock this thread already holds a permit of the same limiter
+        boolean nested = limiter.isHeldByCurrentThread();
+        if (workers <= 1) {
+            drain(connection, limiter, nested, queue, work);
+            return;
+        }
+        String schema = currentSchema(connection);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "dsql-rewrite-" + table);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(() -> {
+                    try (Connection worker = session.openConnection()) {
+                        worker.setAutoCommit(true);
+                        if (schema != null) {
+                            execute(worker, "SET search_path = " + quote(schema));
+                        }
+                        drain(worker, limiter, nested, queue, work);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while rewriting " + table, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Unable to rewrite " + table, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void drain(Connection connection, AuroraDSQLAdaptiveLimiter limiter, boolean nested,
+                              Queue<Object[]> queue, RangeWork work) throws SQLException {
+        Object[] range;
+        while ((range = queue.poll()) != null) {
+            Object[] current = range;
+            transaction(connection, limiter, nested, c -> work.run(c, current));
+        }
+    }
+
+    /**
+     * Runs work in a transaction, retrying OCC conflicts.
+     *
+     * @param nested whether the rewrite runs under a permit of the limiter, so it must not wait for another
+     */
+    private static void transaction(Connection connection, AuroraDSQLAdaptiveLimiter limiter, boolean nested,
+                                    Work work) throws SQLException {
+        Callable<Void> step = () -> {
+            connection.setAutoCommit(false);
+            try {
+                work.run(connection);
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            return null;
+        };
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (nested) {
+                    limiter.executeNested(step);
+                } else {
+                    limiter.execute(step);
+                }
+                return;
+            } catch (SQLException e) {
+                if (!AuroraDSQLErrors.isConflict(e) || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                LOG.fine("Retrying key range after OCC conflict (attempt " + attempt + ")");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while copying key range", e);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SQLException("Unable to copy key range", e);
+            }
+        }
+    }
+
+    static void createTable(Connection connection, String table) throws SQLException {
+        execute(connection, "CREATE TABLE IF NOT EXISTS " + table + " (\n"
+                + "    \"rewrite\" VARCHAR(256) NOT NULL,\n"
+                + "    \"step\" VARCHAR(64) NOT NULL,\n"
+                + "    \"item\" VARCHAR(2000) NOT NULL,\n"
+                + "    \"value\" VARCHAR(2000) NOT NULL,\n"
+                + "    \"installed_on\" TIMESTAMP NOT NULL DEFAULT now(),\n"
+                + "    PRIMARY KEY (\"rewrite\", \"step\", \"item\")\n"
+                + ")");
+    }
+
+    /**
+     * Reads the recorded steps, keyed by step, or by step and item for key ranges.
+     */
+    private Map<String, String> load(Connection connection) throws SQLException {
+        Map<String, String> state = new LinkedHashMap<>();
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT \"step\", \"item\", \"value\" FROM "
+                + checkpointTable + " WHERE \"rewrite\" = ?")) {
+            stmt.setString(1, rewrite);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String step = rs.getString(1);
+                    state.put(step.equals(RANGE) ? step + "|" + rs.getString(2) : step, rs.getString(3));
+                }
+            }
+        }
+        return state;
+    }
+
+    private void record(Connection connection, String step, String item, String value) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO " + checkpointTable
+                + " (\"rewrite\", \"step\", \"item\", \"value\") VALUES (?, ?, ?, ?) ON CONFLICT DO NOTHING")) {
+            stmt.setString(1, rewrite);
+            stmt.setString(2, step);
+            stmt.setString(3, item);
+            stmt.setString(4, value);
+            stmt.executeUpdate();
+        }
+    }
+
+    private static List<String> columns(Connection connection, String table) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT column_name FROM information_schema.columns"
+                + " WHERE table_schema = current_schema() AND table_name = ? ORDER BY ordinal_position")) {
+            stmt.setString(1, table);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    columns.add(rs.getString(1));
+                }
+            }
+        }
+        return columns;
+    }
+
+    private static boolean exists(Connection connection, String table) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT 1 FROM information_schema.tables"
+                + " WHERE table_schema = current_schema() AND table_name = ?")) {
+            stmt.setString(1, table);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static String currentSchema(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT current_schema()")) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    private static String now(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT now()::text")) {
+            if (!rs.next()) {
+                throw new SQLException("Unable to read the current time");
+            }
+            return rs.getString(1);
+        }
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        LOG.fine("Executing: " + sql);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private static List<String> quoteAll(List<String> identifiers) {
+        List<String> quoted = new ArrayList<>();
+        for (String identifier : identifiers) {
+            quoted.add(quote(identifier));
+        }
+        return quoted;
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private interface Work {
+        void run(Connection connection) throws SQLException;
+    }
+
+    private interface RangeWork {
+        void run(Connection connection, Object[] range) throws SQLException;
+    }
+}
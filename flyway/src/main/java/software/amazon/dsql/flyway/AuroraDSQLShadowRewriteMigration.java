@@ -0,0 +1,50 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+/**
+ * Base class for Java migrations that rewrite a table through a shadow table.
+ *
+ * <p>Subclasses describe the rewrite, and the migration runs it with its checkpoints
+ * kept in {@code <history table>_rewrites}, next to the schema history table. If the
+ * migration fails, run {@code flyway repair} and migrate again to resume the rewrite.
+ * The checkpoints are kept under the migration's version, so later migrations can
+ * rewrite the same table again.</p>
+ *
+ * <pre>
+ * public class V12__Widen_order_amount extends AuroraDSQLShadowRewriteMigration {
+ *     protected AuroraDSQLShadowRewrite rewrite() {
+ *         return new AuroraDSQLShadowRewrite("orders", "id",
+ *                 "id UUID PRIMARY KEY, amount NUMERIC(18,2) NOT NULL, updated_at TIMESTAMPTZ")
+ *                 .map("amount", "amount::numeric(18,2)")
+ *                 .changedSince("updated_at");
+ *     }
+ * }
+ * </pre>
+ */
+public abstract class AuroraDSQLShadowRewriteMigration extends BaseJavaMigration {
+
+    /**
+     * Describes the rewrite to run.
+     */
+    protected abstract AuroraDSQLShadowRewrite rewrite();
+
+    @Override
+    public boolean canExecuteInTransaction() {
+        // Each step commits on its own, and DSQL can't mix the DDL and DML steps anyway
+        return false;
+    }
+
+    @Override
+    public void migrate(Context context) throws Exception {
+        rewrite()
+                .id(getVersion() == null ? getDescription() : getVersion().getVersion())
+                .checkpointTable(context.getConfiguration())
+                .run(context.getConnection());
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.callback.Callback;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Flyway callback that captures the query plan of slow DML statements in migrations.
+ *
+ * <p>Every statement of a migration is timed. When a DML statement takes longer than
+ * {@code slow-statement.threshold-ms}, the callback runs {@code EXPLAIN} for it and logs
+ * the plan with the timing and the number of affected rows. Each capture is also written
+ * as one JSON line to {@code slow-statement.file}, if set, so slow backfills and deletes
+ * can be diagnosed from the first run.</p>
+ *
+ * <p>With {@code slow-statement.analyze} enabled, the callback also runs
+ * {@code EXPLAIN ANALYZE} in a transaction that is rolled back. That executes the
+ * statement a second time, so it is off by default, and it only happens for statements
+ * that ran in autocommit mode. Parameterized statements are explained as a generic
+ * plan. Statements inside an explicit transaction are explained on a separate
+ * connection in the same schema, because a failed {@code EXPLAIN} would abort the
+ * migration's transaction.</p>
+ *
+ * <p>Register it with {@code Flyway.configure().callbacks(new AuroraDSQLSlowStatementLog())}.</p>
+ */
+public class AuroraDSQLSlowStatementLog implements Callback {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLSlowStatementLog.class.getName());
+
+    static final long DEFAULT_THRESHOLD_MILLIS = 1000;
+
+    private static final Pattern NUMBERED_PARAMETER = Pattern.compile("\\$\\d+");
+
+    private final long thresholdNanos;
+    private final boolean analyze;
+    private final Path file;
+    private final List<String> entries = Collections.synchronizedList(new ArrayList<>());
+    private AuroraDSQLSession session;
+    private Capture capture;
+
+    /**
+     * Creates the callback from the {@code slow-statement.*} settings.
+     */
+    public AuroraDSQLSlowStatementLog() {
+        this(AuroraDSQLSettings.getLong("slow-statement.threshold-ms", DEFAULT_THRESHOLD_MILLIS),
+                AuroraDSQLSettings.getBoolean("slow-statement.analyze", false),
+                file(AuroraDSQLSettings.get("slow-statement.file", null)));
+    }
+
+    /**
+     * @param thresholdMillis DML statements slower than this are captured
+     * @param analyze         whether to also run {@code EXPLAIN ANALYZE} in a rolled-back transaction
+     * @param file            file to append JSON lines to, or null to only log
+     */
+    public AuroraDSQLSlowStatementLog(long thresholdMillis, boolean analyze, Path file) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.analyze = analyze;
+        this.file = file;
+    }
+
+    private static Path file(String path) {
+        return path == null ? null : Paths.get(path);
+    }
+
+    @Override
+    public boolean supports(Event event, Context context) {
+        return event == Event.BEFORE_EACH_MIGRATE
+                || event == Event.AFTER_EACH_MIGRATE
+                || event == Event.AFTER_EACH_MIGRATE_ERROR;
+    }
+
+    @Override
+    public boolean canHandleInTransaction(Event event, Context context) {
+        return true;
+    }
+
+    @Override
+    public void handle(Event event, Context context) {
+        if (event == Event.BEFORE_EACH_MIGRATE) {
+            session = AuroraDSQLSession.of(context.getConnection());
+            if (session == null) {
+                LOG.warning("Slow statement capture needs the Aurora DSQL session wrapper"
+                        + " (flyway.dsql.reconnect.enabled)");
+                return;
+            }
+            capture = new Capture(context.getMigrationInfo());
+            session.addListener(capture);
+        } else if (capture != null) {
+            session.removeListener(capture);
+            capture = null;
+        }
+    }
+
+    @Override
+    public String getCallbackName() {
+        return "Aurora DSQL slow statement log";
+    }
+
+    /**
+     * The JSON lines captured so far.
+     */
+    public List<String> getEntries() {
+        synchronized (entries) {
+            return new ArrayList<>(entries);
+        }
+    }
+
+    private void record(Map<String, Object> entry) {
+        String json = AuroraDSQLJson.write(entry);
+        entries.add(json);
+        if (file == null) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                Files.write(file, (json + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            LOG.warning("Unable to write slow statement log " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs {@code EXPLAIN} for a statement and returns the plan, one line per row. A statement
+     * with JDBC or numbered parameters is explained as a generic plan.
+     */
+    static String explain(Connection connection, String sql, boolean analyze) throws SQLException {
+        String parameterized = numberParameters(sql);
+        boolean generic = !parameterized.equals(sql) || NUMBERED_PARAMETER.matcher(sql).find();
+        String options = analyze ? "(ANALYZE)" : generic ? "(GENERIC_PLAN)" : "";
+        StringBuilder plan = new StringBuilder();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("EXPLAIN " + (options.isEmpty() ? "" : options + " ") + parameterized)) {
+            while (rs.next()) {
+                if (plan.length() > 0) {
+                    plan.append('\n');
+                }
+                plan.append(rs.getString(1));
+            }
+        }
+        return plan.toString();
+    }
+
+    /**
+     * Runs {@code EXPLAIN} on a new connection in the schema of the given one, leaving the
+     * transaction on the given connection alone.
+     */
+    private String explainSeparately(Connection connection, String sql) throws SQLException {
+        AuroraDSQLSession current = session;
+        if (current == null) {
+            return null;
+        }
+        String schema;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT current_schema()")) {
+            schema = rs.next() ? rs.getString(1) : null;
+        }
+        try (Connection separate = current.openConnection()) {
+            separate.setAutoCommit(true);
+            if (schema != null) {
+                try (Statement stmt = separate.createStatement()) {
+                    stmt.execute("SET search_path = \"" + schema.replace("\"", "\"\"") + "\"");
+                }
+            }
+            return explain(separate, sql, false);
+        }
+    }
+
+    /**
+     * Rewrites JDBC {@code ?} parameters as {@code $1}, {@code $2}, ... outside quoted text.
+     */
+    static String numberParameters(String sql) {
+        StringBuilder result = new StringBuilder(sql.length());
+        int parameter = 0;
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '?') {
+                result.append('$').append(++parameter);
+                continue;
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Times the statements of one running migration.
+     */
+    final class Capture implements AuroraDSQLSession.Listener {
+        private final String script;
+        private final String version;
+        private int ordinal;
+
+        Capture(MigrationInfo migration) {
+            this.script = migration == null ? null : migration.getScript();
+            this.version = migration == null || migration.getVersion() == null
+                    ? null : migration.getVersion().getVersion();
+        }
+
+        @Override
+        public boolean beforeExecute(Connection connection, String sql) {
+            ordinal++;
+            return true;
+        }
+
+        @Override
+        public void afterExecute(Connection connection, String sql, long elapsedNanos, long rows)
+                throws SQLException {
+            if (elapsedNanos < thresholdNanos || sql == null || !AuroraDSQLStatement.of(sql).isDml()) {
+                return;
+            }
+            boolean autoCommit = connection.getAutoCommit();
+            String plan;
+            try {
+                plan = autoCommit ? explain(connection, sql, false) : explainSeparately(connection, sql);
+            } catch (SQLException e) {
+                plan = "unavailable: " + e.getMessage();
+            }
+            String analyzed = null;
+            if (analyze && autoCommit) {
+                try {
+                    connection.setAutoCommit(false);
+                    analyzed = explain(connection, sql, true);
+                } catch (SQLException e) {
+                    analyzed = "unavailable: " + e.getMessage();
+                } finally {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            }
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("timestamp", Instant.now().toString());
+            entry.put("migration", script);
+            entry.put("version", version);
+            entry.put("statement", ordinal);
+            entry.put("elapsed_ms", elapsedMillis);
+            entry.put("rows", rows);
+            entry.put("sql", sql);
+            entry.put("plan", plan);
+            if (analyzed != null) {
+                entry.put("analyze", analyzed);
+            }
+            record(entry);
+            LOG.warning("Statement " + ordinal + " of " + script + " took " + elapsedMillis + " ms and changed "
+                    + rows + " rows" + (plan == null ? "" : ":\n" + plan));
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single SQL statement from a migration script, classified by how Aurora DSQL
+ * treats it transactionally.
+ *
+ * <p>DSQL allows one DDL statement per transaction and does not allow DDL and DML
+ * in the same transaction. The {@link Kind} of a statement is therefore enough to
+ * work out how many transactions a script needs.</p>
+ */
+public final class AuroraDSQLStatement {
+
+    /**
+     * Transactional category of a statement.
+     */
+    public enum Kind {
+        /** Schema change - always runs in its own transaction. */
+        DDL,
+        /** Data change - consecutive DML statements can share a transaction. */
+        DML,
+        /** Read-only statement. */
+        QUERY,
+        /** Session or transaction control (SET, BEGIN, ANALYZE, ...). */
+        OTHER
+    }
+
+    private static final Pattern ASYNC_INDEX = Pattern.compile(
+            "^CREATE\\s+(UNIQUE\\s+)?INDEX\\s+ASYNC\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SYNC_INDEX = Pattern.compile(
+            "^CREATE\\s+(UNIQUE\\s+)?INDEX\\s+(?!ASYNC\\b)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern WRITING_CTE = Pattern.compile(
+            "\\b(INSERT|UPDATE|DELETE)\\b", Pattern.CASE_INSENSITIVE);
+    private static final String NAME = "(?:\"(?:[^\"]|\"\")+\"|[\\w$]+)";
+    private static final Pattern TARGET_TABLE = Pattern.compile("^(?:"
+            + "INSERT\\s+INTO|UPDATE(?:\\s+ONLY)?|DELETE\\s+FROM(?:\\s+ONLY)?|MERGE\\s+INTO|COPY"
+            + "|TRUNCATE(?:\\s+TABLE)?(?:\\s+ONLY)?"
+            + "|(?:ALTER|DROP)\\s+TABLE(?:\\s+IF\\s+EXISTS)?(?:\\s+ONLY)?"
+            + "|CREATE\\s+TABLE(?:\\s+IF\\s+NOT\\s+EXISTS)?"
+            + "|CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+(?:ASYNC\\s+)?(?:IF\\s+NOT\\s+EXISTS\\s+)?(?:" + NAME + "\\s+)?"
+            + "ON(?:\\s+ONLY)?"
+            + ")\\s+(" + NAME + "(?:\\s*\\.\\s*" + NAME + ")?)", Pattern.CASE_INSENSITIVE);
+
+    private final String sql;
+    private final Kind kind;
+
+    private AuroraDSQLStatement(String sql, Kind kind) {
+        this.sql = sql;
+        this.kind = kind;
+    }
+
+    /**
+     * Classifies a single statement.
+     */
+    public static AuroraDSQLStatement of(String sql) {
+        String trimmed = stripLeadingComments(sql).trim();
+        return new AuroraDSQLStatement(trimmed, classify(trimmed));
+    }
+
+    /**
+     * Splits a script into statements on top-level semicolons.
+     *
+     * <p>Quoted strings, quoted identifiers, dollar-quoted bodies and comments are
+     * respected. Statements that contain only comments or whitespace are dropped.</p>
+     */
+    public static List<AuroraDSQLStatement> parse(String script) {
+        if (script == null || script.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<AuroraDSQLStatement> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        int length = script.length();
+        int i = 0;
+        while (i < length) {
+            char c = script.charAt(i);
+            int end;
+            if (c == '-' && i + 1 < length && script.charAt(i + 1) == '-') {
+                end = script.indexOf('\n', i);
+                end = end < 0 ? length : end;
+            } else if (c == '/' && i + 1 < length && script.charAt(i + 1) == '*') {
+                end = skipBlockComment(script, i);
+            } else if (c == '\'') {
+                boolean escapes = i > 0 && (script.charAt(i - 1) == 'E' || script.charAt(i - 1) == 'e');
+                end = skipQuoted(script, i, '\'', escapes);
+            } else if (c == '"') {
+                end = skipQuoted(script, i, '"', false);
+            } else if (c == '$' && dollarTag(script, i) != null) {
+                String tag = dollarTag(script, i);
+                int close = script.indexOf(tag, i + tag.length());
+                end = close < 0 ? length : close + tag.length();
+            } else if (c == ';') {
+                add(statements, current);
+                current.setLength(0);
+                i++;
+                continue;
+            } else {
+                end = i + 1;
+            }
+            current.append(script, i, end);
+            i = end;
+        }
+        add(statements, current);
+        return statements;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public boolean isDdl() {
+        return kind == Kind.DDL;
+    }
+
+    public boolean isDml() {
+        return kind == Kind.DML;
+    }
+
+    /**
+     * Returns true for {@code CREATE INDEX ASYNC}, which returns once the index job is queued.
+     */
+    public boolean isAsyncIndex() {
+        return ASYNC_INDEX.matcher(sql).find();
+    }
+
+    /**
+     * Returns true for a synchronous {@code CREATE INDEX}, which DSQL rejects.
+     */
+    public boolean isSyncIndex() {
+        return SYNC_INDEX.matcher(sql).find();
+    }
+
+    /**
+     * Returns the statement in a canonical form for comparison: comments removed,
+     * whitespace collapsed, trailing semicolons dropped and everything outside quoted
+     * strings, quoted identifiers and dollar-quoted bodies in lower case.
+     */
+    public String getNormalizedSql() {
+        return normalize(sql);
+    }
+
+    /**
+     * Returns the table the statement writes to, creates, alters, indexes or drops, as
+     * written in the statement and possibly schema-qualified, or null if there is none.
+     * Tables written by a data-modifying {@code WITH} query are not detected.
+     */
+    public String getTargetTable() {
+        Matcher m = TARGET_TABLE.matcher(sql);
+        return m.find() ? m.group(1).replaceAll("\\s*\\.\\s*", ".") : null;
+    }
+
+    /**
+     * Returns the first keyword of the statement in upper case.
+     */
+    public String getKeyword() {
+        return firstWord(sql);
+    }
+
+    @Override
+    public String toString() {
+        return kind + ": " + sql;
+    }
+
+    private static void add(List<AuroraDSQLStatement> statements, StringBuilder current) {
+        String text = stripLeadingComments(current.toString()).trim();
+        if (!text.isEmpty()) {
+            statements.add(new AuroraDSQLStatement(text, classify(text)));
+        }
+    }
+
+    private static Kind classify(String sql) {
+        switch (firstWord(sql)) {
+            case "CREATE":
+            case "ALTER":
+            case "DROP":
+            case "TRUNCATE":
+            case "COMMENT":
+            case "GRANT":
+            case "REVOKE":
+                return Kind.DDL;
+            case "INSERT":
+            case "UPDATE":
+            case "DELETE":
+            case "MERGE":
+            case "COPY":
+                return Kind.DML;
+            case "WITH":
+                return WRITING_CTE.matcher(sql).find() ? Kind.DML : Kind.QUERY;
+            case "SELECT":
+            case "SHOW":
+            case "EXPLAIN":
+            case "VALUES":
+            case "TABLE":
+                return Kind.QUERY;
+            default:
+                return Kind.OTHER;
+        }
+    }
+
+    private static String firstWord(String sql) {
+        int end = 0;
+        while (end < sql.length() && Character.isLetter(sql.charAt(end))) {
+            end++;
+        }
+        return sql.substring(0, end).toUpperCase(Locale.ROOT);
+    }
+
+    static String normalize(String sql) {
+        StringBuilder normalized = new StringBuilder(sql.length());
+        int length = sql.length();
+        int i = 0;
+        boolean space = false;
+        while (i < length) {
+            char c = sql.charAt(i);
+            int end;
+            if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                end = sql.indexOf('\n', i);
+                i = end < 0 ? length : end;
+                space = true;
+                continue;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                i = skipBlockComment(sql, i);
+                space = true;
+                continue;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+                space = true;
+                continue;
+            } else if (c == '\'') {
+                boolean escapes = i > 0 && (sql.charAt(i - 1) == 'E' || sql.charAt(i - 1) == 'e');
+                end = skipQuoted(sql, i, '\'', escapes);
+            } else if (c == '"') {
+                end = skipQuoted(sql, i, '"', false);
+            } else if (c == '$' && dollarTag(sql, i) != null) {
+                String tag = dollarTag(sql, i);
+                int close = sql.indexOf(tag, i + tag.length());
+                end = close < 0 ? length : close + tag.length();
+            } else {
+                if (space && normalized.length() > 0) {
+                    normalized.append(' ');
+                }
+                space = false;
+                normalized.append(Character.toLowerCase(c));
+                i++;
+                continue;
+            }
+            if (space && normalized.length() > 0) {
+                normalized.append(' ');
+            }
+            space = false;
+            normalized.append(sql, i, end);
+            i = end;
+        }
+        int end = normalized.length();
+        while (end > 0 && (normalized.charAt(end - 1) == ';' || normalized.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        return normalized.substring(0, end);
+    }
+
+    static String stripLeadingComments(String sql) {
+        int i = 0;
+        int length = sql.length();
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                int newline = sql.indexOf('\n', i);
+                i = newline < 0 ? length : newline + 1;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                i = skipBlockComment(sql, i);
+            } else {
+                break;
+            }
+        }
+        return sql.substring(i);
+    }
+
+    private static int skipBlockComment(String sql, int start) {
+        // PostgreSQL block comments nest
+        int depth = 0;
+        int i = start;
+        while (i < sql.length() - 1) {
+            if (sql.charAt(i) == '/' && sql.charAt(i + 1) == '*') {
+                depth++;
+                i += 2;
+            } else if (sql.charAt(i) == '*' && sql.charAt(i + 1) == '/') {
+                depth--;
+                i += 2;
+                if (depth == 0) {
+                    return i;
+                }
+            } else {
+                i++;
+            }
+        }
+        return sql.length();
+    }
+
+    private static int skipQuoted(String sql, int start, char quote, boolean backslashEscapes) {
+        int i = start + 1;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (backslashEscapes && c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return sql.length();
+    }
+
+    private static String dollarTag(String sql, int start) {
+        if (start > 0 && (Character.isLetterOrDigit(sql.charAt(start - 1)) || sql.charAt(start - 1) == '_')) {
+            return null;
+        }
+        int i = start + 1;
+        while (i < sql.length() && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_')) {
+            i++;
+        }
+        if (i < sql.length() && sql.charAt(i) == '$' && (i == start + 1 || !Character.isDigit(sql.charAt(start + 1)))) {
+            return sql.substring(start, i + 1);
+        }
+        return null;
+    }
+}
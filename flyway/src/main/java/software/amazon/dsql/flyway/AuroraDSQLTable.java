@@ -16,6 +16,9 @@ import java.util.logging.Logger;
  *
  * <p>Skips FOR UPDATE locking since DSQL requires equality predicates on the key
  * which Flyway's default locking query doesn't provide.</p>
+ *
+ * <p>In read-only mode, existence checks are answered from
+ * {@link AuroraDSQLDatabase#getRelations} instead of a query per table.</p>
  */
 public class AuroraDSQLTable extends PostgreSQLTable {
 
@@ -26,6 +29,18 @@ public class AuroraDSQLTable extends PostgreSQLTable {
         super(jdbcTemplate, database, schema, name);
     }
 
+    /**
+     * In read-only mode, answered from the relations read once per Flyway session.
+     */
+    @Override
+    protected boolean doExists() throws SQLException {
+        AuroraDSQLDatabase dsql = (AuroraDSQLDatabase) database;
+        if (dsql.isReadOnly()) {
+            return dsql.getRelations(jdbcTemplate.getConnection()).hasRelation(schema.getName(), name);
+        }
+        return super.doExists();
+    }
+
     /**
      * Skips FOR UPDATE locking - DSQL requires key equality predicates which Flyway doesn't provide.
      */
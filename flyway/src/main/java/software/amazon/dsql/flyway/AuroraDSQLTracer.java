@@ -0,0 +1,478 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records OpenTelemetry-compatible spans and writes them to a local file as OTLP JSON.
+ *
+ * <p>Tracing is off unless {@code tracing.file} names a file. Spans are then appended to
+ * it in the OTLP file exporter format, one {@code ExportTraceServiceRequest} per line,
+ * which an OpenTelemetry Collector {@code otlpjsonfile} receiver or most trace viewers can
+ * read. The plugin needs no OpenTelemetry library and no collector at run time.</p>
+ *
+ * <p>A span started on a thread becomes the parent of later spans on that thread until it
+ * ends. Root spans continue the trace in {@code tracing.traceparent}, or the
+ * {@code TRACEPARENT} environment variable, so a migrate run can appear inside the trace
+ * of the deploy that started it. Finished spans are written when their root span ends.</p>
+ *
+ * <p>When tracing is off, {@link #start(String)} returns a shared span that ignores
+ * everything, so instrumented code costs a field read and a method call.</p>
+ */
+final class AuroraDSQLTracer {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLTracer.class.getName());
+
+    static final String SCOPE = "software.amazon.dsql.flyway";
+    static final int MAX_STATEMENT_LENGTH = 2000;
+    private static final int MAX_BUFFERED_SPANS = 1000;
+
+    private static final Pattern TRACEPARENT = Pattern.compile("[0-9a-f]{2}-([0-9a-f]{32})-([0-9a-f]{16})-[0-9a-f]{2}");
+
+    static final AuroraDSQLTracer NOOP = new AuroraDSQLTracer(null, null, null);
+    private static final Span NOOP_SPAN = new Span(NOOP, null, null, null, null);
+
+    private static volatile AuroraDSQLTracer instance;
+
+    private final Path file;
+    private final String serviceName;
+    private final String[] remoteParent;
+    private final ThreadLocal<Span> current = new ThreadLocal<>();
+    private final List<Span> finished = new ArrayList<>();
+
+    /**
+     * @param file         file to append spans to, or null to disable tracing
+     * @param serviceName  {@code service.name} of the exported resource
+     * @param traceparent  W3C trace context that root spans continue, or null
+     */
+    AuroraDSQLTracer(Path file, String serviceName, String traceparent) {
+        this.file = file;
+        this.serviceName = serviceName;
+        Matcher m = traceparent == null ? null : TRACEPARENT.matcher(traceparent.trim());
+        this.remoteParent = m != null && m.matches() ? new String[]{m.group(1), m.group(2)} : null;
+    }
+
+    /**
+     * Returns the tracer configured by the {@code tracing.*} settings.
+     */
+    static AuroraDSQLTracer get() {
+        AuroraDSQLTracer tracer = instance;
+        if (tracer == null) {
+            synchronized (AuroraDSQLTracer.class) {
+                tracer = instance;
+                if (tracer == null) {
+                    tracer = fromSettings();
+                    instance = tracer;
+                }
+            }
+        }
+        return tracer;
+    }
+
+    private static AuroraDSQLTracer fromSettings() {
+        String file = AuroraDSQLSettings.get("tracing.file", null);
+        if (file == null || file.isEmpty()) {
+            return NOOP;
+        }
+        String traceparent = AuroraDSQLSettings.get("tracing.traceparent", System.getenv("TRACEPARENT"));
+        AuroraDSQLTracer tracer = new AuroraDSQLTracer(Paths.get(file),
+                AuroraDSQLSettings.get("tracing.service-name", "flyway"), traceparent);
+        Thread flush = new Thread(tracer::flush, "dsql-trace-flush");
+        Runtime.getRuntime().addShutdownHook(flush);
+        LOG.info("Writing trace spans to " + file);
+        return tracer;
+    }
+
+    boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * Starts a span as a child of the current span of this thread, and makes it current.
+     */
+    Span start(String name) {
+        if (file == null) {
+            return NOOP_SPAN;
+        }
+        Span parent = current.get();
+        String traceId;
+        String parentId;
+        if (parent != null) {
+            traceId = parent.traceId;
+            parentId = parent.spanId;
+        } else if (remoteParent != null) {
+            traceId = remoteParent[0];
+            parentId = remoteParent[1];
+        } else {
+            traceId = randomHex(16);
+            parentId = null;
+        }
+        Span span = new Span(this, name, traceId, parentId, parent);
+        current.set(span);
+        return span;
+    }
+
+    /**
+     * Returns the current span of this thread, or {@code null} outside any span.
+     */
+    Span current() {
+        return current.get();
+    }
+
+    /**
+     * Makes a span current on this thread, so spans started on a worker thread nest under
+     * the span that handed it the work. {@code null} clears the current span.
+     */
+    void attach(Span span) {
+        if (span == null) {
+            current.remove();
+        } else {
+            current.set(span);
+        }
+    }
+
+    private void end(Span span) {
+        // Spans that ended out of order leave the nearest open ancestor current
+        for (Span open = current.get(); open != null; open = open.parent) {
+            if (open == span) {
+                Span parent = span.parent;
+                while (parent != null && parent.ended) {
+                    parent = parent.parent;
+                }
+                if (parent == null) {
+                    current.remove();
+                } else {
+                    current.set(parent);
+                }
+                break;
+            }
+        }
+        boolean flush;
+        synchronized (finished) {
+            finished.add(span);
+            flush = span.parent == null || finished.size() >= MAX_BUFFERED_SPANS;
+        }
+        if (flush) {
+            flush();
+        }
+    }
+
+    /**
+     * Appends the finished spans to the trace file.
+     */
+    void flush() {
+        List<Span> spans;
+        synchronized (finished) {
+            if (finished.isEmpty()) {
+                return;
+            }
+            spans = new ArrayList<>(finished);
+            finished.clear();
+        }
+        String line = export(spans) + "\n";
+        synchronized (this) {
+            try {
+                Files.write(file, line.getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                LOG.warning("Unable to write trace spans to " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Builds an OTLP JSON {@code ExportTraceServiceRequest} holding the given spans.
+     */
+    String export(List<Span> spans) {
+        List<Object> exported = new ArrayList<>();
+        for (Span span : spans) {
+            exported.add(span.toOtlp());
+        }
+        Map<String, Object> scope = new LinkedHashMap<>();
+        scope.put("name", SCOPE);
+        Map<String, Object> scopeSpans = new LinkedHashMap<>();
+        scopeSpans.put("scope", scope);
+        scopeSpans.put("spans", exported);
+        Map<String, Object> resource = new LinkedHashMap<>();
+        resource.put("attributes", Collections.singletonList(otlpAttribute("service.name", serviceName)));
+        Map<String, Object> resourceSpans = new LinkedHashMap<>();
+        resourceSpans.put("resource", resource);
+        resourceSpans.put("scopeSpans", Collections.singletonList(scopeSpans));
+        return AuroraDSQLJson.write(Collections.singletonMap("resourceSpans",
+                Collections.singletonList(resourceSpans)));
+    }
+
+    private static Map<String, Object> otlpAttribute(String key, Object value) {
+        Map<String, Object> typed = new LinkedHashMap<>();
+        if (value instanceof Boolean) {
+            typed.put("boolValue", value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            // OTLP JSON encodes 64-bit integers as strings
+            typed.put("intValue", String.valueOf(value));
+        } else if (value instanceof Number) {
+            typed.put("doubleValue", value);
+        } else {
+            typed.put("stringValue", String.valueOf(value));
+        }
+        Map<String, Object> attribute = new LinkedHashMap<>();
+        attribute.put("key", key);
+        attribute.put("value", typed);
+        return attribute;
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < bytes; i++) {
+            int b = random.nextInt(256);
+            hex.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static long epochNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    /**
+     * A timed operation. Ending it with {@link #close()} makes its parent current again.
+     */
+    static final class Span implements AutoCloseable {
+        private final AuroraDSQLTracer tracer;
+        private final String name;
+        private final String traceId;
+        private final String spanId;
+        private final String parentId;
+        private final Span parent;
+        private final long start;
+        private final Map<String, Object> attributes = new LinkedHashMap<>();
+        private long end;
+        private String error;
+        private volatile boolean ended;
+
+        private Span(AuroraDSQLTracer tracer, String name, String traceId, String parentId, Span parent) {
+            this.tracer = tracer;
+            this.name = name;
+            this.traceId = traceId;
+            this.parentId = parentId;
+            this.parent = parent;
+            this.spanId = name == null ? null : randomHex(8);
+            this.start = name == null ? 0 : epochNanos();
+        }
+
+        boolean isRecording() {
+            return tracer.file != null;
+        }
+
+        Span attribute(String key, Object value) {
+            if (tracer.file != null && value != null) {
+                attributes.put(key, value);
+            }
+            return this;
+        }
+
+        /**
+         * Marks the span as failed, recording the SQLSTATE of SQL errors.
+         */
+        Span error(Throwable failure) {
+            if (tracer.file != null) {
+                error = failure.getMessage() == null ? failure.getClass().getName() : failure.getMessage();
+                if (failure instanceof SQLException && ((SQLException) failure).getSQLState() != null) {
+                    attributes.put("dsql.sqlstate", ((SQLException) failure).getSQLState());
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Marks the span as failed without an exception.
+         */
+        Span error(String message) {
+            if (tracer.file != null) {
+                error = message;
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (tracer.file == null || ended) {
+                return;
+            }
+            end = epochNanos();
+            ended = true;
+            tracer.end(this);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getTraceId() {
+            return traceId;
+        }
+
+        String getSpanId() {
+            return spanId;
+        }
+
+        String getParentSpanId() {
+            return parentId;
+        }
+
+        Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        Map<String, Object> toOtlp() {
+            Map<String, Object> span = new LinkedHashMap<>();
+            span.put("traceId", traceId);
+            span.put("spanId", spanId);
+            if (parentId != null) {
+                span.put("parentSpanId", parentId);
+            }
+            span.put("name", name);
+            // SPAN_KIND_CLIENT for work sent to the cluster, SPAN_KIND_INTERNAL otherwise
+            span.put("kind", attributes.containsKey("db.system") ? 3 : 1);
+            span.put("startTimeUnixNano", String.valueOf(start));
+            span.put("endTimeUnixNano", String.valueOf(end));
+            List<Object> exported = new ArrayList<>();
+            for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                exported.add(otlpAttribute(attribute.getKey(), attribute.getValue()));
+            }
+            span.put("attributes", exported);
+            Map<String, Object> status = new LinkedHashMap<>();
+            if (error != null) {
+                status.put("code", 2);
+                status.put("message", error);
+            } else {
+                status.put("code", 1);
+            }
+            span.put("status", status);
+            return span;
+        }
+    }
+
+    /**
+     * Session listener that traces each transaction and statement of one connection.
+     */
+    static final class StatementSpans implements AuroraDSQLSession.Listener {
+        private final AuroraDSQLTracer tracer;
+        private final AuroraDSQLSession session;
+        private Span transaction;
+        private Span statement;
+        private int statements;
+        private int reconnects;
+
+        StatementSpans(AuroraDSQLTracer tracer, AuroraDSQLSession session) {
+            this.tracer = tracer;
+            this.session = session;
+        }
+
+        @Override
+        public boolean beforeExecute(Connection connection, String sql) throws SQLException {
+            if (statement != null) {
+                // A later listener skipped the previous statement
+                statement.attribute("dsql.skipped", true).close();
+                statement = null;
+            }
+            boolean autoCommit = connection.getAutoCommit();
+            if (transaction != null && autoCommit) {
+                // Switching back to autocommit ended the transaction without a commit call
+                endTransaction(null);
+            } else if (transaction == null && !autoCommit) {
+                transaction = tracer.start("dsql.transaction");
+                statements = 0;
+            }
+            String operation = "BATCH";
+            String target = null;
+            if (sql != null) {
+                AuroraDSQLStatement parsed = AuroraDSQLStatement.of(sql);
+                operation = parsed.getKeyword().isEmpty() ? "SQL" : parsed.getKeyword();
+                target = parsed.getTargetTable();
+            }
+            statement = tracer.start(target == null ? operation : operation + " " + target)
+                    .attribute("db.system", "postgresql")
+                    .attribute("db.operation", operation)
+                    .attribute("db.statement", sql == null || sql.length() <= MAX_STATEMENT_LENGTH
+                            ? sql : sql.substring(0, MAX_STATEMENT_LENGTH));
+            statements++;
+            reconnects = session.getReconnects();
+            return true;
+        }
+
+        @Override
+        public void afterExecute(Connection connection, String sql, long elapsedNanos, long rows) {
+            if (statement == null) {
+                return;
+            }
+            if (rows >= 0) {
+                statement.attribute("dsql.rows_affected", rows);
+            }
+            finishStatement();
+        }
+
+        @Override
+        public void afterFailure(Connection connection, String sql, SQLException error) {
+            if (sql == null) {
+                if (transaction != null) {
+                    transaction.error(error);
+                }
+                return;
+            }
+            if (statement != null) {
+                statement.error(error);
+                finishStatement();
+            }
+        }
+
+        @Override
+        public void afterCommit(Connection connection) {
+            endTransaction(null);
+        }
+
+        @Override
+        public void afterRollback() {
+            endTransaction(true);
+        }
+
+        private void endTransaction(Boolean rolledBack) {
+            if (transaction != null) {
+                transaction.attribute("dsql.statements", statements)
+                        .attribute("dsql.rolled_back", rolledBack)
+                        .close();
+                transaction = null;
+            }
+        }
+
+        private void finishStatement() {
+            int retries = session.getReconnects() - reconnects;
+            if (retries > 0) {
+                statement.attribute("dsql.retry_count", retries);
+            }
+            statement.close();
+            statement = null;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.callback.Callback;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Flyway callback that traces each Flyway phase and each migration.
+ *
+ * <p>A phase such as migrate, validate or clean becomes a span named after it, and each
+ * migration a child span carrying its version, description, script and type. The
+ * transactions and statements that {@link AuroraDSQLConnection} and
+ * {@link AuroraDSQLSchema} trace appear below them, so a whole migrate run is one trace.
+ * Spans are written to {@code tracing.file} as OTLP JSON; without that setting the
+ * callback does nothing.</p>
+ *
+ * <p>Register it with {@code Flyway.configure().callbacks(new AuroraDSQLTracing())}.</p>
+ */
+public class AuroraDSQLTracing implements Callback {
+
+    private static final Set<String> PHASES = new HashSet<>(Arrays.asList(
+            "MIGRATE", "VALIDATE", "CLEAN", "INFO", "BASELINE", "REPAIR", "UNDO"));
+
+    private final AuroraDSQLTracer tracer;
+    private final Deque<AuroraDSQLTracer.Span> phases = new ArrayDeque<>();
+    private AuroraDSQLTracer.Span migration;
+
+    /**
+     * Creates the callback from the {@code tracing.*} settings.
+     */
+    public AuroraDSQLTracing() {
+        this(AuroraDSQLTracer.get());
+    }
+
+    AuroraDSQLTracing(AuroraDSQLTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public boolean supports(Event event, Context context) {
+        return tracer.isEnabled() && (isMigration(event) || phase(event) != null);
+    }
+
+    @Override
+    public boolean canHandleInTransaction(Event event, Context context) {
+        return true;
+    }
+
+    @Override
+    public void handle(Event event, Context context) {
+        String name = event.name();
+        switch (name) {
+            case "BEFORE_EACH_MIGRATE":
+                MigrationInfo info = context.getMigrationInfo();
+                migration = tracer.start(info == null ? "flyway.migration" : "flyway.migration " + info.getScript());
+                if (info != null) {
+                    migration.attribute("flyway.version", info.getVersion() == null ? null : info.getVersion().toString())
+                            .attribute("flyway.description", info.getDescription())
+                            .attribute("flyway.script", info.getScript())
+                            .attribute("flyway.type", String.valueOf(info.getType()));
+                }
+                return;
+            case "AFTER_EACH_MIGRATE":
+            case "AFTER_EACH_MIGRATE_ERROR":
+                if (migration != null) {
+                    if (name.endsWith("_ERROR")) {
+                        migration.error("Migration failed");
+                    }
+                    migration.close();
+                    migration = null;
+                }
+                return;
+            default:
+                break;
+        }
+        String phase = phase(event);
+        if (name.startsWith("BEFORE_")) {
+            phases.push(tracer.start("flyway." + phase.toLowerCase(Locale.ROOT)));
+        } else if (!phases.isEmpty()) {
+            AuroraDSQLTracer.Span span = phases.pop();
+            if (name.endsWith("_ERROR")) {
+                span.error("Flyway " + phase.toLowerCase(Locale.ROOT) + " failed");
+            }
+            span.close();
+        }
+    }
+
+    @Override
+    public String getCallbackName() {
+        return "Aurora DSQL tracing";
+    }
+
+    private static boolean isMigration(Event event) {
+        String name = event.name();
+        return name.equals("BEFORE_EACH_MIGRATE") || name.equals("AFTER_EACH_MIGRATE")
+                || name.equals("AFTER_EACH_MIGRATE_ERROR");
+    }
+
+    /**
+     * Returns the phase an event starts or ends, matched by name so events of newer Flyway
+     * versions are recognized too, or null for other events.
+     */
+    static String phase(Event event) {
+        String name = event.name();
+        String phase;
+        if (name.startsWith("BEFORE_")) {
+            phase = name.substring("BEFORE_".length());
+        } else if (name.startsWith("AFTER_")) {
+            phase = name.substring("AFTER_".length());
+            if (phase.endsWith("_ERROR")) {
+                phase = phase.substring(0, phase.length() - "_ERROR".length());
+            }
+        } else {
+            return null;
+        }
+        return PHASES.contains(phase) ? phase : null;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Data source that starts connecting to Aurora DSQL as soon as it is created.
+ *
+ * <p>Opening a DSQL connection means generating an IAM token, a TLS handshake and
+ * authentication, and Flyway normally does it only after it has scanned and parsed the
+ * migration resources. This data source opens {@code startup.prefetch-connections}
+ * connections on background threads, and also loads the plugin classes a run needs, so
+ * that work overlaps with Flyway's scanning. Startup then takes about as long as the
+ * slower of the two, rather than both added together.</p>
+ *
+ * <p>{@link #getConnection()} hands out the connections opened in the background first,
+ * waiting for them if needed, and opens later connections directly. Connections that are
+ * never handed out are closed by {@link #close()}.</p>
+ *
+ * <pre>
+ * Flyway flyway = Flyway.configure()
+ *     .dataSource(AuroraDSQLWarmDataSource.warm(url, "admin", null))
+ *     .load();
+ * </pre>
+ */
+public class AuroraDSQLWarmDataSource implements DataSource, AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLWarmDataSource.class.getName());
+
+    static final int DEFAULT_PREFETCH_CONNECTIONS = 2;
+
+    /**
+     * Plugin classes used before the first migration runs, loaded while connecting.
+     */
+    private static final String[] WARM_CLASSES = {
+            "software.amazon.dsql.flyway.AuroraDSQLDatabaseType",
+            "software.amazon.dsql.flyway.AuroraDSQLDatabase",
+            "software.amazon.dsql.flyway.AuroraDSQLConnection",
+            "software.amazon.dsql.flyway.AuroraDSQLSchema",
+            "software.amazon.dsql.flyway.AuroraDSQLTable",
+            "software.amazon.dsql.flyway.AuroraDSQLSession",
+            "software.amazon.dsql.flyway.AuroraDSQLAdaptiveLimiter",
+            "software.amazon.dsql.flyway.AuroraDSQLStatement"
+    };
+
+    private final DataSource delegate;
+    private final Deque<CompletableFuture<Connection>> prefetched = new ArrayDeque<>();
+    private final ExecutorService executor;
+
+    /**
+     * Wraps a data source and starts opening connections from it.
+     */
+    public static AuroraDSQLWarmDataSource warm(DataSource dataSource) {
+        return new AuroraDSQLWarmDataSource(dataSource,
+                AuroraDSQLSettings.getInt("startup.prefetch-connections", DEFAULT_PREFETCH_CONNECTIONS));
+    }
+
+    /**
+     * Starts opening connections to a JDBC URL, such as {@code jdbc:aws-dsql:postgresql://...}.
+     */
+    public static AuroraDSQLWarmDataSource warm(String url, String user, String password) {
+        return warm(new DriverDataSource(url, user, password));
+    }
+
+    /**
+     * @param delegate    data source to open connections from
+     * @param connections number of connections to open in the background
+     */
+    public AuroraDSQLWarmDataSource(DataSource delegate, int connections) {
+        this.delegate = delegate;
+        int threads = Math.max(1, connections);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "dsql-warmup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(AuroraDSQLWarmDataSource::loadClasses);
+        synchronized (prefetched) {
+            for (int i = 0; i < connections; i++) {
+                prefetched.add(CompletableFuture.supplyAsync(this::open, executor));
+            }
+        }
+        executor.shutdown();
+    }
+
+    private Connection open() {
+        long start = System.nanoTime();
+        try {
+            Connection connection = delegate.getConnection();
+            LOG.fine("Opened connection in the background in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return connection;
+        } catch (SQLException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static void loadClasses() {
+        ClassLoader classLoader = AuroraDSQLWarmDataSource.class.getClassLoader();
+        for (String name : WARM_CLASSES) {
+            try {
+                Class.forName(name, true, classLoader);
+            } catch (ClassNotFoundException | LinkageError e) {
+                LOG.fine("Unable to preload " + name + ": " + e);
+            }
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        CompletableFuture<Connection> next;
+        synchronized (prefetched) {
+            next = prefetched.poll();
+        }
+        if (next == null) {
+            return delegate.getConnection();
+        }
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while connecting to Aurora DSQL", "08001", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Unable to connect to Aurora DSQL", "08001", e.getCause());
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return delegate.getConnection(username, password);
+    }
+
+    /**
+     * Closes the connections opened in the background that were never handed out.
+     */
+    @Override
+    public void close() {
+        synchronized (prefetched) {
+            for (CompletableFuture<Connection> future : prefetched) {
+                future.thenAccept(connection -> {
+                    try {
+                        connection.close();
+                    } catch (SQLException e) {
+                        LOG.fine("Unable to close unused connection: " + e.getMessage());
+                    }
+                });
+            }
+            prefetched.clear();
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return delegate.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        delegate.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        delegate.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return delegate.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+
+    /**
+     * Opens connections through {@link DriverManager}, which locates the DSQL connector.
+     */
+    private static final class DriverDataSource implements DataSource {
+        private final String url;
+        private final String user;
+        private final String password;
+
+        DriverDataSource(String url, String user, String password) {
+            this.url = url;
+            this.user = user;
+            this.password = password;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return getConnection(user, password);
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return DriverManager.getConnection(url, username, password);
+        }
+
+        @Override
+        public PrintWriter getLogWriter() {
+            return DriverManager.getLogWriter();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) {
+            DriverManager.setLogWriter(out);
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) {
+            DriverManager.setLoginTimeout(seconds);
+        }
+
+        @Override
+        public int getLoginTimeout() {
+            return DriverManager.getLoginTimeout();
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            throw new SQLException("Not a wrapper for " + iface.getName());
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            return false;
+        }
+    }
+}
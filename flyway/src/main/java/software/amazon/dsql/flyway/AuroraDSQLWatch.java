@@ -0,0 +1,482 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.FlywayException;
+import org.flywaydb.core.api.Location;
+import org.flywaydb.core.api.MigrationVersion;
+import org.flywaydb.core.api.configuration.Configuration;
+
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Development watch mode that applies edited migrations as soon as they are saved.
+ *
+ * <p>Iterating on a view or a repeatable script normally means a full Flyway run: JVM
+ * startup, scanning every location, connecting and validating the whole history. Watch
+ * mode runs one {@code migrate} to catch up, then watches the file-system migration
+ * locations and keeps one connection open. When scripts change, only those scripts are
+ * read and parsed. A repeatable migration whose checksum changed is re-applied, and a
+ * new versioned migration above the current version is applied. Each is recorded in the
+ * schema history the way Flyway records it, with Flyway's checksum and its path
+ * relative to the location, so a later {@code migrate} or {@code validate} sees it as
+ * applied. Scripts are recognized by Flyway's configured prefixes, separator and
+ * suffixes. A script without statements, such as a file an editor has just created, is
+ * left until it has some.</p>
+ *
+ * <p>Statements run in autocommit, one DDL per transaction as Aurora DSQL requires. A
+ * failed script is logged and not recorded, so it is tried again on the next save. Edits
+ * to a versioned migration that was already applied, versioned migrations below the
+ * current version and scripts with placeholders are not applied; they are logged for a
+ * full {@code migrate}, {@code repair} or {@code clean}.</p>
+ *
+ * <p>Classpath locations are watched in {@code src/main/resources} of the working
+ * directory, where a build would copy them from. Watch mode is meant for development
+ * clusters only.</p>
+ */
+public final class AuroraDSQLWatch implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(AuroraDSQLWatch.class.getName());
+
+    private static final long SETTLE_MILLIS = 50;
+
+    private final Connection connection;
+    private final String historyTable;
+    private final Charset encoding;
+    private final List<Path> directories;
+    private final Naming naming;
+    private WatchService watcher;
+    private Thread thread;
+
+    AuroraDSQLWatch(Connection connection, String historyTable, Charset encoding, List<Path> directories) {
+        this(connection, historyTable, encoding, directories, Naming.DEFAULT);
+    }
+
+    AuroraDSQLWatch(Connection connection, String historyTable, Charset encoding, List<Path> directories,
+                    Naming naming) {
+        this.connection = connection;
+        this.historyTable = historyTable;
+        this.encoding = encoding == null ? StandardCharsets.UTF_8 : encoding;
+        this.directories = directories;
+        this.naming = naming;
+    }
+
+    /**
+     * Migrates once, then applies changed migrations in the background until closed.
+     */
+    public static AuroraDSQLWatch start(Flyway flyway) throws IOException {
+        flyway.migrate();
+        Configuration configuration = flyway.getConfiguration();
+        DataSource dataSource = configuration.getDataSource();
+        Connection connection;
+        try {
+            connection = AuroraDSQLSession.wrap(dataSource.getConnection(), () -> {
+                try {
+                    return dataSource.getConnection();
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Unable to reconnect to Aurora DSQL", e);
+                }
+            });
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new FlywayException("Unable to connect to Aurora DSQL for watch mode", e);
+        }
+        AuroraDSQLWatch watch = new AuroraDSQLWatch(connection, AuroraDSQLCheckpoints.tableName(configuration, ""),
+                configuration.getEncoding(), directories(configuration.getLocations()), Naming.of(configuration));
+        watch.watch();
+        return watch;
+    }
+
+    /**
+     * Watches the migration locations in the remaining arguments of the JDBC URL in the
+     * first argument until the process is stopped.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: AuroraDSQLWatch <jdbc-url> <location...>");
+            System.exit(2);
+        }
+        Flyway flyway = Flyway.configure()
+                .dataSource(args[0], "admin", null)
+                .locations(Arrays.copyOfRange(args, 1, args.length))
+                .load();
+        AuroraDSQLWatch watch = start(flyway);
+        Runtime.getRuntime().addShutdownHook(new Thread(watch::close, "dsql-watch-shutdown"));
+        watch.thread.join();
+    }
+
+    static List<Path> directories(Location[] locations) {
+        List<Path> directories = new ArrayList<>();
+        for (Location location : locations) {
+            Path path = location.isClassPath()
+                    ? Paths.get("src", "main", "resources").resolve(location.getPath())
+                    : Paths.get(location.getPath());
+            if (Files.isDirectory(path)) {
+                directories.add(path);
+            } else {
+                LOG.warning("Not watching " + location.getDescriptor() + ": " + path + " is not a directory");
+            }
+        }
+        return directories;
+    }
+
+    private void watch() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+        for (Path directory : directories) {
+            try (Stream<Path> tree = Files.walk(directory)) {
+                for (Path path : (Iterable<Path>) tree.filter(Files::isDirectory)::iterator) {
+                    register(path);
+                }
+            }
+        }
+        thread = new Thread(this::loop, "dsql-watch");
+        thread.setDaemon(true);
+        thread.start();
+        LOG.info("Watching " + directories + " for migration changes");
+    }
+
+    private void register(Path directory) throws IOException {
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    private void loop() {
+        try {
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<>();
+                collect(watcher.take(), changed);
+                // Editors save in several writes, so let the burst settle into one batch
+                for (WatchKey key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS); key != null;
+                     key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) {
+                    collect(key, changed);
+                }
+                apply(changed);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            LOG.fine("Stopped watching migrations");
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (Files.isDirectory(path)) {
+                try {
+                    register(path);
+                } catch (IOException e) {
+                    LOG.warning("Unable to watch " + path + ": " + e.getMessage());
+                }
+            } else if (naming.hasSuffix(path.getFileName().toString())) {
+                changed.add(path);
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Applies the changed scripts that need it: new versioned migrations in version order,
+     * then changed repeatable migrations.
+     *
+     * @return the scripts that were applied
+     */
+    List<String> apply(Set<Path> changed) {
+        List<String> applied = new ArrayList<>();
+        List<Script> scripts = new ArrayList<>();
+        for (Path path : changed) {
+            Script script = naming.parse(name(path));
+            if (script != null && Files.isRegularFile(path)) {
+                script.path = path;
+                scripts.add(script);
+            }
+        }
+        if (scripts.isEmpty()) {
+            return applied;
+        }
+        scripts.sort((a, b) -> a.version == null ? (b.version == null ? 0 : 1)
+                : b.version == null ? -1 : a.version.compareTo(b.version));
+        try {
+            History history = History.read(connection, historyTable);
+            for (Script script : scripts) {
+                if (apply(script, history)) {
+                    applied.add(script.name);
+                }
+            }
+        } catch (SQLException e) {
+            LOG.warning("Unable to read the schema history: " + e.getMessage());
+        }
+        return applied;
+    }
+
+    /**
+     * Returns the name Flyway records for a script: its path relative to the location.
+     */
+    private String name(Path path) {
+        for (Path directory : directories) {
+            if (path.startsWith(directory)) {
+                return directory.relativize(path).toString().replace(File.separatorChar, '/');
+            }
+        }
+        return path.getFileName().toString();
+    }
+
+    private boolean apply(Script script, History history) {
+        String sql;
+        try {
+            sql = new String(Files.readAllBytes(script.path), encoding);
+        } catch (IOException e) {
+            LOG.warning("Unable to read " + script.path + ": " + e.getMessage());
+            return false;
+        }
+        int checksum = checksum(sql);
+        Integer appliedChecksum = history.checksums.get(script.name);
+        if (appliedChecksum != null && appliedChecksum == checksum) {
+            return false;
+        }
+        if (script.version != null) {
+            if (appliedChecksum != null) {
+                LOG.warning(script.name + " was already applied and has changed; add a new migration or run clean");
+                return false;
+            }
+            if (history.version != null && script.version.compareTo(history.version) <= 0) {
+                LOG.warning(script.name + " is below the current version " + history.version + "; run migrate");
+                return false;
+            }
+        }
+        if (sql.contains("${")) {
+            LOG.warning(script.name + " uses placeholders; run migrate to apply it");
+            return false;
+        }
+        List<AuroraDSQLStatement> statements = AuroraDSQLStatement.parse(sql);
+        if (statements.isEmpty()) {
+            // Editors create new files empty; recording one would reject the real content
+            LOG.fine("Not applying " + script.name + " until it has statements");
+            return false;
+        }
+        long start = System.nanoTime();
+        try (Statement stmt = connection.createStatement()) {
+            for (AuroraDSQLStatement statement : statements) {
+                stmt.execute(statement.getSql());
+            }
+        } catch (SQLException e) {
+            LOG.warning("Failed to apply " + script.name + ": " + e.getMessage());
+            return false;
+        }
+        int executionTime = (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        try {
+            history.record(connection, historyTable, script, checksum, executionTime);
+        } catch (SQLException e) {
+            LOG.warning("Applied " + script.name + " but could not record it: " + e.getMessage());
+            return false;
+        }
+        LOG.info("Applied " + script.name + " in " + executionTime + " ms");
+        return true;
+    }
+
+    /**
+     * Computes the checksum Flyway records for a SQL migration: a CRC32 over the UTF-8
+     * bytes of each line without its line break, ignoring a byte order mark.
+     */
+    static int checksum(String sql) {
+        CRC32 crc32 = new CRC32();
+        try (BufferedReader reader = new BufferedReader(new StringReader(sql))) {
+            String line = reader.readLine();
+            if (line != null && line.startsWith("\uFEFF")) {
+                line = line.substring(1);
+            }
+            for (; line != null; line = reader.readLine()) {
+                crc32.update(line.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return (int) crc32.getValue();
+    }
+
+    /**
+     * Stops watching and closes the connection.
+     */
+    @Override
+    public void close() {
+        try {
+            if (watcher != null) {
+                watcher.close();
+            }
+        } catch (IOException e) {
+            LOG.fine("Unable to close watcher: " + e.getMessage());
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.fine("Unable to close connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * File naming of SQL migrations: prefixes, separator and suffixes, as configured in Flyway.
+     */
+    static final class Naming {
+        static final Naming DEFAULT = new Naming("V", "R", "__", new String[]{".sql"});
+
+        private final String[] suffixes;
+        private final Pattern versioned;
+        private final Pattern repeatable;
+
+        Naming(String prefix, String repeatablePrefix, String separator, String[] suffixes) {
+            this.suffixes = suffixes;
+            this.versioned = Pattern.compile(Pattern.quote(prefix) + "([0-9][0-9._]*)" + Pattern.quote(separator)
+                    + "(.+)");
+            this.repeatable = Pattern.compile(Pattern.quote(repeatablePrefix) + Pattern.quote(separator) + "(.+)");
+        }
+
+        static Naming of(Configuration configuration) {
+            return new Naming(configuration.getSqlMigrationPrefix(), configuration.getRepeatableSqlMigrationPrefix(),
+                    configuration.getSqlMigrationSeparator(), configuration.getSqlMigrationSuffixes());
+        }
+
+        boolean hasSuffix(String fileName) {
+            return suffix(fileName) != null;
+        }
+
+        private String suffix(String fileName) {
+            for (String suffix : suffixes) {
+                if (fileName.endsWith(suffix) && fileName.length() > suffix.length()) {
+                    return suffix;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Recognizes a script by the file name at the end of its name.
+         *
+         * @param name script name as Flyway records it, relative to its location
+         * @return the script, or null if the file isn't a SQL migration
+         */
+        Script parse(String name) {
+            String fileName = name.substring(name.lastIndexOf('/') + 1);
+            String suffix = suffix(fileName);
+            if (suffix == null) {
+                return null;
+            }
+            String base = fileName.substring(0, fileName.length() - suffix.length());
+            Matcher matcher = versioned.matcher(base);
+            if (matcher.matches()) {
+                return new Script(name, MigrationVersion.fromVersion(matcher.group(1)),
+                        matcher.group(2).replace('_', ' '));
+            }
+            matcher = repeatable.matcher(base);
+            if (matcher.matches()) {
+                return new Script(name, null, matcher.group(1).replace('_', ' '));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A migration script recognized by its file name.
+     */
+    static final class Script {
+        final String name;
+        final MigrationVersion version;
+        final String description;
+        Path path;
+
+        private Script(String name, MigrationVersion version, String description) {
+            this.name = name;
+            this.version = version;
+            this.description = description;
+        }
+
+        static Script of(String fileName) {
+            return Naming.DEFAULT.parse(fileName);
+        }
+    }
+
+    /**
+     * What the schema history says has been applied, read once per batch of changes.
+     */
+    static final class History {
+        final Map<String, Integer> checksums = new HashMap<>();
+        MigrationVersion version;
+        int rank;
+
+        static History read(Connection connection, String table) throws SQLException {
+            History history = new History();
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT \"script\", \"checksum\", \"version\", \"installed_rank\""
+                         + " FROM " + table + " WHERE \"success\" ORDER BY \"installed_rank\"")) {
+                while (rs.next()) {
+                    history.checksums.put(rs.getString(1), rs.getInt(2));
+                    MigrationVersion version = MigrationVersion.fromVersion(rs.getString(3));
+                    if (version != null && (history.version == null || version.compareTo(history.version) > 0)) {
+                        history.version = version;
+                    }
+                    history.rank = Math.max(history.rank, rs.getInt(4));
+                }
+            }
+            return history;
+        }
+
+        void record(Connection connection, String table, Script script, int checksum, int executionTime)
+                throws SQLException {
+            try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO " + table
+                    + " (\"installed_rank\", \"version\", \"description\", \"type\", \"script\", \"checksum\","
+                    + " \"installed_by\", \"execution_time\", \"success\")"
+                    + " VALUES (?, ?, ?, 'SQL', ?, ?, current_user, ?, true)")) {
+                stmt.setInt(1, rank + 1);
+                stmt.setString(2, script.version == null ? null : script.version.getVersion());
+                stmt.setString(3, script.description);
+                stmt.setString(4, script.name);
+                stmt.setInt(5, checksum);
+                stmt.setInt(6, executionTime);
+                stmt.executeUpdate();
+            }
+            rank++;
+            checksums.put(script.name, checksum);
+            if (script.version != null) {
+                version = script.version;
+            }
+        }
+    }
+}
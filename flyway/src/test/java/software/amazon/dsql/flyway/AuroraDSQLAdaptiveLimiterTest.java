@@ -0,0 +1,162 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLAdaptiveLimiter and AuroraDSQLErrors.
+ *
+ * <p>These tests drive the limiter with synthetic outcomes and verify the
+ * additive-increase/multiplicative-decrease behavior.</p>
+ */
+class AuroraDSQLAdaptiveLimiterTest {
+
+    private static final SQLException CONFLICT =
+        new SQLException("change conflicts with another transaction, please retry: (OC000)", "40001");
+    private static final SQLException THROTTLED = new SQLException("rate exceeded", "53400");
+
+    @Test
+    @DisplayName("Errors should be classified by SQLSTATE and DSQL code")
+    void classifiesErrors() {
+        assertTrue(AuroraDSQLErrors.isConflict(CONFLICT));
+        assertTrue(AuroraDSQLErrors.isConflict(new RuntimeException(new SQLException("schema changed (OC001)"))));
+        assertTrue(AuroraDSQLErrors.isThrottled(THROTTLED));
+        assertTrue(AuroraDSQLErrors.isConnectionFailure(new SQLException("closed", "08006")));
+        assertFalse(AuroraDSQLErrors.isConflict(new SQLException("syntax error", "42601")));
+        assertFalse(AuroraDSQLErrors.isThrottled(new IllegalStateException()));
+    }
+
+    @Test
+    @DisplayName("Successful work should raise the limit up to the maximum")
+    void increasesOnSuccess() throws Exception {
+        AuroraDSQLAdaptiveLimiter limiter = new AuroraDSQLAdaptiveLimiter(2, 1, 4);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.execute(() -> null);
+        }
+
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    @DisplayName("Successes recorded without latency, as for whole migrations, should also raise the limit")
+    void increasesOnUnsampledSuccess() throws Exception {
+        AuroraDSQLAdaptiveLimiter limiter = new AuroraDSQLAdaptiveLimiter(1, 1, 4);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire().successWithoutLatency();
+        }
+
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    @DisplayName("A sustained conflict rate should cut the limit multiplicatively")
+    void decreasesOnConflicts() throws Exception {
+        AuroraDSQLAdaptiveLimiter limiter = new AuroraDSQLAdaptiveLimiter(16, 1, 16);
+
+        for (int i = 0; i < 16; i++) {
+            AuroraDSQLAdaptiveLimiter.Permit permit = limiter.acquire();
+            permit.failure(CONFLICT);
+        }
+
+        assertTrue(limiter.getLimit() < 16, "limit should drop below 16 but was " + limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    @DisplayName("Throttling should halve the limit but never go below the minimum")
+    void decreasesOnThrottlingToMinimum() throws Exception {
+        AuroraDSQLAdaptiveLimiter limiter = new AuroraDSQLAdaptiveLimiter(8, 2, 8);
+
+        for (int i = 0; i < 200; i++) {
+            AuroraDSQLAdaptiveLimiter.Permit permit = limiter.acquire();
+            permit.failure(THROTTLED);
+        }
+
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    @DisplayName("Unrelated errors should not change the limit")
+    void ignoresUnrelatedErrors() throws Exception {
+        AuroraDSQLAdaptiveLimiter limiter = new AuroraDSQLAdaptiveLimiter(3, 1, 8);
+
+        for (int i = 0; i < 50; i++) {
+            assertThrows(SQLException.class, () -> limiter.execute(() -> {
+                throw new SQLException("syntax error", "42601");
+            }));
+        }
+
+        assertEquals(3, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    @DisplayName("acquire() should block while the limit is in use")
+    void blocksAtLimit() throws Exception {
+        AuroraDSQLAdaptiveLimiter limiter = new AuroraDSQLAdaptiveLimiter(1, 1, 1);
+        AuroraDSQLAdaptiveLimiter.Permit held = limiter.acquire();
+        AtomicBoolean admitted = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+
+        Thread waiter = new Thread(() -> {
+            try (AuroraDSQLAdaptiveLimiter.Permit permit = limiter.acquire()) {
+                admitted.set(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        });
+        waiter.start();
+
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        held.close();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(admitted.get());
+    }
+
+    @Test
+    @DisplayName("Nested work should run without waiting when its caller holds the last permit")
+    void runsNestedWorkAtLimit() throws Exception {
+        AuroraDSQLAdaptiveLimiter limiter = new AuroraDSQLAdaptiveLimiter(1, 1, 1);
+        AuroraDSQLAdaptiveLimiter.Permit held = limiter.acquire();
+        AtomicBoolean heldElsewhere = new AtomicBoolean(true);
+        Thread other = new Thread(() -> heldElsewhere.set(limiter.isHeldByCurrentThread()));
+        other.start();
+        other.join();
+
+        assertTrue(limiter.isHeldByCurrentThread());
+        assertFalse(heldElsewhere.get());
+        assertNull(limiter.tryAcquire());
+        assertEquals("done", limiter.executeNested(() -> "done"));
+        assertEquals(1, limiter.getInFlight());
+
+        held.close();
+        assertFalse(limiter.isHeldByCurrentThread());
+        assertEquals("done", limiter.executeNested(() -> "done"));
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    @DisplayName("Endpoint keys should ignore port, database and parameters")
+    void extractsEndpoint() {
+        assertEquals("abc.dsql.us-east-1.on.aws", AuroraDSQLAdaptiveLimiter.endpoint(
+            "jdbc:aws-dsql:postgresql://abc.dsql.us-east-1.on.aws:5432/postgres?user=admin"));
+        assertSame(AuroraDSQLAdaptiveLimiter.forEndpoint("jdbc:postgresql://x.dsql.eu-west-1.on.aws/postgres"),
+            AuroraDSQLAdaptiveLimiter.forEndpoint("jdbc:aws-dsql:postgresql://x.dsql.eu-west-1.on.aws:5432/db"));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.FlywayException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLBaselineGenerator.
+ */
+class AuroraDSQLBaselineGeneratorTest {
+
+    private static FakeJdbc migratedSchema() {
+        return new FakeJdbc()
+            .onQuery("SELECT table_name, column_name",
+                new Object[]{"active_users", "id", "uuid", "YES", null, null, null, null},
+                new Object[]{"flyway_schema_history", "installed_rank", "integer", "NO", null, null, 32, 0},
+                new Object[]{"orders", "id", "uuid", "NO", "gen_random_uuid()", null, null, null},
+                new Object[]{"orders", "total", "numeric", "NO", null, null, 12, 2},
+                new Object[]{"user_emails", "email", "character varying", "YES", null, 255, null, null},
+                new Object[]{"users", "id", "uuid", "NO", "gen_random_uuid()", null, null, null},
+                new Object[]{"users", "email", "character varying", "NO", null, 255, null, null},
+                new Object[]{"users", "status", "text", "NO", "'active'::text", null, null, null})
+            .onQuery("SELECT tablename, indexname",
+                new Object[]{"flyway_schema_history", "flyway_schema_history_pk",
+                    "CREATE UNIQUE INDEX flyway_schema_history_pk ON public.flyway_schema_history USING btree_index (installed_rank)"},
+                new Object[]{"orders", "orders_pkey", "CREATE UNIQUE INDEX orders_pkey ON public.orders USING btree_index (id)"},
+                new Object[]{"users", "users_email_idx", "CREATE INDEX users_email_idx ON public.users USING btree_index (email)"},
+                new Object[]{"users", "users_pkey", "CREATE UNIQUE INDEX users_pkey ON public.users USING btree_index (id)"})
+            .onQuery("SELECT rel.relname",
+                new Object[]{"orders", "orders_pkey", "PRIMARY KEY (id)"},
+                new Object[]{"orders", "orders_total_check", "CHECK ((total >= (0)::numeric))"},
+                new Object[]{"users", "users_pkey", "PRIMARY KEY (id)"})
+            .onQuery("SELECT table_name, view_definition",
+                new Object[]{"active_users", " SELECT user_emails.email AS id\n   FROM public.user_emails;"},
+                new Object[]{"user_emails", " SELECT users.email\n   FROM public.users;"});
+    }
+
+    @Test
+    @DisplayName("Tables should be generated with inline constraints")
+    void generatesTablesWithInlineConstraints() throws SQLException {
+        List<String> statements = new AuroraDSQLBaselineGenerator(migratedSchema().open(), "public").generate();
+
+        assertEquals("CREATE TABLE \"orders\" (\n"
+            + "    \"id\" uuid DEFAULT gen_random_uuid() NOT NULL,\n"
+            + "    \"total\" numeric(12, 2) NOT NULL,\n"
+            + "    CONSTRAINT \"orders_pkey\" PRIMARY KEY (id),\n"
+            + "    CONSTRAINT \"orders_total_check\" CHECK ((total >= (0)::numeric))\n"
+            + ")", statements.get(0));
+        assertTrue(statements.get(1).contains("\"email\" character varying(255) NOT NULL"));
+        assertTrue(statements.get(1).contains("\"status\" text DEFAULT 'active'::text NOT NULL"));
+    }
+
+    @Test
+    @DisplayName("Indexes should be generated as CREATE INDEX ASYNC, skipping constraint indexes")
+    void generatesAsyncIndexes() throws SQLException {
+        List<String> statements = new AuroraDSQLBaselineGenerator(migratedSchema().open(), "public").generate();
+
+        assertEquals("CREATE INDEX ASYNC users_email_idx ON users (email)", statements.get(2));
+        assertEquals(5, statements.size());
+        for (String statement : statements) {
+            assertFalse(statement.contains("flyway_schema_history"), statement);
+            assertFalse(statement.contains("pkey ON"), statement);
+        }
+    }
+
+    @Test
+    @DisplayName("Views should be created after the views they depend on")
+    void ordersViewsByDependency() throws SQLException {
+        List<String> statements = new AuroraDSQLBaselineGenerator(migratedSchema().open(), "public").generate();
+
+        assertEquals("CREATE VIEW \"user_emails\" AS SELECT users.email FROM users", statements.get(3));
+        assertEquals("CREATE VIEW \"active_users\" AS SELECT user_emails.email AS id FROM user_emails", statements.get(4));
+    }
+
+    @Test
+    @DisplayName("Every generated statement should be a single DDL statement")
+    void oneDdlPerStatement() throws SQLException {
+        String script = new AuroraDSQLBaselineGenerator(migratedSchema().open(), "public").generateScript();
+
+        List<AuroraDSQLStatement> parsed = AuroraDSQLStatement.parse(script);
+        assertEquals(5, parsed.size());
+        for (AuroraDSQLStatement statement : parsed) {
+            assertTrue(statement.isDdl(), statement.getSql());
+            assertFalse(statement.isSyncIndex(), statement.getSql());
+        }
+    }
+
+    @Test
+    @DisplayName("apply() should run each statement in autocommit mode")
+    void appliesInAutocommit() throws SQLException {
+        FakeJdbc target = new FakeJdbc();
+        Connection conn = target.open();
+        conn.setAutoCommit(false);
+
+        int applied = new AuroraDSQLBaselineGenerator(migratedSchema().open(), "public").apply(conn);
+
+        assertEquals(5, applied);
+        assertEquals(5, target.last().executed.size());
+        assertFalse(target.last().autoCommit, "autocommit should be restored");
+    }
+
+    @Test
+    @DisplayName("apply() should retry statements that hit an OCC conflict")
+    void retriesConflicts() throws SQLException {
+        FakeJdbc target = new FakeJdbc();
+        AtomicInteger conflicts = new AtomicInteger();
+        Connection conn = conflictOnce(target.open(), "CREATE INDEX ASYNC", conflicts);
+
+        int applied = new AuroraDSQLBaselineGenerator(migratedSchema().open(), "public").apply(conn);
+
+        assertEquals(5, applied);
+        assertEquals(1, conflicts.get());
+        assertEquals(1, Collections.frequency(target.log, "CREATE INDEX ASYNC users_email_idx ON users (email)"),
+            target.log.toString());
+    }
+
+    private static Connection conflictOnce(Connection connection, String prefix, AtomicInteger conflicts) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+            (proxy, method, args) -> {
+                Object result = invoke(method, connection, args);
+                if (!method.getName().equals("createStatement")) {
+                    return result;
+                }
+                Statement stmt = (Statement) result;
+                return Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[]{Statement.class},
+                    (target, m, a) -> {
+                        if (m.getName().equals("execute") && ((String) a[0]).startsWith(prefix)
+                                && conflicts.compareAndSet(0, 1)) {
+                            throw new SQLException("change conflicts with another transaction", "40001");
+                        }
+                        return invoke(m, stmt, a);
+                    });
+            });
+    }
+
+    private static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    @DisplayName("Excluded tables should be left out together with their indexes")
+    void excludesTables() throws SQLException {
+        List<String> statements = new AuroraDSQLBaselineGenerator(migratedSchema().open(), "public")
+            .exclude("users")
+            .generate();
+
+        assertEquals(3, statements.size());
+        assertTrue(statements.get(0).startsWith("CREATE TABLE \"orders\""), statements.get(0));
+        assertTrue(statements.get(1).startsWith("CREATE VIEW"), statements.get(1));
+    }
+
+    @Test
+    @DisplayName("A custom schema history table and its side tables should be left out")
+    void excludesCustomHistoryTable() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc()
+            .onQuery("SELECT table_name, column_name",
+                new Object[]{"app_history", "installed_rank", "integer", "NO", null, null, 32, 0},
+                new Object[]{"app_history_checkpoints", "id", "bigint", "NO", null, null, 64, 0},
+                new Object[]{"app_history__orders", "installed_rank", "integer", "NO", null, null, 32, 0},
+                new Object[]{"orders", "id", "uuid", "NO", "gen_random_uuid()", null, null, null});
+
+        List<String> statements = new AuroraDSQLBaselineGenerator(jdbc.open(), "public")
+            .historyTable("app_history")
+            .generate();
+
+        assertEquals(1, statements.size(), statements.toString());
+        assertTrue(statements.get(0).startsWith("CREATE TABLE \"orders\""), statements.get(0));
+    }
+
+    @Test
+    @DisplayName("Views with circular references should be rejected")
+    void rejectsCircularViews() {
+        FakeJdbc jdbc = new FakeJdbc().onQuery("SELECT table_name, view_definition",
+            new Object[]{"a", "SELECT * FROM b"},
+            new Object[]{"b", "SELECT * FROM a"});
+
+        assertThrows(FlywayException.class,
+            () -> new AuroraDSQLBaselineGenerator(jdbc.open(), "public").generate());
+    }
+}
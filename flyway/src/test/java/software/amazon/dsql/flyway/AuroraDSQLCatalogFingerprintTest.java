@@ -0,0 +1,161 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.FlywayException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLCatalogFingerprint.
+ */
+class AuroraDSQLCatalogFingerprintTest {
+
+    private static FakeJdbc catalog(String usersIndex) {
+        return new FakeJdbc()
+            .onQuery("SELECT table_name, column_name",
+                new Object[]{"orders", "id", "uuid", "NO", "gen_random_uuid()", null, null, null},
+                new Object[]{"orders", "user_id", "uuid", "NO", null, null, null, null},
+                new Object[]{"users", "id", "uuid", "NO", "gen_random_uuid()", null, null, null},
+                new Object[]{"users", "email", "character varying", "NO", null, 255, null, null},
+                new Object[]{"user_emails", "email", "character varying", "YES", null, 255, null, null})
+            .onQuery("SELECT tablename, indexname",
+                new Object[]{"orders", "orders_pkey", "CREATE UNIQUE INDEX orders_pkey ON public.orders USING btree_index (id)"},
+                new Object[]{"users", "users_email_idx", usersIndex})
+            .onQuery("SELECT rel.relname",
+                new Object[]{"orders", "orders_pkey", "PRIMARY KEY (id)"},
+                new Object[]{"users", "users_pkey", "PRIMARY KEY (id)"})
+            .onQuery("SELECT table_name, view_definition",
+                new Object[]{"user_emails", " SELECT users.email\n   FROM public.users;"});
+    }
+
+    private static AuroraDSQLCatalogFingerprint read(FakeJdbc jdbc) throws SQLException {
+        return AuroraDSQLCatalogFingerprint.read(jdbc.open(), "public");
+    }
+
+    @Test
+    @DisplayName("The catalog should be read with one bulk query per component")
+    void readsCatalogInBulk() throws SQLException {
+        FakeJdbc jdbc = catalog("CREATE INDEX users_email_idx ON public.users USING btree_index (email)");
+        AuroraDSQLCatalogFingerprint fingerprint = read(jdbc);
+
+        assertEquals(4, jdbc.log.size());
+        assertEquals(Arrays.asList("orders", "user_emails", "users"), fingerprint.getObjects());
+        assertEquals(64, fingerprint.getDigest().length());
+    }
+
+    @Test
+    @DisplayName("Identical catalogs should have identical digests and no drift")
+    void identicalCatalogsMatch() throws SQLException {
+        String index = "CREATE INDEX users_email_idx ON public.users USING btree_index (email)";
+        AuroraDSQLCatalogFingerprint live = read(catalog(index));
+        AuroraDSQLCatalogFingerprint expected = read(catalog(index));
+
+        assertEquals(expected, live);
+        assertEquals(Collections.emptyList(), live.diff(expected));
+    }
+
+    @Test
+    @DisplayName("Drift should be localized to the changed component of the changed object")
+    void localizesDrift() throws SQLException {
+        AuroraDSQLCatalogFingerprint expected =
+            read(catalog("CREATE INDEX users_email_idx ON public.users USING btree_index (email)"));
+        AuroraDSQLCatalogFingerprint live =
+            read(catalog("CREATE INDEX users_email_idx ON public.users USING btree_index (lower(email))"));
+
+        assertNotEquals(expected.getDigest(), live.getDigest());
+        assertEquals(expected.getObjectHash("orders"), live.getObjectHash("orders"));
+        assertEquals(Collections.singletonList("users: indexes differ"), live.diff(expected));
+    }
+
+    @Test
+    @DisplayName("Missing and unexpected objects should be reported")
+    void reportsMissingAndUnexpectedObjects() throws SQLException {
+        AuroraDSQLCatalogFingerprint live = read(new FakeJdbc()
+            .onQuery("SELECT table_name, column_name", new Object[]{"audit", "id", "uuid", "NO", null, null, null, null}));
+        AuroraDSQLCatalogFingerprint expected = read(new FakeJdbc()
+            .onQuery("SELECT table_name, column_name", new Object[]{"orders", "id", "uuid", "NO", null, null, null, null}));
+
+        assertEquals(Arrays.asList("audit: unexpected", "orders: missing"), live.diff(expected));
+    }
+
+    @Test
+    @DisplayName("The schema history table and the plugin's side tables should not count as drift")
+    void ignoresHistoryObjects() throws SQLException {
+        String index = "CREATE INDEX users_email_idx ON public.users USING btree_index (email)";
+        AuroraDSQLCatalogFingerprint expected = read(catalog(index));
+        FakeJdbc jdbc = catalog(index)
+            .onQuery("SELECT table_name, column_name",
+                new Object[]{"app_history", "installed_rank", "integer", "NO", null, null, 32, 0},
+                new Object[]{"app_history__orders", "installed_rank", "integer", "NO", null, null, 32, 0},
+                new Object[]{"app_history_archive", "installed_rank", "integer", "NO", null, null, 32, 0},
+                new Object[]{"app_history_checkpoints", "id", "bigint", "NO", null, null, 64, 0},
+                new Object[]{"app_history_definitions", "name", "text", "NO", null, null, null, null},
+                new Object[]{"app_history_rewrites", "rewrite", "text", "NO", null, null, null, null},
+                new Object[]{"orders", "id", "uuid", "NO", "gen_random_uuid()", null, null, null},
+                new Object[]{"orders", "user_id", "uuid", "NO", null, null, null, null},
+                new Object[]{"users", "id", "uuid", "NO", "gen_random_uuid()", null, null, null},
+                new Object[]{"users", "email", "character varying", "NO", null, 255, null, null},
+                new Object[]{"user_emails", "email", "character varying", "YES", null, 255, null, null})
+            .onQuery("SELECT rel.relname",
+                new Object[]{"app_history", "app_history_pk", "PRIMARY KEY (installed_rank)"},
+                new Object[]{"orders", "orders_pkey", "PRIMARY KEY (id)"},
+                new Object[]{"users", "users_pkey", "PRIMARY KEY (id)"})
+            .onQuery("SELECT table_name, view_definition",
+                new Object[]{"app_history_all", " SELECT * FROM public.app_history__orders;"},
+                new Object[]{"user_emails", " SELECT users.email\n   FROM public.users;"});
+
+        AuroraDSQLCatalogFingerprint live = AuroraDSQLCatalogFingerprint.read(jdbc.open(), "public", "app_history");
+
+        assertEquals(Arrays.asList("orders", "user_emails", "users"), live.getObjects());
+        assertEquals(Collections.emptyList(), live.diff(expected));
+        assertEquals(expected, live);
+    }
+
+    @Test
+    @DisplayName("Serialized fingerprints should parse back to the same digest")
+    void serializeRoundTrip() throws SQLException {
+        AuroraDSQLCatalogFingerprint fingerprint =
+            read(catalog("CREATE INDEX users_email_idx ON public.users USING btree_index (email)"));
+
+        AuroraDSQLCatalogFingerprint parsed = AuroraDSQLCatalogFingerprint.parse(fingerprint.serialize());
+
+        assertEquals(fingerprint.getDigest(), parsed.getDigest());
+        assertEquals(fingerprint.getObjects(), parsed.getObjects());
+    }
+
+    @Test
+    @DisplayName("A stored fingerprint whose digest does not match its contents should be rejected")
+    void rejectsTamperedFingerprint() throws SQLException {
+        String text = read(catalog("CREATE INDEX users_email_idx ON public.users USING btree_index (email)"))
+            .serialize().replaceFirst("orders\tcolumns\t[0-9a-f]", "orders\tcolumns\tz");
+
+        assertThrows(FlywayException.class, () -> AuroraDSQLCatalogFingerprint.parse(text));
+    }
+
+    @Test
+    @DisplayName("Normalization should drop the schema qualifier and collapse whitespace")
+    void normalizesDefinitions() {
+        assertEquals("SELECT users.email FROM users;",
+            AuroraDSQLCatalog.normalize(" SELECT users.email\n   FROM public.users;", "public"));
+        assertEquals("CREATE INDEX i ON t (x)",
+            AuroraDSQLCatalog.normalize("CREATE INDEX i ON \"app\".t (x)", "app"));
+        assertEquals("SELECT mapp.x FROM t",
+            AuroraDSQLCatalog.normalize("SELECT mapp.x FROM app.t", "app"));
+    }
+
+    @Test
+    @DisplayName("AuroraDSQLSchema should expose getFingerprint()")
+    void schemaExposesFingerprint() throws NoSuchMethodException {
+        assertEquals(AuroraDSQLCatalogFingerprint.class,
+            AuroraDSQLSchema.class.getDeclaredMethod("getFingerprint").getReturnType());
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLCatalog.
+ */
+class AuroraDSQLCatalogTest {
+
+    @Test
+    @DisplayName("Relations should answer schema and table existence from one query")
+    void readsRelations() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc().onQuery("SELECT nsp.nspname",
+            new Object[]{"public", "flyway_schema_history"},
+            new Object[]{"public", "orders"},
+            new Object[]{"reporting", null});
+
+        AuroraDSQLCatalog.Relations relations = AuroraDSQLCatalog.Relations.read(jdbc.open());
+
+        assertEquals(1, jdbc.log.size());
+        assertTrue(relations.hasSchema("public"));
+        assertTrue(relations.hasSchema("reporting"));
+        assertFalse(relations.hasSchema("missing"));
+        assertTrue(relations.hasRelation("public", "orders"));
+        assertFalse(relations.hasRelation("reporting", "orders"));
+        assertTrue(relations.hasRelations("public"));
+        assertFalse(relations.hasRelations("reporting"), "a schema without tables should be empty");
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLCdsTraining and the bundled native-image metadata.
+ */
+class AuroraDSQLCdsTrainingTest {
+
+    private static final String METADATA =
+        "META-INF/native-image/software.amazon.dsql/aurora-dsql-flyway-support/";
+
+    @Test
+    @DisplayName("Training run should expose a public static main method")
+    void hasMainMethod() throws NoSuchMethodException {
+        Method main = AuroraDSQLCdsTraining.class.getDeclaredMethod("main", String[].class);
+        assertTrue(Modifier.isPublic(main.getModifiers()));
+        assertTrue(Modifier.isStatic(main.getModifiers()));
+    }
+
+    @Test
+    @DisplayName("Reflection metadata should only name plugin classes that exist")
+    void reflectionMetadataNamesExistingClasses() throws Exception {
+        String config = read(METADATA + "reflect-config.json");
+        Matcher names = Pattern.compile("\"name\": \"(software\\.amazon\\.dsql\\.flyway\\.[A-Za-z]+)\"").matcher(config);
+
+        int found = 0;
+        while (names.find()) {
+            assertNotNull(Class.forName(names.group(1)), names.group(1));
+            found++;
+        }
+        assertTrue(found > 0, "reflect-config.json should list the plugin classes");
+        assertTrue(config.contains(AuroraDSQLDatabaseType.class.getName()),
+            "The SPI entry point must be registered for reflection");
+    }
+
+    @Test
+    @DisplayName("Resource metadata should include the Flyway plugin SPI file")
+    void resourceMetadataIncludesServiceFile() throws Exception {
+        String config = read(METADATA + "resource-config.json");
+        assertTrue(config.contains("META-INF/services/org.flywaydb.core.extensibility.Plugin"));
+    }
+
+    private static String read(String resource) throws Exception {
+        try (InputStream in = AuroraDSQLCdsTrainingTest.class.getClassLoader().getResourceAsStream(resource)) {
+            assertNotNull(in, resource + " should be on the classpath");
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
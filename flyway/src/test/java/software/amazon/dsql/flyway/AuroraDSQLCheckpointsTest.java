@@ -0,0 +1,195 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.flywaydb.core.api.configuration.Configuration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLCheckpoints.
+ */
+class AuroraDSQLCheckpointsTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+    private static final String TABLE = "\"public\".\"flyway_schema_history_checkpoints\"";
+    private static final List<String> SCRIPT = Arrays.asList(
+        "CREATE TABLE a (id UUID PRIMARY KEY)",
+        "CREATE TABLE b (id UUID PRIMARY KEY)",
+        "CREATE INDEX ASYNC b_idx ON b (id)");
+
+    private static void run(Connection session, List<String> statements) throws SQLException {
+        try (Statement stmt = session.createStatement()) {
+            for (String sql : statements) {
+                stmt.execute(sql);
+            }
+        }
+    }
+
+    private static List<String> checkpoints(FakeJdbc jdbc) {
+        List<String> inserts = new ArrayList<>();
+        for (String sql : jdbc.log) {
+            if (sql.startsWith("INSERT INTO " + TABLE)) {
+                inserts.add(sql.substring(sql.indexOf('[')));
+            }
+        }
+        return inserts;
+    }
+
+    private static Context context(Connection connection, String script, int checksum) {
+        Configuration configuration = (Configuration) Proxy.newProxyInstance(Configuration.class.getClassLoader(),
+            new Class<?>[]{Configuration.class}, (target, method, args) ->
+                method.getName().equals("getTable") ? "flyway_schema_history"
+                    : method.getName().equals("getDefaultSchema") ? "public" : null);
+        MigrationInfo migration = (MigrationInfo) Proxy.newProxyInstance(MigrationInfo.class.getClassLoader(),
+            new Class<?>[]{MigrationInfo.class}, (target, method, args) ->
+                method.getName().equals("getScript") ? script
+                    : method.getName().equals("getChecksum") ? Integer.valueOf(checksum) : null);
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+            (target, method, args) -> {
+                switch (method.getName()) {
+                    case "getConnection":
+                        return connection;
+                    case "getConfiguration":
+                        return configuration;
+                    case "getMigrationInfo":
+                        return migration;
+                    default:
+                        return null;
+                }
+            });
+    }
+
+    @Test
+    @DisplayName("Each autocommitted statement should be checkpointed with its ordinal")
+    void checkpointsAutocommitStatements() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLSession.of(session).addListener(
+            new AuroraDSQLCheckpoints.Tracker(TABLE, "V1__init.sql", 42, Collections.emptyList()));
+
+        run(session, SCRIPT);
+
+        assertEquals(Arrays.asList(
+            "[V1__init.sql, 42, 1, " + AuroraDSQLCheckpoints.checksum(SCRIPT.get(0)) + "]",
+            "[V1__init.sql, 42, 2, " + AuroraDSQLCheckpoints.checksum(SCRIPT.get(1)) + "]",
+            "[V1__init.sql, 42, 3, " + AuroraDSQLCheckpoints.checksum(SCRIPT.get(2)) + "]"), checkpoints(jdbc));
+    }
+
+    @Test
+    @DisplayName("A rerun should skip checkpointed statements and resume at the first uncommitted one")
+    void resumesAfterCheckpoints() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLSession.of(session).addListener(new AuroraDSQLCheckpoints.Tracker(TABLE, "V1__init.sql", 42,
+            Arrays.asList(AuroraDSQLCheckpoints.checksum(SCRIPT.get(0)), AuroraDSQLCheckpoints.checksum(SCRIPT.get(1)))));
+
+        run(session, SCRIPT);
+
+        assertFalse(jdbc.log.contains(SCRIPT.get(0)));
+        assertFalse(jdbc.log.contains(SCRIPT.get(1)));
+        assertTrue(jdbc.log.contains(SCRIPT.get(2)));
+        assertEquals(Collections.singletonList(
+            "[V1__init.sql, 42, 3, " + AuroraDSQLCheckpoints.checksum(SCRIPT.get(2)) + "]"), checkpoints(jdbc));
+    }
+
+    @Test
+    @DisplayName("A statement that no longer matches its checkpoint should stop the resume")
+    void stopsResumingOnMismatch() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLSession.of(session).addListener(new AuroraDSQLCheckpoints.Tracker(TABLE, "V1__init.sql", 42,
+            Arrays.asList(AuroraDSQLCheckpoints.checksum(SCRIPT.get(0)), AuroraDSQLCheckpoints.checksum("DROP TABLE b"))));
+
+        run(session, SCRIPT);
+
+        assertFalse(jdbc.log.contains(SCRIPT.get(0)));
+        assertTrue(jdbc.log.contains(SCRIPT.get(1)));
+        assertTrue(jdbc.log.contains(SCRIPT.get(2)));
+    }
+
+    @Test
+    @DisplayName("DML transactions should carry their checkpoints inside the transaction")
+    void checkpointsInsideDmlTransactions() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLSession.of(session).addListener(
+            new AuroraDSQLCheckpoints.Tracker(TABLE, "V2__data.sql", 7, Collections.emptyList()));
+        session.setAutoCommit(false);
+
+        run(session, Arrays.asList("INSERT INTO a VALUES (gen_random_uuid())", "UPDATE a SET id = id"));
+        session.commit();
+
+        List<String> executed = jdbc.last().executed;
+        assertEquals("COMMIT", executed.get(executed.size() - 1));
+        assertTrue(executed.get(executed.size() - 2).startsWith("INSERT INTO " + TABLE),
+            "checkpoints should be written before the commit: " + executed);
+        assertEquals(2, checkpoints(jdbc).size());
+    }
+
+    @Test
+    @DisplayName("Rolled back statements should not be checkpointed")
+    void discardsRolledBackStatements() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLSession.of(session).addListener(
+            new AuroraDSQLCheckpoints.Tracker(TABLE, "V2__data.sql", 7, Collections.emptyList()));
+        session.setAutoCommit(false);
+
+        run(session, Collections.singletonList("INSERT INTO a VALUES (gen_random_uuid())"));
+        session.rollback();
+        session.commit();
+
+        assertEquals(Collections.emptyList(), checkpoints(jdbc));
+    }
+
+    @Test
+    @DisplayName("The callback should load checkpoints before a migration and delete them after success")
+    void callbackLifecycle() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc()
+            .onQuery("SELECT \"ordinal\"", new Object[]{1, AuroraDSQLCheckpoints.checksum(SCRIPT.get(0))})
+            .onQuery("SELECT max(", new Object[]{3});
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLCheckpoints callback = new AuroraDSQLCheckpoints();
+        Context context = context(session, "V1__init.sql", 42);
+
+        assertTrue(callback.supports(Event.BEFORE_EACH_MIGRATE, context));
+        assertFalse(callback.canHandleInTransaction(Event.BEFORE_EACH_MIGRATE, context));
+        assertFalse(callback.canHandleInTransaction(Event.AFTER_EACH_MIGRATE, context),
+            "deleting checkpoints switches to autocommit, which would commit the migration's transaction");
+        assertTrue(callback.canHandleInTransaction(Event.AFTER_EACH_MIGRATE_ERROR, context));
+        callback.handle(Event.BEFORE_EACH_MIGRATE, context);
+        run(session, SCRIPT);
+        callback.handle(Event.AFTER_EACH_MIGRATE, context);
+        run(session, Collections.singletonList("SELECT 1"));
+
+        assertTrue(jdbc.log.get(0).startsWith("CREATE TABLE IF NOT EXISTS " + TABLE), jdbc.log.get(0));
+        assertFalse(jdbc.log.contains(SCRIPT.get(0)), "the checkpointed statement should be skipped");
+        assertTrue(jdbc.log.stream().anyMatch(sql -> sql.startsWith("DELETE FROM " + TABLE)));
+        assertEquals(2, checkpoints(jdbc).size(), "statements after the migration should not be tracked");
+    }
+
+    @Test
+    @DisplayName("Checkpoint table should be named after the history table in the default schema")
+    void tableName() throws SQLException {
+        Context context = context(new FakeJdbc().open(), "V1__init.sql", 1);
+        assertEquals(TABLE, AuroraDSQLCheckpoints.tableName(context.getConfiguration()));
+    }
+}
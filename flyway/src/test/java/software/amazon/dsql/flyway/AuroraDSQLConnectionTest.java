@@ -10,7 +10,11 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.DisplayName;
 
 import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -51,4 +55,24 @@ class AuroraDSQLConnectionTest {
         assertEquals(1, exceptionTypes.length);
         assertEquals(java.sql.SQLException.class, exceptionTypes[0]);
     }
+
+    @Test
+    @DisplayName("Read-only sessions should reject writes before they reach the cluster")
+    void readOnlyGuardRejectsWrites() throws SQLException {
+        long hour = TimeUnit.HOURS.toNanos(1);
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, hour, hour);
+        AuroraDSQLSession.of(session).addListener(new AuroraDSQLConnection.ReadOnlyGuard());
+
+        try (Statement stmt = session.createStatement()) {
+            stmt.execute("SET search_path = public");
+            stmt.executeQuery("SELECT 1");
+            SQLException insert = assertThrows(SQLException.class,
+                () -> stmt.executeUpdate("INSERT INTO flyway_schema_history VALUES (1)"));
+            assertEquals("25006", insert.getSQLState());
+            assertThrows(SQLException.class, () -> stmt.execute("CREATE TABLE t (id INT PRIMARY KEY)"));
+        }
+
+        assertEquals(2, jdbc.log.size(), jdbc.log.toString());
+    }
 }
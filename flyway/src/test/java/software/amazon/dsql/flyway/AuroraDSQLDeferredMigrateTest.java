@@ -0,0 +1,172 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.flywaydb.core.api.output.MigrateResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLDeferredMigrate.
+ */
+class AuroraDSQLDeferredMigrateTest {
+
+    private static MigrateResult result(int executed) {
+        MigrateResult result = new MigrateResult();
+        result.migrationsExecuted = executed;
+        result.success = true;
+        return result;
+    }
+
+    private static Context migrating(String script) {
+        MigrationInfo info = (MigrationInfo) Proxy.newProxyInstance(MigrationInfo.class.getClassLoader(),
+            new Class<?>[]{MigrationInfo.class}, (target, method, args) ->
+                method.getName().equals("getScript") ? script : null);
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+            (target, method, args) -> method.getName().equals("getMigrationInfo") ? info : null);
+    }
+
+    @Test
+    @DisplayName("Critical migrations should complete before deferred ones start, with the throttle set")
+    void runsCriticalFirst() throws Exception {
+        AuroraDSQLDeferredMigrate migrate = new AuroraDSQLDeferredMigrate(50);
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        AtomicReference<AuroraDSQLDeferredMigrate.Throttle> throttle = new AtomicReference<>();
+
+        migrate.start(() -> result(2), () -> {
+            throttle.set(AuroraDSQLDeferredMigrate.currentThrottle());
+            release.get(5, TimeUnit.SECONDS);
+            return result(1);
+        });
+
+        assertEquals(2, migrate.getCritical().get(5, TimeUnit.SECONDS).migrationsExecuted);
+        assertThrows(TimeoutException.class, () -> migrate.getDeferred().get(50, TimeUnit.MILLISECONDS));
+        release.complete(null);
+        assertEquals(1, migrate.getDeferred().get(5, TimeUnit.SECONDS).migrationsExecuted);
+        assertNotNull(throttle.get(), "deferred connections should be throttled");
+        assertNull(AuroraDSQLDeferredMigrate.currentThrottle(), "other threads should not be throttled");
+    }
+
+    @Test
+    @DisplayName("A failed critical migration should fail both futures and skip deferred migrations")
+    void criticalFailureSkipsDeferred() {
+        AuroraDSQLDeferredMigrate migrate = new AuroraDSQLDeferredMigrate(50);
+        List<String> ran = new ArrayList<>();
+
+        migrate.run(() -> {
+            throw new IllegalStateException("V3 failed");
+        }, () -> {
+            ran.add("deferred");
+            return result(1);
+        });
+
+        ExecutionException critical = assertThrows(ExecutionException.class, () -> migrate.getCritical().get());
+        assertEquals("V3 failed", critical.getCause().getMessage());
+        assertTrue(migrate.getDeferred().isCompletedExceptionally());
+        assertTrue(ran.isEmpty());
+    }
+
+    @Test
+    @DisplayName("Subscribers should see each migration start and end, then completion")
+    void publishesProgress() throws Exception {
+        AuroraDSQLDeferredMigrate migrate = new AuroraDSQLDeferredMigrate(50);
+        List<String> updates = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> completed = new CompletableFuture<>();
+        migrate.getProgress().subscribe(new Flow.Subscriber<AuroraDSQLDeferredMigrate.Progress>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(AuroraDSQLDeferredMigrate.Progress item) {
+                updates.add(item.toString());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                completed.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.complete(null);
+            }
+        });
+        AuroraDSQLDeferredMigrate.ProgressCallback deferred =
+            new AuroraDSQLDeferredMigrate.ProgressCallback("deferred", migrate::publish);
+        assertTrue(deferred.supports(Event.AFTER_EACH_MIGRATE_ERROR, null));
+        assertFalse(deferred.supports(Event.AFTER_MIGRATE, null));
+
+        migrate.run(() -> result(0), () -> {
+            deferred.handle(Event.BEFORE_EACH_MIGRATE, migrating("V1__backfill.sql"));
+            deferred.handle(Event.AFTER_EACH_MIGRATE, migrating("V1__backfill.sql"));
+            return result(1);
+        });
+
+        completed.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("deferred V1__backfill.sql started", "deferred V1__backfill.sql applied"), updates);
+    }
+
+    @Test
+    @DisplayName("A subscriber that never requests updates should not hold up migrations")
+    void dropsUpdatesForSlowSubscribers() throws Exception {
+        AuroraDSQLDeferredMigrate migrate = new AuroraDSQLDeferredMigrate(50);
+        migrate.getProgress().subscribe(new Flow.Subscriber<AuroraDSQLDeferredMigrate.Progress>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+            }
+
+            @Override
+            public void onNext(AuroraDSQLDeferredMigrate.Progress item) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        AuroraDSQLDeferredMigrate.ProgressCallback critical =
+            new AuroraDSQLDeferredMigrate.ProgressCallback("critical", migrate::publish);
+
+        migrate.start(() -> {
+            for (int i = 0; i <= Flow.defaultBufferSize(); i++) {
+                critical.handle(Event.BEFORE_EACH_MIGRATE, migrating("V" + i + "__step.sql"));
+            }
+            return result(Flow.defaultBufferSize() + 1);
+        }, () -> result(0));
+
+        assertEquals(Flow.defaultBufferSize() + 1, migrate.getCritical().get(5, TimeUnit.SECONDS).migrationsExecuted);
+        migrate.getDeferred().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    @DisplayName("The throttle should pause long enough to stay within its busy share")
+    void pausesForBusyShare() {
+        assertEquals(100, new AuroraDSQLDeferredMigrate.Throttle(50).pauseNanos(100));
+        assertEquals(300, new AuroraDSQLDeferredMigrate.Throttle(25).pauseNanos(100));
+        assertEquals(0, new AuroraDSQLDeferredMigrate.Throttle(100).pauseNanos(100));
+        assertEquals(9900, new AuroraDSQLDeferredMigrate.Throttle(0).pauseNanos(100), "at least 1% busy");
+    }
+}
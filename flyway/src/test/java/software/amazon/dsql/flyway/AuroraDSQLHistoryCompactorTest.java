@@ -0,0 +1,64 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLHistoryCompactor.
+ *
+ * <p>These tests verify the summary digest and row format without requiring a
+ * database connection. Compaction itself is covered by integration tests.</p>
+ */
+class AuroraDSQLHistoryCompactorTest {
+
+    private static AuroraDSQLHistoryCompactor.HistoryRow row(int rank, String version, Integer checksum) {
+        return new AuroraDSQLHistoryCompactor.HistoryRow(rank, version, "desc " + version, "SQL",
+            "V" + version + "__desc.sql", checksum, "admin", 12, true);
+    }
+
+    @Test
+    @DisplayName("Digest should change when any archived row changes")
+    void digestDetectsChanges() {
+        List<AuroraDSQLHistoryCompactor.HistoryRow> rows = Arrays.asList(row(1, "1", 100), row(2, "2", 200));
+        String digest = AuroraDSQLHistoryCompactor.digest(rows);
+
+        assertEquals(64, digest.length());
+        assertEquals(digest, AuroraDSQLHistoryCompactor.digest(Arrays.asList(row(1, "1", 100), row(2, "2", 200))));
+        assertNotEquals(digest, AuroraDSQLHistoryCompactor.digest(Arrays.asList(row(1, "1", 100), row(2, "2", 201))));
+        assertNotEquals(digest, AuroraDSQLHistoryCompactor.digest(Arrays.asList(row(1, "1", 100), row(2, "2", null))));
+        assertNotEquals(digest, AuroraDSQLHistoryCompactor.digest(Collections.singletonList(row(1, "1", 100))));
+    }
+
+    @Test
+    @DisplayName("Summary description should carry the digest and fit the description column")
+    void summaryDescriptionRoundTrips() {
+        String digest = AuroraDSQLHistoryCompactor.digest(Collections.singletonList(row(1, "1", 100)));
+        String description = AuroraDSQLHistoryCompactor.summaryDescription(12345, digest);
+        AuroraDSQLHistoryCompactor.HistoryRow summary = new AuroraDSQLHistoryCompactor.HistoryRow(
+            7, "7", description, "BASELINE", AuroraDSQLHistoryCompactor.SUMMARY_SCRIPT, 1, "admin", 0, true);
+
+        assertTrue(description.length() <= 200, "description column is VARCHAR(200)");
+        assertTrue(summary.isSummary());
+        assertEquals(digest, AuroraDSQLHistoryCompactor.currentDigest(Collections.singletonList(summary)));
+        assertNull(AuroraDSQLHistoryCompactor.currentDigest(Collections.emptyList()));
+    }
+
+    @Test
+    @DisplayName("Flyway's own baseline row should not be mistaken for a summary")
+    void flywayBaselineIsNotSummary() {
+        AuroraDSQLHistoryCompactor.HistoryRow baseline = new AuroraDSQLHistoryCompactor.HistoryRow(
+            1, "1", "<< Flyway Baseline >>", "BASELINE", "<< Flyway Baseline >>", null, "admin", 0, true);
+
+        assertFalse(baseline.isSummary());
+    }
+}
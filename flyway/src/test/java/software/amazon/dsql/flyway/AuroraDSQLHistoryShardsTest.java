@@ -0,0 +1,127 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.configuration.Configuration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLHistoryShards.
+ */
+class AuroraDSQLHistoryShardsTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+    private static final String TABLE = "flyway_schema_history";
+
+    private static FakeJdbc withShards() {
+        return new FakeJdbc().onQuery("SELECT t.table_name FROM information_schema.tables",
+            new Object[]{TABLE}, new Object[]{TABLE + "__billing"}, new Object[]{TABLE + "__orders"},
+            new Object[]{TABLE + "__orders_archive"});
+    }
+
+    @Test
+    @DisplayName("The configured shard should select its own history table")
+    void shardsHistoryTable() {
+        assertEquals(TABLE, AuroraDSQLHistoryShards.historyTable(TABLE), "unsharded by default");
+        System.setProperty("flyway.dsql.history.shard", "Orders-API");
+        try {
+            assertEquals(TABLE + "__orders_api", AuroraDSQLHistoryShards.historyTable(TABLE));
+        } finally {
+            System.clearProperty("flyway.dsql.history.shard");
+        }
+    }
+
+    @Test
+    @DisplayName("Shard tables and the combined view should be recognized as history objects")
+    void recognizesShardObjects() {
+        assertTrue(AuroraDSQLHistoryShards.isShardObject(TABLE, TABLE + "__orders"));
+        assertTrue(AuroraDSQLHistoryShards.isShardObject(TABLE, TABLE + "__orders_checkpoints"));
+        assertTrue(AuroraDSQLHistoryShards.isShardObject(TABLE, TABLE + "_all"));
+        assertFalse(AuroraDSQLHistoryShards.isShardObject(TABLE, "orders"));
+        assertFalse(AuroraDSQLHistoryShards.isShardObject(TABLE, TABLE + "_archive"));
+    }
+
+    @Test
+    @DisplayName("The combined view should union every shard with its shard name")
+    void buildsView() {
+        Map<String, String> shards = new LinkedHashMap<>();
+        shards.put("", TABLE);
+        shards.put("orders", TABLE + "__orders");
+
+        String sql = AuroraDSQLHistoryShards.viewSql("public", TABLE, shards);
+
+        assertEquals("CREATE OR REPLACE VIEW \"public\".\"flyway_schema_history_all\" AS\n"
+            + "SELECT ''::VARCHAR(128) AS \"shard\", \"installed_rank\", \"version\", \"description\", \"type\","
+            + " \"script\", \"checksum\", \"installed_by\", \"installed_on\", \"execution_time\", \"success\""
+            + " FROM \"public\".\"flyway_schema_history\"\n"
+            + "UNION ALL\n"
+            + "SELECT 'orders'::VARCHAR(128) AS \"shard\", \"installed_rank\", \"version\", \"description\", \"type\","
+            + " \"script\", \"checksum\", \"installed_by\", \"installed_on\", \"execution_time\", \"success\""
+            + " FROM \"public\".\"flyway_schema_history__orders\"", sql);
+    }
+
+    @Test
+    @DisplayName("Shard tables should be listed by shard, leaving out compaction archives")
+    void listsShards() throws SQLException {
+        FakeJdbc jdbc = withShards();
+
+        Map<String, String> shards = AuroraDSQLHistoryShards.shardTables(jdbc.open(), "public", TABLE);
+
+        assertEquals(3, shards.size());
+        assertEquals(TABLE, shards.get(""));
+        assertEquals(TABLE + "__billing", shards.get("billing"));
+        assertEquals(TABLE + "__orders", shards.get("orders"));
+        assertTrue(jdbc.log.get(0).endsWith("[public, flyway_schema_history, flyway\\_schema\\_history\\_\\_%]"),
+            jdbc.log.get(0));
+    }
+
+    @Test
+    @DisplayName("Creating a shard's history table should refresh the combined view")
+    void refreshesViewOnCreate() throws SQLException {
+        FakeJdbc jdbc = withShards();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLSession.of(session).addListener(
+            new AuroraDSQLHistoryShards.ViewRefresher("public", TABLE, TABLE + "__orders"));
+
+        try (Statement stmt = session.createStatement()) {
+            stmt.execute("CREATE TABLE \"public\".\"other\" (id INT PRIMARY KEY)");
+            stmt.execute("CREATE TABLE \"public\".\"flyway_schema_history__orders\" (\n"
+                + AuroraDSQLDatabase.HISTORY_COLUMNS + ")");
+        }
+
+        assertEquals(4, jdbc.log.size(), jdbc.log.toString());
+        assertTrue(jdbc.log.get(2).startsWith("SELECT t.table_name"), jdbc.log.get(2));
+        assertTrue(jdbc.log.get(3).startsWith("CREATE OR REPLACE VIEW \"public\".\"flyway_schema_history_all\""),
+            jdbc.log.get(3));
+        assertTrue(jdbc.log.get(3).contains("'billing'"), jdbc.log.get(3));
+    }
+
+    @Test
+    @DisplayName("Side tables of a shard should live next to the shard's history table")
+    void shardsSideTables() {
+        System.setProperty("flyway.dsql.history.shard", "orders");
+        Configuration configuration = (Configuration) Proxy.newProxyInstance(Configuration.class.getClassLoader(),
+            new Class<?>[]{Configuration.class}, (target, method, args) ->
+                method.getName().equals("getTable") ? TABLE
+                    : method.getName().equals("getDefaultSchema") ? "public" : null);
+        try {
+            assertEquals("\"public\".\"flyway_schema_history__orders_checkpoints\"",
+                AuroraDSQLCheckpoints.tableName(configuration));
+        } finally {
+            System.clearProperty("flyway.dsql.history.shard");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLJson.
+ */
+class AuroraDSQLJsonTest {
+
+    @Test
+    @DisplayName("Maps, lists and scalars should be written as JSON")
+    void writesValues() {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("name", "orders");
+        value.put("rows", 42L);
+        value.put("done", true);
+        value.put("plan", null);
+        value.put("steps", Arrays.asList(1, "two"));
+        assertEquals("{\"name\":\"orders\",\"rows\":42,\"done\":true,\"plan\":null,\"steps\":[1,\"two\"]}",
+            AuroraDSQLJson.write(value));
+    }
+
+    @Test
+    @DisplayName("Non-finite numbers should be written as null")
+    void writesNonFiniteAsNull() {
+        assertEquals("[null,null,null,1.5]",
+            AuroraDSQLJson.write(Arrays.asList(Double.NaN, Double.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 1.5)));
+    }
+
+    @Test
+    @DisplayName("Strings should be escaped")
+    void escapesStrings() {
+        assertEquals("\"a \\\"b\\\"\\\\c\\n\\u0001\"", AuroraDSQLJson.quote("a \"b\"\\c\n\u0001"));
+    }
+}
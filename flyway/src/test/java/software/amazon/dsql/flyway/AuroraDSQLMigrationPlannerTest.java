@@ -0,0 +1,92 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLMigrationPlanner and AuroraDSQLMigrationPlan.
+ *
+ * <p>These tests plan in-memory scripts; history-backed planning against a
+ * live cluster is covered by integration tests.</p>
+ */
+class AuroraDSQLMigrationPlannerTest {
+
+    @Test
+    @DisplayName("Each DDL should be its own transaction and DML runs should share one")
+    void countsTransactions() {
+        List<AuroraDSQLStatement> statements = AuroraDSQLStatement.parse(
+            "CREATE TABLE a (id INT PRIMARY KEY);" +
+            "INSERT INTO a VALUES (1);" +
+            "INSERT INTO a VALUES (2);" +
+            "CREATE INDEX ASYNC idx_a ON a(id);" +
+            "UPDATE a SET id = 3 WHERE id = 2;");
+
+        // CREATE, INSERT+INSERT, CREATE INDEX, UPDATE, history insert
+        assertEquals(5, AuroraDSQLMigrationPlanner.transactions(statements));
+    }
+
+    @Test
+    @DisplayName("Shape forecasts should be calibrated by scripts that have history")
+    void calibratesShapeForecasts() {
+        String ddl = "CREATE TABLE a (id INT PRIMARY KEY);";
+        long shape = AuroraDSQLMigrationPlanner.shapeMillis(AuroraDSQLStatement.parse(ddl));
+
+        AuroraDSQLMigrationPlanner planner = new AuroraDSQLMigrationPlanner();
+        Map<String, String> scripts = new LinkedHashMap<>();
+        scripts.put("V1__known.sql", ddl);
+        scripts.put("V2__new.sql", ddl);
+
+        // Without history both scripts use the raw shape estimate
+        AuroraDSQLMigrationPlan uncalibrated = planner.plan(scripts);
+        assertEquals(shape, uncalibrated.getSteps().get(1).getForecastMillis());
+        assertEquals(AuroraDSQLMigrationPlan.Source.SHAPE, uncalibrated.getSteps().get(0).getSource());
+
+        // V1 ran three times slower than its shape elsewhere, so V2 is scaled to match
+        planner.record("V1__known.sql", (int) (shape * 3));
+        planner.record("V1__known.sql", (int) (shape * 3) + 10);
+        planner.record("V1__known.sql", (int) (shape * 3) - 10);
+        AuroraDSQLMigrationPlan calibrated = planner.plan(scripts);
+        assertEquals(AuroraDSQLMigrationPlan.Source.HISTORY, calibrated.getSteps().get(0).getSource());
+        assertEquals(3, calibrated.getSteps().get(0).getObservations());
+        assertEquals(shape * 3, calibrated.getSteps().get(0).getForecastMillis());
+        assertEquals(shape * 3, calibrated.getSteps().get(1).getForecastMillis());
+    }
+
+    @Test
+    @DisplayName("Long poles should be reported longest first")
+    void reportsLongPoles() {
+        Map<String, String> scripts = new LinkedHashMap<>();
+        scripts.put("V1__seed.sql", "INSERT INTO a VALUES (1);");
+        scripts.put("V2__tables.sql", "CREATE TABLE b (id INT PRIMARY KEY); CREATE TABLE c (id INT PRIMARY KEY);");
+        scripts.put("V3__table.sql", "CREATE TABLE d (id INT PRIMARY KEY);");
+
+        AuroraDSQLMigrationPlan plan = new AuroraDSQLMigrationPlanner().plan(scripts);
+
+        List<AuroraDSQLMigrationPlan.Step> poles = plan.getLongPoles();
+        assertEquals(2, poles.size());
+        assertEquals("V2__tables.sql", poles.get(0).getScript());
+        assertEquals(2 + 3 + 2, plan.getTotalTransactions());
+        assertTrue(plan.describe().contains("Long poles:"));
+    }
+
+    @Test
+    @DisplayName("Synchronous CREATE INDEX should be flagged")
+    void warnsAboutSynchronousIndexes() {
+        Map<String, String> scripts = new LinkedHashMap<>();
+        scripts.put("V1__index.sql", "CREATE INDEX idx ON a(id);");
+
+        AuroraDSQLMigrationPlan plan = new AuroraDSQLMigrationPlanner().plan(scripts);
+
+        assertEquals(1, plan.getSteps().get(0).getWarnings().size());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLMigrationServer.
+ */
+class AuroraDSQLMigrationServerTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+    private static final String HISTORY = "\"public\".\"flyway_schema_history\"";
+
+    private static AuroraDSQLMigrationServer server(FakeJdbc jdbc) {
+        return server(jdbc, Collections.emptyList());
+    }
+
+    private static AuroraDSQLMigrationServer server(FakeJdbc jdbc, List<Path> directories) {
+        return new AuroraDSQLMigrationServer(null,
+            new AuroraDSQLMigrationServer.KeepAliveDataSource(jdbc.dataSource(), 2, HOUR, HOUR), HISTORY, directories);
+    }
+
+    @Test
+    @DisplayName("Returned connections should be kept open and handed out again")
+    void keepsConnectionsAlive() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        AuroraDSQLMigrationServer.KeepAliveDataSource keepAlive =
+            new AuroraDSQLMigrationServer.KeepAliveDataSource(jdbc.dataSource(), 1, HOUR, HOUR);
+
+        Connection first = keepAlive.getConnection();
+        first.setAutoCommit(false);
+        first.close();
+        assertTrue(first.isClosed());
+        assertThrows(SQLException.class, first::createStatement);
+        Connection second = keepAlive.getConnection();
+        Connection third = keepAlive.getConnection();
+        second.close();
+        third.close();
+
+        assertEquals(2, jdbc.connections.size(), "the second lease should reuse the first connection");
+        assertTrue(jdbc.connections.get(0).autoCommit, "a returned transaction should be rolled back");
+        assertEquals("ROLLBACK", jdbc.log.get(0));
+        assertEquals(1, keepAlive.idleCount());
+        assertTrue(jdbc.connections.get(1).closed, "connections beyond the idle limit should be closed");
+        keepAlive.close();
+        assertTrue(jdbc.connections.get(0).closed);
+    }
+
+    @Test
+    @DisplayName("Connections that died while leased should be closed instead of kept")
+    void dropsDeadConnections() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        AuroraDSQLMigrationServer.KeepAliveDataSource keepAlive =
+            new AuroraDSQLMigrationServer.KeepAliveDataSource(jdbc.dataSource(), 1, HOUR, HOUR);
+
+        Connection lease = keepAlive.getConnection();
+        jdbc.last().kill();
+        lease.close();
+        keepAlive.getConnection().close();
+
+        assertEquals(1, keepAlive.idleCount(), "only the replacement should be idle");
+        assertTrue(jdbc.connections.get(0).closed);
+        assertEquals(2, jdbc.connections.size());
+    }
+
+    @Test
+    @DisplayName("Connections past their maximum age should be replaced")
+    void retiresOldConnections() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        AuroraDSQLMigrationServer.KeepAliveDataSource keepAlive =
+            new AuroraDSQLMigrationServer.KeepAliveDataSource(jdbc.dataSource(), 1, 0, HOUR);
+
+        keepAlive.getConnection().close();
+        keepAlive.getConnection().close();
+
+        assertEquals(2, jdbc.connections.size());
+        assertTrue(jdbc.connections.get(0).closed);
+    }
+
+    @Test
+    @DisplayName("An unchanged schema history should be answered without running Flyway")
+    void answersFromRememberedState() {
+        FakeJdbc jdbc = new FakeJdbc().onQuery("SELECT count(*)", new Object[]{3L, 3L, 42L, 3L});
+        AuroraDSQLMigrationServer server = server(jdbc);
+        server.state = new AuroraDSQLMigrationServer.State("3:3:42:3", server.scripts(), "3", 0);
+
+        Map<String, Object> response = server.handle("migrate");
+
+        assertEquals(true, response.get("success"), response.toString());
+        assertEquals(true, response.get("cached"));
+        assertEquals("3", response.get("currentVersion"));
+        assertEquals(0, response.get("migrationsExecuted"));
+        assertEquals(1, jdbc.log.size());
+        assertTrue(jdbc.log.get(0).endsWith("FROM " + HISTORY), jdbc.log.get(0));
+    }
+
+    @Test
+    @DisplayName("New or changed migration scripts should invalidate the remembered state")
+    void noticesChangedScripts() throws IOException, SQLException {
+        Path directory = Files.createTempDirectory("migrations");
+        Path script = Files.writeString(directory.resolve("V1__init.sql"), "CREATE TABLE t (id INT PRIMARY KEY);\n");
+        FakeJdbc jdbc = new FakeJdbc().onQuery("SELECT count(*)", new Object[]{1L, 1L, 7L, 1L});
+        AuroraDSQLMigrationServer server = server(jdbc, List.of(directory));
+        String initial = server.scripts();
+        server.state = new AuroraDSQLMigrationServer.State("1:1:7:1", initial, "1", 0);
+        assertEquals(true, server.handle("info").get("cached"));
+
+        Files.writeString(directory.resolve("V2__orders.sql"), "CREATE TABLE orders (id INT PRIMARY KEY);\n");
+        String added = server.scripts();
+        assertNotEquals(initial, added);
+        server.state = new AuroraDSQLMigrationServer.State("1:1:7:1", added, "1", 0);
+        Files.setLastModifiedTime(script, FileTime.fromMillis(Files.getLastModifiedTime(script).toMillis() + 1000));
+
+        assertNotEquals(added, server.scripts());
+        assertFalse(server.remembered(), "Flyway should run again");
+    }
+
+    @Test
+    @DisplayName("A missing schema history table should have its own fingerprint")
+    void fingerprintsMissingHistory() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc().failOn("SELECT count(*)",
+            new SQLException("relation \"flyway_schema_history\" does not exist", "42P01"));
+
+        assertEquals("none", server(jdbc).fingerprint());
+    }
+
+    @Test
+    @DisplayName("Clients should get one JSON response per command over the local socket")
+    void servesLocalClients() throws IOException {
+        AuroraDSQLMigrationServer server = server(new FakeJdbc());
+        int port = server.start(0);
+        try {
+            assertTrue(AuroraDSQLMigrationServer.request(port, "ping").startsWith("{\"command\":\"ping\",\"success\":true"));
+            assertTrue(AuroraDSQLMigrationServer.request(port, "drop")
+                .startsWith("{\"command\":\"drop\",\"success\":false,\"error\":\"Unknown command: drop\""));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Reload should forget the remembered state")
+    void reloadForgetsState() {
+        AuroraDSQLMigrationServer server = server(new FakeJdbc());
+        server.state = new AuroraDSQLMigrationServer.State("1:1:1:1", server.scripts(), "1", 0);
+
+        server.handle("reload");
+
+        assertNull(server.state);
+    }
+}
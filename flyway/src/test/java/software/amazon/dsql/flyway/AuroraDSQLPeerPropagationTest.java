@@ -0,0 +1,126 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.FlywayException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLPeerPropagation.
+ */
+class AuroraDSQLPeerPropagationTest {
+
+    private static final String HISTORY = "\"public\".\"flyway_schema_history\"";
+    private static final Object[] COLUMN = {"orders", "id", "uuid", "NO", "gen_random_uuid()", null, null, null};
+
+    /**
+     * A stand-in endpoint with the given history summary and, if migrated, the orders table.
+     */
+    private static FakeJdbc endpoint(long applied, boolean migrated) {
+        FakeJdbc jdbc = new FakeJdbc().onQuery("SELECT count(*)", new Object[]{applied, applied, applied * 10, applied});
+        return migrated ? jdbc.onQuery("SELECT table_name, column_name", COLUMN) : jdbc;
+    }
+
+    private static AuroraDSQLPeerPropagation propagation(Map<String, FakeJdbc> peers) {
+        Map<String, DataSource> dataSources = new LinkedHashMap<>();
+        for (Map.Entry<String, FakeJdbc> peer : peers.entrySet()) {
+            dataSources.put(peer.getKey(), peer.getValue().dataSource());
+        }
+        return new AuroraDSQLPeerPropagation(dataSources, "public", HISTORY, 10);
+    }
+
+    @Test
+    @DisplayName("Peers that already match should converge on the first poll")
+    void convergesImmediately() throws SQLException {
+        Map<String, FakeJdbc> peers = new LinkedHashMap<>();
+        peers.put("us-west-2", endpoint(3, true));
+        peers.put("eu-west-1", endpoint(3, true));
+
+        Map<String, Long> converged = propagation(peers).await(endpoint(3, true).open(), Duration.ofSeconds(5));
+
+        assertEquals(peers.keySet(), converged.keySet());
+        for (FakeJdbc peer : peers.values()) {
+            assertEquals(1, peer.connections.size(), "one connection per peer");
+        }
+    }
+
+    @Test
+    @DisplayName("A lagging peer should be polled until its history and catalog catch up")
+    void waitsForLaggingPeer() throws Exception {
+        FakeJdbc lagging = endpoint(2, false);
+        Map<String, FakeJdbc> peers = new LinkedHashMap<>();
+        peers.put("us-west-2", endpoint(3, true));
+        peers.put("eu-west-1", lagging);
+        CompletableFuture<Map<String, Long>> converged = CompletableFuture.supplyAsync(() -> {
+            try {
+                return propagation(peers).await(endpoint(3, true).open(), Duration.ofSeconds(5));
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        Thread.sleep(50);
+        assertFalse(converged.isDone());
+        assertTrue(lagging.log.size() > 1, "polled repeatedly: " + lagging.log);
+        lagging.onQuery("SELECT count(*)", new Object[]{3L, 3L, 30L, 3L});
+        Thread.sleep(50);
+        assertFalse(converged.isDone(), "history matches, catalog doesn't yet");
+        assertTrue(lagging.log.stream().anyMatch(sql -> sql.startsWith("SELECT table_name, column_name")),
+            lagging.log.toString());
+        lagging.onQuery("SELECT table_name, column_name", COLUMN);
+
+        Map<String, Long> result = converged.get(5, TimeUnit.SECONDS);
+        assertTrue(result.get("eu-west-1") >= result.get("us-west-2"), result.toString());
+    }
+
+    @Test
+    @DisplayName("Peers still lagging at the timeout should be reported with what they last showed")
+    void reportsLaggingPeersAtTimeout() {
+        Map<String, FakeJdbc> peers = new LinkedHashMap<>();
+        peers.put("us-west-2", endpoint(3, true));
+        peers.put("eu-west-1", endpoint(2, true));
+
+        FlywayException error = assertThrows(FlywayException.class,
+            () -> propagation(peers).await(endpoint(3, true).open(), Duration.ofMillis(100)));
+
+        assertTrue(error.getMessage().contains("1 of 2 peer endpoints"), error.getMessage());
+        assertTrue(error.getMessage().contains("eu-west-1 (schema history 2:2:20:2, expected 3:3:30:3)"),
+            error.getMessage());
+    }
+
+    @Test
+    @DisplayName("Connection errors should count as not converged, and the next poll should reconnect")
+    void reconnectsAfterErrors() throws SQLException {
+        FakeJdbc flaky = endpoint(3, true);
+        int[] attempts = {0};
+        DataSource dataSource = (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(),
+            new Class<?>[]{DataSource.class}, (target, method, args) -> {
+                if (++attempts[0] < 3) {
+                    throw new SQLException("Connection refused", "08001");
+                }
+                return flaky.open();
+            });
+        Map<String, DataSource> peers = new LinkedHashMap<>();
+        peers.put("us-west-2", dataSource);
+
+        Map<String, Long> converged = new AuroraDSQLPeerPropagation(peers, "public", HISTORY, 10)
+            .await(endpoint(3, true).open(), Duration.ofSeconds(5));
+
+        assertTrue(converged.containsKey("us-west-2"));
+        assertEquals(3, attempts[0]);
+    }
+}
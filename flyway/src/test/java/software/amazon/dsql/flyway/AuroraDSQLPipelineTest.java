@@ -0,0 +1,155 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLPipeline.
+ */
+class AuroraDSQLPipelineTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+    private static List<String> drops(int count) {
+        List<String> statements = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            statements.add("DROP TABLE IF EXISTS t" + i);
+        }
+        return statements;
+    }
+
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    @Test
+    @DisplayName("Short lists should run serially on the caller's connection, in order")
+    void runsShortListsSerially() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+
+        int pipelined = new AuroraDSQLPipeline(session, 8).execute(drops(7), AuroraDSQLPipelineTest::execute);
+
+        assertEquals(0, pipelined);
+        assertEquals(drops(7), jdbc.log);
+        assertEquals(1, jdbc.connections.size());
+    }
+
+    @Test
+    @DisplayName("Connections without the session wrapper should run serially")
+    void runsUnwrappedSerially() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+
+        int pipelined = new AuroraDSQLPipeline(jdbc.open(), 8).execute(drops(40), AuroraDSQLPipelineTest::execute);
+
+        assertEquals(0, pipelined);
+        assertEquals(drops(40), jdbc.log);
+    }
+
+    @Test
+    @DisplayName("Long lists should run each statement once, spread over the window's connections")
+    void pipelinesLongLists() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc().withLatency(20).onQuery("SELECT current_schema()", new Object[]{"app"});
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+
+        long start = System.nanoTime();
+        int pipelined = new AuroraDSQLPipeline(session, 4).execute(drops(16), AuroraDSQLPipelineTest::execute);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(16, pipelined);
+        assertEquals(5, jdbc.connections.size(), "the caller's connection and four pipeline connections");
+        assertEquals(4, Collections.frequency(jdbc.log, "SET search_path = \"app\""), jdbc.log.toString());
+        for (String drop : drops(16)) {
+            assertEquals(1, Collections.frequency(jdbc.log, drop), drop);
+        }
+        assertTrue(millis < 16 * 20, "took " + millis + " ms, as long as running serially");
+    }
+
+    @Test
+    @DisplayName("Spans started on pipeline connections should nest under the caller's span")
+    void nestsLaneSpansUnderCaller() throws SQLException, IOException {
+        Path file = Files.createTempFile("trace", ".jsonl");
+        AuroraDSQLTracer tracer = new AuroraDSQLTracer(file, "flyway", null);
+        FakeJdbc jdbc = new FakeJdbc().onQuery("SELECT current_schema()", new Object[]{"app"});
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        List<AuroraDSQLTracer.Span> spans = Collections.synchronizedList(new ArrayList<>());
+
+        AuroraDSQLTracer.Span root = tracer.start("flyway.clean");
+        int pipelined = new AuroraDSQLPipeline(session, 4, tracer).execute(drops(16), (connection, sql) -> {
+            try (AuroraDSQLTracer.Span span = tracer.start("dsql.ddl")) {
+                spans.add(span);
+                execute(connection, sql);
+            }
+        });
+        root.close();
+
+        assertEquals(16, pipelined);
+        assertEquals(16, spans.size());
+        for (AuroraDSQLTracer.Span span : spans) {
+            assertEquals(root.getTraceId(), span.getTraceId());
+            assertEquals(root.getSpanId(), span.getParentSpanId());
+        }
+        assertEquals(1, Files.readAllLines(file, StandardCharsets.UTF_8).size(), "one trace, written with the root");
+        assertNull(tracer.current(), "the caller's span should have ended");
+        Files.delete(file);
+    }
+
+    @Test
+    @DisplayName("After the first error, unfinished statements should run serially on the caller's connection")
+    void fallsBackToSerial() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        List<String> serial = Collections.synchronizedList(new ArrayList<>());
+
+        int pipelined = new AuroraDSQLPipeline(session, 4).execute(drops(16), (connection, sql) -> {
+            if (connection == session) {
+                serial.add(sql);
+            } else if (sql.equals("DROP TABLE IF EXISTS t5")) {
+                throw new SQLException("change conflicts with another transaction", "40001");
+            }
+            execute(connection, sql);
+        });
+
+        assertTrue(serial.contains("DROP TABLE IF EXISTS t5"), serial.toString());
+        assertEquals(16, pipelined + serial.size());
+        List<String> ordered = new ArrayList<>(serial);
+        ordered.sort((a, b) -> Integer.compare(drops(16).indexOf(a), drops(16).indexOf(b)));
+        assertEquals(ordered, serial, "serial statements keep their order");
+        for (String drop : drops(16)) {
+            assertEquals(1, Collections.frequency(jdbc.log, drop), drop);
+        }
+    }
+
+    @Test
+    @DisplayName("An error that repeats serially should be thrown")
+    void throwsRepeatedErrors() {
+        FakeJdbc jdbc = new FakeJdbc().failOn("DROP TABLE IF EXISTS t9",
+            new SQLException("permission denied for table t9", "42501"));
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+
+        SQLException error = assertThrows(SQLException.class,
+            () -> new AuroraDSQLPipeline(session, 4).execute(drops(16), AuroraDSQLPipelineTest::execute));
+
+        assertEquals("42501", error.getSQLState());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.FlywayException;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLPlanGuard.
+ */
+class AuroraDSQLPlanGuardTest {
+
+    private static final String INDEX_PLAN = "Index Scan using orders_customer_idx on orders  (cost=0.00..8.27 rows=1 width=4)\n"
+        + "  Index Cond: (customer_id = $1)";
+    private static final String FULL_SCAN_PLAN = "Full Scan (btree-table) on orders  (cost=100.00..104.50 rows=1 width=4)\n"
+        + "  Filter: (customer_id = $1)";
+
+    private static Context context(Connection connection) {
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+            (target, method, args) -> method.getName().equals("getConnection") ? connection : null);
+    }
+
+    private static FakeJdbc explaining(String plan) {
+        return new FakeJdbc().onQuery("EXPLAIN", Arrays.stream(plan.split("\n")).map(l -> new Object[]{l})
+            .toArray(Object[][]::new));
+    }
+
+    private static void migrate(AuroraDSQLPlanGuard guard, String beforePlan, String afterPlan) {
+        guard.handle(Event.BEFORE_MIGRATE, context(explaining(beforePlan).open()));
+        guard.handle(Event.AFTER_MIGRATE, context(explaining(afterPlan).open()));
+    }
+
+    @Test
+    @DisplayName("Plans should be reduced to their nodes without estimates")
+    void normalizesPlans() {
+        List<String> plan = AuroraDSQLPlanGuard.normalize("Nested Loop  (cost=0.00..16.55 rows=1 width=8)\n"
+            + "  ->  Index Only Scan using a_pkey on a  (cost=0.00..8.27 rows=1 width=4)\n"
+            + "        Index Cond: (id = 1)\n"
+            + "  ->  Seq Scan on b  (cost=0.00..8.27 rows=1 width=4)\n"
+            + "        ->  Index Scan using c_idx on c  (cost=0.00..8.27 rows=1 width=4)");
+
+        assertEquals(Arrays.asList("Nested Loop", "  Index Only Scan using a_pkey on a", "  Seq Scan on b",
+            "    Index Scan using c_idx on c"), plan);
+    }
+
+    @Test
+    @DisplayName("An index scan turning into a full scan should fail the migrate")
+    void failsOnRegression() {
+        AuroraDSQLPlanGuard guard = new AuroraDSQLPlanGuard(true)
+            .addQuery("orders by customer", "SELECT id FROM orders WHERE customer_id = ?");
+
+        FlywayException e = assertThrows(FlywayException.class, () -> migrate(guard, INDEX_PLAN, FULL_SCAN_PLAN));
+
+        assertTrue(e.getMessage().contains("orders by customer: orders changed from Index Scan to Full Scan"),
+            e.getMessage());
+    }
+
+    @Test
+    @DisplayName("Regressions should only be logged when failing is disabled")
+    void warnsOnRegression() {
+        AuroraDSQLPlanGuard guard = new AuroraDSQLPlanGuard(false).addQuery("q", "SELECT id FROM orders");
+
+        migrate(guard, INDEX_PLAN, FULL_SCAN_PLAN);
+
+        assertEquals(1, guard.getRegressions().size());
+    }
+
+    @Test
+    @DisplayName("A better or equivalent plan should not be a regression")
+    void acceptsImprovements() {
+        AuroraDSQLPlanGuard guard = new AuroraDSQLPlanGuard(true).addQuery("q", "SELECT id FROM orders");
+
+        migrate(guard, FULL_SCAN_PLAN, INDEX_PLAN);
+        assertTrue(guard.getRegressions().isEmpty());
+        assertEquals(1, guard.getChanges().size());
+
+        migrate(guard, INDEX_PLAN, INDEX_PLAN.replace("8.27", "9.99"));
+        assertTrue(guard.getRegressions().isEmpty());
+        assertTrue(guard.getChanges().isEmpty(), "estimates alone should not count as a change");
+    }
+
+    @Test
+    @DisplayName("A query that can no longer be planned should be a regression")
+    void failsWhenQueryBreaks() {
+        AuroraDSQLPlanGuard guard = new AuroraDSQLPlanGuard(true).addQuery("q", "SELECT legacy FROM orders");
+        guard.handle(Event.BEFORE_MIGRATE, context(explaining(INDEX_PLAN).open()));
+        Connection broken = new FakeJdbc().failOn("EXPLAIN", new SQLException("column does not exist", "42703")).open();
+
+        assertThrows(FlywayException.class, () -> guard.handle(Event.AFTER_MIGRATE, context(broken)));
+    }
+
+    @Test
+    @DisplayName("Queries should be read from a SQL file and explained as generic plans")
+    void readsQueryFile() throws IOException {
+        Path file = Files.createTempFile("queries", ".sql");
+        Files.write(file, "SELECT 1;\n-- hot path\nSELECT id FROM orders WHERE customer_id = $1;\n"
+            .getBytes(StandardCharsets.UTF_8));
+        FakeJdbc jdbc = explaining(INDEX_PLAN);
+        AuroraDSQLPlanGuard guard = new AuroraDSQLPlanGuard(true).addQueries(file.toString());
+
+        guard.handle(Event.BEFORE_MIGRATE, context(jdbc.open()));
+
+        assertTrue(jdbc.log.contains("EXPLAIN SELECT 1"), jdbc.log.toString());
+        assertTrue(jdbc.log.contains("EXPLAIN (GENERIC_PLAN) SELECT id FROM orders WHERE customer_id = $1"),
+            jdbc.log.toString());
+        Files.delete(file);
+    }
+}
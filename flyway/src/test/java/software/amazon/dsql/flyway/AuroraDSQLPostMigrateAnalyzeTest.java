@@ -0,0 +1,136 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLPostMigrateAnalyze.
+ */
+class AuroraDSQLPostMigrateAnalyzeTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+    private static Context context(Connection connection) {
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+            (target, method, args) -> method.getName().equals("getConnection") ? connection : null);
+    }
+
+    private static void migrate(AuroraDSQLPostMigrateAnalyze callback, Connection session, String... statements)
+            throws SQLException {
+        Context context = context(session);
+        callback.handle(Event.BEFORE_EACH_MIGRATE, context);
+        try (Statement stmt = session.createStatement()) {
+            for (String sql : statements) {
+                stmt.execute(sql);
+            }
+        }
+        callback.handle(Event.AFTER_EACH_MIGRATE, context);
+    }
+
+    private static List<String> analyzed(FakeJdbc jdbc) {
+        List<String> analyzed = new ArrayList<>();
+        synchronized (jdbc.log) {
+            for (String sql : jdbc.log) {
+                if (sql.startsWith("ANALYZE ")) {
+                    analyzed.add(sql.substring("ANALYZE ".length()));
+                }
+            }
+        }
+        analyzed.sort(null);
+        return analyzed;
+    }
+
+    @Test
+    @DisplayName("Only tables written to or altered should be analyzed, once each")
+    void analyzesChangedTables() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLPostMigrateAnalyze callback = new AuroraDSQLPostMigrateAnalyze(2);
+
+        migrate(callback, session,
+            "CREATE TABLE orders (id UUID PRIMARY KEY)",
+            "INSERT INTO orders (id) VALUES (gen_random_uuid())",
+            "UPDATE Orders SET id = id",
+            "SELECT * FROM customers");
+        migrate(callback, session,
+            "CREATE INDEX ASYNC idx ON app.\"Items\" (sku)",
+            "DELETE FROM scratch",
+            "DROP TABLE scratch");
+        callback.handle(Event.AFTER_MIGRATE, context(session));
+
+        assertEquals(Arrays.asList("\"app\".\"Items\"", "\"orders\""), analyzed(jdbc));
+        Map<String, Long> durations = callback.getDurations();
+        assertEquals(2, durations.size());
+        assertTrue(durations.containsKey("\"orders\""));
+        assertTrue(jdbc.connections.size() >= 2, "ANALYZE should run on separate connections");
+        assertTrue(jdbc.connections.subList(1, jdbc.connections.size()).stream().allMatch(c -> c.closed));
+    }
+
+    @Test
+    @DisplayName("A commented CREATE TABLE should not be mistaken for an index build")
+    void skipsCommentedCreateTable() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLPostMigrateAnalyze callback = new AuroraDSQLPostMigrateAnalyze(2);
+
+        migrate(callback, session, "-- Orders placed through the API\nCREATE TABLE orders (id UUID PRIMARY KEY)");
+        callback.handle(Event.AFTER_MIGRATE, context(session));
+
+        assertEquals(Collections.emptyList(), analyzed(jdbc));
+    }
+
+    @Test
+    @DisplayName("Tables should be qualified with the migration's schema")
+    void qualifiesTables() {
+        assertEquals("\"app\".\"orders\"", AuroraDSQLPostMigrateAnalyze.qualify("Orders", "app"));
+        assertEquals("\"other\".\"Orders\"", AuroraDSQLPostMigrateAnalyze.qualify("OTHER.\"Orders\"", "app"));
+        assertEquals("\"a\"\"b\"", AuroraDSQLPostMigrateAnalyze.qualify("\"a\"\"b\"", null));
+    }
+
+    @Test
+    @DisplayName("A failed ANALYZE should be logged without failing the migrate")
+    void toleratesAnalyzeFailure() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc().failOn("ANALYZE \"gone\"", new SQLException("relation does not exist", "42P01"));
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLPostMigrateAnalyze callback = new AuroraDSQLPostMigrateAnalyze(1);
+
+        migrate(callback, session, "TRUNCATE gone", "ALTER TABLE kept ADD COLUMN a INT");
+        callback.handle(Event.AFTER_MIGRATE, context(session));
+
+        assertEquals(Arrays.asList("\"kept\""), analyzed(jdbc));
+        assertEquals(1, callback.getDurations().size());
+    }
+
+    @Test
+    @DisplayName("Nothing should be analyzed when no table changed")
+    void skipsWhenNothingChanged() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLPostMigrateAnalyze callback = new AuroraDSQLPostMigrateAnalyze(4);
+
+        migrate(callback, session, "CREATE TABLE empty (id UUID PRIMARY KEY)", "SELECT 1");
+        callback.handle(Event.AFTER_MIGRATE, context(session));
+
+        assertTrue(analyzed(jdbc).isEmpty());
+        assertEquals(1, jdbc.connections.size());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLProgressEndpoint.
+ */
+class AuroraDSQLProgressEndpointTest {
+
+    private static AuroraDSQLMigrationPlan plan() {
+        Map<String, String> scripts = new LinkedHashMap<>();
+        scripts.put("V1__backfill.sql", "UPDATE t SET a = 1 WHERE id < 10;\nUPDATE t SET a = 1 WHERE id < 20;\n"
+            + "UPDATE t SET a = 1 WHERE id < 30;\nUPDATE t SET a = 1 WHERE id < 40;\n");
+        scripts.put("V2__add_index.sql", "CREATE INDEX ASYNC t_a ON t (a);\n");
+        return new AuroraDSQLMigrationPlanner().plan(scripts);
+    }
+
+    private static HttpURLConnection request(int port, String method) throws IOException {
+        HttpURLConnection http = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/").openConnection();
+        http.setRequestMethod(method);
+        return http;
+    }
+
+    @Test
+    @DisplayName("Statements should update the current statement, transactions, rows and retries")
+    void tracksStatements() throws SQLException {
+        AuroraDSQLProgressEndpoint.Tracker tracker = new AuroraDSQLProgressEndpoint().getTracker();
+        Connection connection = new FakeJdbc().open();
+        tracker.reset();
+        tracker.startMigration("V1__backfill.sql");
+
+        tracker.beforeExecute(connection, "UPDATE t SET a = 1 WHERE id < 10");
+        assertEquals("UPDATE t SET a = 1 WHERE id < 10", tracker.snapshot().get("statement"));
+        tracker.afterExecute(connection, "UPDATE t SET a = 1 WHERE id < 10", 1000, 9);
+        tracker.beforeExecute(connection, "UPDATE t SET a = 1 WHERE id < 20");
+        tracker.afterFailure(connection, "UPDATE t SET a = 1 WHERE id < 20",
+            new SQLException("change conflicts with another transaction", "40001"));
+        connection.setAutoCommit(false);
+        tracker.afterExecute(connection, "UPDATE t SET a = 1 WHERE id < 20", 1000, 10);
+        tracker.afterCommit(connection);
+
+        Map<String, Object> progress = tracker.snapshot();
+        assertEquals("running", progress.get("state"));
+        assertEquals("V1__backfill.sql", progress.get("migration"));
+        assertNull(progress.get("statement"));
+        assertEquals(2, progress.get("statementsDone"));
+        assertEquals(2L, progress.get("transactions"));
+        assertEquals(19L, progress.get("rows"));
+        assertEquals(1L, progress.get("retries"));
+        assertNull(progress.get("estimatedCompletion"), "no estimate without a plan");
+
+        tracker.finishMigration(true);
+        tracker.finish(true);
+        progress = tracker.snapshot();
+        assertEquals("succeeded", progress.get("state"));
+        assertEquals(1, progress.get("migrationsApplied"));
+        assertNull(progress.get("migration"));
+    }
+
+    @Test
+    @DisplayName("The estimate should cover the rest of the current migration and the pending ones")
+    void estimatesCompletion() {
+        AuroraDSQLProgressEndpoint.Tracker tracker = new AuroraDSQLProgressEndpoint().getTracker();
+        tracker.reset();
+        tracker.plan = plan();
+        tracker.startMigration("V1__backfill.sql");
+
+        Map<String, Object> progress = tracker.snapshot();
+
+        assertEquals(2, progress.get("migrationsPending"));
+        assertEquals(4, progress.get("statementsPlanned"));
+        long forecast = 0;
+        for (AuroraDSQLMigrationPlan.Step step : plan().getSteps()) {
+            forecast += step.getForecastMillis();
+        }
+        long remaining = (Long) progress.get("remainingMs");
+        assertTrue(remaining <= forecast && remaining > forecast - 1000, remaining + " of " + forecast);
+        assertNotNull(progress.get("estimatedCompletion"));
+    }
+
+    @Test
+    @DisplayName("Once statements are done, the current migration should be extrapolated from their pace")
+    void extrapolatesFromPace() {
+        AuroraDSQLMigrationPlan.Step backfill = plan().getSteps().get(0);
+
+        assertEquals(3000, AuroraDSQLProgressEndpoint.Tracker.remainingMillis(backfill, 1000, 1));
+        assertEquals(0, AuroraDSQLProgressEndpoint.Tracker.remainingMillis(backfill, 1000, 4));
+        assertEquals(backfill.getForecastMillis() - 10,
+            AuroraDSQLProgressEndpoint.Tracker.remainingMillis(backfill, 10, 0));
+        assertEquals(0, AuroraDSQLProgressEndpoint.Tracker.remainingMillis(backfill, Long.MAX_VALUE / 2, 0));
+    }
+
+    @Test
+    @DisplayName("The endpoint should answer GET with the progress as JSON on loopback, until stopped")
+    void servesProgress() throws IOException {
+        AuroraDSQLProgressEndpoint endpoint = new AuroraDSQLProgressEndpoint();
+        endpoint.getTracker().reset();
+        endpoint.getTracker().startMigration("V1__backfill.sql");
+        int port = endpoint.start(0);
+        try {
+            HttpURLConnection get = request(port, "GET");
+            assertEquals(200, get.getResponseCode());
+            assertEquals("application/json", get.getContentType());
+            String body;
+            try (InputStream in = get.getInputStream()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            assertTrue(body.startsWith("{\"state\":\"running\""), body);
+            assertTrue(body.contains("\"migration\":\"V1__backfill.sql\""), body);
+
+            assertEquals(405, request(port, "POST").getResponseCode());
+        } finally {
+            endpoint.stop();
+        }
+        assertThrows(IOException.class, () -> request(port, "GET").getResponseCode());
+    }
+}
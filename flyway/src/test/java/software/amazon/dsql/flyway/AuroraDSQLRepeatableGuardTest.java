@@ -0,0 +1,160 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.MigrationVersion;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.flywaydb.core.api.configuration.Configuration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLRepeatableGuard.
+ */
+class AuroraDSQLRepeatableGuardTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+    private static final String CATALOG_DEFINITION = " SELECT t.id\n   FROM public.t;";
+    private static final String APPLIED = "CREATE OR REPLACE VIEW v AS SELECT id FROM t";
+
+    private static FakeJdbc cluster(String catalogDefinition) {
+        String sourceHash = AuroraDSQLCatalogFingerprint.sha256(
+            AuroraDSQLStatement.normalize(APPLIED).replaceFirst("^create (or replace )?", ""));
+        String catalogHash = AuroraDSQLCatalogFingerprint.sha256(AuroraDSQLCatalog.normalize(CATALOG_DEFINITION, "public"));
+        return new FakeJdbc()
+            .onQuery("SELECT \"view_schema\"", new Object[]{"public", "v", sourceHash, catalogHash})
+            .onQuery("SELECT current_schema()", new Object[]{"public"})
+            .onQuery("SELECT view_definition", new Object[]{catalogDefinition});
+    }
+
+    private static Context context(Connection connection, String version) {
+        Configuration configuration = (Configuration) Proxy.newProxyInstance(Configuration.class.getClassLoader(),
+            new Class<?>[]{Configuration.class}, (target, method, args) ->
+                method.getName().equals("getTable") ? "flyway_schema_history"
+                    : method.getName().equals("getDefaultSchema") ? "public" : null);
+        MigrationInfo migration = (MigrationInfo) Proxy.newProxyInstance(MigrationInfo.class.getClassLoader(),
+            new Class<?>[]{MigrationInfo.class}, (target, method, args) ->
+                method.getName().equals("getVersion") && version != null ? MigrationVersion.fromVersion(version)
+                    : method.getName().equals("getScript") ? "R__views.sql" : null);
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+            (target, method, args) -> {
+                switch (method.getName()) {
+                    case "getConnection":
+                        return connection;
+                    case "getConfiguration":
+                        return configuration;
+                    case "getMigrationInfo":
+                        return migration;
+                    default:
+                        return null;
+                }
+            });
+    }
+
+    private static AuroraDSQLRepeatableGuard migrate(FakeJdbc jdbc, String version, List<String> script)
+            throws SQLException {
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLRepeatableGuard guard = new AuroraDSQLRepeatableGuard();
+        Context context = context(session, version);
+        guard.handle(Event.BEFORE_EACH_MIGRATE, context);
+        try (Statement stmt = session.createStatement()) {
+            for (String sql : script) {
+                stmt.execute(sql);
+            }
+        }
+        guard.handle(Event.AFTER_EACH_MIGRATE, context);
+        return guard;
+    }
+
+    @Test
+    @DisplayName("A view whose source only changed in whitespace and comments should not be re-created")
+    void skipsUnchangedView() throws SQLException {
+        FakeJdbc jdbc = cluster(CATALOG_DEFINITION);
+        String reformatted = "-- Summary of t\ncreate or replace view v as\n    select id\n    from t;";
+
+        AuroraDSQLRepeatableGuard guard = migrate(jdbc, null, Arrays.asList(reformatted));
+
+        assertFalse(jdbc.log.contains(reformatted));
+        assertEquals(1, guard.getSkipped());
+    }
+
+    @Test
+    @DisplayName("A held-back DROP VIEW should be skipped together with an unchanged CREATE VIEW")
+    void skipsDropAndCreate() throws SQLException {
+        FakeJdbc jdbc = cluster(CATALOG_DEFINITION);
+
+        AuroraDSQLRepeatableGuard guard = migrate(jdbc, null,
+            Arrays.asList("DROP VIEW IF EXISTS v", "CREATE VIEW v AS SELECT id FROM t"));
+
+        assertFalse(jdbc.log.stream().anyMatch(sql -> sql.startsWith("DROP VIEW") || sql.startsWith("CREATE VIEW")));
+        assertEquals(2, guard.getSkipped());
+    }
+
+    @Test
+    @DisplayName("A changed view should be re-created and its new definition recorded")
+    void recreatesChangedView() throws SQLException {
+        FakeJdbc jdbc = cluster(CATALOG_DEFINITION);
+
+        AuroraDSQLRepeatableGuard guard = migrate(jdbc, null,
+            Arrays.asList("DROP VIEW IF EXISTS v", "CREATE VIEW v AS SELECT id, name FROM t"));
+
+        int drop = jdbc.log.indexOf("DROP VIEW IF EXISTS v");
+        int create = jdbc.log.indexOf("CREATE VIEW v AS SELECT id, name FROM t");
+        assertTrue(drop >= 0 && create > drop, "the held-back DROP should run before the CREATE: " + jdbc.log);
+        assertTrue(jdbc.log.stream().anyMatch(sql -> sql.startsWith("INSERT INTO \"public\".\"flyway_schema_history_definitions\"")
+            && sql.contains("ON CONFLICT")));
+        assertEquals(0, guard.getSkipped());
+    }
+
+    @Test
+    @DisplayName("A view changed outside Flyway should be re-created")
+    void recreatesDriftedView() throws SQLException {
+        FakeJdbc jdbc = cluster(" SELECT t.id, t.secret\n   FROM public.t;");
+
+        migrate(jdbc, null, Arrays.asList(APPLIED));
+
+        assertTrue(jdbc.log.contains(APPLIED));
+    }
+
+    @Test
+    @DisplayName("A DROP VIEW at the end of a script should still run")
+    void releasesTrailingDrop() throws SQLException {
+        FakeJdbc jdbc = cluster(CATALOG_DEFINITION);
+
+        migrate(jdbc, null, Arrays.asList("DROP VIEW v"));
+
+        assertTrue(jdbc.log.contains("DROP VIEW v"));
+    }
+
+    @Test
+    @DisplayName("Versioned migrations should not be guarded")
+    void ignoresVersionedMigrations() throws SQLException {
+        FakeJdbc jdbc = cluster(CATALOG_DEFINITION);
+
+        migrate(jdbc, "2", Arrays.asList(APPLIED));
+
+        assertEquals(Arrays.asList(APPLIED), jdbc.log);
+    }
+
+    @Test
+    @DisplayName("View names should be split into schema and name")
+    void parsesViewNames() {
+        assertArrayEquals(new String[]{null, "v"}, AuroraDSQLRepeatableGuard.viewName("v"));
+        assertArrayEquals(new String[]{"app", "v"}, AuroraDSQLRepeatableGuard.viewName("app.v"));
+        assertArrayEquals(new String[]{"App", "my.view"}, AuroraDSQLRepeatableGuard.viewName("\"App\".\"my.view\""));
+    }
+}
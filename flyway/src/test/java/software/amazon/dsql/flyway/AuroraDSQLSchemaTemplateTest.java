@@ -0,0 +1,137 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLSchemaTemplate.
+ */
+class AuroraDSQLSchemaTemplateTest {
+
+    private static FakeJdbc template() {
+        return new FakeJdbc()
+            .onQuery("SELECT table_name, column_name",
+                new Object[]{"countries", "code", "character", "NO", null, 2, null, null},
+                new Object[]{"orders", "id", "uuid", "NO", "gen_random_uuid()", null, null, null},
+                new Object[]{"users", "id", "uuid", "NO", "gen_random_uuid()", null, null, null},
+                new Object[]{"flyway_schema_history", "installed_rank", "integer", "NO", null, null, 32, 0})
+            .onQuery("SELECT tablename, indexname",
+                new Object[]{"orders", "orders_pkey", "CREATE UNIQUE INDEX orders_pkey ON public.orders USING btree_index (id)"},
+                new Object[]{"orders", "orders_user_idx", "CREATE INDEX orders_user_idx ON public.orders USING btree_index (id)"})
+            .onQuery("SELECT rel.relname",
+                new Object[]{"countries", "countries_pkey", "PRIMARY KEY (code)"},
+                new Object[]{"orders", "orders_pkey", "PRIMARY KEY (id)"},
+                new Object[]{"users", "users_pkey", "PRIMARY KEY (id)"})
+            .onQuery("SELECT table_name, view_definition",
+                new Object[]{"recent_orders", " SELECT orders.id\n   FROM public.orders;"})
+            .onQuery("SELECT * FROM \"public\".\"countries\"", new Object[]{"DE"}, new Object[]{"FR"})
+            .onQuery("SELECT \"installed_rank\"",
+                new Object[]{1, "1", "init", "SQL", "V1__init.sql", 11, "admin", null, 40, true},
+                new Object[]{2, "2", "seed countries", "SQL", "V2__seed_countries.sql", 22, "admin", null, 12, true});
+    }
+
+    @Test
+    @DisplayName("Capturing should split the schema into tables, indexes and views, leaving out the history")
+    void capturesSchema() throws SQLException {
+        AuroraDSQLSchemaTemplate template = AuroraDSQLSchemaTemplate.capture(template().open(), "public",
+            "flyway_schema_history");
+
+        assertEquals(3, template.getTables().size(), template.getTables().toString());
+        assertEquals(List.of("CREATE INDEX ASYNC orders_user_idx ON orders (id)"), template.getIndexes());
+        assertEquals(List.of("CREATE VIEW \"recent_orders\" AS SELECT orders.id FROM orders"), template.getViews());
+    }
+
+    @Test
+    @DisplayName("Cloning should create tables, then seed rows, then indexes, and mark the clone as migrated last")
+    void clonesIntoNewSchema() throws SQLException {
+        AuroraDSQLSchemaTemplate template = AuroraDSQLSchemaTemplate.capture(template().open(), "public",
+            "flyway_schema_history");
+        FakeJdbc target = new FakeJdbc()
+            .onQuery("CREATE INDEX ASYNC", new Object[]{"job-1"})
+            .onQuery("SELECT sys.wait_for_job", new Object[]{true});
+
+        template.cloneInto(target.dataSource(), "test_1");
+
+        List<String> log = new ArrayList<>(target.log);
+        assertEquals("CREATE SCHEMA \"test_1\"", log.get(0));
+        int lastTable = 0;
+        int firstInsert = Integer.MAX_VALUE;
+        int lastInsert = 0;
+        int firstIndex = Integer.MAX_VALUE;
+        for (int i = 0; i < log.size(); i++) {
+            if (log.get(i).startsWith("CREATE TABLE \"countries\"") || log.get(i).startsWith("CREATE TABLE \"orders\"")
+                || log.get(i).startsWith("CREATE TABLE \"users\"")) {
+                lastTable = Math.max(lastTable, i);
+            }
+            if (log.get(i).startsWith("INSERT INTO \"countries\"")) {
+                firstInsert = Math.min(firstInsert, i);
+                lastInsert = Math.max(lastInsert, i);
+            }
+            if (log.get(i).startsWith("CREATE INDEX ASYNC")) {
+                firstIndex = Math.min(firstIndex, i);
+            }
+        }
+        assertTrue(lastTable < firstInsert, log.toString());
+        assertTrue(lastInsert < firstIndex, log.toString());
+        assertTrue(log.contains("SET search_path = \"test_1\""), log.toString());
+        assertTrue(log.stream().anyMatch(sql -> sql.startsWith("INSERT INTO \"countries\" (\"column1\") VALUES (?) [DE]")),
+            log.toString());
+
+        int history = log.indexOf("CREATE TABLE \"flyway_schema_history\" (\n" + AuroraDSQLDatabase.HISTORY_COLUMNS + ")");
+        int wait = log.indexOf("SELECT sys.wait_for_job(?) [job-1]");
+        assertTrue(wait > firstIndex && wait < history, "index jobs should finish before the history is copied");
+        assertTrue(history > log.indexOf("CREATE VIEW \"recent_orders\" AS SELECT orders.id FROM orders"), log.toString());
+        assertTrue(log.get(history + 1).startsWith("INSERT INTO \"flyway_schema_history\" (\"column1\""), log.get(history + 1));
+        assertEquals("COMMIT", log.get(log.size() - 1));
+    }
+
+    @Test
+    @DisplayName("A clone whose index build fails should be dropped without copying the history")
+    void dropsCloneWithFailedIndex() throws SQLException {
+        AuroraDSQLSchemaTemplate template = AuroraDSQLSchemaTemplate.capture(template().open(), "public",
+            "flyway_schema_history");
+        FakeJdbc target = new FakeJdbc()
+            .onQuery("CREATE INDEX ASYNC", new Object[]{"job-1"})
+            .onQuery("SELECT sys.wait_for_job", new Object[]{false});
+
+        SQLException error = assertThrows(SQLException.class, () -> template.cloneInto(target.dataSource(), "test_1"));
+
+        assertTrue(error.getMessage().contains("job-1"), error.getMessage());
+        assertFalse(target.log.stream().anyMatch(sql -> sql.startsWith("CREATE TABLE \"flyway_schema_history\"")),
+            target.log.toString());
+        assertEquals("DROP SCHEMA IF EXISTS \"test_1\"", target.log.get(target.log.size() - 1));
+    }
+
+    @Test
+    @DisplayName("A clone that keeps conflicting should be dropped, views first, before the error is rethrown")
+    void dropsFailedClone() throws SQLException {
+        AuroraDSQLSchemaTemplate template = AuroraDSQLSchemaTemplate.capture(template().open(), "public",
+            "flyway_schema_history");
+        FakeJdbc target = new FakeJdbc()
+            .failOn("CREATE INDEX ASYNC", new SQLException("change conflicts with another transaction", "40001"))
+            .onQuery("SELECT table_name, table_type",
+                new Object[]{"countries", "BASE TABLE"},
+                new Object[]{"orders", "BASE TABLE"},
+                new Object[]{"recent_orders", "VIEW"});
+
+        SQLException error = assertThrows(SQLException.class, () -> template.cloneInto(target.dataSource(), "test_1"));
+
+        assertEquals("40001", error.getSQLState());
+        List<String> log = new ArrayList<>(target.log);
+        assertFalse(log.stream().anyMatch(sql -> sql.startsWith("CREATE VIEW")), log.toString());
+        int view = log.indexOf("DROP VIEW IF EXISTS \"test_1\".\"recent_orders\"");
+        assertTrue(view >= 0, log.toString());
+        assertTrue(view < log.indexOf("DROP TABLE IF EXISTS \"test_1\".\"orders\""), log.toString());
+        assertEquals("DROP SCHEMA IF EXISTS \"test_1\"", log.get(log.size() - 1));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLSessionFacts.
+ */
+class AuroraDSQLSessionFactsTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+    private static FakeJdbc fakeJdbc() {
+        return new FakeJdbc().onQuery(AuroraDSQLSessionFacts.QUERY,
+            new Object[]{"admin", "\"$user\", public", "public", "PostgreSQL 16"});
+    }
+
+    private static Connection session(FakeJdbc jdbc, AuroraDSQLSessionFacts facts) {
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLSession.of(session).useFacts(facts);
+        return session;
+    }
+
+    private static String queryForString(Connection connection, String sql) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    @Test
+    @DisplayName("Connections of one Flyway session should share a single combined lookup")
+    void fetchesFactsOnce() throws SQLException {
+        FakeJdbc jdbc = fakeJdbc();
+        AuroraDSQLSessionFacts facts = new AuroraDSQLSessionFacts();
+        Connection first = session(jdbc, facts);
+        Connection second = session(jdbc, facts);
+
+        assertEquals("admin", queryForString(first, "SELECT CURRENT_USER"));
+        assertEquals("\"$user\", public", queryForString(first, "SHOW search_path"));
+        assertEquals("admin", queryForString(second, "SELECT current_user"));
+        assertEquals("public", queryForString(second, "SELECT current_schema()"));
+        assertEquals("PostgreSQL 16", queryForString(second, "select version();"));
+
+        assertEquals(1, jdbc.log.size(), "only the combined query should reach the server: " + jdbc.log);
+        assertEquals(AuroraDSQLSessionFacts.QUERY, jdbc.log.get(0));
+    }
+
+    @Test
+    @DisplayName("A connection that changed its search path should look it up on the server")
+    void searchPathChangeBypassesCache() throws SQLException {
+        FakeJdbc jdbc = fakeJdbc();
+        AuroraDSQLSessionFacts facts = new AuroraDSQLSessionFacts();
+        Connection changed = session(jdbc, facts);
+        Connection unchanged = session(jdbc, facts);
+
+        assertEquals("admin", queryForString(changed, "SELECT CURRENT_USER"));
+        try (Statement stmt = changed.createStatement()) {
+            stmt.execute("SET search_path = \"app\"");
+        }
+        queryForString(changed, "SHOW search_path");
+        assertEquals("admin", queryForString(changed, "SELECT CURRENT_USER"),
+            "the user is not affected by the search path");
+        assertEquals("\"$user\", public", queryForString(unchanged, "SHOW search_path"));
+
+        assertEquals(3, jdbc.log.size(), jdbc.log.toString());
+        assertEquals("SHOW search_path", jdbc.log.get(2));
+    }
+
+    @Test
+    @DisplayName("setSchema should stop the current schema being answered from the cache")
+    void setSchemaBypassesCache() throws SQLException {
+        FakeJdbc jdbc = fakeJdbc();
+        Connection session = session(jdbc, new AuroraDSQLSessionFacts());
+
+        session.setSchema("app");
+        queryForString(session, "SELECT current_schema");
+
+        assertEquals(1, jdbc.log.size());
+        assertEquals("SELECT current_schema", jdbc.log.get(0));
+    }
+
+    @Test
+    @DisplayName("Other queries should run on the server as usual")
+    void passesThroughOtherQueries() throws SQLException {
+        FakeJdbc jdbc = fakeJdbc().onQuery("SELECT current_user, now()", new Object[]{"admin", "today"});
+        Connection session = session(jdbc, new AuroraDSQLSessionFacts());
+
+        assertEquals("admin", queryForString(session, "SELECT current_user, now()"));
+        assertEquals(1, jdbc.log.size());
+        assertEquals("SELECT current_user, now()", jdbc.log.get(0));
+    }
+
+    @Test
+    @DisplayName("Statements that can change the search path should be recognized")
+    void recognizesSearchPathChanges() {
+        assertTrue(AuroraDSQLSessionFacts.changesSearchPath("SET search_path = app"));
+        assertTrue(AuroraDSQLSessionFacts.changesSearchPath("SET SESSION search_path TO app, public"));
+        assertTrue(AuroraDSQLSessionFacts.changesSearchPath("SELECT set_config('search_path', 'app', false)"));
+        assertTrue(AuroraDSQLSessionFacts.changesSearchPath("RESET ALL"));
+        assertFalse(AuroraDSQLSessionFacts.changesSearchPath("SHOW search_path"));
+        assertFalse(AuroraDSQLSessionFacts.changesSearchPath("SET statement_timeout = 0"));
+        assertFalse(AuroraDSQLSessionFacts.changesSearchPath("SELECT current_setting('search_path')"));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLSession.
+ *
+ * <p>These tests run the session against {@link FakeJdbc} connections and simulate
+ * DSQL closing them.</p>
+ */
+class AuroraDSQLSessionTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+    @Test
+    @DisplayName("Connections past their maximum age should be replaced at the next transaction")
+    void reconnectsWhenOld() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, 0, HOUR);
+
+        try (Statement stmt = session.createStatement()) {
+            stmt.execute("SET search_path = \"app\"");
+        }
+        try (Statement stmt = session.createStatement()) {
+            stmt.execute("SELECT 1");
+        }
+
+        assertTrue(AuroraDSQLSession.of(session).getReconnects() >= 1);
+        assertEquals(Arrays.asList("SET search_path = \"app\"", "SELECT 1"), jdbc.last().executed,
+            "search_path should be restored on the new connection before the statement runs");
+        assertTrue(jdbc.connections.get(0).closed, "the stale connection should be closed");
+    }
+
+    @Test
+    @DisplayName("Connections should not be replaced inside a transaction")
+    void keepsConnectionInsideTransaction() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        session.setAutoCommit(false);
+
+        try (Statement stmt = session.createStatement()) {
+            stmt.executeUpdate("INSERT INTO t VALUES (1)");
+            stmt.executeUpdate("INSERT INTO t VALUES (2)");
+        }
+        session.commit();
+
+        assertEquals(1, jdbc.connections.size());
+        assertEquals(0, AuroraDSQLSession.of(session).getReconnects());
+    }
+
+    @Test
+    @DisplayName("Setting the current autocommit mode again should not end the open transaction")
+    void keepsTransactionOnUnchangedAutoCommit() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, 0, HOUR);
+        session.setAutoCommit(false);
+
+        try (Statement stmt = session.createStatement()) {
+            stmt.executeUpdate("INSERT INTO t VALUES (1)");
+            int connections = jdbc.connections.size();
+            session.setAutoCommit(false);
+            stmt.executeUpdate("INSERT INTO t VALUES (2)");
+            assertEquals(connections, jdbc.connections.size(), "the connection should not be replaced");
+        }
+        session.commit();
+
+        assertEquals(Arrays.asList("INSERT INTO t VALUES (1)", "INSERT INTO t VALUES (2)", "COMMIT"),
+            jdbc.last().executed);
+    }
+
+    @Test
+    @DisplayName("A transaction lost before commit should be replayed on a new connection")
+    void replaysLostTransaction() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        session.setAutoCommit(false);
+
+        try (PreparedStatement insert = session.prepareStatement("INSERT INTO t VALUES (?)")) {
+            insert.setInt(1, 1);
+            insert.executeUpdate();
+            jdbc.last().kill();
+            insert.setInt(1, 2);
+            insert.executeUpdate();
+        }
+        session.commit();
+
+        assertEquals(2, jdbc.connections.size());
+        assertEquals(Arrays.asList("INSERT INTO t VALUES (?) [1]", "INSERT INTO t VALUES (?) [2]", "COMMIT"),
+            jdbc.last().executed);
+        assertFalse(jdbc.last().autoCommit, "autocommit mode should be restored");
+    }
+
+    @Test
+    @DisplayName("A transaction that has returned query results should not be replayed")
+    void doesNotReplayAfterReads() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        session.setAutoCommit(false);
+
+        try (Statement stmt = session.createStatement()) {
+            assertNotNull(stmt.executeQuery("SELECT balance FROM accounts WHERE id = 1"));
+            jdbc.last().kill();
+            SQLException e = assertThrows(SQLException.class,
+                () -> stmt.executeUpdate("UPDATE accounts SET balance = 10 WHERE id = 1"));
+            assertEquals("08006", e.getSQLState());
+        }
+
+        assertEquals(1, jdbc.connections.size());
+    }
+
+    @Test
+    @DisplayName("A write lost in autocommit mode should not be retried")
+    void doesNotRetryAutocommitWrites() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        jdbc.last().kill();
+
+        try (Statement stmt = session.createStatement()) {
+            SQLException e = assertThrows(SQLException.class, () -> stmt.execute("CREATE TABLE t (id INT PRIMARY KEY)"));
+            assertEquals("08006", e.getSQLState());
+
+            // The next transaction starts on a fresh connection
+            stmt.execute("CREATE TABLE IF NOT EXISTS t (id INT PRIMARY KEY)");
+        }
+
+        assertEquals(2, jdbc.connections.size());
+        assertEquals(Arrays.asList("CREATE TABLE IF NOT EXISTS t (id INT PRIMARY KEY)"), jdbc.last().executed);
+    }
+
+    @Test
+    @DisplayName("A read lost in autocommit mode should be retried transparently")
+    void retriesAutocommitReads() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        jdbc.last().kill();
+
+        try (Statement stmt = session.createStatement()) {
+            assertNotNull(stmt.executeQuery("SELECT 1"));
+        }
+
+        assertEquals(2, jdbc.connections.size());
+    }
+
+    @Test
+    @DisplayName("A commit lost with the connection should fail without replay")
+    void failsWhenCommitIsLost() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        session.setAutoCommit(false);
+        try (Statement stmt = session.createStatement()) {
+            stmt.executeUpdate("INSERT INTO t VALUES (1)");
+        }
+        jdbc.last().kill();
+
+        assertThrows(SQLException.class, session::commit);
+        assertEquals(1, jdbc.connections.size());
+    }
+
+    @Test
+    @DisplayName("Unwrapped connections should not report a session")
+    void ofReturnsNullForPlainConnections() {
+        assertNull(AuroraDSQLSession.of(new FakeJdbc().open()));
+        assertNull(AuroraDSQLSession.of(null));
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.configuration.Configuration;
+import org.flywaydb.core.api.migration.Context;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLShadowRewrite.
+ */
+class AuroraDSQLShadowRewriteTest {
+
+    private static final String DEFINITION = "id BIGINT PRIMARY KEY, amount NUMERIC(18,2), updated_at TIMESTAMPTZ";
+    private static final String CHECKPOINTS = "\"flyway_schema_history_rewrites\"";
+
+    /**
+     * A two-column table whose key splits into the ranges (..10], (10..20] and (20..).
+     */
+    private static FakeJdbc orders() {
+        return new FakeJdbc()
+            .onQuery("SELECT \"id\" FROM \"orders\" ORDER BY", new Object[]{10L})
+            .onQuery("SELECT \"id\" FROM \"orders\" WHERE \"id\" > ? ORDER BY \"id\" LIMIT 1 OFFSET 1 [10]",
+                new Object[]{20L})
+            .onQuery("SELECT column_name", new Object[]{"id"}, new Object[]{"amount"})
+            .onQuery("SELECT now()", new Object[]{"2026-10-19 12:00:00+00"});
+    }
+
+    private static AuroraDSQLShadowRewrite rewrite() {
+        return new AuroraDSQLShadowRewrite("orders", "id", DEFINITION).chunkSize(2);
+    }
+
+    private static List<String> matching(FakeJdbc jdbc, String prefix) {
+        synchronized (jdbc.log) {
+            return jdbc.log.stream().filter(sql -> sql.startsWith(prefix)).collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    @DisplayName("A rewrite should create the shadow, copy key ranges, catch up and rename")
+    void rewritesTable() throws SQLException {
+        FakeJdbc jdbc = orders();
+
+        rewrite().map("amount", "amount::numeric(18,2)").changedSince("updated_at").run(jdbc.open());
+
+        assertEquals(1, matching(jdbc, "CREATE TABLE IF NOT EXISTS \"orders_shadow\" (" + DEFINITION + ")").size());
+        String copy = "INSERT INTO \"orders_shadow\" (\"id\", \"amount\") SELECT \"id\", amount::numeric(18,2)"
+            + " FROM \"orders\" WHERE ";
+        assertEquals(Arrays.asList(
+            copy + "\"id\" <= ? ON CONFLICT DO NOTHING [10]",
+            copy + "\"id\" > ? AND \"id\" <= ? ON CONFLICT DO NOTHING [10, 20]",
+            copy + "\"id\" > ? ON CONFLICT DO NOTHING [20]"),
+            matching(jdbc, copy).subList(0, 3));
+        assertEquals(3, matching(jdbc, "INSERT INTO " + CHECKPOINTS + " (\"rewrite\", \"step\", \"item\", \"value\")"
+            + " VALUES (?, ?, ?, ?) ON CONFLICT DO NOTHING [orders, range,").size());
+        assertTrue(matching(jdbc, copy).get(3).contains("\"updated_at\" >= CAST('2026-10-19 12:00:00+00' AS TIMESTAMPTZ)"),
+            "catch-up should only copy changed rows");
+
+        List<String> log = jdbc.log;
+        int renameSource = log.indexOf("ALTER TABLE \"orders\" RENAME TO \"orders_old\"");
+        int renameShadow = log.indexOf("ALTER TABLE \"orders_shadow\" RENAME TO \"orders\"");
+        assertTrue(renameSource > 0 && renameShadow > renameSource, log.toString());
+        assertTrue(log.subList(renameSource, renameShadow).stream().anyMatch(sql -> sql.contains("FROM \"orders_old\"")),
+            "a final catch-up should copy writes made before the table was renamed");
+        assertTrue(log.get(log.size() - 1).contains("[orders, done, , ]"), log.get(log.size() - 1));
+        assertTrue(jdbc.last().autoCommit);
+    }
+
+    @Test
+    @DisplayName("A rewrite should resume after its last checkpoint")
+    void resumesFromCheckpoints() throws SQLException {
+        FakeJdbc jdbc = orders().onQuery("SELECT \"step\", \"item\", \"value\" FROM",
+            new Object[]{"created", "", ""},
+            new Object[]{"copy-started", "", "2026-10-19 11:00:00+00"},
+            new Object[]{"range", "..10", ""});
+
+        rewrite().run(jdbc.open());
+
+        assertTrue(matching(jdbc, "CREATE TABLE IF NOT EXISTS \"orders_shadow\"").isEmpty());
+        assertTrue(matching(jdbc, "SELECT now()").isEmpty());
+        List<String> copies = matching(jdbc, "INSERT INTO \"orders_shadow\"");
+        assertFalse(copies.stream().anyMatch(sql -> sql.endsWith("ON CONFLICT DO NOTHING [10]")),
+            "the first range was already copied");
+        assertEquals(2, copies.stream().filter(sql -> sql.contains("ON CONFLICT DO NOTHING")).count());
+    }
+
+    @Test
+    @DisplayName("A rewrite stopped after renaming the table should finish the switchover from the old table")
+    void resumesAfterSourceRename() throws SQLException {
+        FakeJdbc jdbc = orders()
+            .onQuery("SELECT \"step\", \"item\", \"value\" FROM",
+                new Object[]{"created", "", ""},
+                new Object[]{"copy-started", "", "2026-10-19 11:00:00+00"},
+                new Object[]{"copied", "", ""})
+            .onQuery("SELECT 1 FROM information_schema.tables WHERE table_schema = current_schema()"
+                + " AND table_name = ? [orders_old]", new Object[]{1});
+
+        rewrite().run(jdbc.open());
+
+        assertTrue(matching(jdbc, "ALTER TABLE \"orders\" RENAME").isEmpty(), "the table was already renamed");
+        assertFalse(jdbc.log.stream().anyMatch(sql -> sql.contains("FROM \"orders\" ")), jdbc.log.toString());
+        assertTrue(jdbc.log.contains("ALTER TABLE \"orders_shadow\" RENAME TO \"orders\""));
+        assertTrue(jdbc.log.get(jdbc.log.size() - 1).contains("[orders, done, , ]"));
+    }
+
+    @Test
+    @DisplayName("A completed rewrite should not run again")
+    void skipsCompletedRewrite() throws SQLException {
+        FakeJdbc jdbc = orders().onQuery("SELECT \"step\", \"item\", \"value\" FROM", new Object[]{"done", "", ""});
+
+        rewrite().run(jdbc.open());
+
+        assertTrue(matching(jdbc, "INSERT INTO \"orders_shadow\"").isEmpty());
+        assertTrue(matching(jdbc, "ALTER TABLE").isEmpty());
+    }
+
+    @Test
+    @DisplayName("A second rewrite of a table should run on its own checkpoints, and not over an old table")
+    void rewritesTableTwice() throws SQLException {
+        FakeJdbc jdbc = orders().onQuery("SELECT \"step\", \"item\", \"value\" FROM " + CHECKPOINTS
+            + " WHERE \"rewrite\" = ? [1:orders]", new Object[]{"done", "", ""});
+
+        rewrite().id("2").run(jdbc.open());
+
+        assertEquals(3, matching(jdbc, "INSERT INTO \"orders_shadow\"").stream()
+            .filter(sql -> sql.contains("ON CONFLICT DO NOTHING")).count());
+        assertTrue(jdbc.log.get(jdbc.log.size() - 1).contains("[2:orders, done, , ]"));
+
+        FakeJdbc kept = orders().onQuery("SELECT 1 FROM information_schema.tables WHERE table_schema = current_schema()"
+            + " AND table_name = ? [orders_old]", new Object[]{1});
+        SQLException error = assertThrows(SQLException.class, () -> rewrite().id("3").run(kept.open()));
+
+        assertTrue(error.getMessage().contains("orders_old"), error.getMessage());
+        assertTrue(matching(kept, "CREATE TABLE IF NOT EXISTS \"orders_shadow\"").isEmpty());
+    }
+
+    @Test
+    @DisplayName("View switchover should recreate the view over the changed column types and keep the table")
+    void switchesView() throws SQLException {
+        FakeJdbc jdbc = orders().failOn("CREATE OR REPLACE VIEW",
+            new SQLException("cannot change data type of view column \"amount\"", "42P16"));
+
+        rewrite().map("amount", "amount::numeric(18,2)").switchoverView("orders_v").run(jdbc.open());
+
+        List<String> log = jdbc.log;
+        int drop = log.indexOf("DROP VIEW IF EXISTS \"orders_v\"");
+        int create = log.indexOf("CREATE VIEW \"orders_v\" AS SELECT \"id\", \"amount\" FROM \"orders_shadow\"");
+        assertTrue(drop > 0 && create > drop, log.toString());
+        assertTrue(log.subList(drop, create).stream().anyMatch(sql -> sql.contains("[orders, view-dropped, , ]")),
+            "the drop should be recorded before the view is created again");
+        assertTrue(matching(jdbc, "ALTER TABLE").isEmpty());
+        assertFalse(matching(jdbc, "DELETE FROM \"orders_shadow\" WHERE \"id\" > ? [20]").isEmpty(),
+            "without a change column, catch-up should replace each range");
+    }
+
+    @Test
+    @DisplayName("View switchover stopped after the drop should create the view without dropping it again")
+    void resumesAfterViewDrop() throws SQLException {
+        FakeJdbc jdbc = orders().onQuery("SELECT \"step\", \"item\", \"value\" FROM",
+            new Object[]{"created", "", ""},
+            new Object[]{"copy-started", "", "2026-10-19 11:00:00+00"},
+            new Object[]{"copied", "", ""},
+            new Object[]{"view-dropped", "", ""});
+
+        rewrite().switchoverView("orders_v").run(jdbc.open());
+
+        assertTrue(matching(jdbc, "DROP VIEW").isEmpty());
+        assertEquals(1, matching(jdbc, "CREATE VIEW \"orders_v\"").size());
+        assertTrue(jdbc.log.get(jdbc.log.size() - 1).contains("[orders, done, , ]"));
+    }
+
+    @Test
+    @DisplayName("Key ranges should be copied in parallel on separate connections in the same schema")
+    void copiesInParallel() throws SQLException {
+        FakeJdbc jdbc = orders().onQuery("SELECT current_schema()", new Object[]{"app"});
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open,
+            TimeUnit.HOURS.toNanos(1), TimeUnit.HOURS.toNanos(1));
+
+        rewrite().parallelism(3).run(session);
+
+        assertTrue(jdbc.connections.size() > 1);
+        assertTrue(jdbc.connections.subList(1, jdbc.connections.size()).stream().allMatch(c -> c.closed));
+        assertFalse(matching(jdbc, "SET search_path = \"app\"").isEmpty(), jdbc.log.toString());
+        assertTrue(jdbc.connections.subList(1, jdbc.connections.size()).stream()
+            .allMatch(c -> c.executed.contains("SET search_path = \"app\"")), jdbc.log.toString());
+        assertEquals(3, matching(jdbc, "INSERT INTO \"orders_shadow\"").stream()
+            .filter(sql -> sql.contains("ON CONFLICT DO NOTHING")).count());
+    }
+
+    @Test
+    @DisplayName("Inside a migration holding the only permit, ranges should be copied without waiting for one")
+    void copiesUnderMigrationPermit() throws Exception {
+        FakeJdbc jdbc = orders();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open,
+            TimeUnit.HOURS.toNanos(1), TimeUnit.HOURS.toNanos(1));
+        AuroraDSQLAdaptiveLimiter limiter = new AuroraDSQLAdaptiveLimiter(1, 1, 1);
+
+        CompletableFuture<Void> migration = CompletableFuture.runAsync(() -> {
+            try (AuroraDSQLAdaptiveLimiter.Permit permit = limiter.acquire()) {
+                rewrite().parallelism(3).run(session, limiter);
+            } catch (InterruptedException | SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        migration.get(10, TimeUnit.SECONDS);
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(3, matching(jdbc, "INSERT INTO \"orders_shadow\"").stream()
+            .filter(sql -> sql.contains("ON CONFLICT DO NOTHING")).count());
+    }
+
+    @Test
+    @DisplayName("Chunks larger than DSQL's transaction limit allows should be rejected")
+    void rejectsLargeChunks() {
+        assertThrows(IllegalArgumentException.class, () -> rewrite().chunkSize(AuroraDSQLShadowRewrite.MAX_CHUNK_SIZE + 1));
+    }
+
+    @Test
+    @DisplayName("The Java migration should keep checkpoints next to the schema history table")
+    void runsAsJavaMigration() throws Exception {
+        FakeJdbc jdbc = orders();
+        Configuration configuration = (Configuration) Proxy.newProxyInstance(Configuration.class.getClassLoader(),
+            new Class<?>[]{Configuration.class}, (target, method, args) ->
+                method.getName().equals("getTable") ? "history"
+                    : method.getName().equals("getDefaultSchema") ? "app" : null);
+        Connection connection = jdbc.open();
+        Context context = (Context) Proxy.newProxyInstance(Context.class.getClassLoader(),
+            new Class<?>[]{Context.class}, (target, method, args) ->
+                method.getName().equals("getConnection") ? connection : configuration);
+        AuroraDSQLShadowRewriteMigration migration = new AuroraDSQLShadowRewriteMigration() {
+            @Override
+            protected AuroraDSQLShadowRewrite rewrite() {
+                return AuroraDSQLShadowRewriteTest.rewrite();
+            }
+        };
+
+        assertFalse(migration.canExecuteInTransaction());
+        migration.migrate(context);
+
+        assertFalse(matching(jdbc, "CREATE TABLE IF NOT EXISTS \"app\".\"history_rewrites\"").isEmpty());
+        assertFalse(matching(jdbc, "INSERT INTO \"app\".\"history_rewrites\"").isEmpty());
+        assertTrue(matching(jdbc, "INSERT INTO \"app\".\"history_rewrites\"").stream()
+            .allMatch(sql -> sql.contains("[" + migration.getDescription() + ":orders, ")), jdbc.log.toString());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLSlowStatementLog.
+ */
+class AuroraDSQLSlowStatementLogTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+    private static Context context(Connection connection) {
+        MigrationInfo migration = (MigrationInfo) Proxy.newProxyInstance(MigrationInfo.class.getClassLoader(),
+            new Class<?>[]{MigrationInfo.class}, (target, method, args) ->
+                method.getName().equals("getScript") ? "V7__backfill.sql" : null);
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+            (target, method, args) -> method.getName().equals("getConnection") ? connection
+                : method.getName().equals("getMigrationInfo") ? migration : null);
+    }
+
+    @Test
+    @DisplayName("Slow DML should be captured with its plan, timing and row count")
+    void capturesSlowDml() throws SQLException, IOException {
+        FakeJdbc jdbc = new FakeJdbc()
+            .withLatency(20)
+            .onQuery("EXPLAIN UPDATE", new Object[]{"Update on orders"}, new Object[]{"  ->  Full Scan on orders"});
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        Path file = Files.createTempFile("slow", ".jsonl");
+        AuroraDSQLSlowStatementLog log = new AuroraDSQLSlowStatementLog(10, false, file);
+        Context context = context(session);
+
+        log.handle(Event.BEFORE_EACH_MIGRATE, context);
+        try (Statement stmt = session.createStatement()) {
+            stmt.execute("CREATE TABLE t (id UUID PRIMARY KEY)");
+            stmt.executeUpdate("UPDATE orders SET status = 'done'");
+        }
+        log.handle(Event.AFTER_EACH_MIGRATE, context);
+
+        List<String> entries = log.getEntries();
+        assertEquals(1, entries.size(), "only the DML statement should be captured");
+        String entry = entries.get(0);
+        assertTrue(entry.contains("\"migration\":\"V7__backfill.sql\""), entry);
+        assertTrue(entry.contains("\"statement\":2"), entry);
+        assertTrue(entry.contains("\"rows\":1"), entry);
+        assertTrue(entry.contains("\"plan\":\"Update on orders\\n  ->  Full Scan on orders\""), entry);
+        assertEquals(entry, new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+        Files.delete(file);
+    }
+
+    @Test
+    @DisplayName("Fast statements should not be explained")
+    void ignoresFastStatements() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLSlowStatementLog log = new AuroraDSQLSlowStatementLog(60_000, true, null);
+        Context context = context(session);
+
+        log.handle(Event.BEFORE_EACH_MIGRATE, context);
+        try (Statement stmt = session.createStatement()) {
+            stmt.executeUpdate("DELETE FROM orders");
+        }
+        log.handle(Event.AFTER_EACH_MIGRATE, context);
+
+        assertTrue(log.getEntries().isEmpty());
+        assertFalse(jdbc.log.stream().anyMatch(sql -> sql.startsWith("EXPLAIN")));
+    }
+
+    @Test
+    @DisplayName("EXPLAIN ANALYZE should run in a transaction that is rolled back")
+    void analyzesInRolledBackTransaction() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc().withLatency(5);
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLSlowStatementLog log = new AuroraDSQLSlowStatementLog(0, true, null);
+        Context context = context(session);
+
+        log.handle(Event.BEFORE_EACH_MIGRATE, context);
+        try (PreparedStatement stmt = session.prepareStatement("DELETE FROM orders WHERE id = ?")) {
+            stmt.setString(1, "x");
+            stmt.executeUpdate();
+        }
+        log.handle(Event.AFTER_EACH_MIGRATE, context);
+
+        List<String> executed = jdbc.last().executed;
+        assertTrue(executed.contains("EXPLAIN (GENERIC_PLAN) DELETE FROM orders WHERE id = $1"), executed.toString());
+        int analyze = executed.indexOf("EXPLAIN (ANALYZE) DELETE FROM orders WHERE id = $1");
+        assertTrue(analyze >= 0, executed.toString());
+        assertEquals("ROLLBACK", executed.get(analyze + 1));
+        assertTrue(jdbc.last().autoCommit, "autocommit should be restored");
+    }
+
+    @Test
+    @DisplayName("Slow DML inside a transaction should be explained on a separate connection in the same schema")
+    void explainsTransactionsSeparately() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc()
+            .withLatency(5)
+            .onQuery("SELECT current_schema()", new Object[]{"app"})
+            .failOn("EXPLAIN (GENERIC_PLAN)", new SQLException("could not determine data type of parameter $1", "42P18"))
+            .onQuery("EXPLAIN UPDATE", new Object[]{"Update on orders"});
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLSlowStatementLog log = new AuroraDSQLSlowStatementLog(0, true, null);
+        Context context = context(session);
+
+        log.handle(Event.BEFORE_EACH_MIGRATE, context);
+        session.setAutoCommit(false);
+        try (Statement stmt = session.createStatement()) {
+            stmt.executeUpdate("UPDATE orders SET status = 'done'");
+        }
+        try (PreparedStatement stmt = session.prepareStatement("DELETE FROM orders WHERE id = ?")) {
+            stmt.setString(1, "x");
+            stmt.executeUpdate();
+        }
+        session.commit();
+        log.handle(Event.AFTER_EACH_MIGRATE, context);
+
+        List<String> migration = jdbc.connections.get(0).executed;
+        assertFalse(migration.stream().anyMatch(sql -> sql.startsWith("EXPLAIN")), migration.toString());
+        assertEquals("COMMIT", migration.get(migration.size() - 1));
+        assertEquals(3, jdbc.connections.size(), "one connection per explained statement");
+        assertEquals(List.of("SET search_path = \"app\"", "EXPLAIN UPDATE orders SET status = 'done'"),
+            jdbc.connections.get(1).executed);
+        assertTrue(jdbc.connections.get(1).closed);
+        List<String> entries = log.getEntries();
+        assertTrue(entries.get(0).contains("\"plan\":\"Update on orders\""), entries.get(0));
+        assertTrue(entries.get(1).contains("\"plan\":\"unavailable: could not determine"), entries.get(1));
+        assertTrue(entries.stream().noneMatch(entry -> entry.contains("ANALYZE")), entries.toString());
+    }
+
+    @Test
+    @DisplayName("JDBC parameters should be numbered outside quoted text")
+    void numbersParameters() {
+        assertEquals("UPDATE t SET a = $1 WHERE b = '?' AND c = $2",
+            AuroraDSQLSlowStatementLog.numberParameters("UPDATE t SET a = ? WHERE b = '?' AND c = ?"));
+    }
+}
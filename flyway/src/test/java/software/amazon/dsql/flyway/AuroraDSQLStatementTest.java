@@ -0,0 +1,85 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLStatement.
+ *
+ * <p>These tests verify script splitting and transactional classification
+ * without requiring a database connection.</p>
+ */
+class AuroraDSQLStatementTest {
+
+    @Test
+    @DisplayName("parse() should split on top-level semicolons only")
+    void parseSplitsOnTopLevelSemicolons() {
+        List<AuroraDSQLStatement> statements = AuroraDSQLStatement.parse(
+            "-- header; comment\n" +
+            "CREATE TABLE t (id UUID PRIMARY KEY, note TEXT DEFAULT 'a;b');\n" +
+            "/* block; /* nested; */ comment */\n" +
+            "INSERT INTO \"odd;name\" VALUES ('it''s; fine');\n" +
+            "CREATE FUNCTION f() RETURNS int AS $body$ SELECT 1; $body$ LANGUAGE sql;\n" +
+            "   ;  \n");
+
+        assertEquals(3, statements.size());
+        assertTrue(statements.get(0).getSql().startsWith("CREATE TABLE t"));
+        assertTrue(statements.get(1).getSql().endsWith("'it''s; fine')"));
+        assertTrue(statements.get(2).getSql().contains("SELECT 1; $body$"));
+    }
+
+    @Test
+    @DisplayName("Statements should be classified by DSQL transaction rules")
+    void classifiesStatements() {
+        assertEquals(AuroraDSQLStatement.Kind.DDL, AuroraDSQLStatement.of("create view v as select 1").getKind());
+        assertEquals(AuroraDSQLStatement.Kind.DML, AuroraDSQLStatement.of("UPDATE t SET a = 1").getKind());
+        assertEquals(AuroraDSQLStatement.Kind.DML,
+            AuroraDSQLStatement.of("WITH x AS (DELETE FROM t RETURNING id) SELECT count(*) FROM x").getKind());
+        assertEquals(AuroraDSQLStatement.Kind.QUERY,
+            AuroraDSQLStatement.of("WITH x AS (SELECT 1) SELECT * FROM x").getKind());
+        assertEquals(AuroraDSQLStatement.Kind.OTHER, AuroraDSQLStatement.of("SET search_path TO s").getKind());
+    }
+
+    @Test
+    @DisplayName("Async and synchronous index creation should be distinguished")
+    void detectsIndexKinds() {
+        AuroraDSQLStatement async = AuroraDSQLStatement.of("CREATE UNIQUE INDEX ASYNC idx ON t(a)");
+        AuroraDSQLStatement sync = AuroraDSQLStatement.of("-- c\nCREATE INDEX idx ON t(a)");
+
+        assertTrue(async.isAsyncIndex());
+        assertFalse(async.isSyncIndex());
+        assertTrue(sync.isSyncIndex());
+        assertFalse(sync.isAsyncIndex());
+    }
+
+    @Test
+    @DisplayName("Normalized SQL should ignore comments, whitespace and keyword case but keep quoted text")
+    void normalizesSql() {
+        assertEquals("create view v as select id, 'A  B' from \"T\"",
+            AuroraDSQLStatement.of("-- header\nCREATE VIEW v AS\n  SELECT id, /* note */ 'A  B'\n  FROM \"T\";").getNormalizedSql());
+        assertEquals(AuroraDSQLStatement.normalize("select $$ X  Y $$"),
+            AuroraDSQLStatement.normalize("SELECT   $$ X  Y $$;"));
+    }
+
+    @Test
+    @DisplayName("The table a statement changes should be extracted")
+    void extractsTargetTable() {
+        assertEquals("orders", AuroraDSQLStatement.of("INSERT INTO orders (id) VALUES (1)").getTargetTable());
+        assertEquals("app.\"Orders\"", AuroraDSQLStatement.of("UPDATE ONLY app . \"Orders\" SET a = 1").getTargetTable());
+        assertEquals("orders", AuroraDSQLStatement.of("DELETE FROM orders WHERE id = 1").getTargetTable());
+        assertEquals("orders", AuroraDSQLStatement.of("ALTER TABLE IF EXISTS orders ADD COLUMN a INT").getTargetTable());
+        assertEquals("orders", AuroraDSQLStatement.of("CREATE UNIQUE INDEX ASYNC idx ON orders (a)").getTargetTable());
+        assertEquals("orders", AuroraDSQLStatement.of("TRUNCATE TABLE orders").getTargetTable());
+        assertEquals("orders", AuroraDSQLStatement.of("DROP TABLE IF EXISTS orders").getTargetTable());
+        assertNull(AuroraDSQLStatement.of("SELECT * FROM orders").getTargetTable());
+        assertNull(AuroraDSQLStatement.of("CREATE VIEW v AS SELECT 1").getTargetTable());
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLTracer.
+ */
+class AuroraDSQLTracerTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+    private static List<String> lines(Path file) throws IOException {
+        return Files.readAllLines(file, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    @DisplayName("Disabled tracing should hand out one shared span that records nothing")
+    void noopWhenDisabled() {
+        AuroraDSQLTracer.Span first = AuroraDSQLTracer.NOOP.start("a");
+        AuroraDSQLTracer.Span second = AuroraDSQLTracer.NOOP.start("b").attribute("key", "value");
+
+        assertSame(first, second);
+        assertFalse(first.isRecording());
+        assertTrue(first.getAttributes().isEmpty());
+        first.close();
+    }
+
+    @Test
+    @DisplayName("Nested spans should share a trace and be written when the root ends")
+    void nestsSpansAndWritesOnRootEnd() throws IOException {
+        Path file = Files.createTempFile("trace", ".jsonl");
+        AuroraDSQLTracer tracer = new AuroraDSQLTracer(file, "flyway", null);
+
+        AuroraDSQLTracer.Span root = tracer.start("flyway.migrate");
+        AuroraDSQLTracer.Span child = tracer.start("flyway.migration V1__init.sql");
+        child.attribute("flyway.version", "1").close();
+        assertTrue(lines(file).isEmpty(), "spans should be buffered until the root ends");
+        AuroraDSQLTracer.Span sibling = tracer.start("flyway.migration V2__data.sql");
+        sibling.close();
+        root.close();
+
+        assertEquals(root.getTraceId(), child.getTraceId());
+        assertEquals(root.getSpanId(), child.getParentSpanId());
+        assertEquals(root.getSpanId(), sibling.getParentSpanId(), "the root should be current again");
+        assertNull(root.getParentSpanId());
+        assertEquals(32, root.getTraceId().length());
+        assertEquals(16, root.getSpanId().length());
+
+        List<String> lines = lines(file);
+        assertEquals(1, lines.size());
+        String line = lines.get(0);
+        assertTrue(line.startsWith("{\"resourceSpans\":[{\"resource\":{\"attributes\":[{\"key\":\"service.name\","
+            + "\"value\":{\"stringValue\":\"flyway\"}}]},\"scopeSpans\":[{\"scope\":{\"name\":\""
+            + AuroraDSQLTracer.SCOPE + "\"},\"spans\":["), line);
+        assertTrue(line.contains("\"name\":\"flyway.migration V1__init.sql\""), line);
+        assertTrue(line.contains("{\"key\":\"flyway.version\",\"value\":{\"stringValue\":\"1\"}}"), line);
+        assertTrue(line.contains("\"parentSpanId\":\"" + root.getSpanId() + "\""), line);
+        Files.delete(file);
+    }
+
+    @Test
+    @DisplayName("Spans ending out of order should leave the nearest open ancestor current")
+    void endsOutOfOrder() throws IOException {
+        Path file = Files.createTempFile("trace", ".jsonl");
+        AuroraDSQLTracer tracer = new AuroraDSQLTracer(file, "flyway", null);
+
+        AuroraDSQLTracer.Span root = tracer.start("root");
+        AuroraDSQLTracer.Span migration = tracer.start("migration");
+        AuroraDSQLTracer.Span transaction = tracer.start("transaction");
+        migration.close();
+        AuroraDSQLTracer.Span next = tracer.start("next");
+        transaction.close();
+        next.close();
+        root.close();
+
+        assertEquals(root.getSpanId(), next.getParentSpanId());
+        Files.delete(file);
+    }
+
+    @Test
+    @DisplayName("Root spans should continue the trace in a W3C traceparent")
+    void continuesTraceparent() {
+        AuroraDSQLTracer enabled = new AuroraDSQLTracer(Paths.get("unused.jsonl"), "flyway",
+            "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+        AuroraDSQLTracer.Span root = enabled.start("flyway.migrate");
+
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", root.getTraceId());
+        assertEquals("00f067aa0ba902b7", root.getParentSpanId());
+    }
+
+    @Test
+    @DisplayName("Errors should set the span status and record the SQLSTATE")
+    void recordsErrors() {
+        AuroraDSQLTracer tracer = new AuroraDSQLTracer(Paths.get("unused.jsonl"), "flyway", null);
+        AuroraDSQLTracer.Span span = tracer.start("INSERT t")
+            .error(new SQLException("change conflicts with another transaction", "40001"));
+        span.attribute("dsql.rows_affected", 3L);
+
+        String json = tracer.export(Collections.singletonList(span));
+
+        assertTrue(json.contains("\"status\":{\"code\":2,\"message\":\"change conflicts with another transaction\"}"),
+            json);
+        assertTrue(json.contains("{\"key\":\"dsql.sqlstate\",\"value\":{\"stringValue\":\"40001\"}}"), json);
+        assertTrue(json.contains("{\"key\":\"dsql.rows_affected\",\"value\":{\"intValue\":\"3\"}}"), json);
+    }
+
+    @Test
+    @DisplayName("Statements and transactions on a session should become nested spans")
+    void tracesStatementsAndTransactions() throws SQLException, IOException {
+        Path file = Files.createTempFile("trace", ".jsonl");
+        AuroraDSQLTracer tracer = new AuroraDSQLTracer(file, "flyway", null);
+        FakeJdbc jdbc = new FakeJdbc().failOn("INSERT INTO missing",
+            new SQLException("relation \"missing\" does not exist", "42P01"));
+        Connection session = AuroraDSQLSession.wrap(jdbc.open(), jdbc::open, HOUR, HOUR);
+        AuroraDSQLSession wrapper = AuroraDSQLSession.of(session);
+        wrapper.addListener(new AuroraDSQLTracer.StatementSpans(tracer, wrapper));
+
+        AuroraDSQLTracer.Span root = tracer.start("flyway.migrate");
+        session.setAutoCommit(false);
+        try (Statement stmt = session.createStatement()) {
+            stmt.executeUpdate("UPDATE orders SET status = 'done'");
+            stmt.executeUpdate("INSERT INTO orders VALUES (1)");
+        }
+        session.commit();
+        session.setAutoCommit(true);
+        try (Statement stmt = session.createStatement()) {
+            assertThrows(SQLException.class, () -> stmt.executeUpdate("INSERT INTO missing VALUES (1)"));
+        }
+        root.close();
+
+        String line = lines(file).get(0);
+        assertTrue(line.contains("\"name\":\"dsql.transaction\""), line);
+        assertTrue(line.contains("{\"key\":\"dsql.statements\",\"value\":{\"intValue\":\"2\"}}"), line);
+        assertTrue(line.contains("\"name\":\"UPDATE orders\""), line);
+        assertTrue(line.contains("{\"key\":\"db.operation\",\"value\":{\"stringValue\":\"UPDATE\"}}"), line);
+        assertTrue(line.contains("{\"key\":\"dsql.rows_affected\",\"value\":{\"intValue\":\"1\"}}"), line);
+        assertTrue(line.contains("{\"key\":\"dsql.sqlstate\",\"value\":{\"stringValue\":\"42P01\"}}"), line);
+        assertTrue(line.contains("\"kind\":3"), "statements should be client spans: " + line);
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.flywaydb.core.api.MigrationInfo;
+import org.flywaydb.core.api.MigrationVersion;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLTracing.
+ */
+class AuroraDSQLTracingTest {
+
+    private static Context context(String version, String script) {
+        MigrationInfo migration = (MigrationInfo) Proxy.newProxyInstance(MigrationInfo.class.getClassLoader(),
+            new Class<?>[]{MigrationInfo.class}, (target, method, args) -> {
+                switch (method.getName()) {
+                    case "getVersion":
+                        return MigrationVersion.fromVersion(version);
+                    case "getScript":
+                        return script;
+                    case "getDescription":
+                        return "init";
+                    default:
+                        return null;
+                }
+            });
+        return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+            (target, method, args) -> method.getName().equals("getMigrationInfo") ? migration : null);
+    }
+
+    @Test
+    @DisplayName("A migrate run should become one trace with a span per migration")
+    void tracesPhaseAndMigrations() throws IOException {
+        Path file = Files.createTempFile("trace", ".jsonl");
+        AuroraDSQLTracing tracing = new AuroraDSQLTracing(new AuroraDSQLTracer(file, "flyway", null));
+        Context context = context("1", "V1__init.sql");
+
+        assertTrue(tracing.supports(Event.BEFORE_MIGRATE, context));
+        tracing.handle(Event.BEFORE_MIGRATE, context);
+        tracing.handle(Event.BEFORE_EACH_MIGRATE, context);
+        tracing.handle(Event.AFTER_EACH_MIGRATE, context);
+        tracing.handle(Event.BEFORE_EACH_MIGRATE, context("2", "V2__data.sql"));
+        tracing.handle(Event.AFTER_EACH_MIGRATE_ERROR, context);
+        tracing.handle(Event.AFTER_MIGRATE_ERROR, context);
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        String line = lines.get(0);
+        assertTrue(line.contains("\"name\":\"flyway.migration V1__init.sql\""), line);
+        assertTrue(line.contains("{\"key\":\"flyway.version\",\"value\":{\"stringValue\":\"2\"}}"), line);
+        assertTrue(line.contains("\"message\":\"Migration failed\""), line);
+        assertTrue(line.contains("\"name\":\"flyway.migrate\""), line);
+        assertTrue(line.contains("\"message\":\"Flyway migrate failed\""), line);
+        Files.delete(file);
+    }
+
+    @Test
+    @DisplayName("Phases should be recognized by event name")
+    void recognizesPhases() {
+        assertEquals("MIGRATE", AuroraDSQLTracing.phase(Event.BEFORE_MIGRATE));
+        assertEquals("MIGRATE", AuroraDSQLTracing.phase(Event.AFTER_MIGRATE_ERROR));
+        assertEquals("CLEAN", AuroraDSQLTracing.phase(Event.AFTER_CLEAN));
+        assertNull(AuroraDSQLTracing.phase(Event.AFTER_MIGRATE_APPLIED));
+        assertNull(AuroraDSQLTracing.phase(Event.BEFORE_EACH_MIGRATE));
+        assertNull(AuroraDSQLTracing.phase(Event.BEFORE_CONNECT));
+    }
+
+    @Test
+    @DisplayName("The callback should not take part when tracing is off")
+    void inactiveWhenDisabled() {
+        AuroraDSQLTracing tracing = new AuroraDSQLTracing(AuroraDSQLTracer.NOOP);
+        assertFalse(tracing.supports(Event.BEFORE_MIGRATE, context("1", "V1__init.sql")));
+    }
+}
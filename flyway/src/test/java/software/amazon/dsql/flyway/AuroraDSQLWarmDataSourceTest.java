@@ -0,0 +1,102 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLWarmDataSource.
+ */
+class AuroraDSQLWarmDataSourceTest {
+
+    private static final long CONNECT_MILLIS = 300;
+
+    /**
+     * A data source whose connections take {@link #CONNECT_MILLIS} to open.
+     */
+    private static DataSource slow(FakeJdbc jdbc, AtomicInteger opened) {
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class},
+            (target, method, args) -> {
+                if (method.getName().equals("getConnection")) {
+                    Thread.sleep(CONNECT_MILLIS);
+                    opened.incrementAndGet();
+                    return jdbc.open();
+                }
+                return null;
+            });
+    }
+
+    @Test
+    @DisplayName("Connecting should overlap with work done before the first connection is needed")
+    void overlapsConnecting() throws Exception {
+        FakeJdbc jdbc = new FakeJdbc();
+        AtomicInteger opened = new AtomicInteger();
+        long start = System.nanoTime();
+
+        AuroraDSQLWarmDataSource dataSource = new AuroraDSQLWarmDataSource(slow(jdbc, opened), 2);
+        // Stands in for Flyway scanning and parsing migrations
+        Thread.sleep(CONNECT_MILLIS);
+        Connection first = dataSource.getConnection();
+        Connection second = dataSource.getConnection();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertNotSame(first, second);
+        assertEquals(2, opened.get());
+        assertTrue(elapsed < 2 * CONNECT_MILLIS, "took " + elapsed + " ms");
+        dataSource.close();
+    }
+
+    @Test
+    @DisplayName("Connections beyond the prefetched ones should be opened on demand")
+    void opensOnDemand() throws SQLException {
+        FakeJdbc jdbc = new FakeJdbc();
+        AtomicInteger opened = new AtomicInteger();
+        AuroraDSQLWarmDataSource dataSource = new AuroraDSQLWarmDataSource(slow(jdbc, opened), 1);
+
+        dataSource.getConnection();
+        dataSource.getConnection();
+
+        assertEquals(2, opened.get());
+    }
+
+    @Test
+    @DisplayName("A failure to connect in the background should surface from getConnection")
+    void propagatesFailure() {
+        DataSource failing = (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(),
+            new Class<?>[]{DataSource.class}, (target, method, args) -> {
+                throw new SQLException("token expired", "28000");
+            });
+        AuroraDSQLWarmDataSource dataSource = new AuroraDSQLWarmDataSource(failing, 1);
+
+        SQLException e = assertThrows(SQLException.class, dataSource::getConnection);
+        assertEquals("28000", e.getSQLState());
+    }
+
+    @Test
+    @DisplayName("Unused prefetched connections should be closed")
+    void closesUnusedConnections() throws Exception {
+        FakeJdbc jdbc = new FakeJdbc();
+        AtomicInteger opened = new AtomicInteger();
+        AuroraDSQLWarmDataSource dataSource = new AuroraDSQLWarmDataSource(slow(jdbc, opened), 2);
+
+        dataSource.getConnection();
+        dataSource.close();
+        Thread.sleep(2 * CONNECT_MILLIS);
+
+        assertEquals(2, jdbc.connections.size());
+        assertFalse(jdbc.connections.get(0).closed && jdbc.connections.get(1).closed);
+        assertTrue(jdbc.connections.get(0).closed || jdbc.connections.get(1).closed);
+    }
+}
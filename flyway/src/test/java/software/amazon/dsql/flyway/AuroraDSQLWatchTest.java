@@ -0,0 +1,165 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.DisplayName;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for AuroraDSQLWatch.
+ */
+class AuroraDSQLWatchTest {
+
+    private static final String HISTORY = "\"public\".\"flyway_schema_history\"";
+    private static final String VIEW = "CREATE OR REPLACE VIEW active_users AS SELECT id FROM users WHERE active;\n";
+
+    private static Path write(Path directory, String name, String sql) throws IOException {
+        return Files.write(directory.resolve(name), sql.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static FakeJdbc history(Object[]... rows) {
+        return new FakeJdbc().onQuery("SELECT \"script\", \"checksum\"", rows);
+    }
+
+    private static AuroraDSQLWatch watch(FakeJdbc jdbc, Path directory) {
+        return new AuroraDSQLWatch(jdbc.open(), HISTORY, StandardCharsets.UTF_8, Collections.singletonList(directory));
+    }
+
+    @Test
+    @DisplayName("Checksums should match Flyway's, ignoring line breaks and a byte order mark")
+    void checksumsLikeFlyway() {
+        int checksum = AuroraDSQLWatch.checksum("SELECT 1;\nSELECT 2;\n");
+
+        assertEquals(checksum, AuroraDSQLWatch.checksum("SELECT 1;\r\nSELECT 2;"));
+        assertEquals(checksum, AuroraDSQLWatch.checksum("\uFEFFSELECT 1;\nSELECT 2;"));
+        assertNotEquals(checksum, AuroraDSQLWatch.checksum("SELECT 1;\nSELECT 3;"));
+    }
+
+    @Test
+    @DisplayName("Script names should be parsed the way Flyway parses them")
+    void parsesScriptNames() {
+        AuroraDSQLWatch.Script versioned = AuroraDSQLWatch.Script.of("V1_2__add_orders.sql");
+        AuroraDSQLWatch.Script repeatable = AuroraDSQLWatch.Script.of("R__active_users.sql");
+
+        assertEquals("1.2", versioned.version.getVersion());
+        assertEquals("add orders", versioned.description);
+        assertNull(repeatable.version);
+        assertEquals("active users", repeatable.description);
+        assertNull(AuroraDSQLWatch.Script.of("notes.sql"));
+        assertNull(AuroraDSQLWatch.Script.of("R__active_users.sql.swp"));
+    }
+
+    @Test
+    @DisplayName("Script names should follow the configured prefixes, separator and suffixes")
+    void parsesConfiguredNames() {
+        AuroraDSQLWatch.Naming naming = new AuroraDSQLWatch.Naming("M", "RM", "--", new String[]{".ddl", ".sql"});
+
+        AuroraDSQLWatch.Script versioned = naming.parse("orders/M2--add_orders.ddl");
+        assertEquals("orders/M2--add_orders.ddl", versioned.name);
+        assertEquals("2", versioned.version.getVersion());
+        assertEquals("add orders", versioned.description);
+        assertNull(naming.parse("RM--active_users.sql").version);
+        assertNull(naming.parse("V2__add_orders.sql"));
+        assertFalse(naming.hasSuffix("notes.txt"));
+    }
+
+    @Test
+    @DisplayName("A changed repeatable migration should be applied and recorded with the next rank")
+    void appliesChangedRepeatable() throws IOException {
+        Path directory = Files.createTempDirectory("migrations");
+        Path view = write(directory, "R__active_users.sql", VIEW);
+        FakeJdbc jdbc = history(new Object[]{"V1__init.sql", 11, "1", 1}, new Object[]{"R__active_users.sql", 7, null, 2});
+
+        List<String> applied = watch(jdbc, directory).apply(Collections.singleton(view));
+
+        assertEquals(Collections.singletonList("R__active_users.sql"), applied);
+        assertEquals(3, jdbc.log.size(), jdbc.log.toString());
+        assertEquals(VIEW.trim().replace(";", ""), jdbc.log.get(1).trim().replace(";", ""));
+        assertTrue(jdbc.log.get(2).startsWith("INSERT INTO " + HISTORY), jdbc.log.get(2));
+        assertTrue(jdbc.log.get(2).contains("[3, null, active users, R__active_users.sql, "
+            + AuroraDSQLWatch.checksum(VIEW) + ", "), jdbc.log.get(2));
+    }
+
+    @Test
+    @DisplayName("An unchanged repeatable migration should not be applied again")
+    void skipsUnchangedRepeatable() throws IOException {
+        Path directory = Files.createTempDirectory("migrations");
+        Path view = write(directory, "R__active_users.sql", VIEW);
+        FakeJdbc jdbc = history(new Object[]{"R__active_users.sql", AuroraDSQLWatch.checksum(VIEW), null, 1});
+
+        assertTrue(watch(jdbc, directory).apply(Collections.singleton(view)).isEmpty());
+        assertEquals(1, jdbc.log.size());
+    }
+
+    @Test
+    @DisplayName("New versioned migrations should be applied in version order before repeatables")
+    void appliesNewVersionsInOrder() throws IOException {
+        Path directory = Files.createTempDirectory("migrations");
+        Set<Path> changed = new LinkedHashSet<>();
+        changed.add(write(directory, "R__active_users.sql", VIEW));
+        changed.add(write(directory, "V3__add_index.sql", "CREATE INDEX ASYNC users_email ON users (email);"));
+        changed.add(write(directory, "V2__add_users.sql", "CREATE TABLE users (id UUID PRIMARY KEY);"));
+        changed.add(write(directory, "V1__old.sql", "CREATE TABLE old (id INT PRIMARY KEY);"));
+        FakeJdbc jdbc = history(new Object[]{"V1__init.sql", 11, "1", 1});
+
+        List<String> applied = watch(jdbc, directory).apply(changed);
+
+        assertEquals(List.of("V2__add_users.sql", "V3__add_index.sql", "R__active_users.sql"), applied,
+            "V1__old.sql is below the current version");
+    }
+
+    @Test
+    @DisplayName("Scripts in subfolders should be recorded by their path relative to the location")
+    void recordsRelativePaths() throws IOException {
+        Path directory = Files.createTempDirectory("migrations");
+        Path script = write(Files.createDirectory(directory.resolve("orders")), "V2__add_orders.sql",
+            "CREATE TABLE orders (id UUID PRIMARY KEY);");
+        FakeJdbc jdbc = history(new Object[]{"V1__init.sql", 11, "1", 1});
+
+        List<String> applied = watch(jdbc, directory).apply(Collections.singleton(script));
+
+        assertEquals(Collections.singletonList("orders/V2__add_orders.sql"), applied);
+        assertTrue(jdbc.log.get(2).contains(", orders/V2__add_orders.sql, "), jdbc.log.get(2));
+    }
+
+    @Test
+    @DisplayName("A new, still empty versioned migration should wait for its statements")
+    void skipsEmptyScripts() throws IOException {
+        Path directory = Files.createTempDirectory("migrations");
+        Path script = write(directory, "V2__add_users.sql", "");
+        FakeJdbc jdbc = history(new Object[]{"V1__init.sql", 11, "1", 1});
+        AuroraDSQLWatch watch = watch(jdbc, directory);
+
+        assertTrue(watch.apply(Collections.singleton(script)).isEmpty());
+        assertTrue(jdbc.log.stream().noneMatch(sql -> sql.startsWith("INSERT")), jdbc.log.toString());
+
+        write(directory, "V2__add_users.sql", "CREATE TABLE users (id UUID PRIMARY KEY);");
+        assertEquals(Collections.singletonList("V2__add_users.sql"), watch.apply(Collections.singleton(script)));
+    }
+
+    @Test
+    @DisplayName("A failed script should not be recorded, so the next save retries it")
+    void doesNotRecordFailures() throws IOException {
+        Path directory = Files.createTempDirectory("migrations");
+        Path view = write(directory, "R__active_users.sql", VIEW);
+        FakeJdbc jdbc = history().failOn("CREATE OR REPLACE VIEW",
+            new SQLException("relation \"users\" does not exist", "42P01"));
+
+        assertTrue(watch(jdbc, directory).apply(Collections.singleton(view)).isEmpty());
+        assertTrue(jdbc.log.stream().noneMatch(sql -> sql.startsWith("INSERT")), jdbc.log.toString());
+    }
+}
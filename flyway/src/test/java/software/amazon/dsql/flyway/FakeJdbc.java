@@ -0,0 +1,327 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package software.amazon.dsql.flyway;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory stand-in for a JDBC driver, used by unit tests that exercise plugin code
+ * which talks to {@link java.sql.Connection} directly.
+ *
+ * <p>Every connection records the SQL it executes into a shared log. Queries return
+ * canned rows registered with {@link #onQuery(String, Object[]...)}, matched by SQL
+ * prefix. A connection can be {@link FakeConnection#kill() killed} to simulate DSQL
+ * closing it.</p>
+ */
+final class FakeJdbc {
+
+    static final String URL = "jdbc:postgresql://fake.dsql.us-east-1.on.aws:5432/postgres";
+
+    final List<String> log = Collections.synchronizedList(new ArrayList<>());
+    final List<FakeConnection> connections = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, List<Object[]>> results = new LinkedHashMap<>();
+    private final Map<String, SQLException> failures = new LinkedHashMap<>();
+    private volatile long latencyMillis;
+
+    /**
+     * Registers rows returned by queries whose SQL starts with the given prefix.
+     */
+    FakeJdbc onQuery(String sqlPrefix, Object[]... rows) {
+        results.put(sqlPrefix, Arrays.asList(rows));
+        return this;
+    }
+
+    /**
+     * Makes statements whose SQL starts with the given prefix fail.
+     */
+    FakeJdbc failOn(String sqlPrefix, SQLException error) {
+        failures.put(sqlPrefix, error);
+        return this;
+    }
+
+    /**
+     * Adds a fixed delay to every statement execution.
+     */
+    FakeJdbc withLatency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    Connection open() {
+        FakeConnection state = new FakeConnection();
+        connections.add(state);
+        return state.proxy;
+    }
+
+    /**
+     * Returns a data source that opens a new fake connection on every call.
+     */
+    DataSource dataSource() {
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class},
+            (target, method, args) -> method.getName().equals("getConnection") ? open() : null);
+    }
+
+    FakeConnection last() {
+        return connections.get(connections.size() - 1);
+    }
+
+    /**
+     * Server-side state of one fake connection.
+     */
+    final class FakeConnection {
+        final Connection proxy;
+        volatile boolean dead;
+        volatile boolean closed;
+        boolean autoCommit = true;
+        boolean readOnly;
+        final List<String> executed = new ArrayList<>();
+
+        FakeConnection() {
+            proxy = (Connection) Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (target, method, args) -> {
+                    switch (method.getName()) {
+                        case "createStatement":
+                            return statement(null);
+                        case "prepareStatement":
+                            return statement((String) args[0]);
+                        case "getAutoCommit":
+                            return autoCommit;
+                        case "setAutoCommit":
+                            check();
+                            autoCommit = (Boolean) args[0];
+                            return null;
+                        case "setReadOnly":
+                            readOnly = (Boolean) args[0];
+                            return null;
+                        case "isReadOnly":
+                            return readOnly;
+                        case "commit":
+                            check();
+                            record("COMMIT");
+                            return null;
+                        case "rollback":
+                            check();
+                            record("ROLLBACK");
+                            return null;
+                        case "isValid":
+                            return !dead && !closed;
+                        case "isClosed":
+                            return closed;
+                        case "close":
+                            closed = true;
+                            return null;
+                        case "getMetaData":
+                            return metaData();
+                        case "unwrap":
+                            return target;
+                        case "hashCode":
+                            return System.identityHashCode(target);
+                        case "equals":
+                            return target == args[0];
+                        case "toString":
+                            return "FakeConnection#" + connections.indexOf(this);
+                        default:
+                            return null;
+                    }
+                });
+        }
+
+        void kill() {
+            dead = true;
+        }
+
+        private void check() throws SQLException {
+            if (dead || closed) {
+                throw new SQLException("An I/O error occurred while sending to the backend.", "08006");
+            }
+        }
+
+        private void record(String sql) {
+            executed.add(sql);
+            log.add(sql);
+        }
+
+        private DatabaseMetaData metaData() {
+            return (DatabaseMetaData) Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(),
+                new Class<?>[]{DatabaseMetaData.class}, (target, method, args) ->
+                    "getURL".equals(method.getName()) ? URL : null);
+        }
+
+        private Statement statement(String preparedSql) {
+            Map<Integer, Object> parameters = new TreeMap<>();
+            List<String> batch = new ArrayList<>();
+            Class<?> type = preparedSql == null ? Statement.class : PreparedStatement.class;
+            Object[] lastResult = new Object[1];
+            int[] lastCount = {1};
+            return (Statement) Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(), new Class<?>[]{type},
+                (target, method, args) -> {
+                    String name = method.getName();
+                    if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+                        parameters.put((Integer) args[0], args[1]);
+                        return null;
+                    }
+                    switch (name) {
+                        case "clearParameters":
+                            parameters.clear();
+                            return null;
+                        case "addBatch":
+                            batch.add(args == null ? describe(preparedSql, parameters) : (String) args[0]);
+                            return null;
+                        case "executeBatch":
+                            check();
+                            int[] counts = new int[batch.size()];
+                            for (int i = 0; i < batch.size(); i++) {
+                                run(batch.get(i));
+                                counts[i] = 1;
+                            }
+                            batch.clear();
+                            return counts;
+                        case "execute":
+                        case "executeQuery":
+                        case "executeUpdate":
+                        case "executeLargeUpdate":
+                            check();
+                            String sql = args == null ? describe(preparedSql, parameters) : (String) args[0];
+                            ResultSet rs = run(sql);
+                            lastResult[0] = rs;
+                            // DDL reports no affected rows, like PostgreSQL
+                            lastCount[0] = AuroraDSQLStatement.of(sql).isDdl() ? 0 : 1;
+                            if (name.equals("executeQuery")) {
+                                return rs;
+                            }
+                            if (name.equals("execute")) {
+                                return rs != null;
+                            }
+                            if (name.equals("executeLargeUpdate")) {
+                                return (long) lastCount[0];
+                            }
+                            return lastCount[0];
+                        case "getResultSet":
+                            return lastResult[0];
+                        case "getUpdateCount":
+                            return Integer.valueOf(lastResult[0] == null ? lastCount[0] : -1);
+                        case "getLargeUpdateCount":
+                            return Long.valueOf(lastResult[0] == null ? lastCount[0] : -1L);
+                        case "getMoreResults":
+                            lastResult[0] = null;
+                            return false;
+                        case "getWarnings":
+                        case "close":
+                            return null;
+                        case "isClosed":
+                            return false;
+                        case "hashCode":
+                            return System.identityHashCode(target);
+                        case "equals":
+                            return target == args[0];
+                        default:
+                            return null;
+                    }
+                });
+        }
+
+        private ResultSet run(String sql) throws SQLException {
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (Map.Entry<String, SQLException> failure : failures.entrySet()) {
+                if (sql.startsWith(failure.getKey())) {
+                    throw failure.getValue();
+                }
+            }
+            record(sql);
+            for (Map.Entry<String, List<Object[]>> result : results.entrySet()) {
+                if (sql.startsWith(result.getKey())) {
+                    return resultSet(result.getValue());
+                }
+            }
+            String upper = sql.trim().toUpperCase();
+            return upper.startsWith("SELECT") || upper.startsWith("SHOW") || upper.startsWith("EXPLAIN")
+                    || upper.startsWith("WITH")
+                ? resultSet(Collections.emptyList())
+                : null;
+        }
+    }
+
+    private static String describe(String sql, Map<Integer, Object> parameters) {
+        return parameters.isEmpty() ? sql : sql + " " + parameters.values();
+    }
+
+    static ResultSet resultSet(List<Object[]> rows) {
+        int[] cursor = {-1};
+        boolean[] wasNull = {false};
+        return (ResultSet) Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+            (target, method, args) -> {
+                String name = method.getName();
+                if (name.equals("next")) {
+                    return ++cursor[0] < rows.size();
+                }
+                if (name.equals("wasNull")) {
+                    return wasNull[0];
+                }
+                if (name.equals("getMetaData")) {
+                    int columns = rows.isEmpty() ? 0 : rows.get(0).length;
+                    return Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(),
+                        new Class<?>[]{ResultSetMetaData.class}, (t, m, a) -> {
+                            if (m.getName().equals("getColumnCount")) {
+                                return columns;
+                            }
+                            if (m.getName().equals("getColumnLabel") || m.getName().equals("getColumnName")) {
+                                return "column" + a[0];
+                            }
+                            return null;
+                        });
+                }
+                if (name.equals("close") || name.equals("hashCode") || name.equals("equals")) {
+                    return name.equals("hashCode") ? System.identityHashCode(target)
+                        : name.equals("equals") ? target == args[0] : null;
+                }
+                if (name.startsWith("get") && args != null && args.length == 1 && args[0] instanceof Integer) {
+                    Object value = rows.get(cursor[0])[(Integer) args[0] - 1];
+                    wasNull[0] = value == null;
+                    return convert(value, method.getReturnType());
+                }
+                return null;
+            });
+    }
+
+    private static Object convert(Object value, Class<?> type) {
+        if (type == String.class) {
+            return value == null ? null : value.toString();
+        }
+        if (type == int.class) {
+            return value == null ? 0 : ((Number) value).intValue();
+        }
+        if (type == long.class) {
+            return value == null ? 0L : ((Number) value).longValue();
+        }
+        if (type == double.class) {
+            return value == null ? 0.0 : ((Number) value).doubleValue();
+        }
+        if (type == boolean.class) {
+            return value != null && (Boolean) value;
+        }
+        return value;
+    }
+}